@@ -0,0 +1,153 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+#include "dav1d_blit.h"
+#include "dav1d_film_grain.h"
+
+#include <algorithm>
+#include <cstring>
+
+namespace vcat {
+namespace {
+
+// 32x32 byte tiles: one tile of source rows plus one of destination rows fit
+// comfortably in L1 on the cores we target.
+constexpr int kTile = 32;
+
+void pad_rows(uint8_t* d, ptrdiff_t ds, int rb, int rows) {
+    if (ds <= rb) return;
+    for (int j = 0; j < rows; ++j, d += ds) std::memset(d + rb, 0, ds - rb);
+}
+
+} // namespace
+
+void copy_plane_pad(const uint8_t* s, ptrdiff_t ss, uint8_t* d, ptrdiff_t ds, int rb, int rows) {
+    if (ds == rb) {
+        for (int j = 0; j < rows; ++j) { std::memcpy(d, s, rb); s += ss; d += ds; }
+    } else {
+        const ptrdiff_t pad = ds - rb;
+        for (int j = 0; j < rows; ++j) {
+            std::memcpy(d, s, rb);
+            std::memset(d + rb, 0, pad);
+            s += ss; d += ds;
+        }
+    }
+}
+
+void rotate_plane(const uint8_t* s, ptrdiff_t ss, int w, int h,
+                  uint8_t* d, ptrdiff_t ds, int rotation) {
+    switch (rotation) {
+        case 90:
+            // out(x, y) = in(y, h - 1 - x); output is h wide, w tall.
+            for (int ty = 0; ty < h; ty += kTile) {
+                const int th = std::min(kTile, h - ty);
+                for (int tx = 0; tx < w; tx += kTile) {
+                    const int tw = std::min(kTile, w - tx);
+                    for (int y = 0; y < th; ++y) {
+                        const uint8_t* srow = s + (ty + y) * ss + tx;
+                        uint8_t* dcol = d + tx * ds + (h - 1 - (ty + y));
+                        for (int x = 0; x < tw; ++x) dcol[x * ds] = srow[x];
+                    }
+                }
+            }
+            pad_rows(d, ds, h, w);
+            break;
+        case 270:
+            // out(x, y) = in(w - 1 - y, x); output is h wide, w tall.
+            for (int ty = 0; ty < h; ty += kTile) {
+                const int th = std::min(kTile, h - ty);
+                for (int tx = 0; tx < w; tx += kTile) {
+                    const int tw = std::min(kTile, w - tx);
+                    for (int y = 0; y < th; ++y) {
+                        const uint8_t* srow = s + (ty + y) * ss + tx;
+                        uint8_t* dcol = d + (w - 1 - tx) * ds + (ty + y);
+                        for (int x = 0; x < tw; ++x) dcol[-x * ds] = srow[x];
+                    }
+                }
+            }
+            pad_rows(d, ds, h, w);
+            break;
+        case 180:
+            // Row-reversed and mirrored; rows stay contiguous, no tiling needed.
+            for (int y = 0; y < h; ++y) {
+                const uint8_t* srow = s + y * ss;
+                uint8_t* drow = d + (h - 1 - y) * ds;
+                for (int x = 0; x < w; ++x) drow[w - 1 - x] = srow[x];
+            }
+            pad_rows(d, ds, w, h);
+            break;
+        default:
+            copy_plane_pad(s, ss, d, ds, w, h);
+            break;
+    }
+}
+
+void output_size(const Dav1dPicture& pic, const BlitConfig& cfg, int* ow, int* oh) {
+    // The AV1 render size is only a display-size hint for scaling, so the
+    // whole decoded frame is always written.
+    rotated_size(pic.p.w, pic.p.h, cfg.transform ? cfg.rotation : 0, ow, oh);
+}
+
+bool blit_i420(const Dav1dPicture& pic, const BlitConfig& cfg,
+               uint8_t* dstY, ptrdiff_t dstYStride,
+               uint8_t* dstU, uint8_t* dstV, ptrdiff_t dstUVStride,
+               std::vector<uint8_t>& scratch) {
+    const int w = pic.p.w, h = pic.p.h;
+    const int rot = cfg.transform ? cfg.rotation : 0;
+    const int uvW = (w + 1) / 2, uvH = (h + 1) / 2;
+
+    const uint8_t* srcY = static_cast<const uint8_t*>(pic.data[0]);
+    const uint8_t* srcU = static_cast<const uint8_t*>(pic.data[1]);
+    const uint8_t* srcV = static_cast<const uint8_t*>(pic.data[2]);
+    ptrdiff_t srcYStride  = pic.stride[0];
+    ptrdiff_t srcUVStride = pic.stride[1];
+
+    const bool grain = cfg.fused_grain && picture_has_film_grain(pic);
+    if (grain && rot == 0) {
+        // Single pass: source planes + synthesized grain -> destination.
+        blit_i420_with_film_grain(pic, dstY, dstYStride, dstU, dstV, dstUVStride);
+        return true;
+    }
+    if (grain) {
+        // Grain is laid out in source raster order; synthesize it into scratch
+        // first, then rotate from there.
+        const ptrdiff_t sY = (w + 31) & ~31, sUV = sY >> 1;
+        scratch.resize(static_cast<size_t>(sY * h + 2 * sUV * uvH));
+        uint8_t* gY = scratch.data();
+        uint8_t* gU = gY + sY * h;
+        uint8_t* gV = gU + sUV * uvH;
+        blit_i420_with_film_grain(pic, gY, sY, gU, gV, sUV);
+        srcY = gY; srcU = gU; srcV = gV;
+        srcYStride = sY; srcUVStride = sUV;
+    }
+    rotate_plane(srcY, srcYStride,  w,   h,   dstY, dstYStride,  rot);
+    rotate_plane(srcU, srcUVStride, uvW, uvH, dstU, dstUVStride, rot);
+    rotate_plane(srcV, srcUVStride, uvW, uvH, dstV, dstUVStride, rot);
+    return grain;
+}
+
+} // namespace vcat
@@ -0,0 +1,78 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+// Plane copy helpers shared by the output paths.
+
+#pragma once
+
+#include <cstddef>
+#include <cstdint>
+#include <vector>
+
+extern "C" {
+#include "dav1d/picture.h"
+}
+
+namespace vcat {
+
+// Copies rows*rb bytes and zero-fills each destination row up to ds.
+void copy_plane_pad(const uint8_t* s, ptrdiff_t ss, uint8_t* d, ptrdiff_t ds, int rb, int rows);
+
+// Copies a w x h 8-bit plane rotated clockwise by rotation (0/90/180/270) and
+// zero-fills each destination row beyond the rotated width. 90/270 use a
+// cache-blocked transpose so neither side is walked column-wise across the
+// whole plane.
+void rotate_plane(const uint8_t* s, ptrdiff_t ss, int w, int h,
+                  uint8_t* d, ptrdiff_t ds, int rotation);
+
+// Size of a w x h picture after a clockwise rotation.
+inline void rotated_size(int w, int h, int rotation, int* ow, int* oh) {
+    const bool swap = rotation == 90 || rotation == 270;
+    *ow = swap ? h : w;
+    *oh = swap ? w : h;
+}
+
+// How a picture is turned into output planes.
+struct BlitConfig {
+    bool fused_grain = false; // dav1d opened with apply_grain=0; synthesize grain here
+    bool transform = false;   // rotate by rotation
+    int rotation = 0;         // clockwise degrees, only with transform
+};
+
+// Size of the planes blit_i420() writes for pic.
+void output_size(const Dav1dPicture& pic, const BlitConfig& cfg, int* ow, int* oh);
+
+// Writes an 8-bit I420 picture into three destination planes of output_size(),
+// applying film grain and rotation per cfg. scratch is reused across
+// calls when grain has to be synthesized before reshaping. Returns true when
+// grain was applied.
+bool blit_i420(const Dav1dPicture& pic, const BlitConfig& cfg,
+               uint8_t* dstY, ptrdiff_t dstYStride,
+               uint8_t* dstU, uint8_t* dstV, ptrdiff_t dstUVStride,
+               std::vector<uint8_t>& scratch);
+
+} // namespace vcat
@@ -0,0 +1,592 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+// 8-bit I420 port of dav1d's film grain C reference (src/filmgrain_tmpl.c and
+// src/fg_apply_tmpl.c), reshaped so that source and destination planes can
+// have different strides. Only dav1d's public headers are used; the Gaussian
+// sequence is carried here because dav1d does not export its copy.
+
+#include "dav1d_film_grain.h"
+
+#include <algorithm>
+#include <cstring>
+
+extern "C" {
+#include "dav1d/headers.h"
+}
+
+namespace vcat {
+namespace {
+
+// gaussian_sequence from the AV1 specification (7.18.3, film grain
+// synthesis). Same values as dav1d_gaussian_sequence in dav1d's src/tables.c
+// and gaussian_sequence in libaom's aom_dsp/grain_synthesis.c.
+constexpr int16_t kGaussianSequence[2048] = {
+       56,   568,  -180,   172,   124,   -84,   172,   -64,  -900,    24,   820,   224,
+     1248,   996,   272,    -8,  -916,  -388,  -732,  -104,  -188,   800,   112,  -652,
+     -320,  -376,   140,  -252,   492,  -168,    44,  -788,   588,  -584,   500,  -228,
+       12,   680,   272,  -476,   972,  -100,   652,   368,   432,  -196,  -720,  -192,
+     1000,  -332,   652,  -136,  -552,  -604,    -4,   192,  -220,  -136,  1000,   -52,
+      372,   -96,  -624,   124,   -24,   396,   540,   -12,  -104,   640,   464,   244,
+     -208,   -84,   368,  -528,  -740,   248,  -968,  -848,   608,   376,   -60,  -292,
+      -40,  -156,   252,  -292,   248,   224,  -280,   400,  -244,   244,   -60,    76,
+      -80,   212,   532,   340,   128,   -36,   824,  -352,   -60,  -264,   -96,  -612,
+      416,  -704,   220,  -204,   640,  -160,  1220,  -408,   900,   336,    20,  -336,
+      -96,  -792,   304,    48,   -28, -1232, -1172,  -448,   104,  -292,  -520,   244,
+       60,  -948,     0,  -708,   268,   108,   356,  -548,   488,  -344,  -136,   488,
+     -196,  -224,   656,  -236, -1128,    60,     4,   140,   276,  -676,  -376,   168,
+     -108,   464,     8,   564,    64,   240,   308,  -300,  -400,  -456,  -136,    56,
+      120,  -408,  -116,   436,   504,  -232,   328,   844,  -164,   -84,   784,  -168,
+      232,  -224,   348,  -376,   128,   568,    96, -1244,  -288,   276,   848,   832,
+     -360,   656,   464,  -384,  -332,  -356,   728,  -388,   160,  -192,   468,   296,
+      224,   140,  -776,  -100,   280,     4,   196,    44,   -36,  -648,   932,    16,
+     1428,    28,   528,   808,   772,    20,   268,    88,  -332,  -284,   124,  -384,
+     -448,   208,  -228, -1044,  -328,   660,   380,  -148,  -300,   588,   240,   540,
+       28,   136,   -88,  -436,   256,   296, -1000,  1400,     0,   -48,  1056,  -136,
+      264,  -528, -1108,   632,  -484,  -592,  -344,   796,   124,  -668,  -768,   388,
+     1296,  -232,  -188,  -200,  -288,    -4,   308,   100,  -168,   256,  -500,   204,
+     -508,   648,  -136,   372,  -272,  -120, -1004,  -552,  -548,  -384,   548,  -296,
+      428,  -108,    -8,  -912,  -324,  -224,   -88,  -112,  -220,  -100,   996,  -796,
+      548,   360,  -216,   180,   428,  -200,  -212,   148,    96,   148,   284,   216,
+     -412,  -320,   120,  -300,  -384,  -604,  -572,  -332,    -8,  -180,  -176,   696,
+      116,   -88,   628,    76,    44,  -516,   240,  -208,   -40,   100,  -592,   344,
+     -308,  -452,  -228,    20,   916, -1752,  -136,  -340,  -804,   140,    40,   512,
+      340,   248,   184,  -492,   896,  -156,   932,  -628,   328,  -688,  -448,  -616,
+     -752,  -100,   560, -1020,   180,  -800,   -64,    76,   576,  1068,   396,   660,
+      552,  -108,   -28,   320,  -628,   312,   -92,   -92,  -472,   268,    16,   560,
+      516,  -672,   -52,   492,  -100,   260,   384,   284,   292,   304,  -148,    88,
+     -152,  1012,  1064,  -228,   164,  -376,  -684,   592,  -392,   156,   196,  -524,
+      -64,  -884,   160,  -176,   636,   648,   404,  -396,  -436,   864,   424,  -728,
+      988,  -604,   904,  -592,   296,  -224,   536,  -176,  -920,   436,   -48,  1176,
+     -884,   416,  -776,  -824,  -884,   524,  -548,  -564,   -68,  -164,   -96,   692,
+      364,  -692, -1012,   -68,   260,  -480,   876, -1116,   452,  -332,  -352,   892,
+    -1088,  1220,  -676,    12,  -292,   244,   496,   372,   -32,   280,   200,   112,
+     -440,   -96,    24,  -644,  -184,    56,  -432,   224,  -980,   272,  -260,   144,
+     -436,   420,   356,   364,  -528,    76,   172,  -744,  -368,   404,  -752,  -416,
+      684,  -688,    72,   540,   416,    92,   444,   480,   -72, -1416,   164, -1172,
+      -68,    24,   424,   264,  1040,   128,  -912,  -524,  -356,    64,   876,   -12,
+        4,   -88,   532,   272,  -524,   320,   276,  -508,   940,    24,  -400,  -120,
+      756,    60,   236,  -412,   100,   376,  -484,   400,  -100,  -740,  -108,  -260,
+      328,  -268,   224,  -200,  -416,   184,  -604,  -564,   -20,   296,    60,   892,
+     -888,    60,   164,    68,  -760,   216,  -296,   904,  -336,   -28,   404,  -356,
+     -568,  -208, -1480,  -512,   296,   328,  -360,  -164, -1560,  -776,  1156,  -428,
+      164,  -504,  -112,   120,  -216,  -148,  -264,   308,    32,    64,   -72,    72,
+      116,   176,   -64,  -272,   460,  -536,  -784,  -280,   348,   108,  -752,  -132,
+      524,  -540,  -776,   116,  -296, -1196,  -288,  -560,  1040,  -472,   116,  -848,
+    -1116,   116,   636,   696,   284,  -176,  1016,   204,  -864,  -648,  -248,   356,
+      972,  -584,  -204,   264,   880,   528,   -24,  -184,   116,   448,  -144,   828,
+      524,   212,  -212,    52,    12,   200,   268,  -488,  -404,  -880,   824,  -672,
+      -40,   908,  -248,   500,   716,  -576,   492,  -576,    16,   720,  -108,   384,
+      124,   344,   280,   576,  -500,   252,   104,  -308,   196,  -188,    -8,  1268,
+      296,  1032, -1196,   436,   316,   372,  -432,  -200,  -660,   704,  -224,   596,
+     -132,   268,    32,  -452,   884,   104, -1008,   424, -1348,  -280,     4, -1168,
+      368,   476,   696,   300,    -8,    24,   180,  -592,  -196,   388,   304,   500,
+      724,  -160,   244,   -84,   272,  -256,  -420,   320,   208,  -144,  -156,   156,
+      364,   452,    28,   540,   316,   220,  -644,  -248,   464,    72,   360,    32,
+     -388,   496,  -680,   -48,   208,  -116,  -408,    60,  -604,  -392,   548,  -840,
+      784,  -460,   656,  -544,  -388,  -264,   908,  -800,  -628,  -612,  -568,   572,
+     -220,   164,   288,   -16,  -308,   308,  -112,  -636,  -760,   280,  -668,   432,
+      364,   240,  -196,   604,   340,   384,   196,   592,   -44,  -500,   432,  -580,
+     -132,   636,   -76,   392,     4,  -412,   540,   508,   328,  -356,   -36,    16,
+     -220,   -64,  -248,   -60,    24,  -192,   368,  1040,    92,   -24, -1044,   -32,
+       40,   104,   148,   192,  -136,  -520,    56,  -816,  -224,   732,   392,   356,
+      212,   -80,  -424, -1008,  -324,   588, -1496,   576,   460,  -816,  -848,    56,
+     -580,   -92, -1372,  -112,  -496,   200,   364,    52,  -140,    48,   -48,   -60,
+       84,    72,    40,   132,  -356,  -268,  -104,  -284,  -404,   732,  -520,   164,
+     -304,  -540,   120,   328,   -76,  -460,   756,   388,   588,   236,  -436,   -72,
+     -176,  -404,  -316,  -148,   716,  -604,   404,   -72,   -88,  -888,   -68,   944,
+       88,  -220,  -344,   960,   472,   460,  -232,   704,   120,   832,  -228,   692,
+     -508,   132,  -476,   844,  -748,  -364,   -44,  1116, -1104, -1056,    76,   428,
+      552,  -692,    60,   356,    96,  -384,  -188,  -612,  -576,   736,   508,   892,
+      352, -1132,   504,   -24,  -352,   324,   332,  -600,  -312,   292,   508,  -144,
+       -8,   484,    48,   284,  -260,  -240,   256,  -100,  -292,  -204,   -44,   472,
+     -204,   908,  -188, -1000,  -256,    92,  1164,  -392,   564,   356,   652,   -28,
+     -884,   256,   484,  -192,   760,  -176,   376,  -524,  -452,  -436,   860,  -736,
+      212,   124,   504,  -476,   468,    76,  -472,   552,  -692,  -944,  -620,   740,
+     -240,   400,   132,    20,   192,  -196,   264,  -668, -1012,   -60,   296,  -316,
+     -828,    76,  -156,   284,  -768,  -448,  -832,   148,   248,   652,   616,  1236,
+      288,  -328,  -400,  -124,   588,   220,   520,  -696,  1032,   768,  -740,   -92,
+     -272,   296,   448,  -464,   412,  -200,   392,   440,  -200,   264,  -152,  -260,
+      320,  1032,   216,   320,    -8,   -64,   156, -1016,  1084,  1172,   536,   484,
+     -432,   132,   372,   -52,  -256,    84,   116,  -352,    48,   116,   304,  -384,
+      412,   924,  -300,   528,   628,   180,   648,    44,  -980,  -220,  1320,    48,
+      332,   748,   524,  -268,  -720,   540,  -276,   564,  -344,  -208,  -196,   436,
+      896,    88,  -392,   132,    80,  -964,  -288,   568,    56,   -48,  -456,   888,
+        8,   552,  -156,  -292,   948,   288,   128,  -716,  -292,  1192,  -152,   876,
+      352,  -600,  -260,  -812,  -468,   -28,  -120,   -32,   -44,  1284,   496,   192,
+      464,   312,   -76,  -516,  -380,  -456, -1012,   -48,   308,  -156,    36,   492,
+     -156,  -808,   188,  1652,    68,  -120,  -116,   316,   160,  -140,   352,   808,
+     -416,   592,   316,  -480,    56,   528,  -204,  -568,   372,  -232,   752,  -344,
+      744,    -4,   324,  -416,  -600,   768,   268,  -248,   -88,  -132,  -420,  -432,
+       80,  -288,   404,  -316, -1216,  -588,   520,  -108,    92,  -320,   368,  -480,
+     -216,   -92,  1688,  -300,   180,  1020,  -176,   820,   -68,  -228,  -260,   436,
+     -904,    20,    40,  -508,   440,  -736,   312,   332,   204,   760,  -372,   728,
+       96,   -20,  -632,  -520,  -560,   336,  1076,   -64,  -532,   776,   584,   192,
+      396,  -728,  -520,   276,  -188,    80,   -52,  -612,  -252,   -48,   648,   212,
+     -688,   228,   -52,  -260,   428,  -412,  -272,  -404,   180,   816,  -796,    48,
+      152,   484,   -88,  -216,   988,   696,   188,  -528,   648,  -116,  -180,   316,
+      476,    12,  -564,    96,   476,  -252,  -364,  -376,  -392,   556,  -256,  -576,
+      260,  -352,   120,   -16,  -136,  -260,  -492,    72,   556,   660,   580,   616,
+      772,   436,   424,   -32,  -324, -1268,   416,  -324,   -80,   920,   160,   228,
+      724,    32,  -516,    64,   384,    68,  -128,   136,   240,   248,  -204,   -68,
+      252,  -932,  -120,  -480,  -628,   -84,   192,   852,  -404,  -288,  -132,   204,
+      100,   168,   -68,  -196,  -868,   460,  1080,   380,   -80,   244,     0,   484,
+     -888,    64,   184,   352,   600,   460,   164,   604,  -196,   320,   -64,   588,
+     -184,   228,    12,   372,    48,  -848,  -344,   224,   208,  -200,   484,   128,
+      -20,   272,  -468,  -840,   384,   256,  -720,  -520,  -464,  -580,   112,  -120,
+      644,  -356,  -208,  -608,  -528,   704,   560,  -424,   392,   828,    40,    84,
+      200,  -152,     0,  -144,   584,   280,  -120,    80,  -556,  -972,  -196,  -472,
+      724,    80,   168,   -32,    88,   160,  -688,     0,   160,   356,   372,  -776,
+      740,  -128,   676,  -248,  -480,     4,  -364,    96,   544,   232, -1032,   956,
+      236,   356,    20,   -40,   300,    24,  -676,  -596,   132,  1120,  -104,   532,
+    -1096,   568,   648,   444,   508,   380,   188,  -376,  -604,  1488,   424,    24,
+      756,  -220,  -192,   716,   120,   920,   688,   168,    44,  -460,   568,   284,
+     1144,  1160,   600,   424,   888,   656,  -356,  -320,   220,   316,  -176,  -724,
+     -188,  -816,  -628,  -348,  -228,  -380,  1012,  -452,  -660,   736,   928,   404,
+     -696,   -72,  -268,  -892,   128,   184,  -344,  -780,   360,   336,   400,   344,
+      428,   548,  -112,   136,  -228,  -216,  -820,  -516,   340,    92,  -136,   116,
+     -300,   376,  -244,   100,  -316,  -520,  -284,   -12,   824,   164,  -548,  -180,
+     -128,   116,  -924,  -828,   268,  -368,  -580,   620,   192,   160,     0, -1676,
+     1068,   424,   -56,  -360,   468,  -156,   720,   288,  -528,   556,  -364,   548,
+     -148,   504,   316,   152,  -648,  -620,  -684,   -24,  -376,  -384,  -108,  -920,
+    -1032,   768,   180,  -264,  -508, -1268,  -260,   -60,   300,  -240,   988,   724,
+     -376,  -576,  -212,  -736,   556,   192,  1092,  -620,  -880,   376,   -56,    -4,
+     -216,   -32,   836,   268,   396,  1332,   864,  -600,   100,    56,  -412,   -92,
+      356,   180,   884,  -468,  -436,   292,  -388,  -804,  -704,  -840,   368,  -348,
+      140,  -724,  1536,   940,   372,   112,  -372,   436,  -480,  1136,   296,   -32,
+     -228,   132,   -48,  -220,   868, -1016,   -60, -1044,  -464,   328,   916,   244,
+       12,  -736,  -296,   360,   468,  -376,  -108,   -92,   788,   368,   -56,   544,
+      400,  -672,  -420,   728,    16,   320,    44,  -284,  -380,  -796,   488,   132,
+      204,  -596,  -372,    88,  -152,  -908,  -636,  -572,  -624,  -116,  -692,  -200,
+      -56,   276,   -88,   484,  -324,   948,   864,  1000,  -456,  -184,  -276,   292,
+     -296,   156,   676,   320,   160,   908,   -84, -1236,  -288,  -116,   260,  -372,
+     -644,   732,  -756,   -96,    84,   344,  -520,   348,  -688,   240,   -84,   216,
+    -1044,  -136,  -676,  -396, -1500,   960,   -40,   176,   168,  1516,   420,  -504,
+     -344,  -364,  -360,  1216,  -940,  -380,  -212,   252,  -660,  -708,   484,  -444,
+     -152,   928,  -120,  1112,   476,  -260,   560,  -148,  -344,   108,  -196,   228,
+     -288,   504,   560,  -328,   -88,   288, -1008,   460,  -228,   468,  -836,  -196,
+       76,   388,   232,   412, -1168,  -716,  -644,   756,  -172,  -356,  -504,   116,
+      432,   528,    48,   476,  -168,  -608,   448,   160,  -532,  -272,    28,  -676,
+      -12,   828,   980,   456,   520,   104,  -104,   256,  -344,    -4,   -28,  -368,
+      -52,  -524,  -572,  -556,  -200,   768,  1124,  -208,  -512,   176,   232,   248,
+     -148,  -888,   604,  -600,  -304,   804,  -156,  -212,   488,  -192,  -804,  -256,
+      368,  -360,  -916,  -328,   228,  -240,  -448,  -472,   856,  -556,  -364,   572,
+      -12,  -156,  -368,  -340,   432,   252,  -752,  -152,   288,   268,  -580,  -848,
+     -592,   108,   -76,   244,   312,  -716,   592,   -80,   436,   360,     4,  -248,
+      160,   516,   584,   732,    44,  -468,  -280,  -292,  -156,  -588,    28,   308,
+      912,    24,   124,   156,   180,  -252,   944,  -924,  -772,  -520,  -428,  -624,
+      300,  -212, -1144,    32,  -724,   800, -1128,  -212, -1288,  -848,   180,  -416,
+      440,   192,  -576,  -792,   -76, -1080,    80,  -532,  -352,  -132,   380,  -820,
+      148,  1112,   128,   164,   456,   700,  -924,   144,  -668,  -384,   648,  -832,
+      508,   552,   -52,  -100,  -656,   208,  -568,   748,   -88,   680,   232,   300,
+      192,  -408, -1012,  -152,  -252,  -268,   272,  -876,  -664,  -648,  -332,  -136,
+       16,    12,  1152,   -28,   332,  -536,   320,  -672,  -460,  -316,   532,  -260,
+      228,   -40,  1052,  -816,   180,    88,  -496,  -556,  -672,  -368,   428,    92,
+      356,   404,  -408,   252,   196,  -176,  -556,   792,   268,    32,   372,    40,
+       96,  -332,   328,   120,   372,  -900,   -40,   472,  -264,  -592,   952,   128,
+      656,   112,   664,  -232,   420,     4,  -344,  -464,   556,   244,  -416,   -32,
+      252,     0,  -412,   188,  -696,   508,  -476,   324, -1096,   656,  -312,   560,
+      264,  -136,   304,   160,   -64,  -580,   248,   336,  -720,   560,  -348,  -288,
+     -276,  -196,  -500,   852,  -544,  -236, -1128,  -992,  -776,   116,    56,    52,
+      860,   884,   212,   -12,   168,  1020,   512,  -552,   924,  -148,   716,   188,
+      164,  -340,  -520,  -184,   880,  -152,  -680,  -208, -1156,  -300,  -528,  -472,
+      364,   100,  -744, -1056,   -32,   540,   280,   144,  -676,   -32,  -232,  -280,
+     -224,    96,   568,   -76,   172,   148,   148,   104,    32,  -296,   -32,   788,
+      -80,    32,   -16,   280,   288,   944,   428,  -484,
+};
+
+constexpr int kGrainWidth = 82;
+constexpr int kGrainHeight = 73;
+constexpr int kSubGrainWidth = 44;
+constexpr int kSubGrainHeight = 38;
+constexpr int kBlockSize = 32;
+constexpr int kScalingSize = 256;
+
+using GrainLut = int8_t[kGrainHeight + 1][kGrainWidth];
+
+inline int round2(int x, uint64_t shift) {
+    return (x + ((1 << shift) >> 1)) >> shift;
+}
+
+inline int iclip(int v, int lo, int hi) {
+    return v < lo ? lo : (v > hi ? hi : v);
+}
+
+inline int get_random_number(int bits, unsigned* state) {
+    const int r = static_cast<int>(*state);
+    const unsigned bit = ((r >> 0) ^ (r >> 1) ^ (r >> 3) ^ (r >> 12)) & 1;
+    *state = (r >> 1) | (bit << 15);
+    return (*state >> (16 - bits)) & ((1 << bits) - 1);
+}
+
+void generate_grain_y(GrainLut buf, const Dav1dFilmGrainData& d) {
+    unsigned seed = d.seed;
+    const int shift = 4 + d.grain_scale_shift;
+
+    for (int y = 0; y < kGrainHeight; y++) {
+        for (int x = 0; x < kGrainWidth; x++) {
+            const int value = get_random_number(11, &seed);
+            buf[y][x] = static_cast<int8_t>(round2(kGaussianSequence[value], shift));
+        }
+    }
+
+    const int ar_pad = 3;
+    const int ar_lag = d.ar_coeff_lag;
+    for (int y = ar_pad; y < kGrainHeight; y++) {
+        for (int x = ar_pad; x < kGrainWidth - ar_pad; x++) {
+            const int8_t* coeff = d.ar_coeffs_y;
+            int sum = 0;
+            for (int dy = -ar_lag; dy <= 0; dy++) {
+                for (int dx = -ar_lag; dx <= ar_lag; dx++) {
+                    if (!dx && !dy) break;
+                    sum += *(coeff++) * buf[y + dy][x + dx];
+                }
+            }
+            const int grain = buf[y][x] + round2(sum, d.ar_coeff_shift);
+            buf[y][x] = static_cast<int8_t>(iclip(grain, -128, 127));
+        }
+    }
+}
+
+// I420 only: subx = suby = 1.
+void generate_grain_uv(GrainLut buf, const GrainLut buf_y,
+                       const Dav1dFilmGrainData& d, int uv) {
+    const int subx = 1, suby = 1;
+    unsigned seed = d.seed ^ (uv ? 0x49d8 : 0xb524);
+    const int shift = 4 + d.grain_scale_shift;
+    const int chromaW = kSubGrainWidth;
+    const int chromaH = kSubGrainHeight;
+
+    for (int y = 0; y < chromaH; y++) {
+        for (int x = 0; x < chromaW; x++) {
+            const int value = get_random_number(11, &seed);
+            buf[y][x] = static_cast<int8_t>(round2(kGaussianSequence[value], shift));
+        }
+    }
+
+    const int ar_pad = 3;
+    const int ar_lag = d.ar_coeff_lag;
+    for (int y = ar_pad; y < chromaH; y++) {
+        for (int x = ar_pad; x < chromaW - ar_pad; x++) {
+            const int8_t* coeff = d.ar_coeffs_uv[uv];
+            int sum = 0;
+            for (int dy = -ar_lag; dy <= 0; dy++) {
+                for (int dx = -ar_lag; dx <= ar_lag; dx++) {
+                    if (!dx && !dy) {
+                        // The current pixel also takes a contribution from the luma grain.
+                        if (!d.num_y_points) break;
+                        int luma = 0;
+                        const int lumaX = ((x - ar_pad) << subx) + ar_pad;
+                        const int lumaY = ((y - ar_pad) << suby) + ar_pad;
+                        for (int i = 0; i <= suby; i++) {
+                            for (int j = 0; j <= subx; j++) {
+                                luma += buf_y[lumaY + i][lumaX + j];
+                            }
+                        }
+                        luma = round2(luma, subx + suby);
+                        sum += luma * (*coeff);
+                        break;
+                    }
+                    sum += *(coeff++) * buf[y + dy][x + dx];
+                }
+            }
+            const int grain = buf[y][x] + round2(sum, d.ar_coeff_shift);
+            buf[y][x] = static_cast<int8_t>(iclip(grain, -128, 127));
+        }
+    }
+}
+
+void generate_scaling(const uint8_t points[][2], int num, uint8_t scaling[kScalingSize]) {
+    if (num == 0) {
+        std::memset(scaling, 0, kScalingSize);
+        return;
+    }
+    std::memset(scaling, points[0][1], points[0][0]);
+    for (int i = 0; i < num - 1; i++) {
+        const int bx = points[i][0];
+        const int by = points[i][1];
+        const int ex = points[i + 1][0];
+        const int ey = points[i + 1][1];
+        const int dx = ex - bx;
+        const int dy = ey - by;
+        if (dx <= 0) continue; // malformed; dav1d asserts here
+        const int delta = dy * ((0x10000 + (dx >> 1)) / dx);
+        for (int x = 0, acc = 0x8000; x < dx; x++) {
+            scaling[bx + x] = static_cast<uint8_t>(by + (acc >> 16));
+            acc += delta;
+        }
+    }
+    const int n = points[num - 1][0];
+    std::memset(&scaling[n], points[num - 1][1], kScalingSize - n);
+}
+
+inline int sample_lut(const GrainLut lut, const int offsets[2][2], int subx, int suby,
+                      int bx, int by, int x, int y) {
+    const int randval = offsets[bx][by];
+    const int offx = 3 + (2 >> subx) * (3 + (randval >> 4));
+    const int offy = 3 + (2 >> suby) * (3 + (randval & 0xF));
+    return lut[offy + y + (kBlockSize >> suby) * by][offx + x + (kBlockSize >> subx) * bx];
+}
+
+inline void seed_rows(unsigned seed[2], const Dav1dFilmGrainData& d, int rows, int row_num) {
+    for (int i = 0; i < rows; i++) {
+        seed[i] = d.seed;
+        seed[i] ^= (((row_num - i) * 37 + 178) & 0xFF) << 8;
+        seed[i] ^= (((row_num - i) * 173 + 105) & 0xFF);
+    }
+}
+
+// One 32-row band of luma, src -> dst.
+void fgy_band(uint8_t* dst_row, ptrdiff_t dst_stride,
+              const uint8_t* src_row, ptrdiff_t src_stride,
+              const Dav1dFilmGrainData& d, int pw, const uint8_t scaling[kScalingSize],
+              const GrainLut lut, int bh, int row_num) {
+    const int rows = 1 + (d.overlap_flag && row_num > 0);
+    const int min_value = d.clip_to_restricted_range ? 16 : 0;
+    const int max_value = d.clip_to_restricted_range ? 235 : 255;
+
+    unsigned seed[2];
+    seed_rows(seed, d, rows, row_num);
+    int offsets[2][2] = {{0, 0}, {0, 0}};
+    static const int w[2][2] = {{27, 17}, {17, 27}};
+
+    auto add_noise = [&](int bx, int x, int y, int grain) {
+        const uint8_t s = src_row[y * src_stride + bx + x];
+        const int noise = round2(scaling[s] * grain, d.scaling_shift);
+        dst_row[y * dst_stride + bx + x] = static_cast<uint8_t>(iclip(s + noise, min_value, max_value));
+    };
+
+    for (int bx = 0; bx < pw; bx += kBlockSize) {
+        const int bw = std::min(kBlockSize, pw - bx);
+        if (d.overlap_flag && bx) {
+            for (int i = 0; i < rows; i++) offsets[1][i] = offsets[0][i];
+        }
+        for (int i = 0; i < rows; i++) offsets[0][i] = get_random_number(8, &seed[i]);
+
+        const int ystart = d.overlap_flag && row_num ? std::min(2, bh) : 0;
+        const int xstart = d.overlap_flag && bx ? std::min(2, bw) : 0;
+
+        for (int y = ystart; y < bh; y++) {
+            for (int x = xstart; x < bw; x++) {
+                add_noise(bx, x, y, sample_lut(lut, offsets, 0, 0, 0, 0, x, y));
+            }
+            for (int x = 0; x < xstart; x++) {
+                int grain = sample_lut(lut, offsets, 0, 0, 0, 0, x, y);
+                const int old = sample_lut(lut, offsets, 0, 0, 1, 0, x, y);
+                grain = iclip(round2(old * w[x][0] + grain * w[x][1], 5), -128, 127);
+                add_noise(bx, x, y, grain);
+            }
+        }
+        for (int y = 0; y < ystart; y++) {
+            for (int x = xstart; x < bw; x++) {
+                int grain = sample_lut(lut, offsets, 0, 0, 0, 0, x, y);
+                const int old = sample_lut(lut, offsets, 0, 0, 0, 1, x, y);
+                grain = iclip(round2(old * w[y][0] + grain * w[y][1], 5), -128, 127);
+                add_noise(bx, x, y, grain);
+            }
+            for (int x = 0; x < xstart; x++) {
+                int top = sample_lut(lut, offsets, 0, 0, 0, 1, x, y);
+                int old = sample_lut(lut, offsets, 0, 0, 1, 1, x, y);
+                top = iclip(round2(old * w[x][0] + top * w[x][1], 5), -128, 127);
+
+                int grain = sample_lut(lut, offsets, 0, 0, 0, 0, x, y);
+                old = sample_lut(lut, offsets, 0, 0, 1, 0, x, y);
+                grain = iclip(round2(old * w[x][0] + grain * w[x][1], 5), -128, 127);
+
+                grain = iclip(round2(top * w[y][0] + grain * w[y][1], 5), -128, 127);
+                add_noise(bx, x, y, grain);
+            }
+        }
+    }
+}
+
+// One 16-row band of one chroma plane (I420), src -> dst. luma_row is the
+// un-grained source luma for the same band; luma_w bounds the odd-width pad.
+void fguv_band(uint8_t* dst_row, ptrdiff_t dst_stride,
+               const uint8_t* src_row, ptrdiff_t src_stride,
+               const Dav1dFilmGrainData& d, int pw, const uint8_t scaling[kScalingSize],
+               const GrainLut lut, int bh, int row_num,
+               const uint8_t* luma_row, ptrdiff_t luma_stride, int luma_w,
+               int uv, bool is_id) {
+    const int sx = 1, sy = 1;
+    const int rows = 1 + (d.overlap_flag && row_num > 0);
+    const int min_value = d.clip_to_restricted_range ? 16 : 0;
+    const int max_value = d.clip_to_restricted_range ? (is_id ? 235 : 240) : 255;
+
+    unsigned seed[2];
+    seed_rows(seed, d, rows, row_num);
+    int offsets[2][2] = {{0, 0}, {0, 0}};
+    // I420 uses the subsampled weight set in both directions.
+    static const int w[2] = {23, 22};
+
+    auto add_noise = [&](int bx, int x, int y, int grain) {
+        const int lx = (bx + x) << sx;
+        const uint8_t* luma = luma_row + (y << sy) * luma_stride + lx;
+        // dav1d pads the last luma column for odd widths; read it in place instead.
+        int avg = luma[0];
+        avg = (avg + (lx + 1 < luma_w ? luma[1] : luma[0]) + 1) >> 1;
+        const uint8_t s = src_row[y * src_stride + bx + x];
+        int val = avg;
+        if (!d.chroma_scaling_from_luma) {
+            const int combined = avg * d.uv_luma_mult[uv] + s * d.uv_mult[uv];
+            val = iclip((combined >> 6) + d.uv_offset[uv], 0, 255);
+        }
+        const int noise = round2(scaling[val] * grain, d.scaling_shift);
+        dst_row[y * dst_stride + bx + x] = static_cast<uint8_t>(iclip(s + noise, min_value, max_value));
+    };
+
+    const int block = kBlockSize >> sx;
+    for (int bx = 0; bx < pw; bx += block) {
+        const int bw = std::min(block, pw - bx);
+        if (d.overlap_flag && bx) {
+            for (int i = 0; i < rows; i++) offsets[1][i] = offsets[0][i];
+        }
+        for (int i = 0; i < rows; i++) offsets[0][i] = get_random_number(8, &seed[i]);
+
+        const int ystart = d.overlap_flag && row_num ? std::min(2 >> sy, bh) : 0;
+        const int xstart = d.overlap_flag && bx ? std::min(2 >> sx, bw) : 0;
+
+        for (int y = ystart; y < bh; y++) {
+            for (int x = xstart; x < bw; x++) {
+                add_noise(bx, x, y, sample_lut(lut, offsets, sx, sy, 0, 0, x, y));
+            }
+            for (int x = 0; x < xstart; x++) {
+                int grain = sample_lut(lut, offsets, sx, sy, 0, 0, x, y);
+                const int old = sample_lut(lut, offsets, sx, sy, 1, 0, x, y);
+                grain = iclip(round2(old * w[0] + grain * w[1], 5), -128, 127);
+                add_noise(bx, x, y, grain);
+            }
+        }
+        for (int y = 0; y < ystart; y++) {
+            for (int x = xstart; x < bw; x++) {
+                int grain = sample_lut(lut, offsets, sx, sy, 0, 0, x, y);
+                const int old = sample_lut(lut, offsets, sx, sy, 0, 1, x, y);
+                grain = iclip(round2(old * w[0] + grain * w[1], 5), -128, 127);
+                add_noise(bx, x, y, grain);
+            }
+            for (int x = 0; x < xstart; x++) {
+                int top = sample_lut(lut, offsets, sx, sy, 0, 1, x, y);
+                int old = sample_lut(lut, offsets, sx, sy, 1, 1, x, y);
+                top = iclip(round2(old * w[0] + top * w[1], 5), -128, 127);
+
+                int grain = sample_lut(lut, offsets, sx, sy, 0, 0, x, y);
+                old = sample_lut(lut, offsets, sx, sy, 1, 0, x, y);
+                grain = iclip(round2(old * w[0] + grain * w[1], 5), -128, 127);
+
+                grain = iclip(round2(top * w[0] + grain * w[1], 5), -128, 127);
+                add_noise(bx, x, y, grain);
+            }
+        }
+    }
+}
+
+void copy_rows_pad(const uint8_t* s, ptrdiff_t ss, uint8_t* d, ptrdiff_t ds, int rb, int rows) {
+    for (int j = 0; j < rows; ++j) {
+        std::memcpy(d, s, rb);
+        if (ds > rb) std::memset(d + rb, 0, ds - rb);
+        s += ss; d += ds;
+    }
+}
+
+void pad_rows(uint8_t* d, ptrdiff_t ds, int rb, int rows) {
+    if (ds <= rb) return;
+    for (int j = 0; j < rows; ++j, d += ds) std::memset(d + rb, 0, ds - rb);
+}
+
+} // namespace
+
+bool picture_has_film_grain(const Dav1dPicture& pic) {
+    if (!pic.frame_hdr || !pic.frame_hdr->film_grain.present) return false;
+    const Dav1dFilmGrainData& d = pic.frame_hdr->film_grain.data;
+    return d.num_y_points || d.num_uv_points[0] || d.num_uv_points[1]
+           || (d.clip_to_restricted_range && d.chroma_scaling_from_luma);
+}
+
+void blit_i420_with_film_grain(const Dav1dPicture& pic,
+                               uint8_t* dstY, ptrdiff_t dstYStride,
+                               uint8_t* dstU, uint8_t* dstV, ptrdiff_t dstUVStride) {
+    const Dav1dFilmGrainData& d = pic.frame_hdr->film_grain.data;
+    const int w = pic.p.w, h = pic.p.h;
+    const int cw = (w + 1) >> 1;
+
+    // ~18 KB of tables; rebuilt per frame because the seed changes per frame.
+    alignas(16) GrainLut lut[3];
+    alignas(16) uint8_t scaling[3][kScalingSize];
+
+    generate_grain_y(lut[0], d);
+    const bool uv_active[2] = {
+            d.num_uv_points[0] || d.chroma_scaling_from_luma != 0,
+            d.num_uv_points[1] || d.chroma_scaling_from_luma != 0,
+    };
+    for (int pl = 0; pl < 2; pl++) {
+        if (uv_active[pl]) generate_grain_uv(lut[1 + pl], lut[0], d, pl);
+    }
+    if (d.num_y_points || d.chroma_scaling_from_luma)
+        generate_scaling(d.y_points, d.num_y_points, scaling[0]);
+    if (d.num_uv_points[0]) generate_scaling(d.uv_points[0], d.num_uv_points[0], scaling[1]);
+    if (d.num_uv_points[1]) generate_scaling(d.uv_points[1], d.num_uv_points[1], scaling[2]);
+
+    const auto* srcY = static_cast<const uint8_t*>(pic.data[0]);
+    const uint8_t* srcUV[2] = { static_cast<const uint8_t*>(pic.data[1]),
+                                static_cast<const uint8_t*>(pic.data[2]) };
+    uint8_t* dstUV[2] = { dstU, dstV };
+    const ptrdiff_t srcYStride = pic.stride[0];
+    const ptrdiff_t srcUVStride = pic.stride[1];
+    const bool is_id = pic.seq_hdr && pic.seq_hdr->mtrx == DAV1D_MC_IDENTITY;
+
+    for (int row = 0; row * kBlockSize < h; row++) {
+        const int y0 = row * kBlockSize;
+        const int bh = std::min(h - y0, kBlockSize);
+        const uint8_t* lumaSrc = srcY + y0 * srcYStride;
+        uint8_t* lumaDst = dstY + y0 * dstYStride;
+
+        if (d.num_y_points) {
+            fgy_band(lumaDst, dstYStride, lumaSrc, srcYStride, d, w, scaling[0], lut[0], bh, row);
+            pad_rows(lumaDst, dstYStride, w, bh);
+        } else {
+            copy_rows_pad(lumaSrc, srcYStride, lumaDst, dstYStride, w, bh);
+        }
+
+        const int cy0 = y0 >> 1;
+        const int cbh = (bh + 1) >> 1;
+        for (int pl = 0; pl < 2; pl++) {
+            const uint8_t* s = srcUV[pl] + cy0 * srcUVStride;
+            uint8_t* o = dstUV[pl] + cy0 * dstUVStride;
+            const bool apply = d.chroma_scaling_from_luma || d.num_uv_points[pl];
+            if (apply) {
+                fguv_band(o, dstUVStride, s, srcUVStride, d, cw,
+                          d.chroma_scaling_from_luma ? scaling[0] : scaling[1 + pl],
+                          lut[1 + pl], cbh, row, lumaSrc, srcYStride, w, pl, is_id);
+                pad_rows(o, dstUVStride, cw, cbh);
+            } else {
+                copy_rows_pad(s, srcUVStride, o, dstUVStride, cw, cbh);
+            }
+        }
+    }
+}
+
+} // namespace vcat
@@ -0,0 +1,58 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+// Film grain synthesis fused into the output blit.
+//
+// When dav1d is opened with apply_grain=0 it returns pictures without grain
+// and leaves the parameters in frame_hdr->film_grain.data. The functions here
+// regenerate the grain (AV1 spec 7.18.3, bit-exact with dav1d's C reference)
+// and write src+grain straight into the destination planes, so the picture is
+// touched once instead of twice (dav1d grain pass + blit copy).
+
+#pragma once
+
+#include <cstddef>
+#include <cstdint>
+
+extern "C" {
+#include "dav1d/picture.h"
+}
+
+namespace vcat {
+
+// Returns true if the picture carries film grain parameters that alter samples.
+bool picture_has_film_grain(const Dav1dPicture& pic);
+
+// Writes the visible 8-bit I420 planes of pic, with film grain applied, into
+// three destination planes. Destination rows beyond the visible width are
+// zero-padded up to the destination stride, matching the plain copy path.
+// dstU/dstV may alias any layout (e.g. YV12 puts V first).
+void blit_i420_with_film_grain(const Dav1dPicture& pic,
+                               uint8_t* dstY, ptrdiff_t dstYStride,
+                               uint8_t* dstU, uint8_t* dstV, ptrdiff_t dstUVStride);
+
+} // namespace vcat
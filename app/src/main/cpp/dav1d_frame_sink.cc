@@ -0,0 +1,460 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+#include "dav1d_frame_sink.h"
+
+#include <android/log.h>
+
+#include <chrono>
+#include <cmath>
+#include <condition_variable>
+#include <cstdio>
+#include <cstring>
+#include <errno.h>
+#include <mutex>
+#include <thread>
+#include <time.h>
+#include <vector>
+
+#include "dav1d_film_grain.h"
+#include "dav1d_md5.h"
+
+#define LOG_TAG "dav1d_sink"
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+#define LOGW(...) __android_log_print(ANDROID_LOG_WARN , LOG_TAG, __VA_ARGS__)
+#define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
+
+namespace vcat {
+namespace {
+
+inline int64_t now_ns() {
+    timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return static_cast<int64_t>(ts.tv_sec) * 1000000000LL + ts.tv_nsec;
+}
+
+inline bool is_i420_8bit(const Dav1dPicture& pic) {
+    return pic.p.bpc == 8 && pic.p.layout == DAV1D_PIXEL_LAYOUT_I420;
+}
+
+// Y4M wants a ratio. Container rates such as 29.97 are NTSC n*1000/1001.
+void frame_rate_ratio(float fps, int* num, int* den) {
+    if (!(fps > 0)) return;
+    const double ntsc = fps * 1.001;
+    if (std::fabs(fps - std::round(fps)) < 0.005) {
+        *num = static_cast<int>(std::lround(fps));
+        *den = 1;
+    } else if (std::fabs(ntsc - std::round(ntsc)) < 0.005) {
+        *num = static_cast<int>(std::lround(ntsc)) * 1000;
+        *den = 1001;
+    } else {
+        *num = static_cast<int>(std::lround(fps * 1000));
+        *den = 1000;
+    }
+}
+
+// ------------------------- ANativeWindow -------------------------
+
+class WindowSink final : public FrameSink {
+public:
+    explicit WindowSink(const BlitConfig* cfg) : cfg_(cfg) {}
+
+    ~WindowSink() override {
+        if (win_) ANativeWindow_release(win_);
+    }
+
+    void set_window(ANativeWindow* win) override {
+        std::lock_guard<std::mutex> lk(mtx_);
+        if (win_) ANativeWindow_release(win_);
+        win_ = win;
+        win_w_ = win_h_ = win_fmt_ = 0;
+    }
+
+    int consume(const Dav1dPicture& pic) override {
+        if (!is_i420_8bit(pic)) return -ENOSYS;
+
+        int ow, oh;
+        output_size(pic, *cfg_, &ow, &oh);
+        const int YV12 = 0x32315659; // 'YV12'
+
+        std::lock_guard<std::mutex> lk(mtx_);
+        if (!win_) return -ENODEV;
+
+        if (win_w_ != ow || win_h_ != oh || win_fmt_ != YV12) {
+            ANativeWindow_setBuffersGeometry(win_, ow, oh, YV12);
+            win_w_ = ow; win_h_ = oh; win_fmt_ = YV12;
+        }
+
+        ANativeWindow_Buffer buf;
+        if (ANativeWindow_lock(win_, &buf, nullptr) != 0) return -1;
+
+        const int64_t t0 = now_ns();
+
+        auto* dstY = static_cast<uint8_t*>(buf.bits);
+        const int dstYStride = buf.stride;
+        const int dstUVStride = ((dstYStride >> 1) + 15) & ~15;
+        uint8_t* dstV = dstY + dstYStride * oh; // V first in YV12
+        uint8_t* dstU = dstV + dstUVStride * ((oh + 1) / 2);
+
+        if (blit_i420(pic, *cfg_, dstY, dstYStride, dstU, dstV, dstUVStride, scratch_)) {
+            grain_fused_++;
+        }
+
+        blit_ns_ += now_ns() - t0;
+        blits_++;
+
+        ANativeWindow_unlockAndPost(win_);
+        return 0;
+    }
+
+    void log_stats() const override {
+        LOGD("window sink: blits=%u grain_fused=%u rotation=%d blit_avg_us=%lld",
+             blits_, grain_fused_, cfg_->transform ? cfg_->rotation : 0,
+             (long long)(blits_ ? blit_ns_ / blits_ / 1000 : 0));
+    }
+
+private:
+    const BlitConfig* cfg_;
+    std::mutex mtx_;
+    ANativeWindow* win_ = nullptr; // +1 ref when set
+    int win_w_ = 0;
+    int win_h_ = 0;
+    int win_fmt_ = 0;
+    std::vector<uint8_t> scratch_;
+
+    uint32_t grain_fused_ = 0;
+    uint32_t blits_ = 0;
+    int64_t  blit_ns_ = 0;
+};
+
+// -------------------------- Mock window --------------------------
+
+class MockWindowSink final : public FrameSink {
+public:
+    MockWindowSink(const BlitConfig* cfg, int lock_delay_us)
+        : cfg_(cfg), lock_delay_us_(lock_delay_us > 0 ? lock_delay_us : 0) {}
+
+    int consume(const Dav1dPicture& pic) override {
+        if (!is_i420_8bit(pic)) return -ENOSYS;
+
+        int ow, oh;
+        output_size(pic, *cfg_, &ow, &oh);
+        const int yStride = (ow + 63) & ~63; // gralloc-like padded stride
+        const int uvStride = ((yStride >> 1) + 15) & ~15;
+        const int uvRows = (oh + 1) / 2;
+        buf_.resize(static_cast<size_t>(yStride) * oh + 2 * static_cast<size_t>(uvStride) * uvRows);
+
+        if (lock_delay_us_) {
+            std::this_thread::sleep_for(std::chrono::microseconds(lock_delay_us_));
+        }
+
+        const int64_t t0 = now_ns();
+        uint8_t* dstY = buf_.data();
+        uint8_t* dstV = dstY + yStride * oh;
+        uint8_t* dstU = dstV + uvStride * uvRows;
+        blit_i420(pic, *cfg_, dstY, yStride, dstU, dstV, uvStride, scratch_);
+        blit_ns_ += now_ns() - t0;
+        blits_++;
+        return 0;
+    }
+
+    void log_stats() const override {
+        LOGD("mock window sink: blits=%u lock_delay_us=%d blit_avg_us=%lld",
+             blits_, lock_delay_us_, (long long)(blits_ ? blit_ns_ / blits_ / 1000 : 0));
+    }
+
+private:
+    const BlitConfig* cfg_;
+    const int lock_delay_us_;
+    std::vector<uint8_t> buf_;
+    std::vector<uint8_t> scratch_;
+    uint32_t blits_ = 0;
+    int64_t  blit_ns_ = 0;
+};
+
+// ----------------------------- Null ------------------------------
+
+class NullSink final : public FrameSink {
+public:
+    int consume(const Dav1dPicture& /*pic*/) override {
+        frames_++;
+        return 0;
+    }
+
+    void log_stats() const override {
+        LOGD("null sink: frames=%u", frames_);
+    }
+
+private:
+    uint32_t frames_ = 0;
+};
+
+// ----------------------------- Hash ------------------------------
+
+// One MD5 over every frame's visible samples, plane by plane and row by row
+// like dav1d's md5 muxer, so the close line can be checked against the .md5
+// published with a conformance stream. Nothing is logged per frame, to keep
+// throughput runs honest.
+class HashSink final : public FrameSink {
+public:
+    explicit HashSink(const BlitConfig* cfg) : cfg_(cfg) {}
+
+    int consume(const Dav1dPicture& pic) override {
+        if (pic.p.bpc != 8) return -ENOSYS;
+
+        const int w = pic.p.w, h = pic.p.h;
+        const int ssx = pic.p.layout == DAV1D_PIXEL_LAYOUT_I444 ? 0 : 1;
+        const int ssy = pic.p.layout == DAV1D_PIXEL_LAYOUT_I420 ? 1 : 0;
+        const int cw = (w + ssx) >> ssx, ch = (h + ssy) >> ssy;
+        const bool mono = pic.p.layout == DAV1D_PIXEL_LAYOUT_I400;
+
+        const uint8_t* planes[3] = {
+            static_cast<const uint8_t*>(pic.data[0]),
+            static_cast<const uint8_t*>(pic.data[1]),
+            static_cast<const uint8_t*>(pic.data[2]),
+        };
+        ptrdiff_t strides[2] = { pic.stride[0], pic.stride[1] };
+        if (cfg_->fused_grain && picture_has_film_grain(pic)) {
+            // dav1d left the grain to us; hash what it would have output.
+            if (!is_i420_8bit(pic)) return -ENOSYS;
+            grained_.resize(static_cast<size_t>(w) * h + 2 * static_cast<size_t>(cw) * ch);
+            uint8_t* y = grained_.data();
+            uint8_t* u = y + static_cast<size_t>(w) * h;
+            uint8_t* v = u + static_cast<size_t>(cw) * ch;
+            blit_i420_with_film_grain(pic, y, w, u, v, cw);
+            planes[0] = y; planes[1] = u; planes[2] = v;
+            strides[0] = w; strides[1] = cw;
+            grained_frames_++;
+        }
+
+        hash_plane(planes[0], strides[0], w, h);
+        if (!mono) {
+            hash_plane(planes[1], strides[1], cw, ch);
+            hash_plane(planes[2], strides[1], cw, ch);
+        }
+        frames_++;
+        return 0;
+    }
+
+    void log_stats() const override {
+        char hex[33];
+        md5_.hex_digest(hex);
+        LOGD("hash sink: frames=%u grained=%u md5=%s", frames_, grained_frames_, hex);
+    }
+
+private:
+    // Row by row so stride padding never leaks into the digest.
+    void hash_plane(const uint8_t* p, ptrdiff_t stride, int rb, int rows) {
+        if (stride == rb) {
+            md5_.update(p, static_cast<size_t>(rb) * rows);
+            return;
+        }
+        for (int y = 0; y < rows; ++y, p += stride) md5_.update(p, rb);
+    }
+
+    const BlitConfig* cfg_;
+    Md5 md5_;
+    std::vector<uint8_t> grained_;
+    uint32_t frames_ = 0;
+    uint32_t grained_frames_ = 0;
+};
+
+// ------------------------------ Y4M ------------------------------
+
+// Writes frames (after fused grain/transform, i.e. what the window would show)
+// as 8-bit 4:2:0 Y4M. consume() packs a frame into one of two slots and a
+// writer thread fwrite()s the other, so file I/O never runs on the decoding
+// thread unless both slots are still in flight.
+class Y4mSink final : public FrameSink {
+public:
+    Y4mSink(FILE* f, const BlitConfig* cfg) : f_(f), cfg_(cfg) {
+        writer_ = std::thread(&Y4mSink::writer_loop, this);
+    }
+
+    ~Y4mSink() override { close(); }
+
+    int consume(const Dav1dPicture& pic) override {
+        if (!is_i420_8bit(pic)) return -ENOSYS;
+
+        int ow, oh;
+        output_size(pic, *cfg_, &ow, &oh);
+        if (w_ == 0) {
+            w_ = ow;
+            h_ = oh;
+        } else if (ow != w_ || oh != h_) {
+            // Y4M has a single stream geometry.
+            skipped_++;
+            return 0;
+        }
+
+        Slot& slot = slots_[fill_];
+        {
+            std::unique_lock<std::mutex> lk(mtx_);
+            if (slot.full) {
+                producer_waits_++;
+                cv_.wait(lk, [&] { return !slot.full; });
+            }
+        }
+
+        char header[96];
+        int hlen = 0;
+        if (!header_written_) {
+            hlen = snprintf(header, sizeof(header),
+                            "YUV4MPEG2 W%d H%d F%d:%d Ip A1:1 C420jpeg\n",
+                            w_, h_, fps_num_, fps_den_);
+            header_written_ = true;
+        }
+        static const char kFrame[] = "FRAME\n";
+        const size_t frameTag = sizeof(kFrame) - 1;
+        const int uvW = (w_ + 1) / 2, uvH = (h_ + 1) / 2;
+        const size_t ySize = static_cast<size_t>(w_) * h_;
+        const size_t uvSize = static_cast<size_t>(uvW) * uvH;
+
+        slot.data.resize(hlen + frameTag + ySize + 2 * uvSize);
+        uint8_t* p = slot.data.data();
+        std::memcpy(p, header, hlen);
+        std::memcpy(p + hlen, kFrame, frameTag);
+        uint8_t* dstY = p + hlen + frameTag;
+        uint8_t* dstU = dstY + ySize;
+        uint8_t* dstV = dstU + uvSize;
+        blit_i420(pic, *cfg_, dstY, w_, dstU, dstV, uvW, scratch_);
+
+        {
+            std::lock_guard<std::mutex> lk(mtx_);
+            slot.full = true;
+        }
+        cv_.notify_all();
+        fill_ ^= 1;
+        queued_++;
+        return 0;
+    }
+
+    void set_frame_rate(float fps) override {
+        if (header_written_) return;
+        frame_rate_ratio(fps, &fps_num_, &fps_den_);
+    }
+
+    void close() override {
+        {
+            std::lock_guard<std::mutex> lk(mtx_);
+            if (stop_) return;
+            stop_ = true;
+        }
+        cv_.notify_all();
+        if (writer_.joinable()) writer_.join();
+        if (f_) {
+            if (fclose(f_) != 0) write_errors_++;
+            f_ = nullptr;
+        }
+    }
+
+    void log_stats() const override {
+        LOGD("y4m sink: %dx%d F%d:%d queued=%u written=%u skipped=%u producer_waits=%u write_errors=%u",
+             w_, h_, fps_num_, fps_den_, queued_, written_, skipped_, producer_waits_, write_errors_);
+    }
+
+private:
+    struct Slot {
+        std::vector<uint8_t> data;
+        bool full = false;
+    };
+
+    void writer_loop() {
+        int idx = 0;
+        for (;;) {
+            Slot& slot = slots_[idx];
+            {
+                std::unique_lock<std::mutex> lk(mtx_);
+                cv_.wait(lk, [&] { return slot.full || stop_; });
+                if (!slot.full) return; // stopped and drained
+            }
+            if (fwrite(slot.data.data(), 1, slot.data.size(), f_) != slot.data.size()) {
+                if (write_errors_++ == 0) LOGE("y4m write failed: %s", strerror(errno));
+            } else {
+                written_++;
+            }
+            {
+                std::lock_guard<std::mutex> lk(mtx_);
+                slot.full = false;
+            }
+            cv_.notify_all();
+            idx ^= 1;
+        }
+    }
+
+    FILE* f_;
+    const BlitConfig* cfg_;
+    int w_ = 0;
+    int h_ = 0;
+    // Used when the container has no frame rate; players only use it for pacing.
+    int fps_num_ = 30;
+    int fps_den_ = 1;
+    bool header_written_ = false;
+    std::vector<uint8_t> scratch_;
+
+    Slot slots_[2];
+    int fill_ = 0;
+    std::mutex mtx_;
+    std::condition_variable cv_;
+    bool stop_ = false;
+    std::thread writer_;
+
+    uint32_t queued_ = 0;
+    uint32_t written_ = 0;  // writer thread only
+    uint32_t skipped_ = 0;
+    uint32_t producer_waits_ = 0;
+    uint32_t write_errors_ = 0;
+};
+
+} // namespace
+
+std::unique_ptr<FrameSink> make_window_sink(const BlitConfig* cfg) {
+    return std::unique_ptr<FrameSink>(new WindowSink(cfg));
+}
+
+std::unique_ptr<FrameSink> make_null_sink() {
+    return std::unique_ptr<FrameSink>(new NullSink());
+}
+
+std::unique_ptr<FrameSink> make_hash_sink(const BlitConfig* cfg) {
+    return std::unique_ptr<FrameSink>(new HashSink(cfg));
+}
+
+std::unique_ptr<FrameSink> make_mock_window_sink(const BlitConfig* cfg, int lock_delay_us) {
+    return std::unique_ptr<FrameSink>(new MockWindowSink(cfg, lock_delay_us));
+}
+
+std::unique_ptr<FrameSink> make_y4m_sink(const char* path, const BlitConfig* cfg) {
+    FILE* f = fopen(path, "wb");
+    if (!f) {
+        LOGE("y4m sink: cannot open %s: %s", path, strerror(errno));
+        return nullptr;
+    }
+    return std::unique_ptr<FrameSink>(new Y4mSink(f, cfg));
+}
+
+} // namespace vcat
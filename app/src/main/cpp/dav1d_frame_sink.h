@@ -0,0 +1,92 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+// Destinations for decoded pictures. The JNI render call hands pictures to
+// the decoder's sink; which sink is installed decides whether they go to the
+// screen, to a file, into a hash or nowhere. The window sink gets the frames
+// the renderer shows; the others get every decoded frame, Surface or not.
+
+#pragma once
+
+#include <memory>
+
+#include <android/native_window.h>
+
+#include "dav1d_blit.h"
+
+extern "C" {
+#include "dav1d/picture.h"
+}
+
+namespace vcat {
+
+// Must match FrameSink.KIND_* on the Java side.
+enum SinkKind {
+    kSinkWindow = 0,
+    kSinkNull   = 1,
+    kSinkHash   = 2,
+    kSinkY4m    = 3,
+    kSinkMockWindow = 4,
+};
+
+class FrameSink {
+public:
+    virtual ~FrameSink() = default;
+
+    // Consumes one picture; the caller keeps ownership and unrefs it afterwards.
+    // Returns 0 or a negative errno.
+    virtual int consume(const Dav1dPicture& pic) = 0;
+
+    // Takes over one reference to win (may be null). Sinks that do not draw
+    // just drop it.
+    virtual void set_window(ANativeWindow* win) {
+        if (win) ANativeWindow_release(win);
+    }
+
+    // Container frame rate, or <= 0 when unknown. Only file sinks use it;
+    // call before the first picture.
+    virtual void set_frame_rate(float /*fps*/) {}
+
+    // Finishes outstanding work (files, threads). Safe to call more than once.
+    virtual void close() {}
+
+    virtual void log_stats() const = 0;
+};
+
+// cfg is owned by the decoder context and outlives the sink.
+std::unique_ptr<FrameSink> make_window_sink(const BlitConfig* cfg);
+std::unique_ptr<FrameSink> make_null_sink();
+// MD5 of the frames as dav1d with apply_grain=1 would output them (grain
+// applied, no rotation), in the layout of dav1d's md5 muxer.
+std::unique_ptr<FrameSink> make_hash_sink(const BlitConfig* cfg);
+// Returns null when path cannot be opened for writing.
+std::unique_ptr<FrameSink> make_y4m_sink(const char* path, const BlitConfig* cfg);
+// Blits into a heap YV12 buffer after sleeping lock_delay_us to stand in for a
+// blocking ANativeWindow_lock; exercises the render path without a display.
+std::unique_ptr<FrameSink> make_mock_window_sink(const BlitConfig* cfg, int lock_delay_us);
+
+} // namespace vcat
@@ -42,7 +42,12 @@
 #include <deque>
 #include <algorithm>
 #include <errno.h>
-#include <mutex>
+#include <memory>
+#include <time.h>
+
+#include "dav1d_blit.h"
+#include "dav1d_frame_sink.h"
+#include "dav1d_render_thread.h"
 
 extern "C" {
 #include "dav1d/dav1d.h"
@@ -58,6 +63,13 @@ extern "C" {
 
 static constexpr size_t kMaxPendingPackets = 16; // capacity guard (tune as needed)
 
+// Must match Dav1dQuality on the Java side.
+enum Quality {
+    kQualityFull = 0,
+    kQualityPreview = 1,              // in-loop filters and film grain off
+    kQualityPreviewKeyframesOnly = 2, // as preview, non-key frames skipped
+};
+
 struct InputNode {
     Dav1dData data;        // dav1d takes ownership when dav1d_send_data == 0
     int64_t pts_us = -1;
@@ -84,19 +96,47 @@ struct NativeCtx {
 
     // Simple stats
     int num_frames_decoded   = 0; // accepted by dav1d_send_data
-    int num_frames_displayed = 0; // nativeRenderToSurface posted
+    int num_frames_displayed = 0; // consumed by the frame sink, here or on the render thread
     int num_frames_not_decoded = 0; // dropped before send
 
-    // --- Cached window & geometry ---
-    ANativeWindow* win = nullptr;     // +1 ref when set, release on unset/destroy
-    int win_w = 0;
-    int win_h = 0;
-    int win_fmt = 0;
+    int quality = kQualityFull;
+    int64_t cpu_ns_at_open = 0; // process CPU time when dav1d was opened
+
+    // Time the caller of nativeRenderToSurface (the playback thread) spends in it.
+    uint32_t render_calls = 0;
+    int64_t  render_call_ns = 0;
+    int64_t  render_call_max_ns = 0;
 
-    std::mutex win_mtx;
     bool eos = false;
+
+    // Film grain / rotation applied when a picture is written out.
+    vcat::BlitConfig blit;
+
+    // Container frame rate for file sinks; <= 0 when unknown.
+    float frame_rate = 0;
+
+    // Where rendered pictures go; an ANativeWindow unless replaced via nativeSetFrameSink.
+    std::unique_ptr<vcat::FrameSink> sink;
+
+    // When set, nativeRenderToSurface only queues; declared after sink so it stops first.
+    std::unique_ptr<vcat::RenderThread> render_thread;
 };
 
+static inline int64_t now_ns() {
+    timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return static_cast<int64_t>(ts.tv_sec) * 1000000000LL + ts.tv_nsec;
+}
+
+// Whole-process CPU time: dav1d's worker threads do most of the work, so the
+// calling thread's clock would miss it. Includes the rest of the app too, so
+// compare runs of the same clip rather than reading it as an absolute cost.
+static inline int64_t process_cpu_ns() {
+    timespec ts;
+    clock_gettime(CLOCK_PROCESS_CPUTIME_ID, &ts);
+    return static_cast<int64_t>(ts.tv_sec) * 1000000000LL + ts.tv_nsec;
+}
+
 struct PictureHolder {
     Dav1dPicture pic; // must be unref'd with dav1d_picture_unref()
 };
@@ -140,12 +180,28 @@ static void flush_pending_to_decoder(NativeCtx* ctx) {
 
 extern "C" JNIEXPORT jlong JNICALL
 Java_com_roncatech_libvcat_dav1d_NativeDav1d_nativeCreate(
-        JNIEnv* /*env*/, jclass /*clazz*/, jint frameThreads, jint /*tileThreads*/) {
+        JNIEnv* /*env*/, jclass /*clazz*/, jint frameThreads, jint /*tileThreads*/,
+        jboolean fusedFilmGrain, jint quality) {
     auto* ctx = new NativeCtx();
+    ctx->quality = quality;
+    const bool preview = quality != kQualityFull;
+    // Preview frames skip grain altogether; it is only texture.
+    ctx->blit.fused_grain = !preview && fusedFilmGrain == JNI_TRUE;
+    ctx->sink = vcat::make_window_sink(&ctx->blit);
 
     Dav1dSettings s;
     dav1d_default_settings(&s);
     s.n_threads = (frameThreads > 0) ? frameThreads : 1;
+    // Skip dav1d's own full-frame grain pass; the frame sink applies it while copying.
+    s.apply_grain = (preview || ctx->blit.fused_grain) ? 0 : 1;
+    if (preview) {
+        // Not bit-exact: no deblock/CDEF/loop restoration, which feed later
+        // frames' references too, so drift grows until the next key frame.
+        s.inloop_filters = DAV1D_INLOOPFILTER_NONE;
+        if (quality == kQualityPreviewKeyframesOnly) {
+            s.decode_frame_type = DAV1D_DECODEFRAMETYPE_KEY;
+        }
+    }
 
     int rc = dav1d_open(&ctx->c, &s);
     if (rc != 0) {
@@ -153,7 +209,9 @@ Java_com_roncatech_libvcat_dav1d_NativeDav1d_nativeCreate(
         delete ctx;
         return 0;
     }
-    LOGI("dav1d created (threads=%d)", s.n_threads);
+    ctx->cpu_ns_at_open = process_cpu_ns();
+    LOGI("dav1d created (threads=%d, fused_grain=%d, quality=%d)",
+         s.n_threads, ctx->blit.fused_grain ? 1 : 0, ctx->quality);
     return reinterpret_cast<jlong>(ctx);
 }
 
@@ -164,6 +222,7 @@ auto* ctx = reinterpret_cast<NativeCtx*>(handle);
 if (!ctx) return;
 ctx->dropped_at_flush += static_cast<uint32_t>(ctx->pending.size());
 release_all_pending(ctx);
+if (ctx->render_thread) ctx->render_thread->flush();
 dav1d_flush(ctx->c);
 }
 
@@ -177,9 +236,22 @@ if (ctx->c) {
 dav1d_close(&ctx->c);
 ctx->c = nullptr;
 }
-LOGD("CLOSE stats: decoded=%d displayed=%d not_decoded=%d send_ok=%u eagain=%u err=%u pics_out=%u dropped_at_flush=%u",
+if (ctx->render_thread) {
+    ctx->render_thread->stop();
+    // Queued pictures may have been dropped; count only what the sink took.
+    ctx->num_frames_displayed += static_cast<int>(ctx->render_thread->stats().rendered);
+}
+ctx->sink->close();
+LOGD("CLOSE stats: decoded=%d displayed=%d not_decoded=%d send_ok=%u eagain=%u err=%u pics_out=%u dropped_at_flush=%u render_avg_us=%lld render_max_us=%lld async=%d",
      ctx->num_frames_decoded, ctx->num_frames_displayed, ctx->num_frames_not_decoded,
-     ctx->pkts_send_ok, ctx->pkts_send_eagain, ctx->pkts_send_err, ctx->pics_out, ctx->dropped_at_flush);
+     ctx->pkts_send_ok, ctx->pkts_send_eagain, ctx->pkts_send_err, ctx->pics_out, ctx->dropped_at_flush,
+     (long long)(ctx->render_calls ? ctx->render_call_ns / ctx->render_calls / 1000 : 0),
+     (long long)(ctx->render_call_max_ns / 1000), ctx->render_thread ? 1 : 0);
+LOGD("CLOSE cpu: quality=%d pics_out=%u cpu_us_per_frame=%lld",
+     ctx->quality, ctx->pics_out,
+     (long long)(ctx->pics_out ? (process_cpu_ns() - ctx->cpu_ns_at_open) / ctx->pics_out / 1000 : 0));
+if (ctx->render_thread) ctx->render_thread->log_stats();
+ctx->sink->log_stats();
 delete ctx;
 }
 
@@ -256,7 +328,10 @@ return 0;
 auto* hold = new PictureHolder();
 hold->pic = pic;
 
-jint wh[2] = { static_cast<jint>(pic.p.w), static_cast<jint>(pic.p.h) };
+// Report the size the frame will have on screen so the renderer's video size matches.
+int vw, vh;
+vcat::output_size(pic, ctx->blit, &vw, &vh);
+jint wh[2] = { static_cast<jint>(vw), static_cast<jint>(vh) };
 env->SetIntArrayRegion(outWH, 0, 2, wh);
 
 jlong pts[1] = { static_cast<jlong>(pic.m.timestamp) };
@@ -274,24 +349,80 @@ Java_com_roncatech_libvcat_dav1d_NativeDav1d_nativeSetSurface(
 
 auto* ctx = reinterpret_cast<NativeCtx*>(handle);
 if (!ctx) return;
-std::lock_guard<std::mutex> lk(ctx->win_mtx);
+ctx->sink->set_window(surface ? ANativeWindow_fromSurface(env, surface) : nullptr);
+}
 
-if (ctx->win) {
-ANativeWindow_release(ctx->win);
-ctx->win = nullptr;
-ctx->win_w = ctx->win_h = ctx->win_fmt = 0;
+extern "C" JNIEXPORT jint JNICALL
+Java_com_roncatech_libvcat_dav1d_NativeDav1d_nativeSetFrameSink(
+        JNIEnv* env, jclass /*clazz*/, jlong handle, jint kind, jstring path, jint arg) {
+    auto* ctx = reinterpret_cast<NativeCtx*>(handle);
+    if (!ctx) return -EINVAL;
+    if (ctx->render_thread) return -EBUSY; // sink is in use on the render thread
+
+    std::unique_ptr<vcat::FrameSink> sink;
+    switch (kind) {
+        case vcat::kSinkWindow:
+            sink = vcat::make_window_sink(&ctx->blit);
+            break;
+        case vcat::kSinkNull:
+            sink = vcat::make_null_sink();
+            break;
+        case vcat::kSinkHash:
+            sink = vcat::make_hash_sink(&ctx->blit);
+            break;
+        case vcat::kSinkY4m: {
+            if (!path) return -EINVAL;
+            const char* p = env->GetStringUTFChars(path, nullptr);
+            if (!p) return -ENOMEM;
+            sink = vcat::make_y4m_sink(p, &ctx->blit);
+            env->ReleaseStringUTFChars(path, p);
+            if (!sink) return -EIO;
+            break;
+        }
+        case vcat::kSinkMockWindow:
+            sink = vcat::make_mock_window_sink(&ctx->blit, arg);
+            break;
+        default:
+            LOGE("unknown frame sink kind %d", kind);
+            return -EINVAL;
+    }
+    ctx->sink->close();
+    ctx->sink = std::move(sink);
+    ctx->sink->set_frame_rate(ctx->frame_rate);
+    LOGI("frame sink set (kind=%d)", kind);
+    return 0;
 }
-if (surface) {
-ctx->win = ANativeWindow_fromSurface(env, surface);
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_roncatech_libvcat_dav1d_NativeDav1d_nativeSetFrameRate(
+        JNIEnv* /*env*/, jclass /*clazz*/, jlong handle, jfloat fps) {
+    auto* ctx = reinterpret_cast<NativeCtx*>(handle);
+    if (!ctx) return;
+    ctx->frame_rate = fps;
+    ctx->sink->set_frame_rate(fps);
 }
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_roncatech_libvcat_dav1d_NativeDav1d_nativeStartRenderThread(
+        JNIEnv* /*env*/, jclass /*clazz*/, jlong handle, jint queueDepth) {
+    auto* ctx = reinterpret_cast<NativeCtx*>(handle);
+    if (!ctx || ctx->render_thread) return;
+    ctx->render_thread.reset(new vcat::RenderThread(ctx->sink.get(), static_cast<size_t>(queueDepth)));
+    LOGI("render thread started (depth=%d)", queueDepth);
 }
 
-static inline void ensureWindowConfigured(NativeCtx* ctx, int w, int h, int fmt) {
-    if (!ctx->win) return;
-    if (ctx->win_w != w || ctx->win_h != h || ctx->win_fmt != fmt) {
-        ANativeWindow_setBuffersGeometry(ctx->win, w, h, fmt);
-        ctx->win_w = w; ctx->win_h = h; ctx->win_fmt = fmt;
+extern "C" JNIEXPORT void JNICALL
+Java_com_roncatech_libvcat_dav1d_NativeDav1d_nativeSetOutputTransform(
+        JNIEnv* /*env*/, jclass /*clazz*/, jlong handle, jint rotationDegrees) {
+    auto* ctx = reinterpret_cast<NativeCtx*>(handle);
+    if (!ctx) return;
+    const int r = ((rotationDegrees % 360) + 360) % 360;
+    if (r % 90 != 0) {
+        LOGW("unsupported rotation %d, ignoring", rotationDegrees);
+        return;
     }
+    ctx->blit.rotation = r;
+    ctx->blit.transform = true;
 }
 
 extern "C" JNIEXPORT jint JNICALL
@@ -302,53 +433,21 @@ auto* ctx  = reinterpret_cast<NativeCtx*>(handle);
 auto* hold = reinterpret_cast<PictureHolder*>(nativePic);
 if (!ctx || !ctx->c || !hold) return -EINVAL;
 
-const Dav1dPicture& pic = hold->pic;
-if (pic.p.bpc != 8 || pic.p.layout != DAV1D_PIXEL_LAYOUT_I420) return -ENOSYS;
-
-const int w = pic.p.w, h = pic.p.h;
-const int YV12 = 0x32315659; // 'YV12'
-
-std::lock_guard<std::mutex> lk(ctx->win_mtx);
-if (!ctx->win) return -ENODEV;
-
-ensureWindowConfigured(ctx, w, h, YV12);
-
-ANativeWindow_Buffer buf;
-if (ANativeWindow_lock(ctx->win, &buf, nullptr) != 0) return -1;
-
-auto* dstY = static_cast<uint8_t*>(buf.bits);
-const int dstYStride = buf.stride;
-const int dstUVStride = ((dstYStride >> 1) + 15) & ~15;
-const int uvW = (w + 1) / 2, uvH = (h + 1) / 2;
-uint8_t* dstV = dstY + dstYStride * h;
-uint8_t* dstU = dstV + dstUVStride * uvH;
-
-const uint8_t* srcY = (const uint8_t*)pic.data[0];
-const uint8_t* srcU = (const uint8_t*)pic.data[1];
-const uint8_t* srcV = (const uint8_t*)pic.data[2];
-const int srcYStride  = (int)pic.stride[0];
-const int srcUVStride = (int)pic.stride[1];
-
-auto copyPlanePad = [](const uint8_t* s, int ss, uint8_t* d, int ds, int rb, int rows) {
-    if (ds == rb) {
-        for (int j = 0; j < rows; ++j) { memcpy(d, s, rb); s += ss; d += ds; }
-    } else {
-        const int pad = ds - rb;
-        for (int j = 0; j < rows; ++j) {
-            memcpy(d, s, rb);
-            memset(d + rb, 0, pad);
-            s += ss; d += ds;
-        }
-    }
-};
-
-copyPlanePad(srcY, srcYStride,  dstY, dstYStride,  w,   h);
-copyPlanePad(srcV, srcUVStride, dstV, dstUVStride, uvW, uvH); // V first in YV12
-copyPlanePad(srcU, srcUVStride, dstU, dstUVStride, uvW, uvH);
-
-ANativeWindow_unlockAndPost(ctx->win);
-ctx->num_frames_displayed++;
-return 0;
+const int64_t t0 = now_ns();
+int rc = 0;
+if (ctx->render_thread) {
+    // The render thread now owns the picture; nativeReleasePicture sees an empty holder.
+    // It counts what it renders, which is added to num_frames_displayed at close.
+    ctx->render_thread->push(&hold->pic);
+} else {
+    rc = ctx->sink->consume(hold->pic);
+    if (rc == 0) ctx->num_frames_displayed++;
+}
+const int64_t dt = now_ns() - t0;
+ctx->render_calls++;
+ctx->render_call_ns += dt;
+if (dt > ctx->render_call_max_ns) ctx->render_call_max_ns = dt;
+return rc;
 }
 
 extern "C" JNIEXPORT void JNICALL
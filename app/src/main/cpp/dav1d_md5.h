@@ -0,0 +1,58 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+// MD5 (RFC 1321) for the hash frame sink. Reference decoders publish MD5s of
+// their output (dav1d --muxer md5, aomdec --md5, the test vectors' .md5
+// files), so this is what a conformance run has to produce to compare.
+
+#pragma once
+
+#include <cstddef>
+#include <cstdint>
+
+namespace vcat {
+
+class Md5 {
+public:
+    Md5();
+
+    void update(const uint8_t* data, size_t size);
+
+    // Writes the digest of everything passed to update() as 32 lowercase hex
+    // digits and a terminating NUL. Does not change the state, so hashing can
+    // continue afterwards.
+    void hex_digest(char out[33]) const;
+
+private:
+    void transform(const uint8_t block[64]);
+
+    uint32_t state_[4];
+    uint64_t size_ = 0;   // bytes passed to update()
+    uint8_t buffer_[64];  // partial block, size_ % 64 bytes
+};
+
+} // namespace vcat
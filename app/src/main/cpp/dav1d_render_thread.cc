@@ -0,0 +1,114 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+#include "dav1d_render_thread.h"
+
+#include <android/log.h>
+
+#include <cstring>
+
+#include "dav1d_frame_sink.h"
+
+#define LOG_TAG "dav1d_render"
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+#define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
+
+namespace vcat {
+
+RenderThread::RenderThread(FrameSink* sink, size_t capacity)
+    : sink_(sink), capacity_(capacity > 0 ? capacity : 1) {
+    thread_ = std::thread(&RenderThread::loop, this);
+}
+
+RenderThread::~RenderThread() { stop(); }
+
+void RenderThread::push(Dav1dPicture* pic) {
+    Dav1dPicture ref = *pic;
+    std::memset(pic, 0, sizeof(*pic));
+    {
+        std::lock_guard<std::mutex> lk(mtx_);
+        if (queue_.size() >= capacity_) {
+            dav1d_picture_unref(&queue_.front());
+            queue_.pop_front();
+            dropped_full_++;
+        }
+        queue_.push_back(ref);
+        queued_++;
+        if (queue_.size() > max_depth_) max_depth_ = queue_.size();
+    }
+    cv_.notify_one();
+}
+
+void RenderThread::flush() {
+    std::lock_guard<std::mutex> lk(mtx_);
+    while (!queue_.empty()) {
+        dav1d_picture_unref(&queue_.front());
+        queue_.pop_front();
+        dropped_flush_++;
+    }
+}
+
+void RenderThread::stop() {
+    {
+        std::lock_guard<std::mutex> lk(mtx_);
+        if (stop_) return;
+        stop_ = true;
+    }
+    cv_.notify_one();
+    if (thread_.joinable()) thread_.join();
+}
+
+void RenderThread::loop() {
+    for (;;) {
+        Dav1dPicture pic;
+        {
+            std::unique_lock<std::mutex> lk(mtx_);
+            cv_.wait(lk, [&] { return !queue_.empty() || stop_; });
+            if (queue_.empty()) return; // stopped and drained
+            pic = queue_.front();
+            queue_.pop_front();
+        }
+        const int rc = sink_->consume(pic);
+        if (rc == 0) {
+            rendered_++;
+        } else if (errors_++ == 0) {
+            LOGE("render thread: sink failed: %d", rc);
+        }
+        dav1d_picture_unref(&pic);
+    }
+}
+
+RenderThread::Stats RenderThread::stats() const {
+    return Stats{queued_, rendered_, errors_, dropped_full_, dropped_flush_};
+}
+
+void RenderThread::log_stats() const {
+    LOGD("render thread: queued=%u rendered=%u errors=%u dropped_full=%u dropped_flush=%u max_depth=%zu",
+         queued_, rendered_, errors_, dropped_full_, dropped_flush_, max_depth_);
+}
+
+} // namespace vcat
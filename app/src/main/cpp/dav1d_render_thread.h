@@ -0,0 +1,105 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+// Optional render thread: the playback thread only takes a picture reference
+// and queues it; lock/copy/post against the frame sink happens here, so a
+// blocking ANativeWindow_lock no longer stalls the thread that also feeds the
+// decoder.
+
+#pragma once
+
+#include <condition_variable>
+#include <cstddef>
+#include <cstdint>
+#include <deque>
+#include <mutex>
+#include <thread>
+
+extern "C" {
+#include "dav1d/picture.h"
+}
+
+namespace vcat {
+
+class FrameSink;
+
+class RenderThread {
+public:
+    // sink must outlive the thread (stop() before destroying it).
+    RenderThread(FrameSink* sink, size_t capacity);
+    ~RenderThread();
+
+    RenderThread(const RenderThread&) = delete;
+    RenderThread& operator=(const RenderThread&) = delete;
+
+    // Takes over pic's reference (pic is left zeroed, so a later
+    // dav1d_picture_unref on it is a no-op) and queues it. When the queue is
+    // full the oldest queued picture is dropped, keeping display latency bounded.
+    void push(Dav1dPicture* pic);
+
+    // Drops everything still queued (seek/flush).
+    void flush();
+
+    // Renders what is queued, then joins the thread. Idempotent.
+    void stop();
+
+    struct Stats {
+        uint32_t queued;
+        uint32_t rendered;      // consumed by the sink without error
+        uint32_t errors;
+        uint32_t dropped_full;  // oldest picture dropped by push()
+        uint32_t dropped_flush;
+    };
+
+    // Only consistent once stop() has returned.
+    Stats stats() const;
+
+    void log_stats() const;
+
+private:
+    void loop();
+
+    FrameSink* sink_;
+    const size_t capacity_;
+
+    std::mutex mtx_;
+    std::condition_variable cv_;
+    std::deque<Dav1dPicture> queue_;
+    bool stop_ = false;
+    std::thread thread_;
+
+    // Guarded by mtx_.
+    uint32_t queued_ = 0;
+    uint32_t dropped_full_ = 0;
+    uint32_t dropped_flush_ = 0;
+    size_t max_depth_ = 0;
+    // Render thread only.
+    uint32_t rendered_ = 0;
+    uint32_t errors_ = 0;
+};
+
+} // namespace vcat
@@ -38,10 +38,16 @@ import com.google.android.exoplayer2.Renderer;
 import com.google.android.exoplayer2.video.VideoRendererEventListener;
  final class Dav1dAv1Provider implements Dav1dAv1RendererProvider {
     private final int frameThreads, tileThreads;
+    private final Dav1dOptions options;
 
     public Dav1dAv1Provider(int frameThreads, int tileThreads) {
+        this(frameThreads, tileThreads, Dav1dOptions.DEFAULT);
+    }
+
+    public Dav1dAv1Provider(int frameThreads, int tileThreads, Dav1dOptions options) {
         this.frameThreads = Math.max(1, frameThreads);
         this.tileThreads  = Math.max(1, tileThreads);
+        this.options = options;
     }
 
     @Override public String id() { return "dav1d"; }
@@ -58,6 +64,6 @@ import com.google.android.exoplayer2.video.VideoRendererEventListener;
     @Override
     public Renderer build(long joinMs, Handler h, VideoRendererEventListener l) {
         // DRM hard-fail lives in Dav1dVideoRenderer#createDecoder()
-        return new Dav1dVideoRenderer(joinMs, h, l, frameThreads, tileThreads);
+        return new Dav1dVideoRenderer(joinMs, h, l, frameThreads, tileThreads, options);
     }
 }
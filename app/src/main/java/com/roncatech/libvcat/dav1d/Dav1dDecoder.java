@@ -49,9 +49,12 @@ import com.google.android.exoplayer2.decoder.VideoDecoderOutputBuffer;
 
     private static final int NUM_INPUT_BUFFERS = 8;
     private static final int NUM_OUTPUT_BUFFERS = 4;
+    // Frames the async render thread may hold before it starts dropping the oldest.
+    private static final int RENDER_QUEUE_DEPTH = 2;
 
     private final int frameThreads;
     private final int tileThreads;
+    private final Dav1dOptions options;
 
     private long nativeCtx; // 0 when released
     private Format inputFormat;
@@ -59,17 +62,38 @@ import com.google.android.exoplayer2.decoder.VideoDecoderOutputBuffer;
     private boolean eosSignaled = false;
 
     Dav1dDecoder(int frameThreads, int tileThreads) throws Dav1dDecoderException {
+        this(frameThreads, tileThreads, Dav1dOptions.DEFAULT);
+    }
+
+    Dav1dDecoder(int frameThreads, int tileThreads, Dav1dOptions options)
+            throws Dav1dDecoderException {
         super(
                 new DecoderInputBuffer[NUM_INPUT_BUFFERS],
                 new Dav1dOutputBuffer[NUM_OUTPUT_BUFFERS]);
 
         this.frameThreads = Math.max(1, frameThreads);
         this.tileThreads  = Math.max(1, tileThreads);
+        this.options = options;
 
-        nativeCtx = NativeDav1d.nativeCreate(this.frameThreads, this.tileThreads);
+        nativeCtx = NativeDav1d.nativeCreate(
+                this.frameThreads, this.tileThreads, options.fusedFilmGrain,
+                options.quality.nativeValue);
         if (nativeCtx == 0) {
             throw new Dav1dDecoderException("nativeCreate failed");
         }
+        if (options.frameSink.kind != FrameSink.KIND_SURFACE) {
+            int rc = NativeDav1d.nativeSetFrameSink(
+                    nativeCtx, options.frameSink.kind, options.frameSink.path, options.frameSink.arg);
+            if (rc != 0) {
+                NativeDav1d.nativeClose(nativeCtx);
+                nativeCtx = 0;
+                throw new Dav1dDecoderException(
+                        "nativeSetFrameSink failed for " + options.frameSink + ": " + rc);
+            }
+        }
+        if (options.asyncRender) {
+            NativeDav1d.nativeStartRenderThread(nativeCtx, RENDER_QUEUE_DEPTH);
+        }
     }
 
     // Dav1dDecoder.java (add this)
@@ -87,6 +111,12 @@ import com.google.android.exoplayer2.decoder.VideoDecoderOutputBuffer;
     /** Called by the renderer on input format changes. */
     void setInputFormat(Format format) {
         this.inputFormat = format;
+        if (options.fusedTransform && nativeCtx != 0) {
+            NativeDav1d.nativeSetOutputTransform(nativeCtx, format.rotationDegrees);
+        }
+        if (nativeCtx != 0) {
+            NativeDav1d.nativeSetFrameRate(nativeCtx, format.frameRate);
+        }
     }
 
     @Override
@@ -144,12 +174,7 @@ import com.google.android.exoplayer2.decoder.VideoDecoderOutputBuffer;
             int[] wh = new int[2]; long[] pts = new long[1];
             long h = NativeDav1d.nativeDequeueFrame(nativeCtx, wh, pts);
             if (wh[0] == -1) return new Dav1dDecoderException("dav1d_get_picture failed: " + wh[1]);
-            if (h != 0) {
-                out.mode=C.VIDEO_OUTPUT_MODE_SURFACE_YUV; out.timeUs=pts[0];
-                out.width=wh[0]; out.height=wh[1]; out.format=inputFormat; out.nativePic=h;
-                if (decodeOnly) out.addFlag(FLAG_DECODE_ONLY);
-                return null;
-            }
+            if (h != 0) return setOutput(out, h, wh, pts, decodeOnly);
             out.addFlag(FLAG_END_OF_STREAM);
             return null;
         }
@@ -161,12 +186,7 @@ import com.google.android.exoplayer2.decoder.VideoDecoderOutputBuffer;
             int[] wh = new int[2]; long[] pts = new long[1];
             long h = NativeDav1d.nativeDequeueFrame(nativeCtx, wh, pts);
             if (wh[0] == -1) return new Dav1dDecoderException("dav1d_get_picture failed: " + wh[1]);
-            if (h != 0) {
-                out.mode=C.VIDEO_OUTPUT_MODE_SURFACE_YUV; out.timeUs=pts[0];
-                out.width=wh[0]; out.height=wh[1]; out.format=inputFormat; out.nativePic=h;
-                if (decodeOnly) out.addFlag(FLAG_DECODE_ONLY);
-                return null;
-            }
+            if (h != 0) return setOutput(out, h, wh, pts, decodeOnly);
             return null;
         }
 
@@ -176,12 +196,7 @@ import com.google.android.exoplayer2.decoder.VideoDecoderOutputBuffer;
             int[] wh = new int[2]; long[] pts = new long[1];
             long h = NativeDav1d.nativeDequeueFrame(nativeCtx, wh, pts);
             if (wh[0] == -1) return new Dav1dDecoderException("dav1d_get_picture failed: " + wh[1]);
-            if (h != 0) {
-                out.mode=C.VIDEO_OUTPUT_MODE_SURFACE_YUV; out.timeUs=pts[0];
-                out.width=wh[0]; out.height=wh[1]; out.format=inputFormat; out.nativePic=h;
-                if (decodeOnly) out.addFlag(FLAG_DECODE_ONLY);
-                return null;
-            }
+            if (h != 0) return setOutput(out, h, wh, pts, decodeOnly);
             return null;
         }
         if (rc != 0) return new Dav1dDecoderException("nativeQueueInput failed: " + rc);
@@ -191,18 +206,38 @@ import com.google.android.exoplayer2.decoder.VideoDecoderOutputBuffer;
             int[] wh = new int[2]; long[] pts = new long[1];
             long h = NativeDav1d.nativeDequeueFrame(nativeCtx, wh, pts);
             if (wh[0] == -1) return new Dav1dDecoderException("dav1d_get_picture failed: " + wh[1]);
-            if (h != 0) {
-                out.mode=C.VIDEO_OUTPUT_MODE_SURFACE_YUV; out.timeUs=pts[0];
-                out.width=wh[0]; out.height=wh[1]; out.format=inputFormat; out.nativePic=h;
-                if (decodeOnly) out.addFlag(FLAG_DECODE_ONLY);
-                return null;
-            }
+            if (h != 0) return setOutput(out, h, wh, pts, decodeOnly);
         }
         return null;
     }
 
 
-    /** Called by the renderer to blit the decoded frame to a Surface. */
+    /**
+     * Fills {@code out} with a dequeued picture. Sinks other than the Surface take every picture
+     * here, as it is decoded, so they don't depend on a Surface being attached or on which frames
+     * the renderer drops; the picture is released right away and the renderer only sees timing.
+     */
+    private Dav1dDecoderException setOutput(
+            Dav1dOutputBuffer out, long nativePic, int[] wh, long[] pts, boolean decodeOnly) {
+        out.mode=C.VIDEO_OUTPUT_MODE_SURFACE_YUV; out.timeUs=pts[0];
+        out.width=wh[0]; out.height=wh[1]; out.format=inputFormat; out.nativePic=nativePic;
+        if (decodeOnly) {
+            out.addFlag(FLAG_DECODE_ONLY);
+        } else if (options.frameSink.kind != FrameSink.KIND_SURFACE) {
+            int rc = NativeDav1d.nativeRenderToSurface(nativeCtx, nativePic);
+            NativeDav1d.nativeReleasePicture(nativeCtx, nativePic);
+            out.nativePic = 0;
+            if (rc < 0) {
+                return new Dav1dDecoderException("Frame sink " + options.frameSink + " failed: " + rc);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called by the renderer to hand the decoded frame to the Surface. Pictures for other frame
+     * sinks were already consumed in {@link #setOutput}.
+     */
     void renderToSurface(Dav1dOutputBuffer out) throws Dav1dDecoderException {
         if (nativeCtx == 0 || out.nativePic == 0) return;
         int rc = NativeDav1d.nativeRenderToSurface(nativeCtx, out.nativePic);
@@ -0,0 +1,100 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.dav1d;
+
+/**
+ * Immutable per-decoder tuning knobs, handed from {@link VcatDav1dPlugin} down to
+ * {@link Dav1dDecoder}. Use the {@code with*} methods to derive a modified copy.
+ */
+final class Dav1dOptions {
+
+    static final Dav1dOptions DEFAULT = new Dav1dOptions(false, false, FrameSink.surface(), false, Dav1dQuality.FULL);
+
+    /**
+     * When true, dav1d is opened with {@code apply_grain=0} and film grain is synthesized from
+     * the frame's grain parameters while the planes are written into the window buffer.
+     */
+    final boolean fusedFilmGrain;
+
+    /**
+     * When true, the track's {@link com.google.android.exoplayer2.Format#rotationDegrees} is
+     * applied while the planes are written into the window buffer, so the surface receives
+     * upright frames.
+     */
+    final boolean fusedTransform;
+
+    /** Destination of rendered pictures. */
+    final FrameSink frameSink;
+
+    /**
+     * When true, frames are handed to the sink on a native render thread, so a blocking
+     * {@code ANativeWindow_lock} does not stall the playback thread.
+     */
+    final boolean asyncRender;
+
+    /** Decode quality profile; anything but {@link Dav1dQuality#FULL} also disables film grain. */
+    final Dav1dQuality quality;
+
+    private Dav1dOptions(
+            boolean fusedFilmGrain,
+            boolean fusedTransform,
+            FrameSink frameSink,
+            boolean asyncRender,
+            Dav1dQuality quality) {
+        this.fusedFilmGrain = fusedFilmGrain;
+        this.fusedTransform = fusedTransform;
+        this.frameSink = frameSink;
+        this.asyncRender = asyncRender;
+        this.quality = quality;
+    }
+
+    Dav1dOptions withFusedFilmGrain(boolean fusedFilmGrain) {
+        return new Dav1dOptions(fusedFilmGrain, fusedTransform, frameSink, asyncRender, quality);
+    }
+
+    Dav1dOptions withFusedTransform(boolean fusedTransform) {
+        return new Dav1dOptions(fusedFilmGrain, fusedTransform, frameSink, asyncRender, quality);
+    }
+
+    Dav1dOptions withFrameSink(FrameSink frameSink) {
+        return new Dav1dOptions(fusedFilmGrain, fusedTransform, frameSink, asyncRender, quality);
+    }
+
+    Dav1dOptions withAsyncRender(boolean asyncRender) {
+        return new Dav1dOptions(fusedFilmGrain, fusedTransform, frameSink, asyncRender, quality);
+    }
+
+    Dav1dOptions withQuality(Dav1dQuality quality) {
+        return new Dav1dOptions(fusedFilmGrain, fusedTransform, frameSink, asyncRender, quality);
+    }
+}
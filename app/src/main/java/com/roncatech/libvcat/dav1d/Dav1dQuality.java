@@ -0,0 +1,59 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.dav1d;
+
+/**
+ * Decode quality profile of a dav1d decoder. The preview profiles trade exactness for CPU and
+ * are meant for timeline scrubbing and thumbnail strips, not playback.
+ */
+public enum Dav1dQuality {
+
+    /** Bit-exact decode with all in-loop filters (default). */
+    FULL(0),
+
+    /**
+     * Deblocking, CDEF, loop restoration and film grain are skipped. Errors accumulate through
+     * inter prediction until the next key frame.
+     */
+    PREVIEW(1),
+
+    /** As {@link #PREVIEW}, and only key frames are decoded and output. */
+    PREVIEW_KEYFRAMES_ONLY(2);
+
+    // Must match the Quality enum in dav1d_jni.cc.
+    final int nativeValue;
+
+    Dav1dQuality(int nativeValue) {
+        this.nativeValue = nativeValue;
+    }
+}
@@ -57,6 +57,7 @@ final class Dav1dVideoRenderer extends DecoderVideoRenderer {
 
     private final int frameThreads;
     private final int tileThreads;
+    private final Dav1dOptions options;
 
     private Dav1dDecoder decoder;
     private Surface currentSurface;
@@ -67,10 +68,22 @@ final class Dav1dVideoRenderer extends DecoderVideoRenderer {
             VideoRendererEventListener eventListener,
             int frameThreads,
             int tileThreads) {
+        this(allowedJoiningTimeMs, eventHandler, eventListener, frameThreads, tileThreads,
+                Dav1dOptions.DEFAULT);
+    }
+
+    public Dav1dVideoRenderer(
+            long allowedJoiningTimeMs,
+            Handler eventHandler,
+            VideoRendererEventListener eventListener,
+            int frameThreads,
+            int tileThreads,
+            Dav1dOptions options) {
         // NOTE: 4-arg super() is required in ExoPlayer 2.x
         super(allowedJoiningTimeMs, eventHandler, eventListener, MAX_DROPPED_FRAMES_TO_NOTIFY);
         this.frameThreads = Math.max(1, frameThreads);
         this.tileThreads  = Math.max(1, tileThreads);
+        this.options = options;
     }
 
     @Override public String getName() { return "Dav1dVideoRenderer"; }
@@ -81,7 +94,9 @@ final class Dav1dVideoRenderer extends DecoderVideoRenderer {
     createDecoder(Format format, CryptoConfig cryptoConfig) throws Dav1dDecoderException {
         this.decoder = new Dav1dDecoder(
                 frameThreads,
-                tileThreads);
+                tileThreads,
+                options);
+        this.decoder.setInputFormat(format);
 
         if(this.currentSurface != null){
             this.decoder.setOutputSurface(this.currentSurface);
@@ -0,0 +1,117 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.dav1d;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Where a dav1d decoder sends its pictures. The default draws the frames the renderer shows into
+ * the renderer's Surface; the others let the same decoder and renderer drive conformance dumps or
+ * pure throughput runs. Sinks other than the Surface are fed by the decoder as each picture is
+ * decoded, so they need no Surface and see every frame, including ones the renderer would drop
+ * for being late. Decode-only frames (seek pre-roll) are not passed on.
+ *
+ * <p>Instances are descriptions only; each decoder creates its own native sink from one.
+ */
+public final class FrameSink {
+
+    // Must match vcat::SinkKind in dav1d_frame_sink.h.
+    static final int KIND_SURFACE = 0;
+    static final int KIND_NULL = 1;
+    static final int KIND_HASH = 2;
+    static final int KIND_Y4M = 3;
+    static final int KIND_MOCK_WINDOW = 4;
+
+    private static final FrameSink SURFACE = new FrameSink(KIND_SURFACE, null, 0);
+    private static final FrameSink NULL = new FrameSink(KIND_NULL, null, 0);
+    private static final FrameSink HASH = new FrameSink(KIND_HASH, null, 0);
+
+    final int kind;
+    @Nullable final String path;
+    /** Kind-specific integer argument (mock window: simulated lock delay in microseconds). */
+    final int arg;
+
+    private FrameSink(int kind, @Nullable String path, int arg) {
+        this.kind = kind;
+        this.path = path;
+        this.arg = arg;
+    }
+
+    /** Blits into the renderer's Surface (default). */
+    public static FrameSink surface() {
+        return SURFACE;
+    }
+
+    /** Accepts and releases every picture; measures decode throughput alone. */
+    public static FrameSink discard() {
+        return NULL;
+    }
+
+    /**
+     * Logs the MD5 of all frames in the decoder's close stats, in the layout of dav1d's md5 muxer
+     * ({@code dav1d --muxer md5}), so it can be compared with a conformance stream's reference
+     * MD5. Film grain is included, also when it is fused into the blit; rotation is not.
+     */
+    public static FrameSink planeHash() {
+        return HASH;
+    }
+
+    /**
+     * Writes 8-bit 4:2:0 frames, as they would be shown, to a Y4M file. File I/O runs on a
+     * native writer thread. Each decoder instance truncates the file when it is created.
+     */
+    public static FrameSink y4m(String path) {
+        if (path == null) throw new NullPointerException("path");
+        return new FrameSink(KIND_Y4M, path, 0);
+    }
+
+    /**
+     * Stands in for the Surface: sleeps {@code lockDelayUs} per frame, as a blocking
+     * {@code ANativeWindow_lock} would, then blits into a private buffer. Lets the render path,
+     * including the async render thread, be exercised and timed without a display.
+     */
+    public static FrameSink mockWindow(int lockDelayUs) {
+        return new FrameSink(KIND_MOCK_WINDOW, null, Math.max(0, lockDelayUs));
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case KIND_NULL: return "FrameSink{null}";
+            case KIND_HASH: return "FrameSink{hash}";
+            case KIND_Y4M:  return "FrameSink{y4m " + path + "}";
+            case KIND_MOCK_WINDOW: return "FrameSink{mockWindow " + arg + "us}";
+            default:        return "FrameSink{surface}";
+        }
+    }
+}
@@ -44,7 +44,10 @@ final class NativeDav1d {
     }
 
     // Creates a decoder context; returns 0 on failure.
-    public static native long nativeCreate(int frameThreads, int tileThreads);
+    // fusedFilmGrain opens dav1d with apply_grain=0 and synthesizes grain during the blit.
+    // quality is a Dav1dQuality native value (preview profiles turn off in-loop filters).
+    public static native long nativeCreate(
+            int frameThreads, int tileThreads, boolean fusedFilmGrain, int quality);
 
     // Flushes decoder state (drains/clears internal queues).
     public static native void nativeFlush(long ctx);
@@ -66,7 +69,7 @@ final class NativeDav1d {
     public static native long nativeDequeueFrame(
             long ctx, int[] outWidthHeight, long[] outPtsUs);
 
-    // Renders a decoded frame to the given Surface (RGBA8888 blit).
+    // Hands a decoded frame to the context's frame sink (by default a YV12 blit to the Surface).
     // Returns 0 on success; negative on error.
     public static native int nativeRenderToSurface(
             long ctx, long nativePic);
@@ -79,5 +82,21 @@ final class NativeDav1d {
 
     public static native void nativeSetSurface(long handle, Surface surface);
 
+    // Rotation (clockwise degrees) applied while blitting; also swaps the reported frame size
+    // for 90/270.
+    static native void nativeSetOutputTransform(long ctx, int rotationDegrees);
+
+    // Replaces the frame sink (FrameSink.KIND_*); path is used by the Y4M sink, arg by the mock
+    // window. Must be called before nativeStartRenderThread.
+    // Returns 0 on success; negative errno on error.
+    static native int nativeSetFrameSink(long ctx, int kind, String path, int arg);
+
+    // Container frame rate (Format.NO_VALUE when unknown); the Y4M sink writes it in its header.
+    static native void nativeSetFrameRate(long ctx, float fps);
+
+    // Starts the render thread: nativeRenderToSurface then only queues the picture (taking it
+    // over from the handle) and returns.
+    static native void nativeStartRenderThread(long ctx, int queueDepth);
+
     private NativeDav1d() {}
 }
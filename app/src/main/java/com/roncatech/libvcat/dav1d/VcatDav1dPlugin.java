@@ -14,6 +14,51 @@ import com.roncatech.vcat.decoder_plugin_api.VcatDecoderPlugin;
  */
 public final class VcatDav1dPlugin implements VcatDecoderPlugin {
 
+    private volatile Dav1dOptions options = Dav1dOptions.DEFAULT;
+
+    /**
+     * Applies AV1 film grain inside the output blit instead of as a separate dav1d pass.
+     * Takes effect for renderers created after the call.
+     */
+    public void setFusedFilmGrain(boolean enabled) {
+        options = options.withFusedFilmGrain(enabled);
+    }
+
+    /**
+     * Applies the track rotation inside the output blit, so the surface gets upright frames
+     * without a compositor transform. Takes effect for renderers created
+     * after the call.
+     */
+    public void setFusedTransform(boolean enabled) {
+        options = options.withFusedTransform(enabled);
+    }
+
+    /**
+     * Selects where decoded frames go (Surface, Y4M file, hash log or nowhere).
+     * Takes effect for renderers created after the call.
+     */
+    public void setFrameSink(FrameSink sink) {
+        if (sink == null) throw new NullPointerException("sink");
+        options = options.withFrameSink(sink);
+    }
+
+    /**
+     * Moves window lock/copy/post onto a native render thread with a short queue; when the queue
+     * is full the oldest pending frame is dropped. Takes effect for renderers created after the call.
+     */
+    public void setAsyncRender(boolean enabled) {
+        options = options.withAsyncRender(enabled);
+    }
+
+    /**
+     * Selects the decode quality profile, e.g. {@link Dav1dQuality#PREVIEW} for a player that
+     * only feeds a scrubbing preview. Takes effect for renderers created after the call.
+     */
+    public void setQuality(Dav1dQuality quality) {
+        if (quality == null) throw new NullPointerException("quality");
+        options = options.withQuality(quality);
+    }
+
     @Override
     public String getId() {
         return "vcat.dav1d";
@@ -50,7 +95,7 @@ public final class VcatDav1dPlugin implements VcatDecoderPlugin {
             int threads
     ) throws DecoderException {
         // threads is required by SPI (>=1). tileThreads fixed to 4 per your note.
-        Dav1dAv1Provider dav1d = new Dav1dAv1Provider(threads, /* tileThreads = */ 4);
+        Dav1dAv1Provider dav1d = new Dav1dAv1Provider(threads, /* tileThreads = */ 4, options);
         if (dav1d.isAvailable(context)) {
             return dav1d.build(allowedJoiningTimeMs, eventHandler, eventListener);
         }
@@ -0,0 +1,51 @@
+package com.roncatech.libvcat.decoder;
+
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+
+import com.roncatech.vcat.decoder_plugin_api.NonStdDecoderStsdParser;
+
+/**
+ * Optional interface for a {@link NonStdDecoderStsdParser} plugin to declare the sample format
+ * its decoder accepts. Plugins that don't implement it get Annex B samples.
+ */
+public interface SampleFormatDeclaration {
+
+    /** NAL units delimited by start codes. Length-prefixed samples are converted by the extractor. */
+    int SAMPLE_FORMAT_ANNEX_B = 0;
+    /** Samples as stored in the container, including any NAL unit length fields. */
+    int SAMPLE_FORMAT_AS_STORED = 1;
+
+    /** Returns {@link #SAMPLE_FORMAT_ANNEX_B} or {@link #SAMPLE_FORMAT_AS_STORED}. */
+    int getSampleFormat();
+}
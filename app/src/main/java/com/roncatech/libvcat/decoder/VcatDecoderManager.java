@@ -71,6 +71,11 @@ public final class VcatDecoderManager {
         return false;
     }
 
+    /** Removes the decoder registered with an ID. Returns whether there was one. */
+    public boolean unregisterDecoder(String id) {
+        return decoders.remove(Objects.requireNonNull(id, "id")) != null;
+    }
+
     public VcatDecoderPlugin getDecoder(String id){
         return this.decoders.getOrDefault(id, null);
     }
@@ -107,4 +112,16 @@ public final class VcatDecoderManager {
         }
         return Collections.unmodifiableMap(nonStandardDecoders);
     }
+
+    /**
+     * Returns whether the {@link NonStdDecoderStsdParser} plugin for a sample entry takes samples
+     * as stored in the container, so that the extractors pass them through without start code
+     * conversion. This also applies to standard sample entries such as avc1 and hvc1.
+     */
+    public boolean acceptsSamplesAsStored(int sampleEntry4ccCode) {
+        NonStdDecoderStsdParser parser = getNonStandardDecoders().get(sampleEntry4ccCode);
+        return parser instanceof SampleFormatDeclaration
+                && ((SampleFormatDeclaration) parser).getSampleFormat()
+                        == SampleFormatDeclaration.SAMPLE_FORMAT_AS_STORED;
+    }
 }
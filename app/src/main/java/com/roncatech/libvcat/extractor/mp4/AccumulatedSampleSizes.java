@@ -0,0 +1,200 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static com.google.android.exoplayer2.util.Util.castNonNull;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * For each sample of each track, the accumulated size of all samples which need to be read before
+ * this sample can be used. Samples are merged across tracks in timestamp order with a heap, and
+ * only as far as the reader has asked for. Values are stored in blocks that are allocated as the
+ * merge reaches them, so untouched parts of the file cost no memory.
+ *
+ * <p>Blocks behind the position of a track are dropped by {@link #discardBefore(int, int)}, so the
+ * values held span from the slowest track to the furthest merged sample. The merge state is kept
+ * every {@link #CHECKPOINT_INTERVAL} merged samples, and a dropped value that is asked for again,
+ * after a seek back, is merged again from the nearest checkpoint before it.
+ */
+/* package */ final class AccumulatedSampleSizes {
+
+  private static final int BLOCK_SHIFT = 12;
+  private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  private static final int CHECKPOINT_INTERVAL = BLOCK_SIZE;
+
+  private final TrackSampleTable[] sampleTables;
+  private final long[][][] blocks;
+  // Values are held for samples from firstHeldSampleIndex up to nextSampleIndex.
+  private final int[] firstHeldSampleIndex;
+  private final int[] nextSampleIndex;
+  private final long[] nextSampleTimesUs;
+  // Unfinished tracks, earliest next sample first. Ties go to the higher track index.
+  private final PriorityQueue<Integer> mergeQueue;
+  private final ArrayList<Checkpoint> checkpoints;
+  private long accumulatedSampleSize;
+  private long mergedSampleCount;
+
+  public AccumulatedSampleSizes(TrackSampleTable[] sampleTables) {
+    this.sampleTables = sampleTables;
+    blocks = new long[sampleTables.length][][];
+    firstHeldSampleIndex = new int[sampleTables.length];
+    nextSampleIndex = new int[sampleTables.length];
+    nextSampleTimesUs = new long[sampleTables.length];
+    mergeQueue =
+        new PriorityQueue<>(
+            max(1, sampleTables.length),
+            (a, b) ->
+                nextSampleTimesUs[a] != nextSampleTimesUs[b]
+                    ? Long.compare(nextSampleTimesUs[a], nextSampleTimesUs[b])
+                    : Integer.compare(b, a));
+    checkpoints = new ArrayList<>();
+    for (int i = 0; i < sampleTables.length; i++) {
+      blocks[i] = new long[(sampleTables[i].sampleCount + BLOCK_SIZE - 1) >> BLOCK_SHIFT][];
+    }
+    checkpoints.add(new Checkpoint(new int[sampleTables.length], /* accumulatedSampleSize= */ 0));
+    restart(/* checkpointIndex= */ 0);
+  }
+
+  /**
+   * Returns the accumulated size for a sample, merging samples of all tracks up to it if they have
+   * not been merged yet, or merging them again if the value has been dropped.
+   */
+  public long get(int trackIndex, int sampleIndex) {
+    if (sampleIndex < firstHeldSampleIndex[trackIndex]) {
+      restart(findCheckpoint(trackIndex, sampleIndex));
+    }
+    while (nextSampleIndex[trackIndex] <= sampleIndex && !mergeQueue.isEmpty()) {
+      mergeNextSample();
+    }
+    long[] block = castNonNull(blocks[trackIndex][sampleIndex >> BLOCK_SHIFT]);
+    return block[sampleIndex & (BLOCK_SIZE - 1)];
+  }
+
+  /**
+   * Drops the blocks of a track that only hold samples before {@code sampleIndex}, once the reader
+   * has moved past them.
+   */
+  public void discardBefore(int trackIndex, int sampleIndex) {
+    int firstBlock = firstHeldSampleIndex[trackIndex] >> BLOCK_SHIFT;
+    int lastBlock = min(sampleIndex, nextSampleIndex[trackIndex]) >> BLOCK_SHIFT;
+    if (lastBlock <= firstBlock) {
+      return;
+    }
+    Arrays.fill(blocks[trackIndex], firstBlock, lastBlock, null);
+    firstHeldSampleIndex[trackIndex] = lastBlock << BLOCK_SHIFT;
+  }
+
+  /** Bytes of heap held for merged values and checkpoints. */
+  public long sizeInBytes() {
+    long size = (4L * sampleTables.length + 8) * checkpoints.size();
+    for (long[][] trackBlocks : blocks) {
+      for (@Nullable long[] block : trackBlocks) {
+        size += block == null ? 0 : 8L * block.length;
+      }
+    }
+    return size;
+  }
+
+  private void mergeNextSample() {
+    int trackIndex = mergeQueue.poll();
+    int trackSampleIndex = nextSampleIndex[trackIndex];
+    TrackSampleTable sampleTable = sampleTables[trackIndex];
+    int block = trackSampleIndex >> BLOCK_SHIFT;
+    if (blocks[trackIndex][block] == null) {
+      blocks[trackIndex][block] =
+          new long[min(BLOCK_SIZE, sampleTable.sampleCount - (block << BLOCK_SHIFT))];
+    }
+    castNonNull(blocks[trackIndex][block])[trackSampleIndex & (BLOCK_SIZE - 1)] =
+        accumulatedSampleSize;
+    accumulatedSampleSize += sampleTable.getSize(trackSampleIndex);
+    nextSampleIndex[trackIndex] = ++trackSampleIndex;
+    if (trackSampleIndex < sampleTable.sampleCount) {
+      nextSampleTimesUs[trackIndex] = sampleTable.getTimestampUs(trackSampleIndex);
+      mergeQueue.add(trackIndex);
+    }
+    if (++mergedSampleCount % CHECKPOINT_INTERVAL == 0
+        && mergedSampleCount / CHECKPOINT_INTERVAL == checkpoints.size()) {
+      checkpoints.add(new Checkpoint(nextSampleIndex.clone(), accumulatedSampleSize));
+    }
+  }
+
+  // The last checkpoint at or before the sample. Per track indices never decrease between them.
+  private int findCheckpoint(int trackIndex, int sampleIndex) {
+    int low = 0;
+    int high = checkpoints.size() - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (checkpoints.get(mid).nextSampleIndex[trackIndex] <= sampleIndex) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  private void restart(int checkpointIndex) {
+    Checkpoint checkpoint = checkpoints.get(checkpointIndex);
+    mergeQueue.clear();
+    for (int i = 0; i < sampleTables.length; i++) {
+      Arrays.fill(blocks[i], null);
+      int sampleIndex = checkpoint.nextSampleIndex[i];
+      firstHeldSampleIndex[i] = sampleIndex;
+      nextSampleIndex[i] = sampleIndex;
+      if (sampleIndex < sampleTables[i].sampleCount) {
+        nextSampleTimesUs[i] = sampleTables[i].getTimestampUs(sampleIndex);
+        mergeQueue.add(i);
+      }
+    }
+    accumulatedSampleSize = checkpoint.accumulatedSampleSize;
+    mergedSampleCount = (long) checkpointIndex * CHECKPOINT_INTERVAL;
+  }
+
+  /** The merge state after a number of merged samples. */
+  private static final class Checkpoint {
+
+    public final int[] nextSampleIndex;
+    public final long accumulatedSampleSize;
+
+    public Checkpoint(int[] nextSampleIndex, long accumulatedSampleSize) {
+      this.nextSampleIndex = nextSampleIndex;
+      this.accumulatedSampleSize = accumulatedSampleSize;
+    }
+  }
+}
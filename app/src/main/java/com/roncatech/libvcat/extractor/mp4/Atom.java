@@ -14,11 +14,15 @@
  * limitations under the License.
  */
 package com.roncatech.libvcat.extractor.mp4;
+import static java.lang.Math.max;
+
 import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.util.ParsableByteArray;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import org.checkerframework.checker.nullness.compatqual.NullableType;
 
 @SuppressWarnings("ConstantField")
 @Deprecated
@@ -439,13 +443,29 @@ import java.util.List;
     /** The atom data. */
     public final ParsableByteArray data;
 
+    /**
+     * The atom as stored in the file, if its data was left there, or null. Positions in it are the
+     * same as in {@link #data}, which then holds only the fields before the entries.
+     */
+    @Nullable public final ByteBuffer region;
+
     /**
      * @param type The type of the atom.
      * @param data The atom data.
      */
     public LeafAtom(int type, ParsableByteArray data) {
+      this(type, data, /* region= */ null);
+    }
+
+    /**
+     * @param type The type of the atom.
+     * @param data The atom data, or the fields before the entries if {@code region} is set.
+     * @param region The atom as stored in the file, or null.
+     */
+    public LeafAtom(int type, ParsableByteArray data, @Nullable ByteBuffer region) {
       super(type);
       this.data = data;
+      this.region = region;
     }
   }
 
@@ -456,6 +476,10 @@ import java.util.List;
     public final List<LeafAtom> leafChildren;
     public final List<ContainerAtom> containerChildren;
 
+    // First child of each type, for lookups that don't scan the lists.
+    private final ChildIndex<LeafAtom> leafIndex;
+    private final ChildIndex<ContainerAtom> containerIndex;
+
     /**
      * @param type The type of the atom.
      * @param endPosition The position of the first byte after the end of the atom.
@@ -465,6 +489,8 @@ import java.util.List;
       this.endPosition = endPosition;
       leafChildren = new ArrayList<>();
       containerChildren = new ArrayList<>();
+      leafIndex = new ChildIndex<>();
+      containerIndex = new ChildIndex<>();
     }
 
     /**
@@ -474,6 +500,7 @@ import java.util.List;
      */
     public void add(LeafAtom atom) {
       leafChildren.add(atom);
+      leafIndex.putIfAbsent(atom.type, atom);
     }
 
     /**
@@ -483,6 +510,7 @@ import java.util.List;
      */
     public void add(ContainerAtom atom) {
       containerChildren.add(atom);
+      containerIndex.putIfAbsent(atom.type, atom);
     }
 
     /**
@@ -496,14 +524,7 @@ import java.util.List;
      */
     @Nullable
     public LeafAtom getLeafAtomOfType(int type) {
-      int childrenSize = leafChildren.size();
-      for (int i = 0; i < childrenSize; i++) {
-        LeafAtom atom = leafChildren.get(i);
-        if (atom.type == type) {
-          return atom;
-        }
-      }
-      return null;
+      return leafIndex.get(type);
     }
 
     /**
@@ -517,14 +538,7 @@ import java.util.List;
      */
     @Nullable
     public ContainerAtom getContainerAtomOfType(int type) {
-      int childrenSize = containerChildren.size();
-      for (int i = 0; i < childrenSize; i++) {
-        ContainerAtom atom = containerChildren.get(i);
-        if (atom.type == type) {
-          return atom;
-        }
-      }
-      return null;
+      return containerIndex.get(type);
     }
 
     /**
@@ -585,4 +599,87 @@ import java.util.List;
         + (char) ((type >> 8) & 0xFF)
         + (char) (type & 0xFF);
   }
+
+  /**
+   * Open-addressing map from atom type to the first child added with that type. Atom types are
+   * four ASCII characters, so they are mixed before probing.
+   */
+  private static final class ChildIndex<T extends Atom> {
+
+    private static final int INITIAL_CAPACITY = 8;
+    // Shared by every empty index. Never written to, as the first put grows the index.
+    private static final int[] EMPTY_TYPES = new int[0];
+    private static final @NullableType Object[] EMPTY_ATOMS = new Object[0];
+
+    private int[] types;
+    private @NullableType Object[] atoms;
+    private int size;
+
+    public ChildIndex() {
+      // Allocated on the first put, as many containers hold no children of one kind.
+      types = EMPTY_TYPES;
+      atoms = EMPTY_ATOMS;
+    }
+
+    /** Maps {@code type} to {@code atom}, unless {@code type} is already mapped. */
+    public void putIfAbsent(int type, T atom) {
+      if ((size + 1) * 2 > atoms.length) {
+        grow();
+      }
+      int mask = atoms.length - 1;
+      int slot = mix(type) & mask;
+      while (atoms[slot] != null) {
+        if (types[slot] == type) {
+          return;
+        }
+        slot = (slot + 1) & mask;
+      }
+      types[slot] = type;
+      atoms[slot] = atom;
+      size++;
+    }
+
+    /** Returns the atom mapped to {@code type}, or null if there is none. */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public T get(int type) {
+      if (size == 0) {
+        return null;
+      }
+      int mask = atoms.length - 1;
+      int slot = mix(type) & mask;
+      @Nullable Object atom;
+      while ((atom = atoms[slot]) != null) {
+        if (types[slot] == type) {
+          return (T) atom;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return null;
+    }
+
+    private void grow() {
+      int[] oldTypes = types;
+      @NullableType Object[] oldAtoms = atoms;
+      int capacity = max(INITIAL_CAPACITY, oldAtoms.length * 2);
+      types = new int[capacity];
+      atoms = new Object[capacity];
+      int mask = atoms.length - 1;
+      for (int i = 0; i < oldAtoms.length; i++) {
+        if (oldAtoms[i] != null) {
+          int slot = mix(oldTypes[i]) & mask;
+          while (atoms[slot] != null) {
+            slot = (slot + 1) & mask;
+          }
+          types[slot] = oldTypes[i];
+          atoms[slot] = oldAtoms[i];
+        }
+      }
+    }
+
+    private static int mix(int type) {
+      int hash = type * 0x9E3779B9;
+      return hash ^ (hash >>> 16);
+    }
+  }
 }
@@ -0,0 +1,123 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Size-class arena of leaf atom payload buffers, owned by an extractor.
+ *
+ * <p>Buffers handed out by {@link #acquire(int)} stay in use until {@link #recycleAll()}, which the
+ * extractor calls once the top-level atom that holds them has been processed. Capacities are
+ * rounded up to a power of two, so a buffer's array may be longer than its {@link
+ * ParsableByteArray#limit()}. Atoms over {@link #MAX_POOLED_SIZE} bytes get an exact buffer that is
+ * not pooled. Not thread safe.
+ */
+/* package */ final class AtomBufferPool {
+
+  private static final int MIN_SIZE_SHIFT = 6;
+  private static final int MAX_SIZE_SHIFT = 20;
+  private static final int MAX_FREE_BUFFERS_PER_CLASS = 16;
+
+  /** The largest atom size, in bytes, whose buffer is returned to the pool. */
+  public static final int MAX_POOLED_SIZE = 1 << MAX_SIZE_SHIFT;
+
+  private final ArrayList<ArrayDeque<ParsableByteArray>> freeBuffers;
+  private final ArrayList<ParsableByteArray> buffersInUse;
+
+  private long allocationCount;
+  private long reuseCount;
+
+  public AtomBufferPool() {
+    freeBuffers = new ArrayList<>();
+    for (int shift = MIN_SIZE_SHIFT; shift <= MAX_SIZE_SHIFT; shift++) {
+      freeBuffers.add(new ArrayDeque<>());
+    }
+    buffersInUse = new ArrayList<>();
+  }
+
+  /**
+   * Returns a buffer whose limit is {@code size} and whose position is zero. The contents are
+   * undefined.
+   */
+  public ParsableByteArray acquire(int size) {
+    if (size > MAX_POOLED_SIZE) {
+      allocationCount++;
+      return new ParsableByteArray(size);
+    }
+    int sizeClass = getSizeClass(size);
+    @Nullable ParsableByteArray buffer = freeBuffers.get(sizeClass).poll();
+    if (buffer == null) {
+      allocationCount++;
+      buffer = new ParsableByteArray(new byte[1 << (sizeClass + MIN_SIZE_SHIFT)], size);
+    } else {
+      reuseCount++;
+      buffer.reset(buffer.getData(), size);
+    }
+    buffersInUse.add(buffer);
+    return buffer;
+  }
+
+  /**
+   * Returns every buffer handed out since the previous call to the pool. The caller must not use
+   * them afterwards.
+   */
+  public void recycleAll() {
+    for (int i = 0; i < buffersInUse.size(); i++) {
+      ParsableByteArray buffer = buffersInUse.get(i);
+      ArrayDeque<ParsableByteArray> free = freeBuffers.get(getSizeClass(buffer.getData().length));
+      if (free.size() < MAX_FREE_BUFFERS_PER_CLASS) {
+        free.add(buffer);
+      }
+    }
+    buffersInUse.clear();
+  }
+
+  /** Returns the number of buffers allocated, pooled or not. */
+  public long getAllocationCount() {
+    return allocationCount;
+  }
+
+  /** Returns the number of buffers served from the pool without an allocation. */
+  public long getReuseCount() {
+    return reuseCount;
+  }
+
+  private static int getSizeClass(int size) {
+    int shift = size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    return Math.max(shift, MIN_SIZE_SHIFT) - MIN_SIZE_SHIFT;
+  }
+}
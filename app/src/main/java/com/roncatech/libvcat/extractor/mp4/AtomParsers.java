@@ -19,9 +19,11 @@ import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
 import static com.google.android.exoplayer2.util.MimeTypes.getMimeTypeFromMp4ObjectType;
 import static com.google.android.exoplayer2.util.Util.castNonNull;
 import static java.lang.Math.max;
+import static java.lang.Math.min;
 
 import android.util.Pair;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.ParserException;
@@ -54,11 +56,16 @@ import com.google.android.exoplayer2.video.HevcConfig;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Uninterruptibles;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.checkerframework.checker.nullness.compatqual.NullableType;
 
 /**
@@ -147,6 +154,11 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
   /** The magic signature for an Opus Identification header, as defined in RFC-7845. */
   private static final byte[] opusMagic = Util.getUtf8Bytes("OpusHead");
 
+  /** Upper bound on the threads used to parse the sample tables of multi-track files. */
+  private static final int MAX_STBL_PARSER_THREADS = 4;
+
+  @Nullable private static ExecutorService stblExecutor;
+
   /**
    * Parse the trak atoms in a moov atom (defined in ISO/IEC 14496-12).
    *
@@ -170,7 +182,85 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
           boolean isQuickTime,
           Function<@NullableType Track, @NullableType Track> modifyTrackFunction)
           throws ParserException {
+    // Track headers and stsd are parsed here, in order, so modifyTrackFunction is only ever called
+    // on this thread. The sample tables are the expensive part and are independent per track.
+    List<Atom.ContainerAtom> stblAtoms = new ArrayList<>();
+    List<Track> tracks =
+            parseTrackHeaders(
+                    moov,
+                    duration,
+                    drmInitData,
+                    ignoreEditLists,
+                    isQuickTime,
+                    modifyTrackFunction,
+                    stblAtoms);
+
     List<TrackSampleTable> trackSampleTables = new ArrayList<>();
+    if (tracks.size() < 2) {
+      for (int i = 0; i < tracks.size(); i++) {
+        trackSampleTables.add(parseStbl(tracks.get(i), stblAtoms.get(i), gaplessInfoHolder));
+      }
+      return trackSampleTables;
+    }
+
+    // Each task gets its own gapless holder. They are applied in track order afterwards, so the
+    // result matches parsing the tracks one after another.
+    GaplessInfoHolder[] trackGaplessInfoHolders = new GaplessInfoHolder[tracks.size()];
+    List<Future<TrackSampleTable>> futures = new ArrayList<>();
+    for (int i = 1; i < tracks.size(); i++) {
+      Track track = tracks.get(i);
+      Atom.ContainerAtom stblAtom = stblAtoms.get(i);
+      GaplessInfoHolder trackGaplessInfoHolder = new GaplessInfoHolder();
+      trackGaplessInfoHolders[i] = trackGaplessInfoHolder;
+      futures.add(
+              getStblExecutor().submit(() -> parseStbl(track, stblAtom, trackGaplessInfoHolder)));
+    }
+    try {
+      // The loading thread takes the first track itself rather than idling.
+      trackGaplessInfoHolders[0] = new GaplessInfoHolder();
+      trackSampleTables.add(
+              parseStbl(tracks.get(0), stblAtoms.get(0), trackGaplessInfoHolders[0]));
+      for (int i = 0; i < futures.size(); i++) {
+        trackSampleTables.add(getStblResult(futures.get(i)));
+      }
+    } finally {
+      for (int i = 0; i < futures.size(); i++) {
+        futures.get(i).cancel(/* mayInterruptIfRunning= */ false);
+      }
+    }
+    for (GaplessInfoHolder trackGaplessInfoHolder : trackGaplessInfoHolders) {
+      if (trackGaplessInfoHolder.hasGaplessInfo()) {
+        gaplessInfoHolder.encoderDelay = trackGaplessInfoHolder.encoderDelay;
+        gaplessInfoHolder.encoderPadding = trackGaplessInfoHolder.encoderPadding;
+      }
+    }
+    return trackSampleTables;
+  }
+
+  /**
+   * Parses the trak atoms in a moov atom up to, but not including, their sample tables.
+   *
+   * @param moov Moov atom to decode.
+   * @param duration The duration in units of the timescale declared in the mvhd atom, or {@link
+   *     C#TIME_UNSET} if the duration should be parsed from the tkhd atom.
+   * @param drmInitData {@link DrmInitData} to be included in the format, or {@code null}.
+   * @param ignoreEditLists Whether to ignore any edit lists in the trak boxes.
+   * @param isQuickTime True for QuickTime media. False otherwise.
+   * @param modifyTrackFunction A function to apply to the {@link Track Tracks} in the result.
+   * @param stblAtoms If not null, receives the stbl atom of each returned track.
+   * @return The tracks, in the order of their trak atoms.
+   * @throws ParserException Thrown if the trak atoms can't be parsed.
+   */
+  public static List<Track> parseTrackHeaders(
+          Atom.ContainerAtom moov,
+          long duration,
+          @Nullable DrmInitData drmInitData,
+          boolean ignoreEditLists,
+          boolean isQuickTime,
+          Function<@NullableType Track, @NullableType Track> modifyTrackFunction,
+          @Nullable List<Atom.ContainerAtom> stblAtoms)
+          throws ParserException {
+    List<Track> tracks = new ArrayList<>();
     for (int i = 0; i < moov.containerChildren.size(); i++) {
       Atom.ContainerAtom atom = moov.containerChildren.get(i);
       if (atom.type != Atom.TYPE_trak) {
@@ -189,16 +279,128 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
       if (track == null) {
         continue;
       }
-      Atom.ContainerAtom stblAtom =
-              checkNotNull(
-                      checkNotNull(
-                              checkNotNull(atom.getContainerAtomOfType(Atom.TYPE_mdia))
-                                      .getContainerAtomOfType(Atom.TYPE_minf))
-                              .getContainerAtomOfType(Atom.TYPE_stbl));
-      TrackSampleTable trackSampleTable = parseStbl(track, stblAtom, gaplessInfoHolder);
-      trackSampleTables.add(trackSampleTable);
+      tracks.add(track);
+      if (stblAtoms != null) {
+        stblAtoms.add(getStblAtom(atom));
+      }
+    }
+    return tracks;
+  }
+
+  /**
+   * Parses the header of a trak atom that has just been read, and starts parsing its sample table
+   * in the background, so that a moov can be parsed one trak at a time as it is read.
+   *
+   * @param trak The trak atom.
+   * @param mvhd The movie header atom, used to get the timescale.
+   * @param ignoreEditLists Whether to ignore any edit lists in the trak box.
+   * @param isQuickTime True for QuickTime media. False otherwise.
+   * @return The trak being parsed, or null if the track's type isn't supported.
+   * @throws ParserException Thrown if the trak header can't be parsed.
+   */
+  @Nullable
+  public static PendingTrak parseTrakAsync(
+          Atom.ContainerAtom trak, Atom.LeafAtom mvhd, boolean ignoreEditLists, boolean isQuickTime)
+          throws ParserException {
+    @Nullable
+    Track track =
+            parseTrak(
+                    trak,
+                    mvhd,
+                    /* duration= */ C.TIME_UNSET,
+                    /* drmInitData= */ null,
+                    ignoreEditLists,
+                    isQuickTime);
+    if (track == null) {
+      return null;
+    }
+    Atom.ContainerAtom stblAtom = getStblAtom(trak);
+    GaplessInfoHolder gaplessInfoHolder = new GaplessInfoHolder();
+    return new PendingTrak(
+            getStblExecutor().submit(() -> parseStbl(track, stblAtom, gaplessInfoHolder)),
+            gaplessInfoHolder);
+  }
+
+  /** A trak whose sample table is being parsed in the background. */
+  public static final class PendingTrak {
+
+    private final Future<TrackSampleTable> sampleTable;
+    private final GaplessInfoHolder gaplessInfoHolder;
+
+    private PendingTrak(
+            Future<TrackSampleTable> sampleTable, GaplessInfoHolder gaplessInfoHolder) {
+      this.sampleTable = sampleTable;
+      this.gaplessInfoHolder = gaplessInfoHolder;
+    }
+
+    /**
+     * Waits for the sample table, and copies any gapless info found in it to {@code
+     * gaplessInfoHolder}, as {@link #parseTraks} does for each track in turn.
+     */
+    public TrackSampleTable get(GaplessInfoHolder gaplessInfoHolder) throws ParserException {
+      TrackSampleTable trackSampleTable = getStblResult(sampleTable);
+      if (this.gaplessInfoHolder.hasGaplessInfo()) {
+        gaplessInfoHolder.encoderDelay = this.gaplessInfoHolder.encoderDelay;
+        gaplessInfoHolder.encoderPadding = this.gaplessInfoHolder.encoderPadding;
+      }
+      return trackSampleTable;
+    }
+
+    /** Cancels parsing if it hasn't started yet. */
+    public void cancel() {
+      sampleTable.cancel(/* mayInterruptIfRunning= */ false);
+    }
+  }
+
+  private static Atom.ContainerAtom getStblAtom(Atom.ContainerAtom trak) {
+    return checkNotNull(
+            checkNotNull(
+                    checkNotNull(trak.getContainerAtomOfType(Atom.TYPE_mdia))
+                            .getContainerAtomOfType(Atom.TYPE_minf))
+                    .getContainerAtomOfType(Atom.TYPE_stbl));
+  }
+
+  /**
+   * Replaces the executor that sample tables are parsed on, or restores the shared one if {@code
+   * executor} is null.
+   */
+  @VisibleForTesting
+  /* package */ static synchronized void setStblExecutor(@Nullable ExecutorService executor) {
+    stblExecutor = executor;
+  }
+
+  /** Returns the shared executor that sample tables of multi-track files are parsed on. */
+  private static synchronized ExecutorService getStblExecutor() {
+    if (stblExecutor == null) {
+      int threadCount =
+              max(1, min(MAX_STBL_PARSER_THREADS, Runtime.getRuntime().availableProcessors()));
+      stblExecutor =
+              Executors.newFixedThreadPool(
+                      threadCount,
+                      runnable -> {
+                        Thread thread = new Thread(runnable, "VcatStblParser");
+                        thread.setDaemon(true);
+                        return thread;
+                      });
+    }
+    return stblExecutor;
+  }
+
+  private static TrackSampleTable getStblResult(Future<TrackSampleTable> future)
+          throws ParserException {
+    try {
+      return Uninterruptibles.getUninterruptibly(future);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ParserException) {
+        throw (ParserException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
     }
-    return trackSampleTables;
   }
 
   /**
@@ -210,24 +412,22 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
    */
   public static UdtaInfo parseUdta(Atom.LeafAtom udtaAtom) {
     ParsableByteArray udtaData = udtaAtom.data;
-    udtaData.setPosition(Atom.HEADER_SIZE);
     @Nullable Metadata metaMetadata = null;
     @Nullable Metadata smtaMetadata = null;
     @Nullable Metadata xyzMetadata = null;
-    while (udtaData.bytesLeft() >= Atom.HEADER_SIZE) {
-      int atomPosition = udtaData.getPosition();
-      int atomSize = udtaData.readInt();
-      int atomType = udtaData.readInt();
+    BoxCursor children = new BoxCursor(udtaData, Atom.HEADER_SIZE, udtaData.limit());
+    while (children.next()) {
+      int atomType = children.getType();
       if (atomType == Atom.TYPE_meta) {
-        udtaData.setPosition(atomPosition);
-        metaMetadata = parseUdtaMeta(udtaData, atomPosition + atomSize);
+        udtaData.setPosition(children.getPosition());
+        metaMetadata = parseUdtaMeta(udtaData, children.getEndPosition());
       } else if (atomType == Atom.TYPE_smta) {
-        udtaData.setPosition(atomPosition);
-        smtaMetadata = parseSmta(udtaData, atomPosition + atomSize);
+        udtaData.setPosition(children.getPosition());
+        smtaMetadata = parseSmta(udtaData, children.getEndPosition());
       } else if (atomType == Atom.TYPE_xyz) {
+        children.moveToPayload();
         xyzMetadata = parseXyz(udtaData);
       }
-      udtaData.setPosition(atomPosition + atomSize);
     }
     return new UdtaInfo(metaMetadata, smtaMetadata, xyzMetadata);
   }
@@ -441,18 +641,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
   private static TrackSampleTable parseStbl(
           Track track, Atom.ContainerAtom stblAtom, GaplessInfoHolder gaplessInfoHolder)
           throws ParserException {
-    SampleSizeBox sampleSizeBox;
-    @Nullable Atom.LeafAtom stszAtom = stblAtom.getLeafAtomOfType(Atom.TYPE_stsz);
-    if (stszAtom != null) {
-      sampleSizeBox = new StszSampleSizeBox(stszAtom, track.format);
-    } else {
-      @Nullable Atom.LeafAtom stz2Atom = stblAtom.getLeafAtomOfType(Atom.TYPE_stz2);
-      if (stz2Atom == null) {
-        throw ParserException.createForMalformedContainer(
-                "Track has no sample table size information", /* cause= */ null);
-      }
-      sampleSizeBox = new Stz2SampleSizeBox(stz2Atom);
-    }
+    SampleSizeBox sampleSizeBox = createSampleSizeBox(track, stblAtom);
 
     int sampleCount = sampleSizeBox.getSampleCount();
     if (sampleCount == 0) {
@@ -473,48 +662,18 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
       chunkOffsetsAreLongs = true;
       chunkOffsetsAtom = checkNotNull(stblAtom.getLeafAtomOfType(Atom.TYPE_co64));
     }
-    ParsableByteArray chunkOffsets = chunkOffsetsAtom.data;
+    // The per-sample tables are read from the file if their boxes were left there.
+    ByteBuffer chunkOffsets = getEntries(chunkOffsetsAtom);
     // Entries are (chunk number, number of samples per chunk, sample description index).
     ParsableByteArray stsc = checkNotNull(stblAtom.getLeafAtomOfType(Atom.TYPE_stsc)).data;
     // Entries are (number of samples, timestamp delta between those samples).
-    ParsableByteArray stts = checkNotNull(stblAtom.getLeafAtomOfType(Atom.TYPE_stts)).data;
+    ByteBuffer stts = getEntries(checkNotNull(stblAtom.getLeafAtomOfType(Atom.TYPE_stts)));
     // Entries are the indices of samples that are synchronization samples.
     @Nullable Atom.LeafAtom stssAtom = stblAtom.getLeafAtomOfType(Atom.TYPE_stss);
-    @Nullable ParsableByteArray stss = stssAtom != null ? stssAtom.data : null;
+    @Nullable ByteBuffer stss = stssAtom != null ? getEntries(stssAtom) : null;
     // Entries are (number of samples, timestamp offset).
     @Nullable Atom.LeafAtom cttsAtom = stblAtom.getLeafAtomOfType(Atom.TYPE_ctts);
-    @Nullable ParsableByteArray ctts = cttsAtom != null ? cttsAtom.data : null;
-
-    // Prepare to read chunk information.
-    ChunkIterator chunkIterator = new ChunkIterator(stsc, chunkOffsets, chunkOffsetsAreLongs);
-
-    // Prepare to read sample timestamps.
-    stts.setPosition(Atom.FULL_HEADER_SIZE);
-    int remainingTimestampDeltaChanges = stts.readUnsignedIntToInt() - 1;
-    int remainingSamplesAtTimestampDelta = stts.readUnsignedIntToInt();
-    int timestampDeltaInTimeUnits = stts.readUnsignedIntToInt();
-
-    // Prepare to read sample timestamp offsets, if ctts is present.
-    int remainingSamplesAtTimestampOffset = 0;
-    int remainingTimestampOffsetChanges = 0;
-    int timestampOffset = 0;
-    if (ctts != null) {
-      ctts.setPosition(Atom.FULL_HEADER_SIZE);
-      remainingTimestampOffsetChanges = ctts.readUnsignedIntToInt();
-    }
-
-    int nextSynchronizationSampleIndex = C.INDEX_UNSET;
-    int remainingSynchronizationSamples = 0;
-    if (stss != null) {
-      stss.setPosition(Atom.FULL_HEADER_SIZE);
-      remainingSynchronizationSamples = stss.readUnsignedIntToInt();
-      if (remainingSynchronizationSamples > 0) {
-        nextSynchronizationSampleIndex = stss.readUnsignedIntToInt() - 1;
-      } else {
-        // Ignore empty stss boxes, which causes all samples to be treated as sync samples.
-        stss = null;
-      }
-    }
+    @Nullable ByteBuffer ctts = cttsAtom != null ? getEntries(cttsAtom) : null;
 
     // Fixed sample size raw audio may need to be rechunked.
     int fixedSampleSize = sampleSizeBox.getFixedSampleSize();
@@ -524,19 +683,19 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
                     && (MimeTypes.AUDIO_RAW.equals(sampleMimeType)
                     || MimeTypes.AUDIO_MLAW.equals(sampleMimeType)
                     || MimeTypes.AUDIO_ALAW.equals(sampleMimeType))
-                    && remainingTimestampDeltaChanges == 0
-                    && remainingTimestampOffsetChanges == 0
-                    && remainingSynchronizationSamples == 0;
+                    && readEntryCount(stts) == 1
+                    && (ctts == null || readEntryCount(ctts) == 0)
+                    && (stss == null || readEntryCount(stss) == 0);
 
-    long[] offsets;
-    int[] sizes;
+    CompactSamples samples;
+    @Nullable LazyStbl lazyStbl = null;
     int maximumSize = 0;
-    long[] timestamps;
-    int[] flags;
-    long timestampTimeUnits = 0;
     long duration;
 
     if (rechunkFixedSizeSamples) {
+      stts.position(TABLE_ENTRIES_POSITION + 4);
+      int timestampDeltaInTimeUnits = readUnsignedIntToInt(stts);
+      ChunkIterator chunkIterator = new ChunkIterator(stsc, chunkOffsets, chunkOffsetsAreLongs);
       long[] chunkOffsetsBytes = new long[chunkIterator.length];
       int[] chunkSampleCounts = new int[chunkIterator.length];
       while (chunkIterator.moveNext()) {
@@ -546,131 +705,179 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
       FixedSampleSizeRechunker.Results rechunkedResults =
               FixedSampleSizeRechunker.rechunk(
                       fixedSampleSize, chunkOffsetsBytes, chunkSampleCounts, timestampDeltaInTimeUnits);
-      offsets = rechunkedResults.offsets;
-      sizes = rechunkedResults.sizes;
+      samples =
+              compactSamplesOf(
+                      rechunkedResults.offsets, rechunkedResults.sizes, rechunkedResults.timestamps);
       maximumSize = rechunkedResults.maximumSize;
-      timestamps = rechunkedResults.timestamps;
-      flags = rechunkedResults.flags;
       duration = rechunkedResults.duration;
     } else {
-      offsets = new long[sampleCount];
-      sizes = new int[sampleCount];
-      timestamps = new long[sampleCount];
-      flags = new int[sampleCount];
-      long offset = 0;
-      int remainingSamplesInChunk = 0;
-
-      for (int i = 0; i < sampleCount; i++) {
-        // Advance to the next chunk if necessary.
-        boolean chunkDataComplete = true;
-        while (remainingSamplesInChunk == 0 && (chunkDataComplete = chunkIterator.moveNext())) {
-          offset = chunkIterator.offset;
-          remainingSamplesInChunk = chunkIterator.numSamples;
-        }
-        if (!chunkDataComplete) {
-          Log.w(TAG, "Unexpected end of chunk data");
-          sampleCount = i;
-          offsets = Arrays.copyOf(offsets, sampleCount);
-          sizes = Arrays.copyOf(sizes, sampleCount);
-          timestamps = Arrays.copyOf(timestamps, sampleCount);
-          flags = Arrays.copyOf(flags, sampleCount);
-          break;
-        }
-
-        // Add on the timestamp offset if ctts is present.
-        if (ctts != null) {
-          while (remainingSamplesAtTimestampOffset == 0 && remainingTimestampOffsetChanges > 0) {
-            remainingSamplesAtTimestampOffset = ctts.readUnsignedIntToInt();
-            // The BMFF spec (ISO/IEC 14496-12) states that sample offsets should be unsigned
-            // integers in version 0 ctts boxes, however some streams violate the spec and use
-            // signed integers instead. It's safe to always decode sample offsets as signed integers
-            // here, because unsigned integers will still be parsed correctly (unless their top bit
-            // is set, which is never true in practice because sample offsets are always small).
-            timestampOffset = ctts.readInt();
-            remainingTimestampOffsetChanges--;
+      // Only work proportional to the number of box entries happens here, plus two passes over the
+      // sample sizes to pack them. Per-sample offsets and timestamps are filled in windows on first
+      // access; see LazyStbl.
+
+      // Chunk offsets and samples-per-chunk runs.
+      long[] offsetRange = readChunkOffsetRange(chunkOffsets, chunkOffsetsAreLongs);
+      chunkOffsets.position(Atom.FULL_HEADER_SIZE);
+      int chunkCount = readUnsignedIntToInt(chunkOffsets);
+      PackedInts packedChunkOffsets = new PackedInts(chunkCount, offsetRange[0], offsetRange[1]);
+      for (int i = 0; i < chunkCount; i++) {
+        packedChunkOffsets.set(
+                i,
+                chunkOffsetsAreLongs
+                        ? readUnsignedLongToLong(chunkOffsets)
+                        : readUnsignedInt(chunkOffsets));
+      }
+      stsc.setPosition(Atom.FULL_HEADER_SIZE);
+      int stscEntryCount = stsc.readUnsignedIntToInt();
+      int[] runFirstSample = new int[stscEntryCount];
+      int[] runFirstChunk = new int[stscEntryCount];
+      int[] runSamplesPerChunk = new int[stscEntryCount];
+      int runCount = 0;
+      long chunkSampleCapacity = 0;
+      int firstChunk = stsc.readInt() - 1;
+      ExtractorUtil.checkContainerInput(firstChunk == 0, "first_chunk must be 1");
+      for (int i = 0; i < stscEntryCount && firstChunk < chunkCount; i++) {
+        int samplesPerChunk = stsc.readUnsignedIntToInt();
+        stsc.skipBytes(4); // Skip sample_description_index
+        int nextFirstChunk = i + 1 < stscEntryCount ? stsc.readInt() - 1 : chunkCount;
+        // An entry that does not advance first_chunk keeps the current samples per chunk to the
+        // end, as the sequential reader always did.
+        int endChunk = nextFirstChunk > firstChunk ? min(nextFirstChunk, chunkCount) : chunkCount;
+        if (samplesPerChunk > 0 && endChunk > firstChunk) {
+          int run = runCount - 1;
+          if (run < 0
+                  || runSamplesPerChunk[run] != samplesPerChunk
+                  || runFirstChunk[run] + (chunkSampleCapacity - runFirstSample[run]) / samplesPerChunk
+                  != firstChunk) {
+            if (chunkSampleCapacity >= sampleCount) {
+              break;
+            }
+            runFirstSample[runCount] = (int) chunkSampleCapacity;
+            runFirstChunk[runCount] = firstChunk;
+            runSamplesPerChunk[runCount] = samplesPerChunk;
+            runCount++;
           }
-          remainingSamplesAtTimestampOffset--;
+          chunkSampleCapacity += (long) samplesPerChunk * (endChunk - firstChunk);
         }
+        firstChunk = endChunk;
+      }
+      if (chunkSampleCapacity < sampleCount) {
+        Log.w(TAG, "Unexpected end of chunk data");
+        sampleCount = (int) chunkSampleCapacity;
+      }
 
-        offsets[i] = offset;
-        sizes[i] = sampleSizeBox.readNextSampleSize();
-        if (sizes[i] > maximumSize) {
-          maximumSize = sizes[i];
+      // Sizes and time ranges for packing.
+      long minSize = fixedSampleSize;
+      long maxSize = fixedSampleSize;
+      if (fixedSampleSize == C.LENGTH_UNSET) {
+        minSize = sampleCount > 0 ? Long.MAX_VALUE : 0;
+        maxSize = 0;
+        for (int i = 0; i < sampleCount; i++) {
+          int size = sampleSizeBox.getSampleSize(i);
+          minSize = min(minSize, size);
+          maxSize = max(maxSize, size);
         }
-        timestamps[i] = timestampTimeUnits + timestampOffset;
-
-        // All samples are synchronization samples if the stss is not present.
-        flags[i] = stss == null ? C.BUFFER_FLAG_KEY_FRAME : 0;
-        if (i == nextSynchronizationSampleIndex) {
-          flags[i] = C.BUFFER_FLAG_KEY_FRAME;
-          remainingSynchronizationSamples--;
-          if (remainingSynchronizationSamples > 0) {
-            nextSynchronizationSampleIndex = checkNotNull(stss).readUnsignedIntToInt() - 1;
-          }
+      }
+      maximumSize = sampleCount > 0 ? (int) maxSize : 0;
+      PackedInts sizes = new PackedInts(sampleCount, minSize, maxSize);
+      if (minSize != maxSize) {
+        for (int i = 0; i < sampleCount; i++) {
+          sizes.set(i, sampleSizeBox.getSampleSize(i));
         }
+      }
+      // The stsz is not referenced past this point, so a heap copy of it can be collected while
+      // the track's samples are still being filled.
+      lazyStbl = new LazyStbl(sizes, stts, ctts);
+      long[] deltaRange = readEntryValueRange(stts, /* includeZero= */ false);
+      PackedInts timeDeltas = new PackedInts(sampleCount, deltaRange[0], deltaRange[1]);
+      @Nullable PackedInts compositionOffsets = null;
+      if (ctts != null) {
+        long[] cttsRange = readEntryValueRange(ctts, /* includeZero= */ true);
+        compositionOffsets = new PackedInts(sampleCount, cttsRange[0], cttsRange[1]);
+      }
 
-        // Add on the duration of this sample.
-        timestampTimeUnits += timestampDeltaInTimeUnits;
-        remainingSamplesAtTimestampDelta--;
-        if (remainingSamplesAtTimestampDelta == 0 && remainingTimestampDeltaChanges > 0) {
-          remainingSamplesAtTimestampDelta = stts.readUnsignedIntToInt();
-          // The BMFF spec (ISO/IEC 14496-12) states that sample deltas should be unsigned integers
-          // in stts boxes, however some streams violate the spec and use signed integers instead.
-          // See https://github.com/google/ExoPlayer/issues/3384. It's safe to always decode sample
-          // deltas as signed integers here, because unsigned integers will still be parsed
-          // correctly (unless their top bit is set, which is never true in practice because sample
-          // deltas are always small).
-          timestampDeltaInTimeUnits = stts.readInt();
-          remainingTimestampDeltaChanges--;
+      // All samples are synchronization samples if the stss is not present.
+      @Nullable int[] syncSampleIndices = null;
+      int syncSamplesOutOfRange = 0;
+      if (stss != null) {
+        stss.position(Atom.FULL_HEADER_SIZE);
+        int stssEntryCount = readUnsignedIntToInt(stss);
+        if (stssEntryCount > 0) {
+          syncSampleIndices = new int[stssEntryCount];
+          int syncSampleCount = 0;
+          boolean sorted = true;
+          for (int i = 0; i < stssEntryCount; i++) {
+            int syncSampleIndex = readUnsignedIntToInt(stss) - 1;
+            if (syncSampleIndex >= 0 && syncSampleIndex < sampleCount) {
+              sorted &=
+                      syncSampleCount == 0 || syncSampleIndices[syncSampleCount - 1] < syncSampleIndex;
+              syncSampleIndices[syncSampleCount++] = syncSampleIndex;
+            } else {
+              syncSamplesOutOfRange++;
+            }
+          }
+          if (!sorted) {
+            // Lookups binary search the indices, so put them in order and drop duplicates.
+            Arrays.sort(syncSampleIndices, 0, syncSampleCount);
+            int uniqueCount = 0;
+            for (int i = 0; i < syncSampleCount; i++) {
+              if (uniqueCount == 0 || syncSampleIndices[uniqueCount - 1] != syncSampleIndices[i]) {
+                syncSampleIndices[uniqueCount++] = syncSampleIndices[i];
+              }
+            }
+            syncSampleCount = uniqueCount;
+          }
+          syncSampleIndices = Arrays.copyOf(syncSampleIndices, syncSampleCount);
         }
-
-        offset += sizes[i];
-        remainingSamplesInChunk--;
+        // Otherwise ignore empty stss boxes, which causes all samples to be treated as sync
+        // samples.
       }
-      duration = timestampTimeUnits + timestampOffset;
+
+      duration =
+              lazyStbl.getDecodeTime(sampleCount)
+                      + (sampleCount > 0 ? lazyStbl.getCompositionOffset(sampleCount - 1) : 0);
+      samples =
+              new CompactSamples(
+                      sampleCount,
+                      sizes,
+                      packedChunkOffsets,
+                      Arrays.copyOf(runFirstSample, runCount),
+                      Arrays.copyOf(runFirstChunk, runCount),
+                      Arrays.copyOf(runSamplesPerChunk, runCount),
+                      new long[CompactSamples.anchorCount(sampleCount)],
+                      timeDeltas,
+                      new long[CompactSamples.anchorCount(sampleCount)],
+                      compositionOffsets,
+                      syncSampleIndices,
+                      sampleCount > 0 ? lazyStbl : null);
 
       // If the stbl's child boxes are not consistent the container is malformed, but the stream may
       // still be playable.
-      boolean isCttsValid = true;
-      if (ctts != null) {
-        while (remainingTimestampOffsetChanges > 0) {
-          if (ctts.readUnsignedIntToInt() != 0) {
-            isCttsValid = false;
-            break;
-          }
-          ctts.readInt(); // Ignore offset.
-          remainingTimestampOffsetChanges--;
-        }
-      }
-      if (remainingSynchronizationSamples != 0
-              || remainingSamplesAtTimestampDelta != 0
-              || remainingSamplesInChunk != 0
-              || remainingTimestampDeltaChanges != 0
-              || remainingSamplesAtTimestampOffset != 0
-              || !isCttsValid) {
+      if (syncSamplesOutOfRange != 0
+              || lazyStbl.getDecodeSampleCount() != sampleCount
+              || chunkSampleCapacity != sampleCount
+              || (ctts != null && lazyStbl.getCompositionSampleCount() != sampleCount)) {
         Log.w(
                 TAG,
                 "Inconsistent stbl box for track "
                         + track.id
-                        + ": remainingSynchronizationSamples "
-                        + remainingSynchronizationSamples
-                        + ", remainingSamplesAtTimestampDelta "
-                        + remainingSamplesAtTimestampDelta
-                        + ", remainingSamplesInChunk "
-                        + remainingSamplesInChunk
-                        + ", remainingTimestampDeltaChanges "
-                        + remainingTimestampDeltaChanges
-                        + ", remainingSamplesAtTimestampOffset "
-                        + remainingSamplesAtTimestampOffset
-                        + (!isCttsValid ? ", ctts invalid" : ""));
+                        + ": sampleCount "
+                        + sampleCount
+                        + ", stts samples "
+                        + lazyStbl.getDecodeSampleCount()
+                        + ", chunk samples "
+                        + chunkSampleCapacity
+                        + ", ctts samples "
+                        + (ctts != null ? lazyStbl.getCompositionSampleCount() : "none")
+                        + ", sync samples out of range "
+                        + syncSamplesOutOfRange);
       }
     }
+    sampleCount = samples.sampleCount;
     long durationUs = Util.scaleLargeTimestamp(duration, C.MICROS_PER_SECOND, track.timescale);
 
     if (track.editListDurations == null) {
-      Util.scaleLargeTimestampsInPlace(timestamps, C.MICROS_PER_SECOND, track.timescale);
-      return new TrackSampleTable(
-              track, offsets, sizes, maximumSize, timestamps, flags, durationUs);
+      return newCompactTable(track, samples, maximumSize, /* mediaTime= */ 0, durationUs);
     }
 
     // See the BMFF spec (ISO/IEC 14496-12) subsection 8.6.6. Edit lists that require prerolling
@@ -682,17 +889,19 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
 
     if (track.editListDurations.length == 1
             && track.type == C.TRACK_TYPE_AUDIO
-            && timestamps.length >= 2) {
+            && sampleCount >= 2) {
       long editStartTime = checkNotNull(track.editListMediaTimes)[0];
       long editEndTime =
               editStartTime
                       + Util.scaleLargeTimestamp(
                       track.editListDurations[0], track.timescale, track.movieTimescale);
-      if (canApplyEditWithGaplessInfo(timestamps, duration, editStartTime, editEndTime)) {
+      if (canApplyEditWithGaplessInfo(samples, duration, editStartTime, editEndTime)) {
         long paddingTimeUnits = duration - editEndTime;
         long encoderDelay =
                 Util.scaleLargeTimestamp(
-                        editStartTime - timestamps[0], track.format.sampleRate, track.timescale);
+                        editStartTime - samples.getTimestamp(0),
+                        track.format.sampleRate,
+                        track.timescale);
         long encoderPadding =
                 Util.scaleLargeTimestamp(paddingTimeUnits, track.format.sampleRate, track.timescale);
         if ((encoderDelay != 0 || encoderPadding != 0)
@@ -700,12 +909,10 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
                 && encoderPadding <= Integer.MAX_VALUE) {
           gaplessInfoHolder.encoderDelay = (int) encoderDelay;
           gaplessInfoHolder.encoderPadding = (int) encoderPadding;
-          Util.scaleLargeTimestampsInPlace(timestamps, C.MICROS_PER_SECOND, track.timescale);
           long editedDurationUs =
                   Util.scaleLargeTimestamp(
                           track.editListDurations[0], C.MICROS_PER_SECOND, track.movieTimescale);
-          return new TrackSampleTable(
-                  track, offsets, sizes, maximumSize, timestamps, flags, editedDurationUs);
+          return newCompactTable(track, samples, maximumSize, /* mediaTime= */ 0, editedDurationUs);
         }
       }
     }
@@ -715,15 +922,9 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
       // unfragmented files open to interpretation. We handle this as a special case and include all
       // samples in the edit.
       long editStartTime = checkNotNull(track.editListMediaTimes)[0];
-      for (int i = 0; i < timestamps.length; i++) {
-        timestamps[i] =
-                Util.scaleLargeTimestamp(
-                        timestamps[i] - editStartTime, C.MICROS_PER_SECOND, track.timescale);
-      }
       durationUs =
               Util.scaleLargeTimestamp(duration - editStartTime, C.MICROS_PER_SECOND, track.timescale);
-      return new TrackSampleTable(
-              track, offsets, sizes, maximumSize, timestamps, flags, durationUs);
+      return newCompactTable(track, samples, maximumSize, editStartTime, durationUs);
     }
 
     // Omit any sample at the end point of an edit for audio tracks.
@@ -750,21 +951,21 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
         // index. The start index would also be correct if we walk backwards to the previous sync
         // frame (https://github.com/google/ExoPlayer/issues/1659).
         startIndices[i] =
-                Util.binarySearchFloor(
-                        timestamps, editMediaTime, /* inclusive= */ true, /* stayInBounds= */ true);
+                samples.binarySearchFloor(
+                        editMediaTime, /* inclusive= */ true, /* stayInBounds= */ true);
         endIndices[i] =
-                Util.binarySearchCeil(
-                        timestamps,
+                samples.binarySearchCeil(
                         editMediaTime + editDuration,
                         /* inclusive= */ omitClippedSample,
                         /* stayInBounds= */ false);
-        while (startIndices[i] < endIndices[i]
-                && (flags[startIndices[i]] & C.BUFFER_FLAG_KEY_FRAME) == 0) {
+        if (startIndices[i] < endIndices[i]) {
           // Applying the edit correctly would require prerolling from the previous sync sample. In
           // the current implementation we advance to the next sync sample instead. Only other
           // tracks (i.e. audio) will be rendered until the time of the first sync sample.
           // See https://github.com/google/ExoPlayer/issues/1659.
-          startIndices[i]++;
+          int syncSampleIndex = samples.getSyncSampleAtOrAfter(startIndices[i]);
+          startIndices[i] =
+                  syncSampleIndex == C.INDEX_UNSET ? endIndices[i] : min(syncSampleIndex, endIndices[i]);
         }
         editedSampleCount += endIndices[i] - startIndices[i];
         copyMetadata |= nextSampleIndex != startIndices[i];
@@ -773,52 +974,204 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     }
     copyMetadata |= editedSampleCount != sampleCount;
 
-    // Calculate edited sample timestamps and update the corresponding metadata arrays.
-    long[] editedOffsets = copyMetadata ? new long[editedSampleCount] : offsets;
-    int[] editedSizes = copyMetadata ? new int[editedSampleCount] : sizes;
+    // Describe each non-empty edit as a segment over the samples instead of copying them.
+    int[] segmentFirstIndex = new int[track.editListDurations.length];
+    int[] segmentSourceIndex = new int[track.editListDurations.length];
+    long[] segmentStartUs = new long[track.editListDurations.length];
+    long[] segmentMediaTime = new long[track.editListDurations.length];
+    int segmentCount = 0;
     int editedMaximumSize = copyMetadata ? 0 : maximumSize;
-    int[] editedFlags = copyMetadata ? new int[editedSampleCount] : flags;
-    long[] editedTimestamps = new long[editedSampleCount];
     long pts = 0;
     int sampleIndex = 0;
     for (int i = 0; i < track.editListDurations.length; i++) {
-      long editMediaTime = track.editListMediaTimes[i];
       int startIndex = startIndices[i];
       int endIndex = endIndices[i];
-      if (copyMetadata) {
-        int count = endIndex - startIndex;
-        System.arraycopy(offsets, startIndex, editedOffsets, sampleIndex, count);
-        System.arraycopy(sizes, startIndex, editedSizes, sampleIndex, count);
-        System.arraycopy(flags, startIndex, editedFlags, sampleIndex, count);
-      }
-      for (int j = startIndex; j < endIndex; j++) {
-        long ptsUs = Util.scaleLargeTimestamp(pts, C.MICROS_PER_SECOND, track.movieTimescale);
-        long timeInSegmentUs =
-                Util.scaleLargeTimestamp(
-                        timestamps[j] - editMediaTime, C.MICROS_PER_SECOND, track.timescale);
-        if (canTrimSamplesWithTimestampChange(track.type)) {
-          timeInSegmentUs = max(0, timeInSegmentUs);
-        }
-        editedTimestamps[sampleIndex] = ptsUs + timeInSegmentUs;
-        if (copyMetadata && editedSizes[sampleIndex] > editedMaximumSize) {
-          editedMaximumSize = sizes[j];
+      if (endIndex > startIndex) {
+        segmentFirstIndex[segmentCount] = sampleIndex;
+        segmentSourceIndex[segmentCount] = startIndex;
+        segmentStartUs[segmentCount] =
+                Util.scaleLargeTimestamp(pts, C.MICROS_PER_SECOND, track.movieTimescale);
+        segmentMediaTime[segmentCount] = track.editListMediaTimes[i];
+        segmentCount++;
+        if (copyMetadata) {
+          for (int j = startIndex; j < endIndex; j++) {
+            editedMaximumSize =
+                    max(
+                            editedMaximumSize,
+                            lazyStbl != null ? lazyStbl.getSampleSize(j) : samples.getSize(j));
+          }
         }
-        sampleIndex++;
+        sampleIndex += endIndex - startIndex;
       }
       pts += track.editListDurations[i];
     }
     long editedDurationUs =
             Util.scaleLargeTimestamp(pts, C.MICROS_PER_SECOND, track.movieTimescale);
+    if (segmentCount == 0) {
+      return new TrackSampleTable(
+              track,
+              /* offsets= */ new long[0],
+              /* sizes= */ new int[0],
+              /* maximumSize= */ 0,
+              /* timestampsUs= */ new long[0],
+              /* flags= */ new int[0],
+              editedDurationUs);
+    }
     return new TrackSampleTable(
             track,
-            editedOffsets,
-            editedSizes,
+            samples,
+            editedSampleCount,
             editedMaximumSize,
-            editedTimestamps,
-            editedFlags,
+            Arrays.copyOf(segmentFirstIndex, segmentCount),
+            Arrays.copyOf(segmentSourceIndex, segmentCount),
+            Arrays.copyOf(segmentStartUs, segmentCount),
+            Arrays.copyOf(segmentMediaTime, segmentCount),
+            /* clampToSegmentStart= */ canTrimSamplesWithTimestampChange(track.type),
             editedDurationUs);
   }
 
+  private static SampleSizeBox createSampleSizeBox(Track track, Atom.ContainerAtom stblAtom)
+          throws ParserException {
+    @Nullable Atom.LeafAtom stszAtom = stblAtom.getLeafAtomOfType(Atom.TYPE_stsz);
+    if (stszAtom != null) {
+      return new StszSampleSizeBox(stszAtom, track.format);
+    }
+    @Nullable Atom.LeafAtom stz2Atom = stblAtom.getLeafAtomOfType(Atom.TYPE_stz2);
+    if (stz2Atom == null) {
+      throw ParserException.createForMalformedContainer(
+              "Track has no sample table size information", /* cause= */ null);
+    }
+    return new Stz2SampleSizeBox(stz2Atom);
+  }
+
+  /** Returns a table showing all of {@code samples}, with {@code mediaTime} presented at zero. */
+  private static TrackSampleTable newCompactTable(
+          Track track, CompactSamples samples, int maximumSize, long mediaTime, long durationUs) {
+    return new TrackSampleTable(
+            track,
+            samples,
+            samples.sampleCount,
+            maximumSize,
+            /* segmentFirstIndex= */ new int[] {0},
+            /* segmentSourceIndex= */ new int[] {0},
+            /* segmentStartUs= */ new long[] {0},
+            /* segmentMediaTime= */ new long[] {mediaTime},
+            /* clampToSegmentStart= */ false,
+            durationUs);
+  }
+
+  /** Wraps the expanded output of {@link FixedSampleSizeRechunker}; every sample is a sync sample. */
+  private static CompactSamples compactSamplesOf(long[] offsets, int[] sizes, long[] timestamps) {
+    int sampleCount = offsets.length;
+    long minOffset = Long.MAX_VALUE;
+    long maxOffset = 0;
+    long minSize = Long.MAX_VALUE;
+    long maxSize = 0;
+    long minDelta = 0;
+    long maxDelta = 0;
+    for (int i = 0; i < sampleCount; i++) {
+      minOffset = min(minOffset, offsets[i]);
+      maxOffset = max(maxOffset, offsets[i]);
+      minSize = min(minSize, sizes[i]);
+      maxSize = max(maxSize, sizes[i]);
+      long delta = i + 1 < sampleCount ? timestamps[i + 1] - timestamps[i] : 0;
+      minDelta = min(minDelta, delta);
+      maxDelta = max(maxDelta, delta);
+    }
+    // One sample per chunk, so every offset is stored as a chunk offset.
+    PackedInts packedOffsets = new PackedInts(sampleCount, minOffset, maxOffset);
+    PackedInts packedSizes = new PackedInts(sampleCount, minSize, maxSize);
+    PackedInts timeDeltas = new PackedInts(sampleCount, minDelta, maxDelta);
+    long[] offsetAnchors = new long[CompactSamples.anchorCount(sampleCount)];
+    long[] timeAnchors = new long[offsetAnchors.length];
+    for (int i = 0; i < sampleCount; i++) {
+      packedOffsets.set(i, offsets[i]);
+      packedSizes.set(i, sizes[i]);
+      timeDeltas.set(i, i + 1 < sampleCount ? timestamps[i + 1] - timestamps[i] : 0);
+      if ((i & (CompactSamples.ANCHOR_INTERVAL - 1)) == 0) {
+        offsetAnchors[i / CompactSamples.ANCHOR_INTERVAL] = offsets[i];
+        timeAnchors[i / CompactSamples.ANCHOR_INTERVAL] = timestamps[i];
+      }
+    }
+    return new CompactSamples(
+            sampleCount,
+            packedSizes,
+            packedOffsets,
+            /* runFirstSample= */ new int[] {0},
+            /* runFirstChunk= */ new int[] {0},
+            /* runSamplesPerChunk= */ new int[] {1},
+            offsetAnchors,
+            timeDeltas,
+            timeAnchors,
+            /* compositionOffsets= */ null,
+            /* syncSampleIndices= */ null,
+            /* source= */ null);
+  }
+
+  /**
+   * Returns {min, max} of the second field of the (count, value) entries of an stts or ctts box,
+   * optionally widened to include zero. Values are read as signed, as the main parse does.
+   */
+  private static long[] readEntryValueRange(ByteBuffer box, boolean includeZero) {
+    int position = box.position();
+    box.position(Atom.FULL_HEADER_SIZE);
+    int entryCount = readUnsignedIntToInt(box);
+    long min = includeZero ? 0 : Long.MAX_VALUE;
+    long max = includeZero ? 0 : Long.MIN_VALUE;
+    for (int i = 0; i < entryCount; i++) {
+      box.position(box.position() + 4);
+      long value = box.getInt();
+      min = min(min, value);
+      max = max(max, value);
+    }
+    box.position(position);
+    return min > max ? new long[] {0, 0} : new long[] {min, max};
+  }
+
+  /** Returns the entry count of a full box whose entry count follows the version and flags. */
+  private static int readEntryCount(ByteBuffer box) {
+    box.position(Atom.FULL_HEADER_SIZE);
+    return readUnsignedIntToInt(box);
+  }
+
+  /** Returns {min, max} of the chunk offsets in an stco or co64 box. */
+  private static long[] readChunkOffsetRange(ByteBuffer chunkOffsets, boolean areLongs) {
+    int position = chunkOffsets.position();
+    chunkOffsets.position(Atom.FULL_HEADER_SIZE);
+    int entryCount = readUnsignedIntToInt(chunkOffsets);
+    long min = Long.MAX_VALUE;
+    long max = 0;
+    for (int i = 0; i < entryCount; i++) {
+      long offset = areLongs ? readUnsignedLongToLong(chunkOffsets) : readUnsignedInt(chunkOffsets);
+      min = min(min, offset);
+      max = max(max, offset);
+    }
+    chunkOffsets.position(position);
+    return min > max ? new long[] {0, 0} : new long[] {min, max};
+  }
+
+  /** Reads an unsigned int whose top bit must be zero, like {@link ParsableByteArray}. */
+  private static int readUnsignedIntToInt(ByteBuffer buffer) {
+    int result = buffer.getInt();
+    if (result < 0) {
+      throw new IllegalStateException("Top bit not zero: " + result);
+    }
+    return result;
+  }
+
+  private static long readUnsignedInt(ByteBuffer buffer) {
+    return buffer.getInt() & 0xFFFFFFFFL;
+  }
+
+  /** Reads an unsigned long whose top bit must be zero, like {@link ParsableByteArray}. */
+  private static long readUnsignedLongToLong(ByteBuffer buffer) {
+    long result = buffer.getLong();
+    if (result < 0) {
+      throw new IllegalStateException("Top bit not zero: " + result);
+    }
+    return result;
+  }
+
   private static boolean canTrimSamplesWithTimestampChange(@C.TrackType int trackType) {
     // Audio samples have an inherent duration and we can't trim data by changing the sample
     // timestamp alone.
@@ -829,15 +1182,10 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
   private static Metadata parseUdtaMeta(ParsableByteArray meta, int limit) {
     meta.skipBytes(Atom.HEADER_SIZE);
     maybeSkipRemainingMetaAtomHeaderBytes(meta);
-    while (meta.getPosition() < limit) {
-      int atomPosition = meta.getPosition();
-      int atomSize = meta.readInt();
-      int atomType = meta.readInt();
-      if (atomType == Atom.TYPE_ilst) {
-        meta.setPosition(atomPosition);
-        return parseIlst(meta, atomPosition + atomSize);
-      }
-      meta.setPosition(atomPosition + atomSize);
+    BoxCursor children = new BoxCursor(meta, meta.getPosition(), limit);
+    if (children.nextOfType(Atom.TYPE_ilst)) {
+      meta.setPosition(children.getPosition());
+      return parseIlst(meta, children.getEndPosition());
     }
     return null;
   }
@@ -884,27 +1232,20 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
   @Nullable
   private static Metadata parseSmta(ParsableByteArray smta, int limit) {
     smta.skipBytes(Atom.FULL_HEADER_SIZE);
-    while (smta.getPosition() < limit) {
-      int atomPosition = smta.getPosition();
-      int atomSize = smta.readInt();
-      int atomType = smta.readInt();
-      if (atomType == Atom.TYPE_saut) {
-        if (atomSize < 14) {
-          return null;
-        }
-        smta.skipBytes(5); // author (4), reserved = 0 (1).
-        int recordingMode = smta.readUnsignedByte();
-        if (recordingMode != 12 && recordingMode != 13) {
-          return null;
-        }
-        float captureFrameRate = recordingMode == 12 ? 240 : 120;
-        smta.skipBytes(1); // reserved = 1 (1).
-        int svcTemporalLayerCount = smta.readUnsignedByte();
-        return new Metadata(new SmtaMetadataEntry(captureFrameRate, svcTemporalLayerCount));
-      }
-      smta.setPosition(atomPosition + atomSize);
+    BoxCursor children = new BoxCursor(smta, smta.getPosition(), limit);
+    if (!children.nextOfType(Atom.TYPE_saut) || children.getSize() < 14) {
+      return null;
     }
-    return null;
+    children.moveToPayload();
+    smta.skipBytes(5); // author (4), reserved = 0 (1).
+    int recordingMode = smta.readUnsignedByte();
+    if (recordingMode != 12 && recordingMode != 13) {
+      return null;
+    }
+    float captureFrameRate = recordingMode == 12 ? 240 : 120;
+    smta.skipBytes(1); // reserved = 1 (1).
+    int svcTemporalLayerCount = smta.readUnsignedByte();
+    return new Metadata(new SmtaMetadataEntry(captureFrameRate, svcTemporalLayerCount));
   }
 
   /**
@@ -1183,6 +1524,18 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     return false;
   }
 
+  /**
+   * Returns the NAL unit length field length for the track, or 0 if the decoder registered for the
+   * sample entry takes samples as stored. A length of zero makes the extractors pass samples
+   * through without start code conversion.
+   */
+  private static int getNalUnitLengthFieldLength(
+          int sampleEntryFourCC, int nalUnitLengthFieldLength) {
+    return VcatDecoderManager.getInstance().acceptsSamplesAsStored(sampleEntryFourCC)
+            ? 0
+            : nalUnitLengthFieldLength;
+  }
+
   // hdrStaticInfo is allocated using allocate() in allocateHdrStaticInfo().
   @SuppressWarnings("ByteBufferBackingArray")
   private static void parseVideoSampleEntry(
@@ -1261,7 +1614,8 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
         parent.setPosition(childStartPosition + Atom.HEADER_SIZE);
         AvcConfig avcConfig = AvcConfig.parse(parent);
         initializationData = avcConfig.initializationData;
-        out.nalUnitLengthFieldLength = avcConfig.nalUnitLengthFieldLength;
+        out.nalUnitLengthFieldLength =
+                getNalUnitLengthFieldLength(atomType, avcConfig.nalUnitLengthFieldLength);
         if (!pixelWidthHeightRatioFromPasp) {
           pixelWidthHeightRatio = avcConfig.pixelWidthHeightRatio;
         }
@@ -1285,7 +1639,8 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
           initializationData = cfg.initializationData;
         }
 
-        out.nalUnitLengthFieldLength = cfg.nalUnitLengthFieldLength;
+        out.nalUnitLengthFieldLength =
+                getNalUnitLengthFieldLength(atomType, cfg.nalUnitLengthFieldLength);
         if (!pixelWidthHeightRatioFromPasp) {
           pixelWidthHeightRatio = cfg.pixelWidthHeightRatio;
         }
@@ -1300,7 +1655,8 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
         parent.setPosition(childStartPosition + Atom.HEADER_SIZE);
         HevcConfig hevcConfig = HevcConfig.parse(parent);
         initializationData = hevcConfig.initializationData;
-        out.nalUnitLengthFieldLength = hevcConfig.nalUnitLengthFieldLength;
+        out.nalUnitLengthFieldLength =
+                getNalUnitLengthFieldLength(atomType, hevcConfig.nalUnitLengthFieldLength);
         if (!pixelWidthHeightRatioFromPasp) {
           pixelWidthHeightRatio = hevcConfig.pixelWidthHeightRatio;
         }
@@ -1806,16 +2162,12 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
           throws ParserException {
     int childAtomPosition = parent.getPosition();
     ExtractorUtil.checkContainerInput(childAtomPosition >= parentBoxPosition, /* message= */ null);
-    while (childAtomPosition - parentBoxPosition < parentBoxSize) {
-      parent.setPosition(childAtomPosition);
-      int childAtomSize = parent.readInt();
-      ExtractorUtil.checkContainerInput(childAtomSize > 0, "childAtomSize must be positive");
-      int childType = parent.readInt();
-      if (childType == boxType) {
-        return childAtomPosition;
-      }
-      childAtomPosition += childAtomSize;
+    BoxCursor children =
+            new BoxCursor(parent, childAtomPosition, parentBoxPosition + parentBoxSize);
+    if (children.nextOfType(boxType)) {
+      return children.getPosition();
     }
+    ExtractorUtil.checkContainerInput(!children.isMalformed(), "childAtomSize must be positive");
     return C.INDEX_UNSET;
   }
 
@@ -1881,22 +2233,17 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
   @Nullable
   private static Pair<Integer, TrackEncryptionBox> parseSampleEntryEncryptionData(
           ParsableByteArray parent, int position, int size) throws ParserException {
-    int childPosition = parent.getPosition();
-    while (childPosition - position < size) {
-      parent.setPosition(childPosition);
-      int childAtomSize = parent.readInt();
-      ExtractorUtil.checkContainerInput(childAtomSize > 0, "childAtomSize must be positive");
-      int childAtomType = parent.readInt();
-      if (childAtomType == Atom.TYPE_sinf) {
-        @Nullable
-        Pair<Integer, TrackEncryptionBox> result =
-                parseCommonEncryptionSinfFromParent(parent, childPosition, childAtomSize);
-        if (result != null) {
-          return result;
-        }
+    BoxCursor children = new BoxCursor(parent, parent.getPosition(), position + size);
+    while (children.nextOfType(Atom.TYPE_sinf)) {
+      @Nullable
+      Pair<Integer, TrackEncryptionBox> result =
+              parseCommonEncryptionSinfFromParent(
+                      parent, children.getPosition(), children.getSize());
+      if (result != null) {
+        return result;
       }
-      childPosition += childAtomSize;
     }
+    ExtractorUtil.checkContainerInput(!children.isMalformed(), "childAtomSize must be positive");
     return null;
   }
 
@@ -1991,15 +2338,10 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
   /** Parses the proj box from sv3d box, as specified by https://github.com/google/spatial-media. */
   @Nullable
   private static byte[] parseProjFromParent(ParsableByteArray parent, int position, int size) {
-    int childPosition = position + Atom.HEADER_SIZE;
-    while (childPosition - position < size) {
-      parent.setPosition(childPosition);
-      int childAtomSize = parent.readInt();
-      int childAtomType = parent.readInt();
-      if (childAtomType == Atom.TYPE_proj) {
-        return Arrays.copyOfRange(parent.getData(), childPosition, childPosition + childAtomSize);
-      }
-      childPosition += childAtomSize;
+    BoxCursor children = new BoxCursor(parent, position + Atom.HEADER_SIZE, position + size);
+    if (children.nextOfType(Atom.TYPE_proj)) {
+      return Arrays.copyOfRange(
+              parent.getData(), children.getPosition(), children.getEndPosition());
     }
     return null;
   }
@@ -2017,14 +2359,14 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
 
   /** Returns whether it's possible to apply the specified edit using gapless playback info. */
   private static boolean canApplyEditWithGaplessInfo(
-          long[] timestamps, long duration, long editStartTime, long editEndTime) {
-    int lastIndex = timestamps.length - 1;
+          CompactSamples samples, long duration, long editStartTime, long editEndTime) {
+    int lastIndex = samples.sampleCount - 1;
     int latestDelayIndex = Util.constrainValue(MAX_GAPLESS_TRIM_SIZE_SAMPLES, 0, lastIndex);
     int earliestPaddingIndex =
-            Util.constrainValue(timestamps.length - MAX_GAPLESS_TRIM_SIZE_SAMPLES, 0, lastIndex);
-    return timestamps[0] <= editStartTime
-            && editStartTime < timestamps[latestDelayIndex]
-            && timestamps[earliestPaddingIndex] < editEndTime
+            Util.constrainValue(samples.sampleCount - MAX_GAPLESS_TRIM_SIZE_SAMPLES, 0, lastIndex);
+    return samples.getTimestamp(0) <= editStartTime
+            && editStartTime < samples.getTimestamp(latestDelayIndex)
+            && samples.getTimestamp(earliestPaddingIndex) < editEndTime
             && editEndTime <= duration;
   }
 
@@ -2041,20 +2383,20 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     public long offset;
 
     private final boolean chunkOffsetsAreLongs;
-    private final ParsableByteArray chunkOffsets;
+    private final ByteBuffer chunkOffsets;
     private final ParsableByteArray stsc;
 
     private int nextSamplesPerChunkChangeIndex;
     private int remainingSamplesPerChunkChanges;
 
     public ChunkIterator(
-            ParsableByteArray stsc, ParsableByteArray chunkOffsets, boolean chunkOffsetsAreLongs)
+            ParsableByteArray stsc, ByteBuffer chunkOffsets, boolean chunkOffsetsAreLongs)
             throws ParserException {
       this.stsc = stsc;
       this.chunkOffsets = chunkOffsets;
       this.chunkOffsetsAreLongs = chunkOffsetsAreLongs;
-      chunkOffsets.setPosition(Atom.FULL_HEADER_SIZE);
-      length = chunkOffsets.readUnsignedIntToInt();
+      chunkOffsets.position(Atom.FULL_HEADER_SIZE);
+      length = readUnsignedIntToInt(chunkOffsets);
       stsc.setPosition(Atom.FULL_HEADER_SIZE);
       remainingSamplesPerChunkChanges = stsc.readUnsignedIntToInt();
       ExtractorUtil.checkContainerInput(stsc.readInt() == 1, "first_chunk must be 1");
@@ -2067,8 +2409,8 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
       }
       offset =
               chunkOffsetsAreLongs
-                      ? chunkOffsets.readUnsignedLongToLong()
-                      : chunkOffsets.readUnsignedInt();
+                      ? readUnsignedLongToLong(chunkOffsets)
+                      : readUnsignedInt(chunkOffsets);
       if (index == nextSamplesPerChunkChangeIndex) {
         numSamples = stsc.readUnsignedIntToInt();
         stsc.skipBytes(4); // Skip sample_description_index
@@ -2081,6 +2423,192 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     }
   }
 
+  /**
+   * Fills {@link CompactSamples} windows from the packed sample sizes and the stbl boxes. Sample
+   * sizes are read by index and stts/ctts are reduced to one entry per run, so any window can be
+   * filled without walking the samples before it.
+   */
+  private static final class LazyStbl implements CompactSamples.Source {
+
+    private final PackedInts sizes;
+    // stts runs: first sample, decode time of the first sample and delta.
+    private final int[] sttsFirstSample;
+    private final long[] sttsFirstTime;
+    private final int[] sttsDelta;
+    private final long sttsSampleCount;
+    // ctts runs: first sample and composition offset. Empty if there is no ctts.
+    private final int[] cttsFirstSample;
+    private final int[] cttsOffset;
+    private final long cttsSampleCount;
+
+    public LazyStbl(PackedInts sizes, ByteBuffer stts, @Nullable ByteBuffer ctts) {
+      this.sizes = sizes;
+
+      stts.position(Atom.FULL_HEADER_SIZE);
+      int sttsEntryCount = readUnsignedIntToInt(stts);
+      int[] sttsFirstSample = new int[max(1, sttsEntryCount)];
+      long[] sttsFirstTime = new long[max(1, sttsEntryCount)];
+      int[] sttsDelta = new int[max(1, sttsEntryCount)];
+      int sttsRunCount = 0;
+      long sampleIndex = 0;
+      long decodeTime = 0;
+      for (int i = 0; i < sttsEntryCount && stts.remaining() >= 8; i++) {
+        int count = readUnsignedIntToInt(stts);
+        // The BMFF spec (ISO/IEC 14496-12) states that sample deltas should be unsigned integers
+        // in stts boxes, however some streams violate the spec and use signed integers instead.
+        // See https://github.com/google/ExoPlayer/issues/3384. It's safe to always decode sample
+        // deltas as signed integers here, because unsigned integers will still be parsed correctly
+        // (unless their top bit is set, which is never true in practice because sample deltas are
+        // always small).
+        int delta = stts.getInt();
+        if (count == 0 || sampleIndex > Integer.MAX_VALUE) {
+          continue;
+        }
+        sttsFirstSample[sttsRunCount] = (int) sampleIndex;
+        sttsFirstTime[sttsRunCount] = decodeTime;
+        sttsDelta[sttsRunCount] = delta;
+        sttsRunCount++;
+        sampleIndex += count;
+        decodeTime += (long) count * delta;
+      }
+      if (sttsRunCount == 0) {
+        sttsRunCount = 1;
+      }
+      this.sttsFirstSample = Arrays.copyOf(sttsFirstSample, sttsRunCount);
+      this.sttsFirstTime = Arrays.copyOf(sttsFirstTime, sttsRunCount);
+      this.sttsDelta = Arrays.copyOf(sttsDelta, sttsRunCount);
+      sttsSampleCount = sampleIndex;
+
+      int cttsRunCount = 0;
+      int[] cttsFirstSample = new int[0];
+      int[] cttsOffset = new int[0];
+      sampleIndex = 0;
+      if (ctts != null) {
+        ctts.position(Atom.FULL_HEADER_SIZE);
+        int cttsEntryCount = readUnsignedIntToInt(ctts);
+        cttsFirstSample = new int[cttsEntryCount];
+        cttsOffset = new int[cttsEntryCount];
+        for (int i = 0; i < cttsEntryCount && ctts.remaining() >= 8; i++) {
+          int count = readUnsignedIntToInt(ctts);
+          // The BMFF spec (ISO/IEC 14496-12) states that sample offsets should be unsigned integers
+          // in version 0 ctts boxes, however some streams violate the spec and use signed integers
+          // instead. It's safe to always decode sample offsets as signed integers here, because
+          // unsigned integers will still be parsed correctly (unless their top bit is set, which is
+          // never true in practice because sample offsets are always small).
+          int offset = ctts.getInt();
+          if (count == 0 || sampleIndex > Integer.MAX_VALUE) {
+            continue;
+          }
+          cttsFirstSample[cttsRunCount] = (int) sampleIndex;
+          cttsOffset[cttsRunCount] = offset;
+          cttsRunCount++;
+          sampleIndex += count;
+        }
+      }
+      this.cttsFirstSample = Arrays.copyOf(cttsFirstSample, cttsRunCount);
+      this.cttsOffset = Arrays.copyOf(cttsOffset, cttsRunCount);
+      cttsSampleCount = sampleIndex;
+    }
+
+    /** Returns the number of samples covered by the stts entries. */
+    public long getDecodeSampleCount() {
+      return sttsSampleCount;
+    }
+
+    /** Returns the number of samples covered by the ctts entries. */
+    public long getCompositionSampleCount() {
+      return cttsSampleCount;
+    }
+
+    public int getSampleSize(int index) {
+      return (int) sizes.get(index);
+    }
+
+    /**
+     * Returns the decode time of a sample, in track timescale units. Samples past the end of the
+     * stts keep its last delta.
+     */
+    public long getDecodeTime(int index) {
+      int run = findRun(sttsFirstSample, index);
+      return sttsFirstTime[run] + (long) (index - sttsFirstSample[run]) * sttsDelta[run];
+    }
+
+    /** Returns the ctts offset of a sample. Samples past the end of the ctts keep its last offset. */
+    public int getCompositionOffset(int index) {
+      return cttsOffset.length == 0 ? 0 : cttsOffset[findRun(cttsFirstSample, index)];
+    }
+
+    @Override
+    public long sizeInBytes() {
+      // The sizes are shared with the samples.
+      return 16L * sttsFirstSample.length + 8L * cttsFirstSample.length;
+    }
+
+    @Override
+    public void fill(
+            CompactSamples samples,
+            int from,
+            int to,
+            int[] runFirstSample,
+            int[] runFirstChunk,
+            int[] runSamplesPerChunk,
+            PackedInts chunkOffsets) {
+      int sttsRun = findRun(sttsFirstSample, from);
+      int nextSttsRunSample = nextRunSample(sttsFirstSample, sttsRun);
+      long decodeTime = getDecodeTime(from);
+      int cttsRun = cttsOffset.length == 0 ? C.INDEX_UNSET : findRun(cttsFirstSample, from);
+      int nextCttsRunSample =
+              cttsRun == C.INDEX_UNSET ? Integer.MAX_VALUE : nextRunSample(cttsFirstSample, cttsRun);
+
+      int chunkRun = findRun(runFirstSample, from);
+      int samplesPerChunk = runSamplesPerChunk[chunkRun];
+      int chunkInRun = (from - runFirstSample[chunkRun]) / samplesPerChunk;
+      int chunk = runFirstChunk[chunkRun] + chunkInRun;
+      int nextChunkSample = runFirstSample[chunkRun] + (chunkInRun + 1) * samplesPerChunk;
+      long offset = chunkOffsets.get(chunk);
+      for (int i = nextChunkSample - samplesPerChunk; i < from; i++) {
+        offset += sizes.get(i);
+      }
+
+      for (int i = from; i < to; i++) {
+        if (i == nextChunkSample) {
+          if (i == nextRunSample(runFirstSample, chunkRun)) {
+            chunkRun++;
+            samplesPerChunk = runSamplesPerChunk[chunkRun];
+            chunk = runFirstChunk[chunkRun];
+          } else {
+            chunk++;
+          }
+          nextChunkSample = i + samplesPerChunk;
+          offset = chunkOffsets.get(chunk);
+        }
+        if (i == nextSttsRunSample) {
+          sttsRun++;
+          nextSttsRunSample = nextRunSample(sttsFirstSample, sttsRun);
+        }
+        if (i == nextCttsRunSample) {
+          cttsRun++;
+          nextCttsRunSample = nextRunSample(cttsFirstSample, cttsRun);
+        }
+        int size = (int) sizes.get(i);
+        int delta = sttsDelta[sttsRun];
+        samples.setSample(
+                i, offset, decodeTime, size, delta, cttsRun == C.INDEX_UNSET ? 0 : cttsOffset[cttsRun]);
+        offset += size;
+        decodeTime += delta;
+      }
+    }
+
+    private static int nextRunSample(int[] firstSample, int run) {
+      return run + 1 < firstSample.length ? firstSample[run + 1] : Integer.MAX_VALUE;
+    }
+
+    /** Returns the last run whose first sample is at or before {@code index}, or 0. */
+    private static int findRun(int[] firstSample, int index) {
+      return max(0, Util.binarySearchFloor(firstSample, index, true, false));
+    }
+  }
+
   /** Holds data parsed from a tkhd atom. */
   private static final class TkhdData {
 
@@ -2140,8 +2668,47 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     /** Returns the size of each sample if fixed, or {@link C#LENGTH_UNSET} otherwise. */
     int getFixedSampleSize();
 
-    /** Returns the size for the next sample. */
-    int readNextSampleSize();
+    /** Returns the size of the sample at {@code index}, without moving the box's read position. */
+    int getSampleSize(int index);
+  }
+
+  /** Position of the first sample size entry in both stsz and stz2 boxes. */
+  /* package */ static final int SAMPLE_SIZES_POSITION = Atom.FULL_HEADER_SIZE + 8;
+
+  /** Position of the first entry in stco, co64, stts, ctts and stss boxes. */
+  /* package */ static final int TABLE_ENTRIES_POSITION = Atom.FULL_HEADER_SIZE + 4;
+
+  /**
+   * Returns the position of the first entry of a per-sample table box of type {@code atomType},
+   * or {@link C#INDEX_UNSET} if {@code atomType} is not such a box. The entries of these boxes
+   * may be left in the file, in {@link Atom.LeafAtom#region}.
+   */
+  /* package */ static int getTableEntriesPosition(int atomType) {
+    switch (atomType) {
+      case Atom.TYPE_stsz:
+      case Atom.TYPE_stz2:
+        return SAMPLE_SIZES_POSITION;
+      case Atom.TYPE_stco:
+      case Atom.TYPE_co64:
+      case Atom.TYPE_stts:
+      case Atom.TYPE_ctts:
+      case Atom.TYPE_stss:
+        return TABLE_ENTRIES_POSITION;
+      default:
+        return C.INDEX_UNSET;
+    }
+  }
+
+  /**
+   * Returns the bytes of a per-sample table box, from the file if the box was left there. The
+   * buffer has its own read position, at the start of the box.
+   */
+  private static ByteBuffer getEntries(Atom.LeafAtom tableAtom) {
+    if (tableAtom.region != null) {
+      return tableAtom.region.duplicate();
+    }
+    ParsableByteArray data = tableAtom.data;
+    return ByteBuffer.wrap(data.getData(), 0, data.limit());
   }
 
   /** An stsz sample size box. */
@@ -2149,10 +2716,11 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
 
     private final int fixedSampleSize;
     private final int sampleCount;
-    private final ParsableByteArray data;
+    private final ByteBuffer sizes;
 
     public StszSampleSizeBox(Atom.LeafAtom stszAtom, Format trackFormat) {
-      data = stszAtom.data;
+      ParsableByteArray data = stszAtom.data;
+      sizes = getEntries(stszAtom);
       data.setPosition(Atom.FULL_HEADER_SIZE);
       int fixedSampleSize = data.readUnsignedIntToInt();
       if (MimeTypes.AUDIO_RAW.equals(trackFormat.sampleMimeType)) {
@@ -2185,24 +2753,28 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     }
 
     @Override
-    public int readNextSampleSize() {
-      return fixedSampleSize == C.LENGTH_UNSET ? data.readUnsignedIntToInt() : fixedSampleSize;
+    public int getSampleSize(int index) {
+      if (fixedSampleSize != C.LENGTH_UNSET) {
+        return fixedSampleSize;
+      }
+      int size = sizes.getInt(SAMPLE_SIZES_POSITION + 4 * index);
+      if (size < 0) {
+        throw new IllegalStateException("Top bit not zero: " + size);
+      }
+      return size;
     }
   }
 
   /** An stz2 sample size box. */
   /* package */ static final class Stz2SampleSizeBox implements SampleSizeBox {
 
-    private final ParsableByteArray data;
+    private final ByteBuffer sizes;
     private final int sampleCount;
     private final int fieldSize; // Can be 4, 8, or 16.
 
-    // Used only if fieldSize == 4.
-    private int sampleIndex;
-    private int currentByte;
-
     public Stz2SampleSizeBox(Atom.LeafAtom stz2Atom) {
-      data = stz2Atom.data;
+      ParsableByteArray data = stz2Atom.data;
+      sizes = getEntries(stz2Atom);
       data.setPosition(Atom.FULL_HEADER_SIZE);
       fieldSize = data.readUnsignedIntToInt() & 0x000000FF;
       sampleCount = data.readUnsignedIntToInt();
@@ -2219,22 +2791,15 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     }
 
     @Override
-    public int readNextSampleSize() {
+    public int getSampleSize(int index) {
       if (fieldSize == 8) {
-        return data.readUnsignedByte();
+        return sizes.get(SAMPLE_SIZES_POSITION + index) & 0xFF;
       } else if (fieldSize == 16) {
-        return data.readUnsignedShort();
+        return sizes.getShort(SAMPLE_SIZES_POSITION + 2 * index) & 0xFFFF;
       } else {
-        // fieldSize == 4.
-        if ((sampleIndex++ % 2) == 0) {
-          // Read the next byte into our cached byte when we are reading the upper bits.
-          currentByte = data.readUnsignedByte();
-          // Read the upper bits from the byte and shift them to the lower 4 bits.
-          return (currentByte & 0xF0) >> 4;
-        } else {
-          // Mask out the upper 4 bits of the last byte we read.
-          return currentByte & 0x0F;
-        }
+        // fieldSize == 4. Even samples are in the upper bits of a byte, odd ones in the lower.
+        int packed = sizes.get(SAMPLE_SIZES_POSITION + index / 2) & 0xFF;
+        return (index % 2) == 0 ? packed >> 4 : packed & 0x0F;
       }
     }
   }
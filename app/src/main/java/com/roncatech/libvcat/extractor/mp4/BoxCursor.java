@@ -0,0 +1,149 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import com.google.android.exoplayer2.util.ParsableByteArray;
+
+/**
+ * Flyweight cursor over the boxes in a range of a {@link ParsableByteArray}, such as the children
+ * in an atom payload. One instance walks any number of boxes and nesting levels without creating
+ * an object per box.
+ *
+ * <p>The cursor reads box headers with absolute positions and leaves the position of the array
+ * alone, except in {@link #moveToPayload()}. Boxes using a 64-bit size are not supported.
+ *
+ * <p>It is used for moof, udta, meta and sample entry children, which are read whole into one
+ * array. The moov still builds a tree of atoms: its large sample tables are left in the mapped
+ * file rather than read into an array, and each trak is parsed as soon as it has been read.
+ */
+/* package */ final class BoxCursor {
+
+  private ParsableByteArray data;
+  private int limit;
+  private int boxPosition;
+  private int boxSize;
+  private int boxType;
+  private boolean malformed;
+
+  /** Creates a cursor over the boxes between {@code start} and {@code limit} in {@code data}. */
+  public BoxCursor(ParsableByteArray data, int start, int limit) {
+    this.data = data;
+    reset(data, start, limit);
+  }
+
+  /** Moves the cursor before the first box between {@code start} and {@code limit}. */
+  public void reset(ParsableByteArray data, int start, int limit) {
+    this.data = data;
+    this.limit = limit;
+    boxPosition = start;
+    boxSize = 0;
+    boxType = 0;
+    malformed = false;
+  }
+
+  /**
+   * Moves the cursor before the first child of the current box, whose children start {@code
+   * headerSize} bytes into it.
+   */
+  public void enter(int headerSize) {
+    reset(data, boxPosition + headerSize, boxPosition + boxSize);
+  }
+
+  /**
+   * Moves to the next box. Returns false at the end of the range, or if the next box header is
+   * malformed, in which case {@link #isMalformed()} returns true.
+   */
+  public boolean next() {
+    int position = boxPosition + boxSize;
+    if (malformed || limit - position < Atom.HEADER_SIZE) {
+      return false;
+    }
+    byte[] bytes = data.getData();
+    int size = readInt(bytes, position);
+    if (size < Atom.HEADER_SIZE) {
+      malformed = true;
+      return false;
+    }
+    boxPosition = position;
+    boxSize = size;
+    boxType = readInt(bytes, position + 4);
+    return true;
+  }
+
+  /** Moves to the next box of the given type. Returns false if there is none. */
+  public boolean nextOfType(int type) {
+    while (next()) {
+      if (boxType == type) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether the walk stopped at a box header with an invalid size. */
+  public boolean isMalformed() {
+    return malformed;
+  }
+
+  /** Returns the type of the current box. */
+  public int getType() {
+    return boxType;
+  }
+
+  /** Returns the size of the current box, including its header. */
+  public int getSize() {
+    return boxSize;
+  }
+
+  /** Returns the position of the current box header in the array. */
+  public int getPosition() {
+    return boxPosition;
+  }
+
+  /** Returns the position of the first byte after the current box. */
+  public int getEndPosition() {
+    return boxPosition + boxSize;
+  }
+
+  /** Sets the position of the array to the first byte after the current box header. */
+  public void moveToPayload() {
+    data.setPosition(boxPosition + Atom.HEADER_SIZE);
+  }
+
+  private static int readInt(byte[] bytes, int position) {
+    return (bytes[position] & 0xFF) << 24
+        | (bytes[position + 1] & 0xFF) << 16
+        | (bytes[position + 2] & 0xFF) << 8
+        | (bytes[position + 3] & 0xFF);
+  }
+}
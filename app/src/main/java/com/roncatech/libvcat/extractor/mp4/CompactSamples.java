@@ -0,0 +1,402 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static com.google.android.exoplayer2.util.Util.castNonNull;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Util;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Per-sample data of an stbl, kept close to the box layout instead of expanded into one entry per
+ * sample for every field.
+ *
+ * <ul>
+ *   <li>Sizes, decode time deltas (stts) and composition offsets (ctts) are {@link PackedInts};
+ *       constant streams take no per-sample storage.
+ *   <li>Sample offsets come from chunk offsets (stco/co64) and samples-per-chunk runs (stsc).
+ *   <li>Every {@link #ANCHOR_INTERVAL}th sample stores its absolute offset and decode time, so a
+ *       lookup sums at most {@code ANCHOR_INTERVAL - 1} sizes or deltas.
+ *   <li>Sync samples (stss) are a sorted array of sample indices, so keyframe lookups are binary
+ *       searches whatever the GOP length; null means every sample is a sync sample.
+ * </ul>
+ *
+ * <p>Sizes, offsets and timestamps may be filled lazily by a {@link Source}, one window of {@link
+ * #WINDOW_SIZE} samples at a time, the first time a sample in the window is looked up. Filling is
+ * synchronized, so lookups are safe from the loading and playback threads alike.
+ */
+/* package */ final class CompactSamples {
+
+  /** Samples between stored anchors. Must be a power of two. */
+  public static final int ANCHOR_INTERVAL = 32;
+
+  private static final int ANCHOR_SHIFT = 5;
+
+  /** Samples filled at a time by a {@link Source}. A multiple of {@link #ANCHOR_INTERVAL}. */
+  public static final int WINDOW_SIZE = 4096;
+
+  private static final int WINDOW_SHIFT = 12;
+
+  /** Fills sample data on demand. */
+  public interface Source {
+
+    /**
+     * Calls {@link #setSample} for every sample in {@code [from, to)}, given the chunk layout of
+     * {@code samples}.
+     */
+    void fill(
+        CompactSamples samples,
+        int from,
+        int to,
+        int[] runFirstSample,
+        int[] runFirstChunk,
+        int[] runSamplesPerChunk,
+        PackedInts chunkOffsets);
+
+    /**
+     * Bytes of heap held by this source that the samples don't share, excluding object headers.
+     */
+    long sizeInBytes();
+  }
+
+  /** Number of samples. */
+  public final int sampleCount;
+
+  private final PackedInts sizes;
+  private final PackedInts chunkOffsets;
+  // Samples-per-chunk runs, one entry per stsc entry that has samples.
+  private final int[] runFirstSample;
+  private final int[] runFirstChunk;
+  private final int[] runSamplesPerChunk;
+  private final long[] offsetAnchors;
+  private final PackedInts timeDeltas;
+  private final long[] timeAnchors;
+  @Nullable private final PackedInts compositionOffsets;
+  @Nullable private final int[] syncSampleIndices;
+
+  @Nullable private Source source;
+  @Nullable private final BitSet filledWindows;
+  private int unfilledWindowCount;
+  private volatile boolean filled;
+
+  /* package */ CompactSamples(
+      int sampleCount,
+      PackedInts sizes,
+      PackedInts chunkOffsets,
+      int[] runFirstSample,
+      int[] runFirstChunk,
+      int[] runSamplesPerChunk,
+      long[] offsetAnchors,
+      PackedInts timeDeltas,
+      long[] timeAnchors,
+      @Nullable PackedInts compositionOffsets,
+      @Nullable int[] syncSampleIndices,
+      @Nullable Source source) {
+    this.sampleCount = sampleCount;
+    this.sizes = sizes;
+    this.chunkOffsets = chunkOffsets;
+    this.runFirstSample = runFirstSample;
+    this.runFirstChunk = runFirstChunk;
+    this.runSamplesPerChunk = runSamplesPerChunk;
+    this.offsetAnchors = offsetAnchors;
+    this.timeDeltas = timeDeltas;
+    this.timeAnchors = timeAnchors;
+    this.compositionOffsets = compositionOffsets;
+    this.syncSampleIndices = syncSampleIndices;
+    this.source = source;
+    if (source != null) {
+      unfilledWindowCount = (sampleCount + WINDOW_SIZE - 1) >>> WINDOW_SHIFT;
+      filledWindows = new BitSet(unfilledWindowCount);
+    } else {
+      filledWindows = null;
+      filled = true;
+    }
+  }
+
+  /** Reads samples written by {@link #writeTo}. */
+  public static CompactSamples readFrom(ByteBuffer buffer) {
+    int sampleCount = buffer.getInt();
+    PackedInts sizes = PackedInts.readFrom(buffer);
+    PackedInts chunkOffsets = PackedInts.readFrom(buffer);
+    int[] runFirstSample = MoovIndexCache.readIntArray(buffer);
+    int[] runFirstChunk = MoovIndexCache.readIntArray(buffer);
+    int[] runSamplesPerChunk = MoovIndexCache.readIntArray(buffer);
+    long[] offsetAnchors = MoovIndexCache.readLongArray(buffer);
+    PackedInts timeDeltas = PackedInts.readFrom(buffer);
+    long[] timeAnchors = MoovIndexCache.readLongArray(buffer);
+    @Nullable PackedInts compositionOffsets = buffer.get() != 0 ? PackedInts.readFrom(buffer) : null;
+    @Nullable int[] syncSampleIndices =
+        buffer.get() != 0 ? MoovIndexCache.readIntArray(buffer) : null;
+    return new CompactSamples(
+        sampleCount,
+        sizes,
+        chunkOffsets,
+        runFirstSample,
+        runFirstChunk,
+        runSamplesPerChunk,
+        offsetAnchors,
+        timeDeltas,
+        timeAnchors,
+        compositionOffsets,
+        syncSampleIndices,
+        /* source= */ null);
+  }
+
+  /** Writes the samples, filling any windows that have not been filled yet. */
+  public void writeTo(DataOutputStream output) throws IOException {
+    for (int index = 0; index < sampleCount; index += WINDOW_SIZE) {
+      ensureFilled(index);
+    }
+    output.writeInt(sampleCount);
+    sizes.writeTo(output);
+    chunkOffsets.writeTo(output);
+    MoovIndexCache.writeIntArray(output, runFirstSample);
+    MoovIndexCache.writeIntArray(output, runFirstChunk);
+    MoovIndexCache.writeIntArray(output, runSamplesPerChunk);
+    MoovIndexCache.writeLongArray(output, offsetAnchors);
+    timeDeltas.writeTo(output);
+    MoovIndexCache.writeLongArray(output, timeAnchors);
+    output.writeBoolean(compositionOffsets != null);
+    if (compositionOffsets != null) {
+      compositionOffsets.writeTo(output);
+    }
+    output.writeBoolean(syncSampleIndices != null);
+    if (syncSampleIndices != null) {
+      MoovIndexCache.writeIntArray(output, syncSampleIndices);
+    }
+  }
+
+  /** Returns the number of anchors needed for {@code sampleCount} samples. */
+  public static int anchorCount(int sampleCount) {
+    return (sampleCount + ANCHOR_INTERVAL - 1) >>> ANCHOR_SHIFT;
+  }
+
+  public int getSize(int index) {
+    ensureFilled(index);
+    return (int) sizes.get(index);
+  }
+
+  public long getOffset(int index) {
+    ensureFilled(index);
+    int run = findRun(index);
+    int samplesPerChunk = runSamplesPerChunk[run];
+    int chunkInRun = (index - runFirstSample[run]) / samplesPerChunk;
+    int chunkFirstSample = runFirstSample[run] + chunkInRun * samplesPerChunk;
+    int anchorIndex = index >>> ANCHOR_SHIFT;
+    int anchorSample = anchorIndex << ANCHOR_SHIFT;
+    if (anchorSample > chunkFirstSample) {
+      return offsetAnchors[anchorIndex] + sizes.sum(anchorSample, index);
+    }
+    return chunkOffsets.get(runFirstChunk[run] + chunkInRun)
+        + sizes.sum(chunkFirstSample, index);
+  }
+
+  /** Returns the composition timestamp of a sample in track timescale units. */
+  public long getTimestamp(int index) {
+    ensureFilled(index);
+    int anchorIndex = index >>> ANCHOR_SHIFT;
+    long decodeTime =
+        timeAnchors[anchorIndex] + timeDeltas.sum(anchorIndex << ANCHOR_SHIFT, index);
+    return compositionOffsets == null ? decodeTime : decodeTime + compositionOffsets.get(index);
+  }
+
+  public boolean isSyncSample(int index) {
+    return syncSampleIndices == null || Arrays.binarySearch(syncSampleIndices, index) >= 0;
+  }
+
+  /** Returns the last sync sample at or before {@code index}, or {@link C#INDEX_UNSET}. */
+  public int getSyncSampleAtOrBefore(int index) {
+    if (syncSampleIndices == null) {
+      return index >= 0 ? index : C.INDEX_UNSET;
+    }
+    int i =
+        Util.binarySearchFloor(
+            syncSampleIndices, index, /* inclusive= */ true, /* stayInBounds= */ false);
+    return i >= 0 ? syncSampleIndices[i] : C.INDEX_UNSET;
+  }
+
+  /** Returns the first sync sample at or after {@code index}, or {@link C#INDEX_UNSET}. */
+  public int getSyncSampleAtOrAfter(int index) {
+    if (syncSampleIndices == null) {
+      return index < sampleCount ? index : C.INDEX_UNSET;
+    }
+    int i =
+        Util.binarySearchCeil(
+            syncSampleIndices, index, /* inclusive= */ true, /* stayInBounds= */ false);
+    return i < syncSampleIndices.length ? syncSampleIndices[i] : C.INDEX_UNSET;
+  }
+
+  /**
+   * Equivalent of {@link com.google.android.exoplayer2.util.Util#binarySearchFloor(long[], long,
+   * boolean, boolean)} over {@link #getTimestamp(int)}, probing the same indices so that results
+   * match on the not-quite-sorted timestamps of reordered video.
+   */
+  public int binarySearchFloor(long value, boolean inclusive, boolean stayInBounds) {
+    int index = binarySearch(value);
+    if (index < 0) {
+      index = -(index + 2);
+    } else {
+      while (--index >= 0 && getTimestamp(index) == value) {}
+      if (inclusive) {
+        index++;
+      }
+    }
+    return stayInBounds ? Math.max(0, index) : index;
+  }
+
+  /** Counterpart of {@link #binarySearchFloor} for {@code Util.binarySearchCeil}. */
+  public int binarySearchCeil(long value, boolean inclusive, boolean stayInBounds) {
+    int index = binarySearch(value);
+    if (index < 0) {
+      index = ~index;
+    } else {
+      while (++index < sampleCount && getTimestamp(index) == value) {}
+      if (inclusive) {
+        index--;
+      }
+    }
+    return stayInBounds ? Math.min(sampleCount - 1, index) : index;
+  }
+
+  /**
+   * Stores the data of one sample. Called by a {@link Source}, in ascending order within a window.
+   *
+   * @param offset Offset of the sample in bytes.
+   * @param decodeTime Decode time of the sample in track timescale units.
+   * @param size Size of the sample in bytes.
+   * @param timeDelta Decode time from this sample to the next.
+   * @param compositionOffset Composition offset (ctts) of the sample.
+   */
+  public void setSample(
+      int index, long offset, long decodeTime, int size, long timeDelta, long compositionOffset) {
+    if ((index & (ANCHOR_INTERVAL - 1)) == 0) {
+      offsetAnchors[index >>> ANCHOR_SHIFT] = offset;
+      timeAnchors[index >>> ANCHOR_SHIFT] = decodeTime;
+    }
+    sizes.set(index, size);
+    timeDeltas.set(index, timeDelta);
+    if (compositionOffsets != null) {
+      compositionOffsets.set(index, compositionOffset);
+    }
+  }
+
+  /** Returns whether every window has been filled. */
+  public boolean isFilled() {
+    return filled;
+  }
+
+  /**
+   * Bytes of heap held for the samples, excluding object headers. Until every window is filled,
+   * this includes the {@link Source} the samples are filled from.
+   */
+  public long sizeInBytes() {
+    @Nullable Source source = this.source;
+    return (source == null ? 0 : source.sizeInBytes())
+        + sizes.sizeInBytes()
+        + chunkOffsets.sizeInBytes()
+        + 12L * runFirstSample.length
+        + 8L * offsetAnchors.length
+        + timeDeltas.sizeInBytes()
+        + 8L * timeAnchors.length
+        + (compositionOffsets == null ? 0 : compositionOffsets.sizeInBytes())
+        + (syncSampleIndices == null ? 0 : 4L * syncSampleIndices.length);
+  }
+
+  private void ensureFilled(int index) {
+    if (filled) {
+      return;
+    }
+    synchronized (this) {
+      BitSet filledWindows = castNonNull(this.filledWindows);
+      int window = index >>> WINDOW_SHIFT;
+      if (filledWindows.get(window)) {
+        return;
+      }
+      int from = window << WINDOW_SHIFT;
+      castNonNull(source)
+          .fill(
+              this,
+              from,
+              Math.min(sampleCount, from + WINDOW_SIZE),
+              runFirstSample,
+              runFirstChunk,
+              runSamplesPerChunk,
+              chunkOffsets);
+      filledWindows.set(window);
+      if (--unfilledWindowCount == 0) {
+        // Let go of the boxes.
+        source = null;
+        filled = true;
+      }
+    }
+  }
+
+  // Same probing as java.util.Arrays.binarySearch.
+  private int binarySearch(long key) {
+    int low = 0;
+    int high = sampleCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midVal = getTimestamp(mid);
+      if (midVal < key) {
+        low = mid + 1;
+      } else if (midVal > key) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private int findRun(int sampleIndex) {
+    int[] runFirstSample = this.runFirstSample;
+    int low = 0;
+    int high = runFirstSample.length - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (runFirstSample[mid] <= sampleIndex) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+}
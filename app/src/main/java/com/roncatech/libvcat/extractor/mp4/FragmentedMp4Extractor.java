@@ -26,6 +26,7 @@ import android.util.Pair;
 import android.util.SparseArray;
 import androidx.annotation.IntDef;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.ParserException;
@@ -52,6 +53,7 @@ import com.google.android.exoplayer2.util.NalUnitUtil;
 import com.google.android.exoplayer2.util.ParsableByteArray;
 import com.google.android.exoplayer2.util.TimestampAdjuster;
 import com.google.android.exoplayer2.util.Util;
+import java.io.EOFException;
 import java.io.IOException;
 import java.lang.annotation.Documented;
 import java.lang.annotation.Retention;
@@ -161,6 +163,7 @@ public class FragmentedMp4Extractor implements Extractor {
   // Parser state.
   private final ParsableByteArray atomHeader;
   private final ArrayDeque<Atom.ContainerAtom> containerAtoms;
+  private final AtomBufferPool atomBuffers;
   private final ArrayDeque<MetadataSampleInfo> pendingMetadataSampleInfos;
   @Nullable private final TrackOutput additionalEmsgTrackOutput;
 
@@ -178,6 +181,7 @@ public class FragmentedMp4Extractor implements Extractor {
   @Nullable private TrackBundle currentTrackBundle;
   private int sampleSize;
   private int sampleBytesWritten;
+  private int sampleBulkBytesRead;
   private int sampleCurrentNalBytesRemaining;
   private boolean processSeiNalUnitPayload;
 
@@ -272,6 +276,7 @@ public class FragmentedMp4Extractor implements Extractor {
     scratchBytes = new byte[16];
     scratch = new ParsableByteArray(scratchBytes);
     containerAtoms = new ArrayDeque<>();
+    atomBuffers = new AtomBufferPool();
     pendingMetadataSampleInfos = new ArrayDeque<>();
     trackBundles = new SparseArray<>();
     durationUs = C.TIME_UNSET;
@@ -324,12 +329,25 @@ public class FragmentedMp4Extractor implements Extractor {
     pendingMetadataSampleBytes = 0;
     pendingSeekTimeUs = timeUs;
     containerAtoms.clear();
+    atomBuffers.recycleAll();
     enterReadingAtomHeaderState();
   }
 
   @Override
   public void release() {
-    // Do nothing
+    Log.d(
+        TAG,
+        "Atom buffers: "
+            + atomBuffers.getAllocationCount()
+            + " allocated, "
+            + atomBuffers.getReuseCount()
+            + " reused");
+  }
+
+  /** Returns the pool that leaf atoms outside the moov atom are read into. */
+  @VisibleForTesting
+  /* package */ AtomBufferPool getAtomBuffers() {
+    return atomBuffers;
   }
 
   @Override
@@ -422,7 +440,17 @@ public class FragmentedMp4Extractor implements Extractor {
       return true;
     }
 
-    if (shouldParseContainerAtom(atomType)) {
+    if (atomType == Atom.TYPE_moof) {
+      // Read whole, so that its boxes can be walked in place instead of as a tree of atoms.
+      if (atomSize > Integer.MAX_VALUE) {
+        throw ParserException.createForUnsupportedContainerFeature(
+            "Moof atom with length > 2147483647 (unsupported).");
+      }
+      ParsableByteArray atomData = atomBuffers.acquire((int) atomSize);
+      System.arraycopy(atomHeader.getData(), 0, atomData.getData(), 0, atomHeaderBytesRead);
+      this.atomData = atomData;
+      parserState = STATE_READING_ATOM_PAYLOAD;
+    } else if (shouldParseContainerAtom(atomType)) {
       long endPosition = input.getPosition() + atomSize - Atom.HEADER_SIZE;
       containerAtoms.push(new Atom.ContainerAtom(atomType, endPosition));
       if (atomSize == atomHeaderBytesRead) {
@@ -440,7 +468,7 @@ public class FragmentedMp4Extractor implements Extractor {
         throw ParserException.createForUnsupportedContainerFeature(
             "Leaf atom with length > 2147483647 (unsupported).");
       }
-      ParsableByteArray atomData = new ParsableByteArray((int) atomSize);
+      ParsableByteArray atomData = newAtomData((int) atomSize);
       System.arraycopy(atomHeader.getData(), 0, atomData.getData(), 0, Atom.HEADER_SIZE);
       this.atomData = atomData;
       parserState = STATE_READING_ATOM_PAYLOAD;
@@ -459,7 +487,10 @@ public class FragmentedMp4Extractor implements Extractor {
   private void readAtomPayload(ExtractorInput input) throws IOException {
     int atomPayloadSize = (int) atomSize - atomHeaderBytesRead;
     @Nullable ParsableByteArray atomData = this.atomData;
-    if (atomData != null) {
+    if (atomData != null && atomType == Atom.TYPE_moof) {
+      input.readFully(atomData.getData(), atomHeaderBytesRead, atomPayloadSize);
+      onMoofAtomRead(atomData, /* childrenPosition= */ atomHeaderBytesRead);
+    } else if (atomData != null) {
       input.readFully(atomData.getData(), Atom.HEADER_SIZE, atomPayloadSize);
       onLeafAtomRead(new Atom.LeafAtom(atomType, atomData), input.getPosition());
     } else {
@@ -472,9 +503,24 @@ public class FragmentedMp4Extractor implements Extractor {
     while (!containerAtoms.isEmpty() && containerAtoms.peek().endPosition == atomEndPosition) {
       onContainerAtomRead(containerAtoms.pop());
     }
+    if (containerAtoms.isEmpty()) {
+      // The top-level atom has been processed and nothing references its leaf atoms anymore.
+      atomBuffers.recycleAll();
+    }
     enterReadingAtomHeaderState();
   }
 
+  /**
+   * Returns a buffer for a leaf atom of {@code size} bytes. Atoms inside moov stay referenced by
+   * the parsed tracks, so they get a buffer of their own rather than one from the pool.
+   */
+  private ParsableByteArray newAtomData(int size) {
+    @Nullable Atom.ContainerAtom topLevelAtom = containerAtoms.peekLast();
+    return topLevelAtom != null && topLevelAtom.type == Atom.TYPE_moov
+        ? new ParsableByteArray(size)
+        : atomBuffers.acquire(size);
+  }
+
   private void onLeafAtomRead(Atom.LeafAtom leaf, long inputPosition) throws ParserException {
     if (!containerAtoms.isEmpty()) {
       containerAtoms.peek().add(leaf);
@@ -491,8 +537,6 @@ public class FragmentedMp4Extractor implements Extractor {
   private void onContainerAtomRead(Atom.ContainerAtom container) throws ParserException {
     if (container.type == Atom.TYPE_moov) {
       onMoovContainerAtomRead(container);
-    } else if (container.type == Atom.TYPE_moof) {
-      onMoofContainerAtomRead(container);
     } else if (!containerAtoms.isEmpty()) {
       containerAtoms.peek().add(container);
     }
@@ -571,10 +615,15 @@ public class FragmentedMp4Extractor implements Extractor {
     return checkNotNull(defaultSampleValuesArray.get(trackId));
   }
 
-  private void onMoofContainerAtomRead(Atom.ContainerAtom moof) throws ParserException {
-    parseMoof(moof, trackBundles, sideloadedTrack != null, flags, scratchBytes);
+  /**
+   * Handles a moof atom that has been read whole into {@code moof}, whose children start at {@code
+   * childrenPosition}.
+   */
+  private void onMoofAtomRead(ParsableByteArray moof, int childrenPosition)
+      throws ParserException {
+    parseMoof(moof, childrenPosition, trackBundles, sideloadedTrack != null, flags, scratchBytes);
 
-    @Nullable DrmInitData drmInitData = getDrmInitDataFromAtoms(moof.leafChildren);
+    @Nullable DrmInitData drmInitData = getDrmInitDataFromMoof(moof, childrenPosition);
     if (drmInitData != null) {
       int trackCount = trackBundles.size();
       for (int i = 0; i < trackCount; i++) {
@@ -733,33 +782,94 @@ public class FragmentedMp4Extractor implements Extractor {
     return version == 0 ? mehd.readUnsignedInt() : mehd.readUnsignedLongToLong();
   }
 
+  /**
+   * Parses the traf atoms in a moof atom (defined in 14496-12) in place, with one {@link BoxCursor}
+   * per nesting level.
+   */
   private static void parseMoof(
-      Atom.ContainerAtom moof,
+      ParsableByteArray moof,
+      int childrenPosition,
       SparseArray<TrackBundle> trackBundles,
       boolean haveSideloadedTrack,
       @Flags int flags,
       byte[] extendedTypeScratch)
       throws ParserException {
-    int moofContainerChildrenSize = moof.containerChildren.size();
-    for (int i = 0; i < moofContainerChildrenSize; i++) {
-      Atom.ContainerAtom child = moof.containerChildren.get(i);
+    BoxCursor children = new BoxCursor(moof, childrenPosition, moof.limit());
+    BoxCursor trafChildren = new BoxCursor(moof, /* start= */ 0, /* limit= */ 0);
+    while (children.next()) {
+      checkBoxFits(children, moof.limit());
       // TODO: Support multiple traf boxes per track in a single moof.
-      if (child.type == Atom.TYPE_traf) {
-        parseTraf(child, trackBundles, haveSideloadedTrack, flags, extendedTypeScratch);
+      if (children.getType() == Atom.TYPE_traf) {
+        parseTraf(
+            moof,
+            children.getPosition() + Atom.HEADER_SIZE,
+            children.getEndPosition(),
+            trafChildren,
+            trackBundles,
+            haveSideloadedTrack,
+            flags,
+            extendedTypeScratch);
       }
     }
+    checkWellFormed(children);
   }
 
-  /** Parses a traf atom (defined in 14496-12). */
+  /**
+   * Parses a traf atom (defined in 14496-12) whose children lie between {@code trafStart} and
+   * {@code trafEnd} in {@code moof}, walking them with {@code traf}: once to find the boxes that
+   * occur at most once, then again for each kind of box that can repeat.
+   */
   private static void parseTraf(
-      Atom.ContainerAtom traf,
+      ParsableByteArray moof,
+      int trafStart,
+      int trafEnd,
+      BoxCursor traf,
       SparseArray<TrackBundle> trackBundles,
       boolean haveSideloadedTrack,
       @Flags int flags,
       byte[] extendedTypeScratch)
       throws ParserException {
-    Atom.LeafAtom tfhd = checkNotNull(traf.getLeafAtomOfType(Atom.TYPE_tfhd));
-    @Nullable TrackBundle trackBundle = parseTfhd(tfhd.data, trackBundles, haveSideloadedTrack);
+    traf.reset(moof, trafStart, trafEnd);
+    // Positions of the first child of each type, as getLeafAtomOfType would return.
+    int tfhd = C.POSITION_UNSET;
+    int tfdt = C.POSITION_UNSET;
+    int saiz = C.POSITION_UNSET;
+    int saio = C.POSITION_UNSET;
+    int senc = C.POSITION_UNSET;
+    int sencEnd = C.POSITION_UNSET;
+    while (traf.next()) {
+      checkBoxFits(traf, trafEnd);
+      int position = traf.getPosition();
+      switch (traf.getType()) {
+        case Atom.TYPE_tfhd:
+          tfhd = tfhd == C.POSITION_UNSET ? position : tfhd;
+          break;
+        case Atom.TYPE_tfdt:
+          tfdt = tfdt == C.POSITION_UNSET ? position : tfdt;
+          break;
+        case Atom.TYPE_saiz:
+          saiz = saiz == C.POSITION_UNSET ? position : saiz;
+          break;
+        case Atom.TYPE_saio:
+          saio = saio == C.POSITION_UNSET ? position : saio;
+          break;
+        case Atom.TYPE_senc:
+          if (senc == C.POSITION_UNSET) {
+            senc = position;
+            sencEnd = traf.getEndPosition();
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    checkWellFormed(traf);
+    if (tfhd == C.POSITION_UNSET) {
+      throw ParserException.createForMalformedContainer("Missing tfhd", /* cause= */ null);
+    }
+
+    @Nullable
+    TrackBundle trackBundle = parseTfhd(moof, tfhd, trackBundles, haveSideloadedTrack);
     if (trackBundle == null) {
       return;
     }
@@ -769,64 +879,60 @@ public class FragmentedMp4Extractor implements Extractor {
     boolean fragmentDecodeTimeIncludesMoov = fragment.nextFragmentDecodeTimeIncludesMoov;
     trackBundle.resetFragmentInfo();
     trackBundle.currentlyInFragment = true;
-    @Nullable Atom.LeafAtom tfdtAtom = traf.getLeafAtomOfType(Atom.TYPE_tfdt);
-    if (tfdtAtom != null && (flags & FLAG_WORKAROUND_IGNORE_TFDT_BOX) == 0) {
-      fragment.nextFragmentDecodeTime = parseTfdt(tfdtAtom.data);
+    if (tfdt != C.POSITION_UNSET && (flags & FLAG_WORKAROUND_IGNORE_TFDT_BOX) == 0) {
+      fragment.nextFragmentDecodeTime = parseTfdt(moof, tfdt);
       fragment.nextFragmentDecodeTimeIncludesMoov = true;
     } else {
       fragment.nextFragmentDecodeTime = fragmentDecodeTime;
       fragment.nextFragmentDecodeTimeIncludesMoov = fragmentDecodeTimeIncludesMoov;
     }
 
-    parseTruns(traf, trackBundle, flags);
+    parseTruns(moof, trafStart, trafEnd, traf, trackBundle, flags);
 
     @Nullable
     TrackEncryptionBox encryptionBox =
         trackBundle.moovSampleTable.track.getSampleDescriptionEncryptionBox(
             checkNotNull(fragment.header).sampleDescriptionIndex);
 
-    @Nullable Atom.LeafAtom saiz = traf.getLeafAtomOfType(Atom.TYPE_saiz);
-    if (saiz != null) {
-      parseSaiz(checkNotNull(encryptionBox), saiz.data, fragment);
+    if (saiz != C.POSITION_UNSET) {
+      parseSaiz(checkNotNull(encryptionBox), moof, saiz, fragment);
     }
 
-    @Nullable Atom.LeafAtom saio = traf.getLeafAtomOfType(Atom.TYPE_saio);
-    if (saio != null) {
-      parseSaio(saio.data, fragment);
+    if (saio != C.POSITION_UNSET) {
+      parseSaio(moof, saio, fragment);
     }
 
-    @Nullable Atom.LeafAtom senc = traf.getLeafAtomOfType(Atom.TYPE_senc);
-    if (senc != null) {
-      parseSenc(senc.data, fragment);
+    if (senc != C.POSITION_UNSET) {
+      parseSenc(moof, senc + Atom.HEADER_SIZE, sencEnd, fragment);
     }
 
-    parseSampleGroups(traf, encryptionBox != null ? encryptionBox.schemeType : null, fragment);
+    traf.reset(moof, trafStart, trafEnd);
+    parseSampleGroups(
+        moof, traf, encryptionBox != null ? encryptionBox.schemeType : null, fragment);
 
-    int leafChildrenSize = traf.leafChildren.size();
-    for (int i = 0; i < leafChildrenSize; i++) {
-      Atom.LeafAtom atom = traf.leafChildren.get(i);
-      if (atom.type == Atom.TYPE_uuid) {
-        parseUuid(atom.data, fragment, extendedTypeScratch);
-      }
+    traf.reset(moof, trafStart, trafEnd);
+    while (traf.nextOfType(Atom.TYPE_uuid)) {
+      parseUuid(moof, traf.getPosition(), traf.getEndPosition(), fragment, extendedTypeScratch);
     }
   }
 
-  private static void parseTruns(Atom.ContainerAtom traf, TrackBundle trackBundle, @Flags int flags)
+  private static void parseTruns(
+      ParsableByteArray moof,
+      int trafStart,
+      int trafEnd,
+      BoxCursor traf,
+      TrackBundle trackBundle,
+      @Flags int flags)
       throws ParserException {
+    traf.reset(moof, trafStart, trafEnd);
     int trunCount = 0;
     int totalSampleCount = 0;
-    List<Atom.LeafAtom> leafChildren = traf.leafChildren;
-    int leafChildrenSize = leafChildren.size();
-    for (int i = 0; i < leafChildrenSize; i++) {
-      Atom.LeafAtom atom = leafChildren.get(i);
-      if (atom.type == Atom.TYPE_trun) {
-        ParsableByteArray trunData = atom.data;
-        trunData.setPosition(Atom.FULL_HEADER_SIZE);
-        int trunSampleCount = trunData.readUnsignedIntToInt();
-        if (trunSampleCount > 0) {
-          totalSampleCount += trunSampleCount;
-          trunCount++;
-        }
+    while (traf.nextOfType(Atom.TYPE_trun)) {
+      moof.setPosition(traf.getPosition() + Atom.FULL_HEADER_SIZE);
+      int trunSampleCount = moof.readUnsignedIntToInt();
+      if (trunSampleCount > 0) {
+        totalSampleCount += trunSampleCount;
+        trunCount++;
       }
     }
     trackBundle.currentTrackRunIndex = 0;
@@ -836,20 +942,34 @@ public class FragmentedMp4Extractor implements Extractor {
 
     int trunIndex = 0;
     int trunStartPosition = 0;
-    for (int i = 0; i < leafChildrenSize; i++) {
-      Atom.LeafAtom trun = leafChildren.get(i);
-      if (trun.type == Atom.TYPE_trun) {
-        trunStartPosition =
-            parseTrun(trackBundle, trunIndex++, flags, trun.data, trunStartPosition);
-      }
+    traf.reset(moof, trafStart, trafEnd);
+    while (traf.nextOfType(Atom.TYPE_trun)) {
+      trunStartPosition =
+          parseTrun(trackBundle, trunIndex++, flags, moof, traf.getPosition(), trunStartPosition);
+    }
+  }
+
+  /** Throws if the current box of {@code cursor} ends after {@code limit}. */
+  private static void checkBoxFits(BoxCursor cursor, int limit) throws ParserException {
+    if (cursor.getEndPosition() > limit) {
+      throw ParserException.createForMalformedContainer(
+          "Box extends past its parent", /* cause= */ null);
+    }
+  }
+
+  /** Throws if {@code cursor} stopped at a malformed box header. */
+  private static void checkWellFormed(BoxCursor cursor) throws ParserException {
+    if (cursor.isMalformed()) {
+      throw ParserException.createForUnsupportedContainerFeature(
+          "Atom size less than header length (unsupported).");
     }
   }
 
   private static void parseSaiz(
-          TrackEncryptionBox encryptionBox, ParsableByteArray saiz, TrackFragment out)
+      TrackEncryptionBox encryptionBox, ParsableByteArray saiz, int position, TrackFragment out)
       throws ParserException {
     int vectorSize = encryptionBox.perSampleIvSize;
-    saiz.setPosition(Atom.HEADER_SIZE);
+    saiz.setPosition(position + Atom.HEADER_SIZE);
     int fullAtom = saiz.readInt();
     int flags = Atom.parseFullAtomFlags(fullAtom);
     if ((flags & 0x01) == 1) {
@@ -889,11 +1009,13 @@ public class FragmentedMp4Extractor implements Extractor {
   /**
    * Parses a saio atom (defined in 14496-12).
    *
-   * @param saio The saio atom to decode.
+   * @param saio The data that holds the saio atom to decode.
+   * @param position The position of the saio atom in {@code saio}.
    * @param out The {@link TrackFragment} to populate with data from the saio atom.
    */
-  private static void parseSaio(ParsableByteArray saio, TrackFragment out) throws ParserException {
-    saio.setPosition(Atom.HEADER_SIZE);
+  private static void parseSaio(ParsableByteArray saio, int position, TrackFragment out)
+      throws ParserException {
+    saio.setPosition(position + Atom.HEADER_SIZE);
     int fullAtom = saio.readInt();
     int flags = Atom.parseFullAtomFlags(fullAtom);
     if ((flags & 0x01) == 1) {
@@ -917,7 +1039,8 @@ public class FragmentedMp4Extractor implements Extractor {
    * returns the {@link TrackBundle} of the corresponding {@link Track}. If the tfhd does not refer
    * to any {@link TrackBundle}, {@code null} is returned and no changes are made.
    *
-   * @param tfhd The tfhd atom to decode.
+   * @param tfhd The data that holds the tfhd atom to decode.
+   * @param position The position of the tfhd atom in {@code tfhd}.
    * @param trackBundles The track bundles, one of which corresponds to the tfhd atom being parsed.
    * @param haveSideloadedTrack Whether {@code trackBundles} contains a single bundle corresponding
    *     to a side-loaded track.
@@ -926,8 +1049,11 @@ public class FragmentedMp4Extractor implements Extractor {
    */
   @Nullable
   private static TrackBundle parseTfhd(
-      ParsableByteArray tfhd, SparseArray<TrackBundle> trackBundles, boolean haveSideloadedTrack) {
-    tfhd.setPosition(Atom.HEADER_SIZE);
+      ParsableByteArray tfhd,
+      int position,
+      SparseArray<TrackBundle> trackBundles,
+      boolean haveSideloadedTrack) {
+    tfhd.setPosition(position + Atom.HEADER_SIZE);
     int fullAtom = tfhd.readInt();
     int atomFlags = Atom.parseFullAtomFlags(fullAtom);
     int trackId = tfhd.readInt();
@@ -975,8 +1101,8 @@ public class FragmentedMp4Extractor implements Extractor {
    * @return baseMediaDecodeTime The sum of the decode durations of all earlier samples in the
    *     media, expressed in the media's timescale.
    */
-  private static long parseTfdt(ParsableByteArray tfdt) {
-    tfdt.setPosition(Atom.HEADER_SIZE);
+  private static long parseTfdt(ParsableByteArray tfdt, int position) {
+    tfdt.setPosition(position + Atom.HEADER_SIZE);
     int fullAtom = tfdt.readInt();
     int version = Atom.parseFullAtomVersion(fullAtom);
     return version == 1 ? tfdt.readUnsignedLongToLong() : tfdt.readUnsignedInt();
@@ -1009,7 +1135,8 @@ public class FragmentedMp4Extractor implements Extractor {
    *     parsed data should be placed.
    * @param index Index of the track run in the fragment.
    * @param flags Flags to allow any required workaround to be executed.
-   * @param trun The trun atom to decode.
+   * @param trun The data that holds the trun atom to decode.
+   * @param position The position of the trun atom in {@code trun}.
    * @return The starting position of samples for the next run.
    */
   private static int parseTrun(
@@ -1017,9 +1144,10 @@ public class FragmentedMp4Extractor implements Extractor {
       int index,
       @Flags int flags,
       ParsableByteArray trun,
+      int position,
       int trackRunStart)
       throws ParserException {
-    trun.setPosition(Atom.HEADER_SIZE);
+    trun.setPosition(position + Atom.HEADER_SIZE);
     int fullAtom = trun.readInt();
     int atomFlags = Atom.parseFullAtomFlags(fullAtom);
 
@@ -1108,9 +1236,9 @@ public class FragmentedMp4Extractor implements Extractor {
   }
 
   private static void parseUuid(
-      ParsableByteArray uuid, TrackFragment out, byte[] extendedTypeScratch)
+      ParsableByteArray uuid, int position, int end, TrackFragment out, byte[] extendedTypeScratch)
       throws ParserException {
-    uuid.setPosition(Atom.HEADER_SIZE);
+    uuid.setPosition(position + Atom.HEADER_SIZE);
     uuid.readBytes(extendedTypeScratch, 0, 16);
 
     // Currently this parser only supports Microsoft's PIFF SampleEncryptionBox.
@@ -1121,16 +1249,16 @@ public class FragmentedMp4Extractor implements Extractor {
     // Except for the extended type, this box is identical to a SENC box. See "Portable encoding of
     // audio-video objects: The Protected Interoperable File Format (PIFF), John A. Bocharov et al,
     // Section 5.3.2.1."
-    parseSenc(uuid, 16, out);
-  }
-
-  private static void parseSenc(ParsableByteArray senc, TrackFragment out) throws ParserException {
-    parseSenc(senc, 0, out);
+    parseSenc(uuid, position + Atom.HEADER_SIZE + 16, end, out);
   }
 
-  private static void parseSenc(ParsableByteArray senc, int offset, TrackFragment out)
+  /**
+   * Parses the fields of a senc atom, or of a PIFF sample encryption box, that start at {@code
+   * position} and end at {@code end}.
+   */
+  private static void parseSenc(ParsableByteArray senc, int position, int end, TrackFragment out)
       throws ParserException {
-    senc.setPosition(Atom.HEADER_SIZE + offset);
+    senc.setPosition(position);
     int fullAtom = senc.readInt();
     int flags = Atom.parseFullAtomFlags(fullAtom);
 
@@ -1156,35 +1284,36 @@ public class FragmentedMp4Extractor implements Extractor {
     }
 
     Arrays.fill(out.sampleHasSubsampleEncryptionTable, 0, sampleCount, subsampleEncryption);
-    out.initEncryptionData(senc.bytesLeft());
+    out.initEncryptionData(end - senc.getPosition());
     out.fillEncryptionData(senc);
   }
 
   private static void parseSampleGroups(
-          Atom.ContainerAtom traf, @Nullable String schemeType, TrackFragment out) throws ParserException {
-    // Find sbgp and sgpd boxes with grouping_type == seig.
-    @Nullable ParsableByteArray sbgp = null;
-    @Nullable ParsableByteArray sgpd = null;
-    for (int i = 0; i < traf.leafChildren.size(); i++) {
-      Atom.LeafAtom leafAtom = traf.leafChildren.get(i);
-      ParsableByteArray leafAtomData = leafAtom.data;
-      if (leafAtom.type == Atom.TYPE_sbgp) {
-        leafAtomData.setPosition(Atom.FULL_HEADER_SIZE);
-        if (leafAtomData.readInt() == SAMPLE_GROUP_TYPE_seig) {
-          sbgp = leafAtomData;
-        }
-      } else if (leafAtom.type == Atom.TYPE_sgpd) {
-        leafAtomData.setPosition(Atom.FULL_HEADER_SIZE);
-        if (leafAtomData.readInt() == SAMPLE_GROUP_TYPE_seig) {
-          sgpd = leafAtomData;
+      ParsableByteArray moof, BoxCursor traf, @Nullable String schemeType, TrackFragment out)
+      throws ParserException {
+    // Find the last sbgp and sgpd boxes with grouping_type == seig.
+    int sbgpPosition = C.POSITION_UNSET;
+    int sgpdPosition = C.POSITION_UNSET;
+    while (traf.next()) {
+      int type = traf.getType();
+      if (type == Atom.TYPE_sbgp || type == Atom.TYPE_sgpd) {
+        moof.setPosition(traf.getPosition() + Atom.FULL_HEADER_SIZE);
+        if (moof.readInt() == SAMPLE_GROUP_TYPE_seig) {
+          if (type == Atom.TYPE_sbgp) {
+            sbgpPosition = traf.getPosition();
+          } else {
+            sgpdPosition = traf.getPosition();
+          }
         }
       }
     }
-    if (sbgp == null || sgpd == null) {
+    if (sbgpPosition == C.POSITION_UNSET || sgpdPosition == C.POSITION_UNSET) {
       return;
     }
+    ParsableByteArray sbgp = moof;
+    ParsableByteArray sgpd = moof;
 
-    sbgp.setPosition(Atom.HEADER_SIZE);
+    sbgp.setPosition(sbgpPosition + Atom.HEADER_SIZE);
     int sbgpVersion = Atom.parseFullAtomVersion(sbgp.readInt());
     sbgp.skipBytes(4); // grouping_type == seig.
     if (sbgpVersion == 1) {
@@ -1195,7 +1324,7 @@ public class FragmentedMp4Extractor implements Extractor {
           "Entry count in sbgp != 1 (unsupported).");
     }
 
-    sgpd.setPosition(Atom.HEADER_SIZE);
+    sgpd.setPosition(sgpdPosition + Atom.HEADER_SIZE);
     int sgpdVersion = Atom.parseFullAtomVersion(sgpd.readInt());
     sgpd.skipBytes(4); // grouping_type == seig.
     if (sgpdVersion == 1) {
@@ -1408,6 +1537,7 @@ public class FragmentedMp4Extractor implements Extractor {
       sampleSize += sampleBytesWritten;
       parserState = STATE_READING_SAMPLE_CONTINUE;
       sampleCurrentNalBytesRemaining = 0;
+      sampleBulkBytesRead = 0;
     }
 
     Track track = trackBundle.moovSampleTable.track;
@@ -1416,7 +1546,29 @@ public class FragmentedMp4Extractor implements Extractor {
     if (timestampAdjuster != null) {
       sampleTimeUs = timestampAdjuster.adjustSampleTimestamp(sampleTimeUs);
     }
-    if (track.nalUnitLengthFieldLength != 0) {
+    if (track.nalUnitLengthFieldLength
+            == StartCodeRewriter.REWRITABLE_NAL_UNIT_LENGTH_FIELD_LENGTH
+        && ceaTrackOutputs.length == 0) {
+      // Start codes take the place of the length fields, so read the whole sample with as few
+      // calls as possible and rewrite it in place. sampleBulkBytesRead lets an interrupted read
+      // resume. Samples with SEI NAL units to process take the per NAL unit path below.
+      int sampleDataSize = sampleSize - sampleBytesWritten;
+      if (sampleBulkBytesRead == 0) {
+        nalBuffer.reset(sampleDataSize);
+      }
+      byte[] sampleData = nalBuffer.getData();
+      while (sampleBulkBytesRead < sampleDataSize) {
+        int bytesRead =
+            input.read(sampleData, sampleBulkBytesRead, sampleDataSize - sampleBulkBytesRead);
+        if (bytesRead == C.RESULT_END_OF_INPUT) {
+          throw new EOFException();
+        }
+        sampleBulkBytesRead += bytesRead;
+      }
+      StartCodeRewriter.rewrite(sampleData, /* offset= */ 0, sampleDataSize);
+      output.sampleData(nalBuffer, sampleDataSize);
+      sampleBytesWritten = sampleSize;
+    } else if (track.nalUnitLengthFieldLength != 0) {
       // Zero the top three bytes of the array that we'll use to decode nal unit lengths, in case
       // they're only 1 or 2 bytes long.
       byte[] nalPrefixData = nalPrefix.getData();
@@ -1568,7 +1720,8 @@ public class FragmentedMp4Extractor implements Extractor {
         if (schemeDatas == null) {
           schemeDatas = new ArrayList<>();
         }
-        byte[] psshData = child.data.getData();
+        // Copied, as the scheme data outlives the atom buffer.
+        byte[] psshData = Arrays.copyOf(child.data.getData(), child.data.limit());
         @Nullable UUID uuid = PsshAtomUtil.parseUuid(psshData);
         if (uuid == null) {
           Log.w(TAG, "Skipped pssh atom (failed to extract uuid)");
@@ -1580,6 +1733,28 @@ public class FragmentedMp4Extractor implements Extractor {
     return schemeDatas == null ? null : new DrmInitData(schemeDatas);
   }
 
+  /** Returns DrmInitData from the pssh atoms among the children of a moof atom. */
+  @Nullable
+  private static DrmInitData getDrmInitDataFromMoof(ParsableByteArray moof, int childrenPosition) {
+    @Nullable ArrayList<SchemeData> schemeDatas = null;
+    BoxCursor children = new BoxCursor(moof, childrenPosition, moof.limit());
+    while (children.nextOfType(Atom.TYPE_pssh)) {
+      if (schemeDatas == null) {
+        schemeDatas = new ArrayList<>();
+      }
+      // Copied, as the scheme data outlives the atom buffer.
+      byte[] psshData =
+          Arrays.copyOfRange(moof.getData(), children.getPosition(), children.getEndPosition());
+      @Nullable UUID uuid = PsshAtomUtil.parseUuid(psshData);
+      if (uuid == null) {
+        Log.w(TAG, "Skipped pssh atom (failed to extract uuid)");
+      } else {
+        schemeDatas.add(new SchemeData(uuid, MimeTypes.VIDEO_MP4, psshData));
+      }
+    }
+    return schemeDatas == null ? null : new DrmInitData(schemeDatas);
+  }
+
   /** Returns whether the extractor should decode a leaf atom with type {@code atom}. */
   private static boolean shouldParseLeafAtom(int atom) {
     return atom == Atom.TYPE_hdlr
@@ -1619,8 +1794,6 @@ public class FragmentedMp4Extractor implements Extractor {
         || atom == Atom.TYPE_mdia
         || atom == Atom.TYPE_minf
         || atom == Atom.TYPE_stbl
-        || atom == Atom.TYPE_moof
-        || atom == Atom.TYPE_traf
         || atom == Atom.TYPE_mvex
         || atom == Atom.TYPE_edts;
   }
@@ -1723,21 +1896,21 @@ public class FragmentedMp4Extractor implements Extractor {
     /** Returns the presentation time of the current sample in microseconds. */
     public long getCurrentSamplePresentationTimeUs() {
       return !currentlyInFragment
-          ? moovSampleTable.timestampsUs[currentSampleIndex]
+          ? moovSampleTable.getTimestampUs(currentSampleIndex)
           : fragment.getSamplePresentationTimeUs(currentSampleIndex);
     }
 
     /** Returns the byte offset of the current sample. */
     public long getCurrentSampleOffset() {
       return !currentlyInFragment
-          ? moovSampleTable.offsets[currentSampleIndex]
+          ? moovSampleTable.getOffset(currentSampleIndex)
           : fragment.trunDataPosition[currentTrackRunIndex];
     }
 
     /** Returns the size of the current sample in bytes. */
     public int getCurrentSampleSize() {
       return !currentlyInFragment
-          ? moovSampleTable.sizes[currentSampleIndex]
+          ? moovSampleTable.getSize(currentSampleIndex)
           : fragment.sampleSizeTable[currentSampleIndex];
     }
 
@@ -1745,7 +1918,7 @@ public class FragmentedMp4Extractor implements Extractor {
     public @C.BufferFlags int getCurrentSampleFlags() {
       int flags =
           !currentlyInFragment
-              ? moovSampleTable.flags[currentSampleIndex]
+              ? moovSampleTable.getFlags(currentSampleIndex)
               : (fragment.sampleIsSyncFrameTable[currentSampleIndex] ? C.BUFFER_FLAG_KEY_FRAME : 0);
       if (getEncryptionBoxIfEncrypted() != null) {
         flags |= C.BUFFER_FLAG_ENCRYPTED;
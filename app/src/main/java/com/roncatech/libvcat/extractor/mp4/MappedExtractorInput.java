@@ -0,0 +1,329 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.util.Assertions;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import org.checkerframework.checker.nullness.compatqual.NullableType;
+
+/**
+ * {@link ExtractorInput} over a memory-mapped local file.
+ *
+ * <p>Reads copy straight from the mapping into the caller's array, which for sample data is the
+ * sample queue's allocation, so there is no DataSource read or peek buffer in between. Skips are
+ * position updates, and {@link #seekTo(long)} lets extractors move anywhere in the file without
+ * returning {@link com.google.android.exoplayer2.extractor.Extractor#RESULT_SEEK}.
+ *
+ * <p>The file is mapped in fixed-size segments on first touch, and only a few segments stay
+ * referenced at a time, so multi-GB files do not exhaust a 32-bit address space. Readers that move
+ * between more regions of the file than that can keep more segments with {@link
+ * #setMinimumMappedSegmentCount(int)}.
+ */
+/* package */ final class MappedExtractorInput implements ExtractorInput {
+
+  private static final int SEGMENT_SHIFT = 26; // 64 MiB
+  private static final int DEFAULT_MAX_MAPPED_SEGMENTS = 4;
+
+  private final FileChannel channel;
+  private final long length;
+  private final int segmentShift;
+  private final long segmentMask;
+  private final @NullableType MappedByteBuffer[] segments;
+  private final long[] segmentLastUse;
+  private int maxMappedSegments;
+  private int mappedSegmentCount;
+  private int segmentMapCount;
+  private long useClock;
+
+  private long position;
+  private long peekPosition;
+  private long bytesConsumed;
+
+  /**
+   * @param channel An open channel; it must stay open while this input is used.
+   * @param position The initial read position.
+   */
+  public MappedExtractorInput(FileChannel channel, long position) throws IOException {
+    this(channel, position, SEGMENT_SHIFT);
+  }
+
+  @VisibleForTesting
+  /* package */ MappedExtractorInput(FileChannel channel, long position, int segmentShift)
+      throws IOException {
+    this.channel = channel;
+    this.length = channel.size();
+    this.segmentShift = segmentShift;
+    segmentMask = (1L << segmentShift) - 1;
+    int segmentCount = (int) ((length + segmentMask) >>> segmentShift);
+    segments = new MappedByteBuffer[segmentCount];
+    segmentLastUse = new long[segmentCount];
+    maxMappedSegments = DEFAULT_MAX_MAPPED_SEGMENTS;
+    seekTo(position);
+  }
+
+  /**
+   * Keeps up to {@code count} segments mapped, if that is more than the default, so that reading
+   * from that many regions of the file in turn does not map a segment again on each move.
+   */
+  public void setMinimumMappedSegmentCount(int count) {
+    maxMappedSegments = max(DEFAULT_MAX_MAPPED_SEGMENTS, count);
+  }
+
+  /** Returns how many times a segment of the file has been mapped. */
+  @VisibleForTesting
+  /* package */ int getSegmentMapCount() {
+    return segmentMapCount;
+  }
+
+  /** Moves the read and peek positions to {@code position}, forwards or backwards. */
+  public void seekTo(long position) {
+    Assertions.checkArgument(position >= 0);
+    this.position = position;
+    this.peekPosition = position;
+  }
+
+  /**
+   * Returns the number of bytes read or skipped since this input was created. Unlike the read
+   * position, it only grows, also when {@link #seekTo(long)} moves between regions of the file.
+   */
+  public long getBytesConsumed() {
+    return bytesConsumed;
+  }
+
+  /**
+   * Maps {@code size} bytes of the file from {@code position} on their own, for data that should
+   * stay in the file rather than be copied to the heap. The mapping stays valid after the channel
+   * is closed.
+   */
+  public ByteBuffer mapRegion(long position, int size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+  }
+
+  // DataReader implementation.
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    int bytesRead = (int) min(length, this.length - position);
+    if (bytesRead <= 0) {
+      return length == 0 ? 0 : C.RESULT_END_OF_INPUT;
+    }
+    copy(position, buffer, offset, bytesRead);
+    advanceReadPosition(bytesRead);
+    return bytesRead;
+  }
+
+  // ExtractorInput implementation.
+
+  @Override
+  public boolean readFully(byte[] target, int offset, int length, boolean allowEndOfInput)
+      throws IOException {
+    if (!checkAvailable(position, length, allowEndOfInput)) {
+      return false;
+    }
+    copy(position, target, offset, length);
+    advanceReadPosition(length);
+    return true;
+  }
+
+  @Override
+  public void readFully(byte[] target, int offset, int length) throws IOException {
+    readFully(target, offset, length, /* allowEndOfInput= */ false);
+  }
+
+  @Override
+  public int skip(int length) throws IOException {
+    int bytesSkipped = (int) min(length, this.length - position);
+    if (bytesSkipped <= 0) {
+      return length == 0 ? 0 : C.RESULT_END_OF_INPUT;
+    }
+    advanceReadPosition(bytesSkipped);
+    return bytesSkipped;
+  }
+
+  @Override
+  public boolean skipFully(int length, boolean allowEndOfInput) throws IOException {
+    if (!checkAvailable(position, length, allowEndOfInput)) {
+      return false;
+    }
+    advanceReadPosition(length);
+    return true;
+  }
+
+  @Override
+  public void skipFully(int length) throws IOException {
+    skipFully(length, /* allowEndOfInput= */ false);
+  }
+
+  @Override
+  public int peek(byte[] target, int offset, int length) throws IOException {
+    int bytesPeeked = (int) min(length, this.length - peekPosition);
+    if (bytesPeeked <= 0) {
+      return length == 0 ? 0 : C.RESULT_END_OF_INPUT;
+    }
+    copy(peekPosition, target, offset, bytesPeeked);
+    peekPosition += bytesPeeked;
+    return bytesPeeked;
+  }
+
+  @Override
+  public boolean peekFully(byte[] target, int offset, int length, boolean allowEndOfInput)
+      throws IOException {
+    if (!checkAvailable(peekPosition, length, allowEndOfInput)) {
+      return false;
+    }
+    copy(peekPosition, target, offset, length);
+    peekPosition += length;
+    return true;
+  }
+
+  @Override
+  public void peekFully(byte[] target, int offset, int length) throws IOException {
+    peekFully(target, offset, length, /* allowEndOfInput= */ false);
+  }
+
+  @Override
+  public boolean advancePeekPosition(int length, boolean allowEndOfInput) throws IOException {
+    if (!checkAvailable(peekPosition, length, allowEndOfInput)) {
+      return false;
+    }
+    peekPosition += length;
+    return true;
+  }
+
+  @Override
+  public void advancePeekPosition(int length) throws IOException {
+    advancePeekPosition(length, /* allowEndOfInput= */ false);
+  }
+
+  @Override
+  public void resetPeekPosition() {
+    peekPosition = position;
+  }
+
+  @Override
+  public long getPeekPosition() {
+    return peekPosition;
+  }
+
+  @Override
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public <E extends Throwable> void setRetryPosition(long position, E e) throws E {
+    Assertions.checkArgument(position >= 0);
+    this.position = position;
+    throw e;
+  }
+
+  // Internal methods.
+
+  private void advanceReadPosition(int bytes) {
+    position += bytes;
+    bytesConsumed += bytes;
+    peekPosition = max(peekPosition, position);
+  }
+
+  /**
+   * Returns whether {@code length} bytes are available at {@code from}. Returns false if none are
+   * and {@code allowEndOfInput} is set; throws if the input ends part-way, as {@link
+   * com.google.android.exoplayer2.extractor.DefaultExtractorInput} does.
+   */
+  private boolean checkAvailable(long from, int length, boolean allowEndOfInput)
+      throws EOFException {
+    long available = this.length - from;
+    if (length <= available) {
+      return true;
+    }
+    if (allowEndOfInput && available <= 0) {
+      return false;
+    }
+    throw new EOFException();
+  }
+
+  private void copy(long from, byte[] target, int offset, int length) throws IOException {
+    while (length > 0) {
+      MappedByteBuffer segment = segment((int) (from >>> segmentShift));
+      int segmentOffset = (int) (from & segmentMask);
+      int bytes = min(length, segment.limit() - segmentOffset);
+      segment.position(segmentOffset);
+      segment.get(target, offset, bytes);
+      from += bytes;
+      offset += bytes;
+      length -= bytes;
+    }
+  }
+
+  private MappedByteBuffer segment(int index) throws IOException {
+    segmentLastUse[index] = ++useClock;
+    @Nullable MappedByteBuffer segment = segments[index];
+    if (segment != null) {
+      return segment;
+    }
+    while (mappedSegmentCount >= maxMappedSegments) {
+      // Drop the least recently used mapping; it is unmapped once collected.
+      int oldest = -1;
+      for (int i = 0; i < segments.length; i++) {
+        if (segments[i] != null && (oldest == -1 || segmentLastUse[i] < segmentLastUse[oldest])) {
+          oldest = i;
+        }
+      }
+      segments[oldest] = null;
+      mappedSegmentCount--;
+    }
+    long start = (long) index << segmentShift;
+    long size = min(1L << segmentShift, length - start);
+    segment = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    segments[index] = segment;
+    mappedSegmentCount++;
+    segmentMapCount++;
+    return segment;
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static java.lang.Math.min;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.analytics.PlayerId;
+import com.google.android.exoplayer2.extractor.DefaultExtractorInput;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.mp3.Mp3Extractor;
+import com.google.android.exoplayer2.source.ProgressiveMediaExtractor;
+import com.google.android.exoplayer2.source.UnrecognizedInputFormatException;
+import com.google.android.exoplayer2.upstream.DataReader;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.Log;
+import com.google.android.exoplayer2.util.Util;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link ProgressiveMediaExtractor} that reads {@code file://} URIs through a {@link
+ * MappedExtractorInput} instead of the DataSource, and behaves like ExoPlayer's bundled adapter
+ * for everything else.
+ *
+ * <p>Extractors may move a mapped input between regions of the file without a reload, so its read
+ * position can go backwards. The progressive media period only pauses loading once the input
+ * position passes the position of its last pause by the continue-loading check interval. For
+ * mapped input, {@link #getCurrentInputPosition()} therefore reports the position the load started
+ * at plus the bytes consumed since, which only grows, and the period keeps pausing at that
+ * interval even when the extractor reads the tracks of a non-interleaved file from their own
+ * regions.
+ *
+ * <p>Use with {@code new ProgressiveMediaSource.Factory(dataSourceFactory,
+ * MappedFileMediaExtractor.factory(VcatMp4Extractor.FACTORY))}.
+ */
+public final class MappedFileMediaExtractor implements ProgressiveMediaExtractor {
+
+  private static final String TAG = "MappedFileExtractor";
+
+  /** Returns a factory creating instances that pick an extractor from {@code extractorsFactory}. */
+  public static ProgressiveMediaExtractor.Factory factory(ExtractorsFactory extractorsFactory) {
+    return (PlayerId playerId) -> new MappedFileMediaExtractor(extractorsFactory);
+  }
+
+  /**
+   * Returns a factory like {@link #factory(ExtractorsFactory)} whose {@link VcatMp4Extractor}
+   * instances cache the sample tables of local files in {@code moovIndexCache}.
+   */
+  public static ProgressiveMediaExtractor.Factory factory(
+      ExtractorsFactory extractorsFactory, MoovIndexCache moovIndexCache) {
+    return (PlayerId playerId) -> new MappedFileMediaExtractor(extractorsFactory, moovIndexCache);
+  }
+
+  private final ExtractorsFactory extractorsFactory;
+  @Nullable private final MoovIndexCache moovIndexCache;
+  @Nullable private Extractor extractor;
+  @Nullable private ExtractorInput extractorInput;
+  @Nullable private RandomAccessFile file;
+  @Nullable private MappedExtractorInput mappedInput;
+  @Nullable private Uri mappedUri;
+  private long loadStartPosition;
+  private long loadStartBytesConsumed;
+  private long reportedInputPosition;
+
+  public MappedFileMediaExtractor(ExtractorsFactory extractorsFactory) {
+    this(extractorsFactory, /* moovIndexCache= */ null);
+  }
+
+  public MappedFileMediaExtractor(
+      ExtractorsFactory extractorsFactory, @Nullable MoovIndexCache moovIndexCache) {
+    this.extractorsFactory = extractorsFactory;
+    this.moovIndexCache = moovIndexCache;
+    reportedInputPosition = C.POSITION_UNSET;
+  }
+
+  @Override
+  public void init(
+      DataReader dataReader,
+      Uri uri,
+      Map<String, List<String>> responseHeaders,
+      long position,
+      long length,
+      ExtractorOutput output)
+      throws IOException {
+    ExtractorInput extractorInput = openMapped(uri, position);
+    if (extractorInput == null) {
+      extractorInput = new DefaultExtractorInput(dataReader, position, length);
+    }
+    this.extractorInput = extractorInput;
+    if (extractor != null) {
+      return;
+    }
+    Extractor[] extractors = extractorsFactory.createExtractors(uri, responseHeaders);
+    if (extractors.length == 1) {
+      this.extractor = extractors[0];
+    } else {
+      for (Extractor extractor : extractors) {
+        try {
+          if (extractor.sniff(extractorInput)) {
+            this.extractor = extractor;
+            break;
+          }
+        } catch (EOFException e) {
+          // Do nothing.
+        } finally {
+          Assertions.checkState(this.extractor != null || extractorInput.getPosition() == position);
+          extractorInput.resetPeekPosition();
+        }
+      }
+      if (extractor == null) {
+        throw new UnrecognizedInputFormatException(
+            "None of the available extractors ("
+                + Util.getCommaDelimitedSimpleClassNames(extractors)
+                + ") could read the stream.",
+            Assertions.checkNotNull(uri));
+      }
+    }
+    if (moovIndexCache != null && mappedUri != null && extractor instanceof VcatMp4Extractor) {
+      @Nullable String path = mappedUri.getPath();
+      if (path != null) {
+        ((VcatMp4Extractor) extractor).setMoovIndex(moovIndexCache.forFile(path));
+      }
+    }
+    extractor.init(output);
+  }
+
+  @Override
+  public void release() {
+    if (extractor != null) {
+      extractor.release();
+      extractor = null;
+    }
+    extractorInput = null;
+    closeMappedFile();
+  }
+
+  @Override
+  public void disableSeekingOnMp3Streams() {
+    if (extractor instanceof Mp3Extractor) {
+      ((Mp3Extractor) extractor).disableSeeking();
+    }
+  }
+
+  @Override
+  public long getCurrentInputPosition() {
+    if (extractorInput == null) {
+      return C.POSITION_UNSET;
+    }
+    @Nullable MappedExtractorInput mappedInput = this.mappedInput;
+    if (mappedInput == null || extractorInput != mappedInput) {
+      return extractorInput.getPosition();
+    }
+    // Capped at the length, so that a period reopening the source there opens a valid position.
+    reportedInputPosition =
+        min(
+            loadStartPosition + mappedInput.getBytesConsumed() - loadStartBytesConsumed,
+            mappedInput.getLength());
+    return reportedInputPosition;
+  }
+
+  @Override
+  public void seek(long position, long seekTimeUs) {
+    Assertions.checkNotNull(extractor).seek(position, seekTimeUs);
+  }
+
+  @Override
+  public int read(PositionHolder positionHolder) throws IOException {
+    int result =
+        Assertions.checkNotNull(extractor)
+            .read(Assertions.checkNotNull(extractorInput), positionHolder);
+    if (result == Extractor.RESULT_SEEK) {
+      // The period reopens the source where the extractor asked, not where the load stopped.
+      reportedInputPosition = C.POSITION_UNSET;
+    }
+    return result;
+  }
+
+  /**
+   * Returns a mapped input positioned at {@code position} for local files, reusing the mapping
+   * across the re-inits ExoPlayer does after seeks, or null to read through the DataSource.
+   *
+   * <p>If {@code position} is the one last reported by {@link #getCurrentInputPosition()}, the
+   * period is resuming a load that stopped there, and the reused input stays where the extractor
+   * left it.
+   */
+  @Nullable
+  private MappedExtractorInput openMapped(Uri uri, long position) {
+    String scheme = uri.getScheme();
+    if (scheme != null && !"file".equals(scheme)) {
+      return null;
+    }
+    if (mappedInput != null && uri.equals(mappedUri)) {
+      if (position != reportedInputPosition) {
+        mappedInput.seekTo(position);
+      }
+      startLoad(position);
+      return mappedInput;
+    }
+    @Nullable String path = uri.getPath();
+    if (path == null) {
+      return null;
+    }
+    closeMappedFile();
+    try {
+      RandomAccessFile file = new RandomAccessFile(path, "r");
+      try {
+        mappedInput = new MappedExtractorInput(file.getChannel(), position);
+      } catch (IOException e) {
+        file.close();
+        throw e;
+      }
+      this.file = file;
+      mappedUri = uri;
+      startLoad(position);
+      return mappedInput;
+    } catch (IOException | SecurityException e) {
+      Log.w(TAG, "Cannot map " + path + ", reading through the DataSource", e);
+      return null;
+    }
+  }
+
+  private void startLoad(long position) {
+    loadStartPosition = position;
+    loadStartBytesConsumed = Assertions.checkNotNull(mappedInput).getBytesConsumed();
+    reportedInputPosition = C.POSITION_UNSET;
+  }
+
+  private void closeMappedFile() {
+    mappedInput = null;
+    mappedUri = null;
+    reportedInputPosition = C.POSITION_UNSET;
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to close mapped file", e);
+      }
+      file = null;
+    }
+  }
+}
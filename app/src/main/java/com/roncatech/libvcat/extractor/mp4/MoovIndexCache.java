@@ -0,0 +1,365 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.extractor.GaplessInfoHolder;
+import com.google.android.exoplayer2.extractor.mp4.Track;
+import com.google.android.exoplayer2.util.Log;
+import com.google.android.exoplayer2.util.Util;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Size-bounded directory of parsed sample tables for local MP4 files, so that opening the same file
+ * again skips stbl parsing.
+ *
+ * <p>Entries are keyed by path, size and modification time, and checked against a hash of the moov
+ * atom. Track headers and stsd are always parsed from the moov again, because {@link Track} holds a
+ * {@link com.google.android.exoplayer2.Format} that has no stable serialized form; only the sample
+ * tables and the gapless info derived from them are stored. Entries are written on a background
+ * thread and read through a memory mapping. The least recently used entries are deleted once the
+ * directory exceeds its size limit.
+ *
+ * <p>Use with {@link MappedFileMediaExtractor#factory(ExtractorsFactory, MoovIndexCache)}.
+ */
+public final class MoovIndexCache {
+
+  private static final String TAG = "MoovIndexCache";
+
+  private static final int MAGIC = 0x564d4943; // "VMIC"
+  private static final int VERSION = 1;
+  private static final String FILE_SUFFIX = ".vmic";
+  private static final int HASH_CHUNK_SIZE = 64 * 1024;
+
+  private final File directory;
+  private final long maxSizeBytes;
+  private final ExecutorService writeExecutor;
+
+  /**
+   * @param directory Directory to keep entries in. Created if needed.
+   * @param maxSizeBytes Total size of the entries above which the least recently used are deleted.
+   */
+  public MoovIndexCache(File directory, long maxSizeBytes) {
+    this.directory = directory;
+    this.maxSizeBytes = maxSizeBytes;
+    writeExecutor =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "VcatMoovIndexCache");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** Deletes every entry. */
+  public void clear() {
+    writeExecutor.execute(
+        () -> {
+          for (File file : listEntryFiles()) {
+            if (!file.delete()) {
+              Log.w(TAG, "Failed to delete " + file);
+            }
+          }
+        });
+  }
+
+  /** Returns the entry slot for a local file, or null if the file does not exist. */
+  @Nullable
+  /* package */ FileIndex forFile(String path) {
+    File file = new File(path);
+    if (!file.isFile()) {
+      return null;
+    }
+    return new FileIndex(path, file.length(), file.lastModified());
+  }
+
+  /** Returns a hash of the leaf atoms under {@code moov}. */
+  /* package */ static long hash(Atom.ContainerAtom moov) {
+    CRC32 crc = new CRC32();
+    long length = hash(moov, crc);
+    return (length << 32) | crc.getValue();
+  }
+
+  private static long hash(Atom.ContainerAtom atom, CRC32 crc) {
+    long length = 0;
+    for (int i = 0; i < atom.leafChildren.size(); i++) {
+      Atom.LeafAtom leaf = atom.leafChildren.get(i);
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        crc.update(leaf.type >>> shift);
+      }
+      @Nullable ByteBuffer region = leaf.region;
+      if (region != null) {
+        // The data is still in the file. Hash it in chunks without moving the region's position.
+        byte[] chunk = new byte[HASH_CHUNK_SIZE];
+        ByteBuffer source = region.duplicate();
+        source.clear();
+        while (source.hasRemaining()) {
+          int chunkSize = Math.min(chunk.length, source.remaining());
+          source.get(chunk, 0, chunkSize);
+          crc.update(chunk, 0, chunkSize);
+        }
+        length += region.capacity();
+      } else {
+        crc.update(leaf.data.getData(), 0, leaf.data.limit());
+        length += leaf.data.limit();
+      }
+    }
+    for (int i = 0; i < atom.containerChildren.size(); i++) {
+      length += hash(atom.containerChildren.get(i), crc);
+    }
+    return length;
+  }
+
+  /** The entry slot of one file. */
+  /* package */ final class FileIndex {
+
+    private final String path;
+    private final long size;
+    private final long lastModified;
+    private final File entryFile;
+
+    private FileIndex(String path, long size, long lastModified) {
+      this.path = path;
+      this.size = size;
+      this.lastModified = lastModified;
+      entryFile = new File(directory, Long.toHexString(hashPath(path)) + FILE_SUFFIX);
+    }
+
+    /**
+     * Returns the sample tables stored for this file, or null if there are none for this moov and
+     * these tracks.
+     *
+     * @param moovHash The {@link #hash} of the moov atom.
+     * @param extractorFlags Extractor flags that affect the sample tables.
+     * @param tracks The tracks parsed from the moov atom, in order.
+     * @param gaplessInfoHolder Receives the stored gapless info on success.
+     */
+    @Nullable
+    public List<TrackSampleTable> load(
+        long moovHash, int extractorFlags, List<Track> tracks, GaplessInfoHolder gaplessInfoHolder) {
+      if (!entryFile.isFile()) {
+        return null;
+      }
+      try (RandomAccessFile file = new RandomAccessFile(entryFile, "r")) {
+        ByteBuffer buffer =
+            file.getChannel().map(FileChannel.MapMode.READ_ONLY, /* position= */ 0, file.length());
+        if (buffer.getInt() != MAGIC
+            || buffer.getInt() != VERSION
+            || !path.equals(Util.fromUtf8Bytes(readByteArray(buffer)))
+            || buffer.getLong() != size
+            || buffer.getLong() != lastModified
+            || buffer.getLong() != moovHash
+            || buffer.getInt() != extractorFlags) {
+          return null;
+        }
+        int encoderDelay = buffer.getInt();
+        int encoderPadding = buffer.getInt();
+        int trackCount = buffer.getInt();
+        if (trackCount != tracks.size()) {
+          return null;
+        }
+        List<TrackSampleTable> trackSampleTables = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+          Track track = tracks.get(i);
+          if (buffer.getInt() != track.id) {
+            return null;
+          }
+          trackSampleTables.add(TrackSampleTable.readFrom(buffer, track));
+        }
+        if (encoderDelay != Format.NO_VALUE) {
+          gaplessInfoHolder.encoderDelay = encoderDelay;
+          gaplessInfoHolder.encoderPadding = encoderPadding;
+        }
+        if (!entryFile.setLastModified(System.currentTimeMillis())) {
+          Log.w(TAG, "Failed to touch " + entryFile);
+        }
+        return trackSampleTables;
+      } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+        Log.w(TAG, "Discarding unreadable entry for " + path, e);
+        entryFile.delete();
+        return null;
+      }
+    }
+
+    /**
+     * Stores sample tables for this file in the background. The tables are fully expanded on the
+     * writer thread, which is safe as their lazy filling is synchronized.
+     */
+    public void store(
+        long moovHash,
+        int extractorFlags,
+        List<TrackSampleTable> trackSampleTables,
+        GaplessInfoHolder gaplessInfoHolder) {
+      int encoderDelay =
+          gaplessInfoHolder.hasGaplessInfo()
+              ? gaplessInfoHolder.encoderDelay
+              : Format.NO_VALUE;
+      int encoderPadding = gaplessInfoHolder.encoderPadding;
+      List<TrackSampleTable> tables = new ArrayList<>(trackSampleTables);
+      writeExecutor.execute(
+          () -> {
+            try {
+              write(moovHash, extractorFlags, tables, encoderDelay, encoderPadding);
+              evict();
+            } catch (IOException e) {
+              Log.w(TAG, "Failed to store entry for " + path, e);
+            }
+          });
+    }
+
+    private void write(
+        long moovHash,
+        int extractorFlags,
+        List<TrackSampleTable> trackSampleTables,
+        int encoderDelay,
+        int encoderPadding)
+        throws IOException {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Cannot create " + directory);
+      }
+      File tempFile = new File(directory, entryFile.getName() + ".tmp");
+      try (DataOutputStream output =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        byte[] pathBytes = Util.getUtf8Bytes(path);
+        output.writeInt(pathBytes.length);
+        output.write(pathBytes);
+        output.writeLong(size);
+        output.writeLong(lastModified);
+        output.writeLong(moovHash);
+        output.writeInt(extractorFlags);
+        output.writeInt(encoderDelay);
+        output.writeInt(encoderPadding);
+        output.writeInt(trackSampleTables.size());
+        for (TrackSampleTable trackSampleTable : trackSampleTables) {
+          output.writeInt(trackSampleTable.track.id);
+          trackSampleTable.writeTo(output);
+        }
+      }
+      if (!tempFile.renameTo(entryFile)) {
+        tempFile.delete();
+        throw new IOException("Cannot rename " + tempFile);
+      }
+    }
+  }
+
+  private void evict() {
+    File[] files = listEntryFiles();
+    // Most recently used first.
+    Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+    long totalSize = 0;
+    for (File file : files) {
+      totalSize += file.length();
+      if (totalSize > maxSizeBytes && !file.delete()) {
+        Log.w(TAG, "Failed to evict " + file);
+      }
+    }
+  }
+
+  private File[] listEntryFiles() {
+    @Nullable File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+    return files != null ? files : new File[0];
+  }
+
+  private static long hashPath(String path) {
+    // 64-bit FNV-1a, so that different paths rarely share an entry file.
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < path.length(); i++) {
+      hash ^= path.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /* package */ static void writeIntArray(DataOutputStream output, int[] values)
+      throws IOException {
+    output.writeInt(values.length);
+    for (int value : values) {
+      output.writeInt(value);
+    }
+  }
+
+  /* package */ static void writeLongArray(DataOutputStream output, long[] values)
+      throws IOException {
+    output.writeInt(values.length);
+    for (long value : values) {
+      output.writeLong(value);
+    }
+  }
+
+  /* package */ static int[] readIntArray(ByteBuffer buffer) {
+    int[] values = new int[readLength(buffer, /* elementSize= */ 4)];
+    buffer.asIntBuffer().get(values);
+    buffer.position(buffer.position() + 4 * values.length);
+    return values;
+  }
+
+  /* package */ static long[] readLongArray(ByteBuffer buffer) {
+    long[] values = new long[readLength(buffer, /* elementSize= */ 8)];
+    buffer.asLongBuffer().get(values);
+    buffer.position(buffer.position() + 8 * values.length);
+    return values;
+  }
+
+  private static byte[] readByteArray(ByteBuffer buffer) {
+    byte[] values = new byte[readLength(buffer, /* elementSize= */ 1)];
+    buffer.get(values);
+    return values;
+  }
+
+  private static int readLength(ByteBuffer buffer, int elementSize) {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining() / elementSize) {
+      throw new IllegalArgumentException("Bad array length: " + length);
+    }
+    return length;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static com.google.android.exoplayer2.util.Util.castNonNull;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.util.Assertions;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-length array of integers stored as unsigned offsets from the smallest value, using the
+ * fewest whole bytes that fit the value range. A range of zero takes no storage at all.
+ */
+/* package */ final class PackedInts {
+
+  private final long base;
+  private final int width;
+  @Nullable private final byte[] data;
+
+  /**
+   * @param count Number of values.
+   * @param min Smallest value that will be stored.
+   * @param max Largest value that will be stored.
+   */
+  public PackedInts(int count, long min, long max) {
+    Assertions.checkArgument(max >= min);
+    long range = max - min;
+    base = min;
+    width = range == 0 ? 0 : (64 - Long.numberOfLeadingZeros(range) + 7) / 8;
+    long bytes = (long) count * width;
+    Assertions.checkArgument(bytes <= Integer.MAX_VALUE);
+    data = width == 0 ? null : new byte[(int) bytes];
+  }
+
+  private PackedInts(long base, int width, @Nullable byte[] data) {
+    this.base = base;
+    this.width = width;
+    this.data = data;
+  }
+
+  /** Reads values written by {@link #writeTo}. */
+  public static PackedInts readFrom(ByteBuffer buffer) {
+    long base = buffer.getLong();
+    int width = buffer.get();
+    int length = buffer.getInt();
+    if (width < 0 || width > 8 || length < 0 || length > buffer.remaining()) {
+      throw new IllegalArgumentException("Bad packed ints: " + width + ", " + length);
+    }
+    @Nullable byte[] data = null;
+    if (width != 0) {
+      data = new byte[length];
+      buffer.get(data);
+    }
+    return new PackedInts(base, width, data);
+  }
+
+  public void writeTo(DataOutputStream output) throws IOException {
+    output.writeLong(base);
+    output.writeByte(width);
+    output.writeInt(data == null ? 0 : data.length);
+    if (data != null) {
+      output.write(data);
+    }
+  }
+
+  public void set(int index, long value) {
+    if (width == 0) {
+      return;
+    }
+    long v = value - base;
+    byte[] data = castNonNull(this.data);
+    int position = index * width;
+    for (int i = 0; i < width; i++) {
+      data[position + i] = (byte) (v >>> (i * 8));
+    }
+  }
+
+  public long get(int index) {
+    if (width == 0) {
+      return base;
+    }
+    byte[] data = castNonNull(this.data);
+    int position = index * width;
+    long v = 0;
+    for (int i = width - 1; i >= 0; i--) {
+      v = (v << 8) | (data[position + i] & 0xFF);
+    }
+    return base + v;
+  }
+
+  /** Returns the sum of the values at indices {@code [from, to)}. */
+  public long sum(int from, int to) {
+    if (width == 0) {
+      return base * (to - from);
+    }
+    long sum = 0;
+    for (int i = from; i < to; i++) {
+      sum += get(i);
+    }
+    return sum;
+  }
+
+  /** Bytes of heap used by the packed values. */
+  public long sizeInBytes() {
+    return data == null ? 0 : data.length;
+  }
+}
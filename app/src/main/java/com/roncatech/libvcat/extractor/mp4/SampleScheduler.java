@@ -0,0 +1,152 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import java.util.TreeSet;
+
+/**
+ * Picks the track whose sample {@link VcatMp4Extractor} reads next. Keeps the tracks that have
+ * samples left ordered by next sample offset and by accumulated bytes, so that picking the next
+ * sample to read does not visit every track. A track is only re-keyed when its sample index
+ * changes.
+ */
+/* package */ final class SampleScheduler {
+
+  private static final int PROBE = -1;
+
+  private final TrackSampleTable[] sampleTables;
+  private final AccumulatedSampleSizes accumulatedSampleSizes;
+  private final long[] nextOffsets;
+  private final long[] nextAccumulatedBytes;
+  private final boolean[] scheduled;
+  // Both ordered by key, then by track index like the original linear scan.
+  private final TreeSet<Integer> byOffset;
+  private final TreeSet<Integer> byAccumulatedBytes;
+  private long probeOffset;
+
+  /** Creates a scheduler with every track at its first sample. */
+  public SampleScheduler(
+      TrackSampleTable[] sampleTables, AccumulatedSampleSizes accumulatedSampleSizes) {
+    this.sampleTables = sampleTables;
+    this.accumulatedSampleSizes = accumulatedSampleSizes;
+    nextOffsets = new long[sampleTables.length];
+    nextAccumulatedBytes = new long[sampleTables.length];
+    scheduled = new boolean[sampleTables.length];
+    byOffset =
+        new TreeSet<>(
+            (a, b) -> {
+              int result = Long.compare(offsetOf(a), offsetOf(b));
+              return result != 0 ? result : Integer.compare(a, b);
+            });
+    byAccumulatedBytes =
+        new TreeSet<>(
+            (a, b) -> {
+              int result = Long.compare(nextAccumulatedBytes[a], nextAccumulatedBytes[b]);
+              return result != 0 ? result : Integer.compare(a, b);
+            });
+    for (int i = 0; i < sampleTables.length; i++) {
+      update(i, /* sampleIndex= */ 0);
+    }
+  }
+
+  /** Re-keys a track after its next sample to read has changed to {@code sampleIndex}. */
+  public void update(int trackIndex, int sampleIndex) {
+    if (scheduled[trackIndex]) {
+      byOffset.remove(trackIndex);
+      byAccumulatedBytes.remove(trackIndex);
+      scheduled[trackIndex] = false;
+    }
+    TrackSampleTable sampleTable = sampleTables[trackIndex];
+    if (sampleIndex >= 0 && sampleIndex < sampleTable.sampleCount) {
+      nextOffsets[trackIndex] = sampleTable.getOffset(sampleIndex);
+      nextAccumulatedBytes[trackIndex] = accumulatedSampleSizes.get(trackIndex, sampleIndex);
+      byOffset.add(trackIndex);
+      byAccumulatedBytes.add(trackIndex);
+      scheduled[trackIndex] = true;
+    }
+    accumulatedSampleSizes.discardBefore(trackIndex, sampleIndex);
+  }
+
+  /**
+   * Returns the index of the track that contains the next sample to be read, or {@link
+   * C#INDEX_UNSET} if no samples remain. See {@link
+   * VcatMp4Extractor#FLAG_POSITIONAL_SAMPLE_READS} for {@code positionalReads}.
+   *
+   * <p>The preferred choice is the sample with the smallest offset not requiring a source reload,
+   * or if not available the sample with the smallest overall offset to avoid subsequent source
+   * reloads.
+   *
+   * <p>To deal with poor sample interleaving, we also check whether the required memory to catch up
+   * with the next logical sample (based on sample time) exceeds {@link
+   * VcatMp4Extractor#MAXIMUM_READ_AHEAD_BYTES_STREAM}. If this is the case, we continue with this
+   * sample even though it may require a source reload.
+   *
+   * <p>If {@code positionalReads} is true, moving the input anywhere is free. Each track then reads
+   * from its own position in the file, and samples are read in the order they are needed, across
+   * tracks, without reading any track ahead.
+   */
+  public int getTrackIndexOfNextReadSample(long inputPosition, boolean positionalReads) {
+    if (byOffset.isEmpty()) {
+      return C.INDEX_UNSET;
+    }
+    if (positionalReads) {
+      return byAccumulatedBytes.first();
+    }
+    // The nearest sample at or after the input position, if it is within reach without a
+    // reload. Otherwise every sample needs a reload and the smallest offset is preferred.
+    probeOffset = inputPosition;
+    @Nullable Integer nearestAhead = byOffset.ceiling(PROBE);
+    int preferredTrackIndex =
+        nearestAhead != null && !requiresReload(nearestAhead, inputPosition)
+            ? nearestAhead
+            : byOffset.first();
+    int minAccumulatedBytesTrackIndex = byAccumulatedBytes.first();
+    return !requiresReload(minAccumulatedBytesTrackIndex, inputPosition)
+            || nextAccumulatedBytes[preferredTrackIndex]
+                < nextAccumulatedBytes[minAccumulatedBytesTrackIndex]
+                    + VcatMp4Extractor.MAXIMUM_READ_AHEAD_BYTES_STREAM
+        ? preferredTrackIndex
+        : minAccumulatedBytesTrackIndex;
+  }
+
+  private boolean requiresReload(int trackIndex, long inputPosition) {
+    long skipAmount = nextOffsets[trackIndex] - inputPosition;
+    return skipAmount < 0 || skipAmount >= VcatMp4Extractor.RELOAD_MINIMUM_SEEK_DISTANCE;
+  }
+
+  private long offsetOf(int trackIndex) {
+    return trackIndex == PROBE ? probeOffset : nextOffsets[trackIndex];
+  }
+}
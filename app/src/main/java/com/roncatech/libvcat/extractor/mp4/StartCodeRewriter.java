@@ -0,0 +1,75 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import com.google.android.exoplayer2.ParserException;
+
+/**
+ * Rewrites samples of length-prefixed NAL units to start code delimited (Annex B) units in place.
+ */
+/* package */ final class StartCodeRewriter {
+
+  /** The NAL unit length field length for which in-place rewriting is possible. */
+  public static final int REWRITABLE_NAL_UNIT_LENGTH_FIELD_LENGTH = 4;
+
+  private StartCodeRewriter() {}
+
+  /**
+   * Replaces each 4-byte NAL unit length field between {@code offset} and {@code offset + length}
+   * in {@code data} with a start code.
+   *
+   * @throws ParserException If the lengths don't exactly cover the range.
+   */
+  public static void rewrite(byte[] data, int offset, int length) throws ParserException {
+    int position = offset;
+    int end = offset + length;
+    while (position < end) {
+      if (end - position < 4) {
+        throw ParserException.createForMalformedContainer("Invalid NAL length", /* cause= */ null);
+      }
+      int nalLength =
+          (data[position] & 0xFF) << 24
+              | (data[position + 1] & 0xFF) << 16
+              | (data[position + 2] & 0xFF) << 8
+              | (data[position + 3] & 0xFF);
+      if (nalLength < 0 || nalLength > end - position - 4) {
+        throw ParserException.createForMalformedContainer("Invalid NAL length", /* cause= */ null);
+      }
+      data[position] = 0;
+      data[position + 1] = 0;
+      data[position + 2] = 0;
+      data[position + 3] = 1;
+      position += 4 + nalLength;
+    }
+  }
+}
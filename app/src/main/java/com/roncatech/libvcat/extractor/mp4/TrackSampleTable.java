@@ -15,14 +15,23 @@
  */
 package com.roncatech.libvcat.extractor.mp4;
 
+import static com.google.android.exoplayer2.util.Util.castNonNull;
+
+import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.extractor.mp4.Track;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.Util;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Sample table for a track in an MP4 file.
  *
+ * <p>Backed either by expanded per-sample arrays or, for tables parsed from an stbl, by {@link
+ * CompactSamples} viewed through a list of edit segments.
+ *
  * @deprecated com.google.android.exoplayer2 is deprecated. Please migrate to androidx.media3 (which
  *     contains the same ExoPlayer code). See <a
  *     href="https://developer.android.com/guide/topics/media/media3/getting-started/migration-guide">the
@@ -31,23 +40,35 @@ import com.google.android.exoplayer2.util.Util;
 @Deprecated
 /* package */ final class TrackSampleTable {
 
+  /** Bytes per sample used by the expanded representation (offset, size, timestamp, flags). */
+  public static final int EXPANDED_BYTES_PER_SAMPLE = 8 + 4 + 8 + 4;
+
   /** The track corresponding to this sample table. */
   public final Track track;
   /** Number of samples. */
   public final int sampleCount;
-  /** Sample offsets in bytes. */
-  public final long[] offsets;
-  /** Sample sizes in bytes. */
-  public final int[] sizes;
-  /** Maximum sample size in {@link #sizes}. */
+  /** Maximum sample size in bytes. */
   public final int maximumSize;
-  /** Sample timestamps in microseconds. */
-  public final long[] timestampsUs;
-  /** Sample flags. */
-  public final int[] flags;
   /** The duration of the track sample table in microseconds. */
   public final long durationUs;
 
+  // Expanded representation.
+  @Nullable private final long[] offsets;
+  @Nullable private final int[] sizes;
+  @Nullable private final long[] timestampsUs;
+  @Nullable private final int[] flags;
+
+  // Compact representation: table index i lies in segment k when segmentFirstIndex[k] <= i, and
+  // maps to compactSamples index segmentSourceIndex[k] + (i - segmentFirstIndex[k]).
+  @Nullable private final CompactSamples compactSamples;
+  @Nullable private final int[] segmentFirstIndex;
+  @Nullable private final int[] segmentSourceIndex;
+  // Presentation time of a sample: segmentStartUs[k] + (sample media time - segmentMediaTime[k]),
+  // clamped to segmentStartUs[k] if clampToSegmentStart.
+  @Nullable private final long[] segmentStartUs;
+  @Nullable private final long[] segmentMediaTime;
+  private final boolean clampToSegmentStart;
+
   public TrackSampleTable(
       Track track,
       long[] offsets,
@@ -71,6 +92,154 @@ import com.google.android.exoplayer2.util.Util;
     if (flags.length > 0) {
       flags[flags.length - 1] |= C.BUFFER_FLAG_LAST_SAMPLE;
     }
+    compactSamples = null;
+    segmentFirstIndex = null;
+    segmentSourceIndex = null;
+    segmentStartUs = null;
+    segmentMediaTime = null;
+    clampToSegmentStart = false;
+  }
+
+  /**
+   * Creates a table over {@code compactSamples}.
+   *
+   * @param segmentFirstIndex For each segment, the index in this table of its first sample.
+   *     Ascending, starting at 0.
+   * @param segmentSourceIndex For each segment, the index in {@code compactSamples} of its first
+   *     sample.
+   * @param segmentStartUs For each segment, the presentation time in microseconds that {@code
+   *     segmentMediaTime} maps to.
+   * @param segmentMediaTime For each segment, a media time in track timescale units.
+   * @param clampToSegmentStart Whether samples before a segment's media time are presented at the
+   *     segment start instead of earlier.
+   */
+  public TrackSampleTable(
+      Track track,
+      CompactSamples compactSamples,
+      int sampleCount,
+      int maximumSize,
+      int[] segmentFirstIndex,
+      int[] segmentSourceIndex,
+      long[] segmentStartUs,
+      long[] segmentMediaTime,
+      boolean clampToSegmentStart,
+      long durationUs) {
+    Assertions.checkArgument(segmentFirstIndex.length > 0 && segmentFirstIndex[0] == 0);
+    this.track = track;
+    this.compactSamples = compactSamples;
+    this.sampleCount = sampleCount;
+    this.maximumSize = maximumSize;
+    this.segmentFirstIndex = segmentFirstIndex;
+    this.segmentSourceIndex = segmentSourceIndex;
+    this.segmentStartUs = segmentStartUs;
+    this.segmentMediaTime = segmentMediaTime;
+    this.clampToSegmentStart = clampToSegmentStart;
+    this.durationUs = durationUs;
+    offsets = null;
+    sizes = null;
+    timestampsUs = null;
+    flags = null;
+  }
+
+  /** Reads a table written by {@link #writeTo} for {@code track}. */
+  public static TrackSampleTable readFrom(ByteBuffer buffer, Track track) {
+    int maximumSize = buffer.getInt();
+    long durationUs = buffer.getLong();
+    if (buffer.get() == 0) {
+      return new TrackSampleTable(
+          track,
+          MoovIndexCache.readLongArray(buffer),
+          MoovIndexCache.readIntArray(buffer),
+          maximumSize,
+          MoovIndexCache.readLongArray(buffer),
+          MoovIndexCache.readIntArray(buffer),
+          durationUs);
+    }
+    int sampleCount = buffer.getInt();
+    CompactSamples compactSamples = CompactSamples.readFrom(buffer);
+    return new TrackSampleTable(
+        track,
+        compactSamples,
+        sampleCount,
+        maximumSize,
+        MoovIndexCache.readIntArray(buffer),
+        MoovIndexCache.readIntArray(buffer),
+        MoovIndexCache.readLongArray(buffer),
+        MoovIndexCache.readLongArray(buffer),
+        /* clampToSegmentStart= */ buffer.get() != 0,
+        durationUs);
+  }
+
+  /** Writes everything but the track, which is parsed from the moov again on reading. */
+  public void writeTo(DataOutputStream output) throws IOException {
+    output.writeInt(maximumSize);
+    output.writeLong(durationUs);
+    output.writeBoolean(compactSamples != null);
+    if (compactSamples == null) {
+      MoovIndexCache.writeLongArray(output, castNonNull(offsets));
+      MoovIndexCache.writeIntArray(output, castNonNull(sizes));
+      MoovIndexCache.writeLongArray(output, castNonNull(timestampsUs));
+      MoovIndexCache.writeIntArray(output, castNonNull(flags));
+      return;
+    }
+    output.writeInt(sampleCount);
+    compactSamples.writeTo(output);
+    MoovIndexCache.writeIntArray(output, castNonNull(segmentFirstIndex));
+    MoovIndexCache.writeIntArray(output, castNonNull(segmentSourceIndex));
+    MoovIndexCache.writeLongArray(output, castNonNull(segmentStartUs));
+    MoovIndexCache.writeLongArray(output, castNonNull(segmentMediaTime));
+    output.writeBoolean(clampToSegmentStart);
+  }
+
+  /** Returns the offset of a sample in bytes. */
+  public long getOffset(int index) {
+    if (offsets != null) {
+      return offsets[index];
+    }
+    return castNonNull(compactSamples).getOffset(sourceIndex(index));
+  }
+
+  /** Returns the size of a sample in bytes. */
+  public int getSize(int index) {
+    if (sizes != null) {
+      return sizes[index];
+    }
+    return castNonNull(compactSamples).getSize(sourceIndex(index));
+  }
+
+  /** Returns the timestamp of a sample in microseconds. */
+  public long getTimestampUs(int index) {
+    if (timestampsUs != null) {
+      return timestampsUs[index];
+    }
+    int segment = segment(index);
+    long mediaTime =
+        castNonNull(compactSamples).getTimestamp(sourceIndex(index, segment))
+            - castNonNull(segmentMediaTime)[segment];
+    long timeInSegmentUs =
+        Util.scaleLargeTimestamp(mediaTime, C.MICROS_PER_SECOND, track.timescale);
+    if (clampToSegmentStart) {
+      timeInSegmentUs = Math.max(0, timeInSegmentUs);
+    }
+    return castNonNull(segmentStartUs)[segment] + timeInSegmentUs;
+  }
+
+  /** Returns the {@link C.BufferFlags} of a sample. */
+  public @C.BufferFlags int getFlags(int index) {
+    if (flags != null) {
+      return flags[index];
+    }
+    int sampleFlags =
+        castNonNull(compactSamples).isSyncSample(sourceIndex(index)) ? C.BUFFER_FLAG_KEY_FRAME : 0;
+    return index == sampleCount - 1 ? sampleFlags | C.BUFFER_FLAG_LAST_SAMPLE : sampleFlags;
+  }
+
+  /** Returns the approximate heap used by the per-sample data, in bytes. */
+  public long getSampleDataSizeInBytes() {
+    if (compactSamples == null) {
+      return (long) EXPANDED_BYTES_PER_SAMPLE * sampleCount;
+    }
+    return compactSamples.sizeInBytes() + 24L * castNonNull(segmentFirstIndex).length;
   }
 
   /**
@@ -83,9 +252,12 @@ import com.google.android.exoplayer2.util.Util;
   public int getIndexOfEarlierOrEqualSynchronizationSample(long timeUs) {
     // Video frame timestamps may not be sorted, so the behavior of this call can be undefined.
     // Frames are not reordered past synchronization samples so this works in practice.
+    if (timestampsUs == null) {
+      return getSyncSampleAtOrBefore(binarySearchFloorUs(timeUs));
+    }
     int startIndex = Util.binarySearchFloor(timestampsUs, timeUs, true, false);
     for (int i = startIndex; i >= 0; i--) {
-      if ((flags[i] & C.BUFFER_FLAG_KEY_FRAME) != 0) {
+      if ((getFlags(i) & C.BUFFER_FLAG_KEY_FRAME) != 0) {
         return i;
       }
     }
@@ -100,12 +272,122 @@ import com.google.android.exoplayer2.util.Util;
    * @return index Index of the synchronization sample, or {@link C#INDEX_UNSET} if none.
    */
   public int getIndexOfLaterOrEqualSynchronizationSample(long timeUs) {
+    if (timestampsUs == null) {
+      return getSyncSampleAtOrAfter(binarySearchCeilUs(timeUs));
+    }
     int startIndex = Util.binarySearchCeil(timestampsUs, timeUs, true, false);
-    for (int i = startIndex; i < timestampsUs.length; i++) {
-      if ((flags[i] & C.BUFFER_FLAG_KEY_FRAME) != 0) {
+    for (int i = startIndex; i < sampleCount; i++) {
+      if ((getFlags(i) & C.BUFFER_FLAG_KEY_FRAME) != 0) {
         return i;
       }
     }
     return C.INDEX_UNSET;
   }
+
+  // The sync sample index of the compact samples, walked back across segments.
+  private int getSyncSampleAtOrBefore(int index) {
+    if (index < 0) {
+      return C.INDEX_UNSET;
+    }
+    CompactSamples compactSamples = castNonNull(this.compactSamples);
+    int[] segmentFirstIndex = castNonNull(this.segmentFirstIndex);
+    int[] segmentSourceIndex = castNonNull(this.segmentSourceIndex);
+    for (int segment = segment(index); segment >= 0; segment--) {
+      int firstIndex = segmentFirstIndex[segment];
+      int sourceIndex = segmentSourceIndex[segment];
+      int syncSourceIndex =
+          compactSamples.getSyncSampleAtOrBefore(sourceIndex + index - firstIndex);
+      if (syncSourceIndex != C.INDEX_UNSET && syncSourceIndex >= sourceIndex) {
+        return firstIndex + syncSourceIndex - sourceIndex;
+      }
+      index = firstIndex - 1;
+    }
+    return C.INDEX_UNSET;
+  }
+
+  // The sync sample index of the compact samples, walked forward across segments.
+  private int getSyncSampleAtOrAfter(int index) {
+    if (index >= sampleCount) {
+      return C.INDEX_UNSET;
+    }
+    CompactSamples compactSamples = castNonNull(this.compactSamples);
+    int[] segmentFirstIndex = castNonNull(this.segmentFirstIndex);
+    int[] segmentSourceIndex = castNonNull(this.segmentSourceIndex);
+    for (int segment = segment(index); segment < segmentFirstIndex.length; segment++) {
+      int firstIndex = segmentFirstIndex[segment];
+      int endIndex =
+          segment + 1 < segmentFirstIndex.length ? segmentFirstIndex[segment + 1] : sampleCount;
+      int sourceIndex = segmentSourceIndex[segment];
+      int syncSourceIndex = compactSamples.getSyncSampleAtOrAfter(sourceIndex + index - firstIndex);
+      if (syncSourceIndex != C.INDEX_UNSET
+          && syncSourceIndex - sourceIndex < endIndex - firstIndex) {
+        return firstIndex + syncSourceIndex - sourceIndex;
+      }
+      index = endIndex;
+    }
+    return C.INDEX_UNSET;
+  }
+
+  private int segment(int index) {
+    int[] segmentFirstIndex = castNonNull(this.segmentFirstIndex);
+    int low = 0;
+    int high = segmentFirstIndex.length - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (segmentFirstIndex[mid] <= index) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  private int sourceIndex(int index) {
+    return sourceIndex(index, segment(index));
+  }
+
+  private int sourceIndex(int index, int segment) {
+    return castNonNull(segmentSourceIndex)[segment]
+        + index
+        - castNonNull(segmentFirstIndex)[segment];
+  }
+
+  // Util.binarySearchFloor(timestampsUs, timeUs, true, false) over getTimestampUs.
+  private int binarySearchFloorUs(long timeUs) {
+    int index = binarySearchUs(timeUs);
+    if (index < 0) {
+      return -(index + 2);
+    }
+    while (--index >= 0 && getTimestampUs(index) == timeUs) {}
+    return index + 1;
+  }
+
+  // Util.binarySearchCeil(timestampsUs, timeUs, true, false) over getTimestampUs.
+  private int binarySearchCeilUs(long timeUs) {
+    int index = binarySearchUs(timeUs);
+    if (index < 0) {
+      return ~index;
+    }
+    while (++index < sampleCount && getTimestampUs(index) == timeUs) {}
+    return index - 1;
+  }
+
+  // Same probing as java.util.Arrays.binarySearch.
+  private int binarySearchUs(long timeUs) {
+    int low = 0;
+    int high = sampleCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midVal = getTimestampUs(mid);
+      if (midVal < timeUs) {
+        low = mid + 1;
+      } else if (midVal > timeUs) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
 }
@@ -25,6 +25,7 @@ import static java.lang.annotation.ElementType.TYPE_USE;
 
 import androidx.annotation.IntDef;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.ParserException;
@@ -44,11 +45,14 @@ import com.google.android.exoplayer2.extractor.mp4.Track;
 import com.google.android.exoplayer2.metadata.Metadata;
 import com.google.android.exoplayer2.metadata.mp4.MotionPhotoMetadata;
 import com.google.android.exoplayer2.metadata.mp4.SlowMotionData;
-import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.Log;
 import com.google.android.exoplayer2.util.MimeTypes;
 import com.google.android.exoplayer2.util.NalUnitUtil;
 import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.google.common.collect.ImmutableSet;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.lang.annotation.Documented;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -56,11 +60,17 @@ import java.lang.annotation.Target;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 /**
  * Extracts data from the MP4 container format.
  *
+ * <p>Per-sample tables of 4 MiB or more are only left in the file when the input is a {@link
+ * MappedExtractorInput}. With any other input, every leaf atom that is parsed is copied to the
+ * heap, and a leaf atom with an extended size or a length over {@link Integer#MAX_VALUE} fails
+ * with a {@link ParserException}.
+ *
  * @deprecated com.google.android.exoplayer2 is deprecated. Please migrate to androidx.media3 (which
  *     contains the same ExoPlayer code). See <a
  *     href="https://developer.android.com/guide/topics/media/media3/getting-started/migration-guide">the
@@ -74,8 +84,9 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
 
   /**
    * Flags controlling the behavior of the extractor. Possible flag values are {@link
-   * #FLAG_WORKAROUND_IGNORE_EDIT_LISTS}, {@link #FLAG_READ_MOTION_PHOTO_METADATA} and {@link
-   * #FLAG_READ_SEF_DATA}.
+   * #FLAG_WORKAROUND_IGNORE_EDIT_LISTS}, {@link #FLAG_READ_MOTION_PHOTO_METADATA}, {@link
+   * #FLAG_READ_SEF_DATA}, {@link #FLAG_COALESCE_SAMPLE_READS} and {@link
+   * #FLAG_POSITIONAL_SAMPLE_READS}.
    */
   @Documented
   @Retention(RetentionPolicy.SOURCE)
@@ -85,7 +96,9 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
       value = {
         FLAG_WORKAROUND_IGNORE_EDIT_LISTS,
         FLAG_READ_MOTION_PHOTO_METADATA,
-        FLAG_READ_SEF_DATA
+        FLAG_READ_SEF_DATA,
+        FLAG_COALESCE_SAMPLE_READS,
+        FLAG_POSITIONAL_SAMPLE_READS
       })
   public @interface Flags {}
   /** Flag to ignore any edit lists in the stream. */
@@ -103,6 +116,23 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
    * videos.
    */
   public static final int FLAG_READ_SEF_DATA = 1 << 2;
+  /**
+   * Flag to read runs of samples that a track stores back to back with one read of up to {@link
+   * #MAXIMUM_COALESCED_READ_BYTES}, instead of one read per sample. This saves calls into the data
+   * source, which matters for network or FUSE backed storage.
+   */
+  public static final int FLAG_COALESCE_SAMPLE_READS = 1 << 4;
+  /**
+   * Flag to read samples in the order they are needed across tracks when the input is a {@link
+   * MappedExtractorInput}, moving the input to each track's next sample, instead of reading one
+   * region of the file up to {@link #MAXIMUM_READ_AHEAD_BYTES_STREAM} ahead before moving to the
+   * next. This keeps the read-ahead of poorly interleaved files near zero, at the cost of a move,
+   * and possibly a page fault, on every track switch. The input keeps a mapped segment per track.
+   */
+  public static final int FLAG_POSITIONAL_SAMPLE_READS = 1 << 5;
+
+  /** Flags that change the parsed sample tables, which key the {@link MoovIndexCache} entries. */
+  private static final int SAMPLE_TABLE_FLAGS = FLAG_WORKAROUND_IGNORE_EDIT_LISTS;
 
   /** Parser states. */
   @Documented
@@ -116,6 +146,8 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
   })
   private @interface State {}
 
+  private static final String TAG = "VcatMp4Extractor";
+
   private static final int STATE_READING_ATOM_HEADER = 0;
   private static final int STATE_READING_ATOM_PAYLOAD = 1;
   private static final int STATE_READING_SAMPLE = 2;
@@ -136,13 +168,23 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
    * When seeking within the source, if the offset is greater than or equal to this value (or the
    * offset is negative), the source will be reloaded.
    */
-  private static final long RELOAD_MINIMUM_SEEK_DISTANCE = 256 * 1024;
+  /* package */ static final long RELOAD_MINIMUM_SEEK_DISTANCE = 256 * 1024;
 
   /**
    * For poorly interleaved streams, the maximum byte difference one track is allowed to be read
    * ahead before the source will be reloaded at a new position to read another track.
    */
-  private static final long MAXIMUM_READ_AHEAD_BYTES_STREAM = 10 * 1024 * 1024;
+  /* package */ static final long MAXIMUM_READ_AHEAD_BYTES_STREAM = 10 * 1024 * 1024;
+
+  /**
+   * Per-sample table atoms at least this large are left in the file when it is memory-mapped,
+   * instead of being copied to the heap.
+   */
+  @VisibleForTesting
+  /* package */ static final long MINIMUM_FILE_BACKED_ATOM_SIZE = 4 * 1024 * 1024;
+
+  /** The maximum number of bytes read at once with {@link #FLAG_COALESCE_SAMPLE_READS}. */
+  private static final int MAXIMUM_COALESCED_READ_BYTES = 1024 * 1024;
 
   private final @Flags int flags;
 
@@ -150,9 +192,13 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
   private final ParsableByteArray nalStartCode;
   private final ParsableByteArray nalLength;
   private final ParsableByteArray scratch;
+  private final ParsableByteArray sampleBuffer;
 
   private final ParsableByteArray atomHeader;
   private final ArrayDeque<Atom.ContainerAtom> containerAtoms;
+  private final AtomBufferPool atomBuffers;
+  // Traks of the moov being read whose sample tables are parsed while the rest is read.
+  private final List<AtomParsers.PendingTrak> pendingTraks;
   private final SefReader sefReader;
   private final List<Metadata.Entry> slowMotionMetadataEntries;
 
@@ -161,17 +207,32 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
   private long atomSize;
   private int atomHeaderBytesRead;
   @Nullable private ParsableByteArray atomData;
+  @Nullable private ByteBuffer atomRegion;
+
+  // Input consumed before the moov atom was processed.
+  private long preparationBytesRead;
+  private int preparationSeeks;
 
   private int sampleTrackIndex;
   private int sampleBytesRead;
   private int sampleBytesWritten;
   private int sampleCurrentNalBytesRemaining;
+  // The number of samples being read with one coalesced read, or 0.
+  private int coalescedSampleCount;
+  private int coalescedBytes;
 
   // Extractor outputs.
   private ExtractorOutput extractorOutput;
   private Mp4Track[] tracks;
 
-  private long @MonotonicNonNull [][] accumulatedSampleSizes;
+  private @MonotonicNonNull AccumulatedSampleSizes accumulatedSampleSizes;
+  private @MonotonicNonNull SampleScheduler sampleScheduler;
+  @Nullable private MoovIndexCache.FileIndex moovIndex;
+  @Nullable private ImmutableSet<Integer> selectedTrackIds;
+  private long sampleDataBytesRead;
+  // Source reloads for samples since the last seek, which was to sampleReloadsStartTimeUs.
+  private int sampleReloads;
+  private long sampleReloadsStartTimeUs;
   private int firstVideoTrackIndex;
   private long durationUs;
   private @FileType int fileType;
@@ -196,14 +257,41 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
     slowMotionMetadataEntries = new ArrayList<>();
     atomHeader = new ParsableByteArray(Atom.LONG_HEADER_SIZE);
     containerAtoms = new ArrayDeque<>();
+    atomBuffers = new AtomBufferPool();
+    pendingTraks = new ArrayList<>();
     nalStartCode = new ParsableByteArray(NalUnitUtil.NAL_START_CODE);
     nalLength = new ParsableByteArray(4);
     scratch = new ParsableByteArray();
+    sampleBuffer = new ParsableByteArray();
     sampleTrackIndex = C.INDEX_UNSET;
     extractorOutput = ExtractorOutput.PLACEHOLDER;
     tracks = new Mp4Track[0];
   }
 
+  /** Sets where sample tables of the file being read are cached, or null to always parse them. */
+  /* package */ void setMoovIndex(@Nullable MoovIndexCache.FileIndex moovIndex) {
+    this.moovIndex = moovIndex;
+  }
+
+  /** Returns the bytes read from the input to prepare, up to the first sample. */
+  @VisibleForTesting
+  /* package */ long getPreparationBytesRead() {
+    return preparationBytesRead;
+  }
+
+  /**
+   * Sets the ids of the tracks to extract, or null to extract all tracks. Other tracks get no
+   * {@link TrackOutput} and are left out of sample scheduling, so their sample data is never read.
+   *
+   * <p>The ids are the track_ID values of the tkhd atoms. The extracted tracks are output with ids
+   * 0, 1, and so on, in file order, which are also the ids {@link #getSeekPoints(long, int)} takes.
+   *
+   * <p>Must be called before the extractor reads the moov atom.
+   */
+  public void setSelectedTrackIds(@Nullable Set<Integer> trackIds) {
+    selectedTrackIds = trackIds != null ? ImmutableSet.copyOf(trackIds) : null;
+  }
+
   @Override
   public boolean sniff(ExtractorInput input) throws IOException {
     return Sniffer.sniffUnfragmented(
@@ -218,12 +306,20 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
   @Override
   public void seek(long position, long timeUs) {
     containerAtoms.clear();
+    cancelPendingTraks();
+    atomBuffers.recycleAll();
     atomHeaderBytesRead = 0;
     sampleTrackIndex = C.INDEX_UNSET;
     sampleBytesRead = 0;
     sampleBytesWritten = 0;
     sampleCurrentNalBytesRemaining = 0;
+    coalescedSampleCount = 0;
+    logSampleReloads();
+    sampleReloads = 0;
+    sampleReloadsStartTimeUs = timeUs;
     if (position == 0) {
+      preparationBytesRead = 0;
+      preparationSeeks = 0;
       // Reading the SEF data occurs before normal MP4 parsing. Therefore we can not transition to
       // reading the atom header until that has completed.
       if (parserState != STATE_READING_SEF) {
@@ -233,18 +329,31 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
         slowMotionMetadataEntries.clear();
       }
     } else {
-      for (Mp4Track track : tracks) {
+      for (int i = 0; i < tracks.length; i++) {
+        Mp4Track track = tracks[i];
         updateSampleIndex(track, timeUs);
         if (track.trueHdSampleRechunker != null) {
           track.trueHdSampleRechunker.reset();
         }
+        if (sampleScheduler != null) {
+          sampleScheduler.update(i, track.sampleIndex);
+        }
       }
     }
   }
 
   @Override
   public void release() {
-    // Do nothing
+    cancelPendingTraks();
+    logSampleReloads();
+    Log.d(
+        TAG,
+        "Read " + sampleDataBytesRead + " bytes of sample data from " + tracks.length + " tracks");
+    if (accumulatedSampleSizes != null) {
+      Log.d(
+          TAG,
+          "Accumulated sample sizes held " + accumulatedSampleSizes.sizeInBytes() + " bytes");
+    }
   }
 
   @Override
@@ -319,14 +428,14 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
       if (sampleIndex == C.INDEX_UNSET) {
         return new SeekPoints(SeekPoint.START);
       }
-      long sampleTimeUs = sampleTable.timestampsUs[sampleIndex];
+      long sampleTimeUs = sampleTable.getTimestampUs(sampleIndex);
       firstTimeUs = sampleTimeUs;
-      firstOffset = sampleTable.offsets[sampleIndex];
+      firstOffset = sampleTable.getOffset(sampleIndex);
       if (sampleTimeUs < timeUs && sampleIndex < sampleTable.sampleCount - 1) {
         int secondSampleIndex = sampleTable.getIndexOfLaterOrEqualSynchronizationSample(timeUs);
         if (secondSampleIndex != C.INDEX_UNSET && secondSampleIndex != sampleIndex) {
-          secondTimeUs = sampleTable.timestampsUs[secondSampleIndex];
-          secondOffset = sampleTable.offsets[secondSampleIndex];
+          secondTimeUs = sampleTable.getTimestampUs(secondSampleIndex);
+          secondOffset = sampleTable.getOffset(secondSampleIndex);
         }
       }
     } else {
@@ -371,6 +480,7 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
         return false;
       }
       atomHeaderBytesRead = Atom.HEADER_SIZE;
+      preparationBytesRead += Atom.HEADER_SIZE;
       atomHeader.setPosition(0);
       atomSize = atomHeader.readUnsignedInt();
       atomType = atomHeader.readInt();
@@ -381,6 +491,7 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
       int headerBytesRemaining = Atom.LONG_HEADER_SIZE - Atom.HEADER_SIZE;
       input.readFully(atomHeader.getData(), Atom.HEADER_SIZE, headerBytesRemaining);
       atomHeaderBytesRead += headerBytesRemaining;
+      preparationBytesRead += headerBytesRemaining;
       atomSize = atomHeader.readUnsignedLongToLong();
     } else if (atomSize == Atom.EXTENDS_TO_END_SIZE) {
       // The atom extends to the end of the file. Note that if the atom is within a container we can
@@ -415,17 +526,34 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
         enterReadingAtomHeaderState();
       }
     } else if (shouldParseLeafAtom(atomType)) {
-      // We don't support parsing of leaf atoms that define extended atom sizes, or that have
-      // lengths greater than Integer.MAX_VALUE.
-      Assertions.checkState(atomHeaderBytesRead == Atom.HEADER_SIZE);
-      Assertions.checkState(atomSize <= Integer.MAX_VALUE);
-      ParsableByteArray atomData = new ParsableByteArray((int) atomSize);
+      ParsableByteArray atomData;
+      if (shouldLeaveAtomInFile(input)) {
+        // Map the atom as if it had a standard length header, so that entry positions match those
+        // of an atom on the heap. Only the fields before the entries are read.
+        long payloadPosition = input.getPosition();
+        atomRegion =
+            ((MappedExtractorInput) input)
+                .mapRegion(
+                    payloadPosition - Atom.HEADER_SIZE,
+                    (int) (atomSize - atomHeaderBytesRead + Atom.HEADER_SIZE));
+        atomData = new ParsableByteArray(AtomParsers.getTableEntriesPosition(atomType));
+      } else {
+        // We don't support parsing of leaf atoms that define extended atom sizes, or that have
+        // lengths greater than Integer.MAX_VALUE, unless they are left in a mapped file.
+        if (atomHeaderBytesRead != Atom.HEADER_SIZE || atomSize > Integer.MAX_VALUE) {
+          throw ParserException.createForUnsupportedContainerFeature(
+              "Leaf atom with extended size or length > 2147483647 (unsupported).");
+        }
+        atomRegion = null;
+        atomData = newAtomData((int) atomSize);
+      }
       System.arraycopy(atomHeader.getData(), 0, atomData.getData(), 0, Atom.HEADER_SIZE);
       this.atomData = atomData;
       parserState = STATE_READING_ATOM_PAYLOAD;
     } else {
       processUnparsedAtom(input.getPosition() - atomHeaderBytesRead);
       atomData = null;
+      atomRegion = null;
       parserState = STATE_READING_ATOM_PAYLOAD;
     }
 
@@ -443,26 +571,57 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
     long atomEndPosition = input.getPosition() + atomPayloadSize;
     boolean seekRequired = false;
     @Nullable ParsableByteArray atomData = this.atomData;
-    if (atomData != null) {
+    @Nullable ByteBuffer atomRegion = this.atomRegion;
+    if (atomData != null && atomRegion != null) {
+      int fieldsSize = atomData.limit() - Atom.HEADER_SIZE;
+      input.readFully(atomData.getData(), Atom.HEADER_SIZE, fieldsSize);
+      preparationBytesRead += fieldsSize;
+      seekInPlace(input, atomEndPosition);
+      if (!containerAtoms.isEmpty()) {
+        containerAtoms.peek().add(new Atom.LeafAtom(atomType, atomData, atomRegion));
+      }
+    } else if (atomData != null) {
       input.readFully(atomData.getData(), atomHeaderBytesRead, (int) atomPayloadSize);
+      preparationBytesRead += atomPayloadSize;
       if (atomType == Atom.TYPE_ftyp) {
         fileType = processFtypAtom(atomData);
       } else if (!containerAtoms.isEmpty()) {
         containerAtoms.peek().add(new Atom.LeafAtom(atomType, atomData));
+        if (atomType == Atom.TYPE_mvhd) {
+          startTraksReadBeforeMvhd();
+        }
       }
     } else {
       // We don't need the data. Skip or seek, depending on how large the atom is.
       if (atomPayloadSize < RELOAD_MINIMUM_SEEK_DISTANCE) {
         input.skipFully((int) atomPayloadSize);
+        preparationBytesRead += atomPayloadSize;
       } else {
-        positionHolder.position = input.getPosition() + atomPayloadSize;
-        seekRequired = true;
+        preparationSeeks++;
+        if (!seekInPlace(input, input.getPosition() + atomPayloadSize)) {
+          positionHolder.position = input.getPosition() + atomPayloadSize;
+          seekRequired = true;
+        }
       }
     }
     processAtomEnded(atomEndPosition);
     return seekRequired && parserState != STATE_READING_SAMPLE;
   }
 
+  /**
+   * Returns whether the entries of the leaf atom whose header was just read should stay in the
+   * file. The per-sample tables (sample sizes, chunk offsets, time deltas, composition offsets and
+   * sync samples) make up nearly all of a large moov, so they are left in the file when it is
+   * memory-mapped and they are large enough to matter. Parsing then reads them from the mapping,
+   * and only the sample sizes are read again per sample afterwards.
+   */
+  private boolean shouldLeaveAtomInFile(ExtractorInput input) {
+    return AtomParsers.getTableEntriesPosition(atomType) != C.INDEX_UNSET
+        && input instanceof MappedExtractorInput
+        && atomSize >= MINIMUM_FILE_BACKED_ATOM_SIZE
+        && atomSize - atomHeaderBytesRead + Atom.HEADER_SIZE <= Integer.MAX_VALUE;
+  }
+
   private @ReadResult int readSefData(ExtractorInput input, PositionHolder seekPosition)
       throws IOException {
     @ReadResult int result = sefReader.read(input, seekPosition, slowMotionMetadataEntries);
@@ -472,6 +631,18 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
     return result;
   }
 
+  /**
+   * Moves {@code input} to {@code position} without a source reload if it is a {@link
+   * MappedExtractorInput}. Returns false if the caller has to return {@link #RESULT_SEEK} instead.
+   */
+  private static boolean seekInPlace(ExtractorInput input, long position) {
+    if (input instanceof MappedExtractorInput) {
+      ((MappedExtractorInput) input).seekTo(position);
+      return true;
+    }
+    return false;
+  }
+
   private void processAtomEnded(long atomEndPosition) throws ParserException {
     while (!containerAtoms.isEmpty() && containerAtoms.peek().endPosition == atomEndPosition) {
       Atom.ContainerAtom containerAtom = containerAtoms.pop();
@@ -480,17 +651,87 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
         processMoovAtom(containerAtom);
         containerAtoms.clear();
         parserState = STATE_READING_SAMPLE;
+      } else if (containerAtom.type == Atom.TYPE_trak && startPendingTrak(containerAtom)) {
+        // The trak isn't added to the moov, so its atoms can be collected once it's parsed.
       } else if (!containerAtoms.isEmpty()) {
         containerAtoms.peek().add(containerAtom);
       }
     }
+    if (containerAtoms.isEmpty()) {
+      // The top-level atom has been processed and nothing references its leaf atoms anymore.
+      atomBuffers.recycleAll();
+    }
     if (parserState != STATE_READING_SAMPLE) {
       enterReadingAtomHeaderState();
     }
   }
 
+  /**
+   * Starts parsing a trak that has just been read, rather than waiting for the end of the moov.
+   * Returns whether the trak was handled, which requires the mvhd to have been read already. Traks
+   * read before the mvhd are started when it's read. The moov is kept whole when it's hashed for
+   * the {@link MoovIndexCache}.
+   */
+  private boolean startPendingTrak(Atom.ContainerAtom trak) throws ParserException {
+    @Nullable Atom.ContainerAtom moov = containerAtoms.peek();
+    if (moov == null || moov.type != Atom.TYPE_moov || moovIndex != null) {
+      return false;
+    }
+    @Nullable Atom.LeafAtom mvhd = moov.getLeafAtomOfType(Atom.TYPE_mvhd);
+    if (mvhd == null) {
+      return false;
+    }
+    @Nullable
+    AtomParsers.PendingTrak pendingTrak =
+        AtomParsers.parseTrakAsync(
+            trak,
+            mvhd,
+            (flags & FLAG_WORKAROUND_IGNORE_EDIT_LISTS) != 0,
+            fileType == FILE_TYPE_QUICKTIME);
+    if (pendingTrak != null) {
+      pendingTraks.add(pendingTrak);
+    }
+    return true;
+  }
+
+  /** Starts parsing the traks of the moov being read that were read before its mvhd. */
+  private void startTraksReadBeforeMvhd() throws ParserException {
+    @Nullable Atom.ContainerAtom moov = containerAtoms.peek();
+    if (moov == null || moov.type != Atom.TYPE_moov) {
+      return;
+    }
+    List<Atom.ContainerAtom> children = moov.containerChildren;
+    for (int i = 0; i < children.size(); ) {
+      Atom.ContainerAtom child = children.get(i);
+      if (child.type == Atom.TYPE_trak && startPendingTrak(child)) {
+        children.remove(i);
+      } else {
+        i++;
+      }
+    }
+  }
+
+  private void cancelPendingTraks() {
+    for (int i = 0; i < pendingTraks.size(); i++) {
+      pendingTraks.get(i).cancel();
+    }
+    pendingTraks.clear();
+  }
+
+  /**
+   * Returns a buffer for a leaf atom of {@code size} bytes. Atoms inside moov stay referenced by
+   * the parsed tracks, so they get a buffer of their own rather than one from the pool.
+   */
+  private ParsableByteArray newAtomData(int size) {
+    @Nullable Atom.ContainerAtom topLevelAtom = containerAtoms.peekLast();
+    return topLevelAtom != null && topLevelAtom.type == Atom.TYPE_moov
+        ? new ParsableByteArray(size)
+        : atomBuffers.acquire(size);
+  }
+
   /** Updates the stored track metadata to reflect the contents of the specified moov atom. */
   private void processMoovAtom(Atom.ContainerAtom moov) throws ParserException {
+    long startTimeNs = System.nanoTime();
     int firstVideoTrackIndex = C.INDEX_UNSET;
     long durationUs = C.TIME_UNSET;
     List<Mp4Track> tracks = new ArrayList<>();
@@ -521,15 +762,49 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
         AtomParsers.parseMvhd(checkNotNull(moov.getLeafAtomOfType(Atom.TYPE_mvhd)).data).metadata;
 
     boolean ignoreEditLists = (flags & FLAG_WORKAROUND_IGNORE_EDIT_LISTS) != 0;
-    List<TrackSampleTable> trackSampleTables =
-        parseTraks(
-            moov,
-            gaplessInfoHolder,
-            /* duration= */ C.TIME_UNSET,
-            /* drmInitData= */ null,
-            ignoreEditLists,
-            isQuickTime,
-            /* modifyTrackFunction= */ track -> track);
+    @Nullable List<TrackSampleTable> trackSampleTables = null;
+    long moovHash = 0;
+    if (moovIndex != null) {
+      moovHash = MoovIndexCache.hash(moov);
+      List<Track> cachedTracks =
+          AtomParsers.parseTrackHeaders(
+              moov,
+              /* duration= */ C.TIME_UNSET,
+              /* drmInitData= */ null,
+              ignoreEditLists,
+              isQuickTime,
+              /* modifyTrackFunction= */ track -> track,
+              /* stblAtoms= */ null);
+      trackSampleTables =
+          moovIndex.load(moovHash, flags & SAMPLE_TABLE_FLAGS, cachedTracks, gaplessInfoHolder);
+      Log.d(TAG, "moov index cache " + (trackSampleTables != null ? "hit" : "miss"));
+    }
+    if (trackSampleTables == null) {
+      trackSampleTables =
+          parseTraks(
+              moov,
+              gaplessInfoHolder,
+              /* duration= */ C.TIME_UNSET,
+              /* drmInitData= */ null,
+              ignoreEditLists,
+              isQuickTime,
+              /* modifyTrackFunction= */ track -> track);
+      if (moovIndex != null) {
+        moovIndex.store(
+            moovHash, flags & SAMPLE_TABLE_FLAGS, trackSampleTables, gaplessInfoHolder);
+      }
+    }
+    if (!pendingTraks.isEmpty()) {
+      // Traks are only pending if all of them were started, so none were left in the moov.
+      trackSampleTables = new ArrayList<>(trackSampleTables);
+      try {
+        for (int i = 0; i < pendingTraks.size(); i++) {
+          trackSampleTables.add(pendingTraks.get(i).get(gaplessInfoHolder));
+        }
+      } finally {
+        cancelPendingTraks();
+      }
+    }
 
     int trackCount = trackSampleTables.size();
     for (int i = 0; i < trackCount; i++) {
@@ -538,11 +813,26 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
         continue;
       }
       Track track = trackSampleTable.track;
+      if (selectedTrackIds != null && !selectedTrackIds.contains(track.id)) {
+        continue;
+      }
+      Log.d(
+          TAG,
+          "Track "
+              + track.id
+              + ": "
+              + trackSampleTable.sampleCount
+              + " samples, sample table "
+              + trackSampleTable.getSampleDataSizeInBytes()
+              + " bytes (expanded "
+              + (long) TrackSampleTable.EXPANDED_BYTES_PER_SAMPLE * trackSampleTable.sampleCount
+              + ")");
       long trackDurationUs =
           track.durationUs != C.TIME_UNSET ? track.durationUs : trackSampleTable.durationUs;
       durationUs = max(durationUs, trackDurationUs);
       Mp4Track mp4Track =
-          new Mp4Track(track, trackSampleTable, extractorOutput.track(i, track.type));
+          new Mp4Track(
+              track, trackSampleTable, extractorOutput.track(tracks.size(), track.type));
 
       int maxInputSize;
       if (MimeTypes.AUDIO_TRUEHD.equals(track.format.sampleMimeType)) {
@@ -583,7 +873,21 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
     this.firstVideoTrackIndex = firstVideoTrackIndex;
     this.durationUs = durationUs;
     this.tracks = tracks.toArray(new Mp4Track[0]);
-    accumulatedSampleSizes = calculateAccumulatedSampleSizes(this.tracks);
+    TrackSampleTable[] sampleTables = new TrackSampleTable[this.tracks.length];
+    for (int i = 0; i < sampleTables.length; i++) {
+      sampleTables[i] = this.tracks[i].sampleTable;
+    }
+    accumulatedSampleSizes = new AccumulatedSampleSizes(sampleTables);
+    sampleScheduler = new SampleScheduler(sampleTables, accumulatedSampleSizes);
+    Log.d(
+        TAG,
+        "moov processed in "
+            + (System.nanoTime() - startTimeNs) / 1000
+            + " us, after reading "
+            + preparationBytesRead
+            + " bytes with "
+            + preparationSeeks
+            + " seeks");
 
     extractorOutput.endTracks();
     extractorOutput.seekMap(this);
@@ -607,7 +911,13 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
   private int readSample(ExtractorInput input, PositionHolder positionHolder) throws IOException {
     long inputPosition = input.getPosition();
     if (sampleTrackIndex == C.INDEX_UNSET) {
-      sampleTrackIndex = getTrackIndexOfNextReadSample(inputPosition);
+      boolean positionalReads =
+          (flags & FLAG_POSITIONAL_SAMPLE_READS) != 0 && input instanceof MappedExtractorInput;
+      if (positionalReads) {
+        // Each track reads from its own region of the file.
+        ((MappedExtractorInput) input).setMinimumMappedSegmentCount(tracks.length);
+      }
+      sampleTrackIndex = getTrackIndexOfNextReadSample(inputPosition, positionalReads);
       if (sampleTrackIndex == C.INDEX_UNSET) {
         return RESULT_END_OF_INPUT;
       }
@@ -615,13 +925,17 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
     Mp4Track track = tracks[sampleTrackIndex];
     TrackOutput trackOutput = track.trackOutput;
     int sampleIndex = track.sampleIndex;
-    long position = track.sampleTable.offsets[sampleIndex];
-    int sampleSize = track.sampleTable.sizes[sampleIndex];
+    long position = track.sampleTable.getOffset(sampleIndex);
+    int sampleSize = track.sampleTable.getSize(sampleIndex);
     @Nullable TrueHdSampleRechunker trueHdSampleRechunker = track.trueHdSampleRechunker;
     long skipAmount = position - inputPosition + sampleBytesRead;
     if (skipAmount < 0 || skipAmount >= RELOAD_MINIMUM_SEEK_DISTANCE) {
-      positionHolder.position = position;
-      return RESULT_SEEK;
+      if (!seekInPlace(input, position)) {
+        positionHolder.position = position;
+        sampleReloads++;
+        return RESULT_SEEK;
+      }
+      skipAmount = sampleBytesRead;
     }
     if (track.track.sampleTransformation == Track.TRANSFORMATION_CEA608_CDAT) {
       // The sample information is contained in a cdat atom. The header must be discarded for
@@ -630,7 +944,31 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
       sampleSize -= Atom.HEADER_SIZE;
     }
     input.skipFully((int) skipAmount);
-    if (track.track.nalUnitLengthFieldLength != 0) {
+    if (sampleBytesRead == 0 && canCoalesceSampleReads(track)) {
+      startCoalescedRead(track);
+    }
+    if (coalescedSampleCount > 0) {
+      return readCoalescedSamples(input, track);
+    }
+    if (track.track.nalUnitLengthFieldLength
+        == StartCodeRewriter.REWRITABLE_NAL_UNIT_LENGTH_FIELD_LENGTH) {
+      // Start codes take the place of the length fields, so read the whole sample with as few
+      // calls as possible and rewrite it in place. sampleBytesRead lets an interrupted read resume.
+      if (sampleBytesRead == 0) {
+        sampleBuffer.reset(sampleSize);
+      }
+      byte[] sampleData = sampleBuffer.getData();
+      while (sampleBytesRead < sampleSize) {
+        int bytesRead = input.read(sampleData, sampleBytesRead, sampleSize - sampleBytesRead);
+        if (bytesRead == C.RESULT_END_OF_INPUT) {
+          throw new EOFException();
+        }
+        sampleBytesRead += bytesRead;
+      }
+      StartCodeRewriter.rewrite(sampleData, /* offset= */ 0, sampleSize);
+      trackOutput.sampleData(sampleBuffer, sampleSize);
+      sampleBytesWritten = sampleSize;
+    } else if (track.track.nalUnitLengthFieldLength != 0) {
       // Zero the top three bytes of the array that we'll use to decode nal unit lengths, in case
       // they're only 1 or 2 bytes long.
       byte[] nalLengthData = nalLength.getData();
@@ -687,8 +1025,8 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
       }
     }
 
-    long timeUs = track.sampleTable.timestampsUs[sampleIndex];
-    @C.BufferFlags int flags = track.sampleTable.flags[sampleIndex];
+    long timeUs = track.sampleTable.getTimestampUs(sampleIndex);
+    @C.BufferFlags int flags = track.sampleTable.getFlags(sampleIndex);
     if (trueHdSampleRechunker != null) {
       trueHdSampleRechunker.sampleMetadata(
           trackOutput, timeUs, flags, sampleSize, /* offset= */ 0, /* cryptoData= */ null);
@@ -700,7 +1038,9 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
           timeUs, flags, sampleSize, /* offset= */ 0, /* cryptoData= */ null);
     }
 
+    sampleDataBytesRead += sampleBytesRead;
     track.sampleIndex++;
+    castNonNull(sampleScheduler).update(sampleTrackIndex, track.sampleIndex);
     sampleTrackIndex = C.INDEX_UNSET;
     sampleBytesRead = 0;
     sampleBytesWritten = 0;
@@ -709,54 +1049,126 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
   }
 
   /**
-   * Returns the index of the track that contains the next sample to be read, or {@link
-   * C#INDEX_UNSET} if no samples remain.
-   *
-   * <p>The preferred choice is the sample with the smallest offset not requiring a source reload,
-   * or if not available the sample with the smallest overall offset to avoid subsequent source
-   * reloads.
-   *
-   * <p>To deal with poor sample interleaving, we also check whether the required memory to catch up
-   * with the next logical sample (based on sample time) exceeds {@link
-   * #MAXIMUM_READ_AHEAD_BYTES_STREAM}. If this is the case, we continue with this sample even
-   * though it may require a source reload.
+   * Returns whether {@link #FLAG_COALESCE_SAMPLE_READS} applies to samples of {@code track}, whose
+   * data is written to the output unchanged or with length fields rewritten in place.
    */
-  private int getTrackIndexOfNextReadSample(long inputPosition) {
-    long preferredSkipAmount = Long.MAX_VALUE;
-    boolean preferredRequiresReload = true;
-    int preferredTrackIndex = C.INDEX_UNSET;
-    long preferredAccumulatedBytes = Long.MAX_VALUE;
-    long minAccumulatedBytes = Long.MAX_VALUE;
-    boolean minAccumulatedBytesRequiresReload = true;
-    int minAccumulatedBytesTrackIndex = C.INDEX_UNSET;
-    for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
-      Mp4Track track = tracks[trackIndex];
-      int sampleIndex = track.sampleIndex;
-      if (sampleIndex == track.sampleTable.sampleCount) {
-        continue;
+  private boolean canCoalesceSampleReads(Mp4Track track) {
+    int nalUnitLengthFieldLength = track.track.nalUnitLengthFieldLength;
+    return (flags & FLAG_COALESCE_SAMPLE_READS) != 0
+        && track.track.sampleTransformation == Track.TRANSFORMATION_NONE
+        && track.trueHdSampleRechunker == null
+        && !MimeTypes.AUDIO_AC4.equals(track.track.format.sampleMimeType)
+        && (nalUnitLengthFieldLength == 0
+            || nalUnitLengthFieldLength
+                == StartCodeRewriter.REWRITABLE_NAL_UNIT_LENGTH_FIELD_LENGTH);
+  }
+
+  /**
+   * Sets {@link #coalescedSampleCount} and {@link #coalescedBytes} to the run of samples stored back
+   * to back from the track's current sample, if there are at least two that fit in one read.
+   */
+  private void startCoalescedRead(Mp4Track track) {
+    TrackSampleTable sampleTable = track.sampleTable;
+    int sampleIndex = track.sampleIndex;
+    long runEnd = sampleTable.getOffset(sampleIndex) + sampleTable.getSize(sampleIndex);
+    int runBytes = sampleTable.getSize(sampleIndex);
+    int runSampleCount = 1;
+    while (sampleIndex + runSampleCount < sampleTable.sampleCount) {
+      int nextSample = sampleIndex + runSampleCount;
+      int nextSize = sampleTable.getSize(nextSample);
+      if (sampleTable.getOffset(nextSample) != runEnd
+          || runBytes + nextSize > MAXIMUM_COALESCED_READ_BYTES) {
+        break;
+      }
+      runEnd += nextSize;
+      runBytes += nextSize;
+      runSampleCount++;
+    }
+    if (runSampleCount > 1) {
+      coalescedSampleCount = runSampleCount;
+      coalescedBytes = runBytes;
+      sampleBuffer.reset(runBytes);
+    }
+  }
+
+  /**
+   * Reads the {@link #coalescedSampleCount} samples of {@code track} at the input position with one
+   * read, then outputs each of them. {@link #sampleBytesRead} lets an interrupted read resume.
+   */
+  private int readCoalescedSamples(ExtractorInput input, Mp4Track track) throws IOException {
+    byte[] data = sampleBuffer.getData();
+    while (sampleBytesRead < coalescedBytes) {
+      int bytesRead = input.read(data, sampleBytesRead, coalescedBytes - sampleBytesRead);
+      if (bytesRead == C.RESULT_END_OF_INPUT) {
+        throw new EOFException();
       }
-      long sampleOffset = track.sampleTable.offsets[sampleIndex];
-      long sampleAccumulatedBytes = castNonNull(accumulatedSampleSizes)[trackIndex][sampleIndex];
-      long skipAmount = sampleOffset - inputPosition;
-      boolean requiresReload = skipAmount < 0 || skipAmount >= RELOAD_MINIMUM_SEEK_DISTANCE;
-      if ((!requiresReload && preferredRequiresReload)
-          || (requiresReload == preferredRequiresReload && skipAmount < preferredSkipAmount)) {
-        preferredRequiresReload = requiresReload;
-        preferredSkipAmount = skipAmount;
-        preferredTrackIndex = trackIndex;
-        preferredAccumulatedBytes = sampleAccumulatedBytes;
+      sampleBytesRead += bytesRead;
+    }
+    TrackSampleTable sampleTable = track.sampleTable;
+    int firstSampleIndex = track.sampleIndex;
+    if (track.track.nalUnitLengthFieldLength != 0) {
+      // Rewrite every sample first, so that malformed data fails before any sample is output.
+      int sampleOffset = 0;
+      for (int i = 0; i < coalescedSampleCount; i++) {
+        int sampleSize = sampleTable.getSize(firstSampleIndex + i);
+        StartCodeRewriter.rewrite(data, sampleOffset, sampleSize);
+        sampleOffset += sampleSize;
       }
-      if (sampleAccumulatedBytes < minAccumulatedBytes) {
-        minAccumulatedBytes = sampleAccumulatedBytes;
-        minAccumulatedBytesRequiresReload = requiresReload;
-        minAccumulatedBytesTrackIndex = trackIndex;
+    }
+    sampleBuffer.setPosition(0);
+    for (int i = 0; i < coalescedSampleCount; i++) {
+      int sampleIndex = firstSampleIndex + i;
+      int sampleSize = sampleTable.getSize(sampleIndex);
+      track.trackOutput.sampleData(sampleBuffer, sampleSize);
+      track.trackOutput.sampleMetadata(
+          sampleTable.getTimestampUs(sampleIndex),
+          sampleTable.getFlags(sampleIndex),
+          sampleSize,
+          /* offset= */ 0,
+          /* cryptoData= */ null);
+    }
+
+    sampleDataBytesRead += coalescedBytes;
+    track.sampleIndex += coalescedSampleCount;
+    castNonNull(sampleScheduler).update(sampleTrackIndex, track.sampleIndex);
+    sampleTrackIndex = C.INDEX_UNSET;
+    sampleBytesRead = 0;
+    sampleBytesWritten = 0;
+    sampleCurrentNalBytesRemaining = 0;
+    coalescedSampleCount = 0;
+    return RESULT_CONTINUE;
+  }
+
+  /**
+   * Returns the index of the track that contains the next sample to be read, or {@link
+   * C#INDEX_UNSET} if no samples remain. See {@link SampleScheduler#getTrackIndexOfNextReadSample}.
+   */
+  private int getTrackIndexOfNextReadSample(long inputPosition, boolean positionalReads) {
+    return castNonNull(sampleScheduler)
+        .getTrackIndexOfNextReadSample(inputPosition, positionalReads);
+  }
+
+  /** Logs how often reading samples reloaded the source, per minute of media read. */
+  private void logSampleReloads() {
+    long lastTimeUs = C.TIME_UNSET;
+    for (Mp4Track track : tracks) {
+      if (track.sampleIndex > 0 && track.sampleIndex <= track.sampleTable.sampleCount) {
+        long timeUs = track.sampleTable.getTimestampUs(track.sampleIndex - 1);
+        lastTimeUs = lastTimeUs == C.TIME_UNSET ? timeUs : max(lastTimeUs, timeUs);
       }
     }
-    return minAccumulatedBytes == Long.MAX_VALUE
-            || !minAccumulatedBytesRequiresReload
-            || preferredAccumulatedBytes < minAccumulatedBytes + MAXIMUM_READ_AHEAD_BYTES_STREAM
-        ? preferredTrackIndex
-        : minAccumulatedBytesTrackIndex;
+    long mediaReadUs = lastTimeUs - sampleReloadsStartTimeUs;
+    if (sampleReloads == 0 || lastTimeUs == C.TIME_UNSET || mediaReadUs <= 0) {
+      return;
+    }
+    Log.d(
+        TAG,
+        sampleReloads
+            + " source reloads for samples over "
+            + mediaReadUs / 1000
+            + " ms of media ("
+            + sampleReloads * 60_000_000L / mediaReadUs
+            + " per minute)");
   }
 
   /** Updates a track's sample index to point its latest sync sample before/at {@code timeUs}. */
@@ -806,45 +1218,6 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
     }
   }
 
-  /**
-   * For each sample of each track, calculates accumulated size of all samples which need to be read
-   * before this sample can be used.
-   */
-  private static long[][] calculateAccumulatedSampleSizes(Mp4Track[] tracks) {
-    long[][] accumulatedSampleSizes = new long[tracks.length][];
-    int[] nextSampleIndex = new int[tracks.length];
-    long[] nextSampleTimesUs = new long[tracks.length];
-    boolean[] tracksFinished = new boolean[tracks.length];
-    for (int i = 0; i < tracks.length; i++) {
-      accumulatedSampleSizes[i] = new long[tracks[i].sampleTable.sampleCount];
-      nextSampleTimesUs[i] = tracks[i].sampleTable.timestampsUs[0];
-    }
-    long accumulatedSampleSize = 0;
-    int finishedTracks = 0;
-    while (finishedTracks < tracks.length) {
-      long minTimeUs = Long.MAX_VALUE;
-      int minTimeTrackIndex = -1;
-      for (int i = 0; i < tracks.length; i++) {
-        if (!tracksFinished[i] && nextSampleTimesUs[i] <= minTimeUs) {
-          minTimeTrackIndex = i;
-          minTimeUs = nextSampleTimesUs[i];
-        }
-      }
-      int trackSampleIndex = nextSampleIndex[minTimeTrackIndex];
-      accumulatedSampleSizes[minTimeTrackIndex][trackSampleIndex] = accumulatedSampleSize;
-      accumulatedSampleSize += tracks[minTimeTrackIndex].sampleTable.sizes[trackSampleIndex];
-      nextSampleIndex[minTimeTrackIndex] = ++trackSampleIndex;
-      if (trackSampleIndex < accumulatedSampleSizes[minTimeTrackIndex].length) {
-        nextSampleTimesUs[minTimeTrackIndex] =
-            tracks[minTimeTrackIndex].sampleTable.timestampsUs[trackSampleIndex];
-      } else {
-        tracksFinished[minTimeTrackIndex] = true;
-        finishedTracks++;
-      }
-    }
-    return accumulatedSampleSizes;
-  }
-
   /**
    * Adjusts a seek point offset to take into account the track with the given {@code sampleTable},
    * for a given {@code seekTimeUs}.
@@ -860,7 +1233,7 @@ public final class VcatMp4Extractor implements Extractor, SeekMap {
     if (sampleIndex == C.INDEX_UNSET) {
       return offset;
     }
-    long sampleOffset = sampleTable.offsets[sampleIndex];
+    long sampleOffset = sampleTable.getOffset(sampleIndex);
     return min(sampleOffset, offset);
   }
 
@@ -0,0 +1,165 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+// Compares the cost of the plain output blit with the rotated ones. Every
+// rotation is first checked against a per-sample reference on an odd-sized
+// picture, then blit_i420() is timed on synthetic 8-bit 4:2:0 frames with
+// dav1d-like source strides and window-like destination strides.
+//
+// Usage: blit_benchmark [iterations]   (default 100; ctest runs it with 2)
+// Exits 0 when every rotation is correct, 1 otherwise.
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <vector>
+
+#include "dav1d_blit.h"
+#include "test_picture.h"
+
+using vcat_test::TestPicture;
+
+namespace {
+
+// Output planes laid out like a locked YV12 window buffer.
+struct Output {
+    int w = 0, h = 0;
+    ptrdiff_t stride = 0, uv_stride = 0;
+    std::vector<uint8_t> buf;
+    uint8_t *y = nullptr, *u = nullptr, *v = nullptr;
+
+    void alloc(const Dav1dPicture& pic, const vcat::BlitConfig& cfg) {
+        vcat::output_size(pic, cfg, &w, &h);
+        stride = (w + 63) & ~63;
+        uv_stride = ((stride >> 1) + 15) & ~15;
+        const int ch = (h + 1) / 2;
+        buf.assign(static_cast<size_t>(stride * h + 2 * uv_stride * ch), 0);
+        y = buf.data();
+        v = y + stride * h;
+        u = v + uv_stride * ch;
+    }
+};
+
+// Source coordinates of output sample (x, y) for a w x h plane.
+void source_of(int x, int y, int w, int h, int rotation, int* sx, int* sy) {
+    switch (rotation) {
+        case 90:  *sx = y;         *sy = h - 1 - x; break;
+        case 180: *sx = w - 1 - x; *sy = h - 1 - y; break;
+        case 270: *sx = w - 1 - y; *sy = x;         break;
+        default:  *sx = x;         *sy = y;         break;
+    }
+}
+
+long check_plane(const uint8_t* src, ptrdiff_t ss, int w, int h,
+                 const uint8_t* dst, ptrdiff_t ds, int rotation) {
+    int ow, oh;
+    vcat::rotated_size(w, h, rotation, &ow, &oh);
+    long diffs = 0;
+    for (int y = 0; y < oh; ++y) {
+        for (int x = 0; x < ow; ++x) {
+            int sx, sy;
+            source_of(x, y, w, h, rotation, &sx, &sy);
+            diffs += dst[y * ds + x] != src[sy * ss + sx];
+        }
+        for (ptrdiff_t x = ow; x < ds; ++x) diffs += dst[y * ds + x] != 0;
+    }
+    return diffs;
+}
+
+bool check_rotations() {
+    TestPicture f(37, 21);
+    std::vector<uint8_t> scratch;
+    bool ok = true;
+    for (int rotation : {0, 90, 180, 270}) {
+        vcat::BlitConfig cfg;
+        cfg.transform = true;
+        cfg.rotation = rotation;
+        Output out;
+        out.alloc(f.pic, cfg);
+        vcat::blit_i420(f.pic, cfg, out.y, out.stride, out.u, out.v, out.uv_stride, scratch);
+        const int cw = (f.w + 1) / 2, ch = (f.h + 1) / 2;
+        const long diffs =
+                check_plane(f.y.data(), f.stride, f.w, f.h, out.y, out.stride, rotation)
+                + check_plane(f.u.data(), f.uv_stride, cw, ch, out.u, out.uv_stride, rotation)
+                + check_plane(f.v.data(), f.uv_stride, cw, ch, out.v, out.uv_stride, rotation);
+        if (diffs) {
+            fprintf(stderr, "rotation %d: %ld wrong samples\n", rotation, diffs);
+            ok = false;
+        }
+    }
+    return ok;
+}
+
+// Median and minimum time of one blit, in microseconds.
+void time_blit(const TestPicture& f, const vcat::BlitConfig& cfg, int iterations,
+               double* median_us, double* min_us) {
+    Output out;
+    out.alloc(f.pic, cfg);
+    std::vector<uint8_t> scratch;
+    std::vector<double> us;
+    for (int i = -3; i < iterations; ++i) {
+        const auto t0 = std::chrono::steady_clock::now();
+        vcat::blit_i420(f.pic, cfg, out.y, out.stride, out.u, out.v, out.uv_stride, scratch);
+        const auto t1 = std::chrono::steady_clock::now();
+        if (i >= 0) us.push_back(std::chrono::duration<double, std::micro>(t1 - t0).count());
+    }
+    std::sort(us.begin(), us.end());
+    *median_us = us[us.size() / 2];
+    *min_us = us.front();
+}
+
+} // namespace
+
+int main(int argc, char** argv) {
+    const int iterations = argc > 1 ? std::max(1, atoi(argv[1])) : 100;
+    if (!check_rotations()) return 1;
+
+    printf("%-10s %-8s %12s %12s %10s %9s\n",
+           "size", "blit", "median_us", "min_us", "MB/s", "vs plain");
+    const int sizes[][2] = {{1280, 720}, {1920, 1080}, {3840, 2160}};
+    for (const auto& size : sizes) {
+        TestPicture f(size[0], size[1]);
+        const double mb = f.w * f.h * 1.5 / 1e6;
+        char dims[16];
+        snprintf(dims, sizeof(dims), "%dx%d", f.w, f.h);
+        double plain_us = 0;
+        for (int rotation : {-1, 0, 90, 180, 270}) {
+            vcat::BlitConfig cfg;
+            cfg.transform = rotation >= 0;
+            cfg.rotation = std::max(rotation, 0);
+            double median_us, min_us;
+            time_blit(f, cfg, iterations, &median_us, &min_us);
+            if (rotation < 0) plain_us = median_us;
+            char name[16];
+            snprintf(name, sizeof(name), rotation < 0 ? "plain" : "rot%d", rotation);
+            printf("%-10s %-8s %12.1f %12.1f %10.0f %8.2fx\n",
+                   dims, name, median_us, min_us, mb / (median_us / 1e6), median_us / plain_us);
+        }
+    }
+    return 0;
+}
@@ -0,0 +1,163 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+// Checks that the fused film grain blit is bit-exact with dav1d's own grain
+// pass. Each stream is decoded twice, once with apply_grain=1 and once with
+// apply_grain=0 followed by blit_i420_with_film_grain(), and the visible
+// planes are compared sample by sample.
+//
+// Usage: film_grain_test stream.ivf [stream.ivf ...]
+// Exits 0 on success, 1 on a mismatch or error, 77 (skip) without streams.
+
+#include <cstdio>
+#include <vector>
+
+#include "dav1d_film_grain.h"
+#include "test_decoder.h"
+
+using vcat_test::Decoder;
+using vcat_test::IvfReader;
+
+namespace {
+
+// Returns the number of differing samples and reports the first one.
+long compare_plane(const char* plane, int frame,
+                   const uint8_t* want, ptrdiff_t want_stride,
+                   const uint8_t* got, ptrdiff_t got_stride, int w, int h) {
+    long diffs = 0;
+    for (int y = 0; y < h; ++y) {
+        for (int x = 0; x < w; ++x) {
+            const int a = want[y * want_stride + x];
+            const int b = got[y * got_stride + x];
+            if (a != b && diffs++ == 0) {
+                fprintf(stderr, "  frame %d plane %s (%d,%d): dav1d=%d fused=%d\n",
+                        frame, plane, x, y, a, b);
+            }
+        }
+    }
+    return diffs;
+}
+
+// Destination rows must be zero past the visible width, as the blit promises.
+long count_dirty_padding(const uint8_t* p, ptrdiff_t stride, int w, int h) {
+    long dirty = 0;
+    for (int y = 0; y < h; ++y) {
+        for (ptrdiff_t x = w; x < stride; ++x) dirty += p[y * stride + x] != 0;
+    }
+    return dirty;
+}
+
+bool check_stream(const char* path) {
+    IvfReader ivf(path);
+    Decoder ref(/* apply_grain= */ true);
+    Decoder fused(/* apply_grain= */ false);
+    if (!ivf.ok() || !ref.ok() || !fused.ok()) {
+        fprintf(stderr, "%s: cannot open\n", path);
+        return false;
+    }
+
+    int frames = 0, grain_frames = 0, skipped = 0;
+    long mismatches = 0;
+    std::vector<uint8_t> dst;
+
+    auto compare_ready = [&] {
+        while (!ref.pictures().empty() && !fused.pictures().empty()) {
+            const Dav1dPicture& want = ref.pictures().front();
+            const Dav1dPicture& pic = fused.pictures().front();
+            if (pic.p.bpc != 8 || pic.p.layout != DAV1D_PIXEL_LAYOUT_I420) {
+                skipped++;
+            } else if (vcat::picture_has_film_grain(pic)) {
+                const int w = pic.p.w, h = pic.p.h;
+                const int cw = (w + 1) / 2, ch = (h + 1) / 2;
+                // Wider than the picture and unlike dav1d's strides, so the
+                // padding and stride handling are exercised too.
+                const ptrdiff_t ys = ((w + 63) & ~63) + 32;
+                const ptrdiff_t uvs = ((cw + 31) & ~31) + 16;
+                dst.assign(static_cast<size_t>(ys * h + 2 * uvs * ch), 0xAA);
+                uint8_t* dY = dst.data();
+                uint8_t* dU = dY + ys * h;
+                uint8_t* dV = dU + uvs * ch;
+                vcat::blit_i420_with_film_grain(pic, dY, ys, dU, dV, uvs);
+
+                const auto* wY = static_cast<const uint8_t*>(want.data[0]);
+                const auto* wU = static_cast<const uint8_t*>(want.data[1]);
+                const auto* wV = static_cast<const uint8_t*>(want.data[2]);
+                mismatches += compare_plane("Y", frames, wY, want.stride[0], dY, ys, w, h);
+                mismatches += compare_plane("U", frames, wU, want.stride[1], dU, uvs, cw, ch);
+                mismatches += compare_plane("V", frames, wV, want.stride[1], dV, uvs, cw, ch);
+                mismatches += count_dirty_padding(dY, ys, w, h);
+                mismatches += count_dirty_padding(dU, uvs, cw, ch);
+                mismatches += count_dirty_padding(dV, uvs, cw, ch);
+                grain_frames++;
+            }
+            frames++;
+            ref.pop_front();
+            fused.pop_front();
+        }
+    };
+
+    std::vector<uint8_t> tu;
+    int64_t pts;
+    while (ivf.next(&tu, &pts)) {
+        int rc = ref.send(tu.data(), tu.size(), pts);
+        if (rc == 0) rc = fused.send(tu.data(), tu.size(), pts);
+        if (rc != 0) {
+            fprintf(stderr, "%s: decode error %d\n", path, rc);
+            return false;
+        }
+        compare_ready();
+    }
+    if (ref.drain() != 0 || fused.drain() != 0) {
+        fprintf(stderr, "%s: decode error while flushing\n", path);
+        return false;
+    }
+    compare_ready();
+    if (!ref.pictures().empty() || !fused.pictures().empty()) {
+        fprintf(stderr, "%s: decoders returned different picture counts\n", path);
+        return false;
+    }
+
+    printf("%s: frames=%d grain_frames=%d skipped=%d mismatches=%ld\n",
+           path, frames, grain_frames, skipped, mismatches);
+    if (grain_frames == 0) {
+        fprintf(stderr, "%s: no 8-bit 4:2:0 frames with film grain\n", path);
+        return false;
+    }
+    return mismatches == 0;
+}
+
+} // namespace
+
+int main(int argc, char** argv) {
+    if (argc < 2) {
+        printf("film_grain_test: no streams given (set VCAT_GRAIN_STREAMS), skipping\n");
+        return 77;
+    }
+    bool ok = true;
+    for (int i = 1; i < argc; ++i) ok &= check_stream(argv[i]);
+    return ok ? 0 : 1;
+}
@@ -0,0 +1,192 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+// Checks the file and hash frame sinks: the MD5 against RFC 1321, the hash
+// sink's digest against an MD5 of the packed frames (with and without fused
+// grain), and the frame rate in the Y4M header.
+
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <string>
+#include <unistd.h>
+#include <vector>
+
+#include "dav1d_film_grain.h"
+#include "dav1d_frame_sink.h"
+#include "dav1d_md5.h"
+#include "host_stubs.h"
+#include "test_picture.h"
+
+using vcat_test::TestPicture;
+
+namespace {
+
+int failures = 0;
+
+#define CHECK(cond)                                                         \
+    do {                                                                    \
+        if (!(cond)) {                                                      \
+            fprintf(stderr, "%s:%d: CHECK failed: %s\n", __FILE__, __LINE__, #cond); \
+            failures++;                                                     \
+        }                                                                   \
+    } while (0)
+
+std::string md5_of(const std::vector<uint8_t>& data) {
+    vcat::Md5 md5;
+    md5.update(data.data(), data.size());
+    char hex[33];
+    md5.hex_digest(hex);
+    return hex;
+}
+
+void test_md5_vectors() {
+    const char* cases[][2] = {
+        {"", "d41d8cd98f00b204e9800998ecf8427e"},
+        {"abc", "900150983cd24fb0d6963f7d28e17f72"},
+        {"message digest", "f96b697d7cb7938d525a2f31aaf161d0"},
+        {"12345678901234567890123456789012345678901234567890123456789012345678901234567890",
+         "57edf4a22be3c955ac49da2e2107b67a"},
+    };
+    for (const auto& c : cases) {
+        CHECK(md5_of(std::vector<uint8_t>(c[0], c[0] + strlen(c[0]))) == c[1]);
+    }
+    // Split updates must not change the digest.
+    std::vector<uint8_t> data(1000);
+    for (size_t i = 0; i < data.size(); ++i) data[i] = static_cast<uint8_t>(i * 7);
+    vcat::Md5 split;
+    for (size_t off = 0, n = 1; off < data.size(); off += n, n = n * 3 % 97 + 1) {
+        split.update(&data[off], std::min(n, data.size() - off));
+    }
+    char hex[33];
+    split.hex_digest(hex);
+    CHECK(md5_of(data) == hex);
+}
+
+// The md5= value of the last hash sink close line.
+std::string logged_md5() {
+    const std::string log = vcat_test::logged();
+    const size_t at = log.rfind("md5=");
+    return at == std::string::npos ? std::string() : log.substr(at + 4, 32);
+}
+
+void test_hash_sink_plain() {
+    vcat::BlitConfig cfg;
+    cfg.transform = true;  // rotation must not affect the digest
+    cfg.rotation = 90;
+    TestPicture a(37, 21, 1), b(37, 21, 2);
+    auto sink = vcat::make_hash_sink(&cfg);
+    CHECK(sink->consume(a.pic) == 0);
+    CHECK(sink->consume(b.pic) == 0);
+    vcat_test::clear_log();
+    sink->log_stats();
+
+    std::vector<uint8_t> expected = a.packed();
+    const std::vector<uint8_t> second = b.packed();
+    expected.insert(expected.end(), second.begin(), second.end());
+    CHECK(logged_md5() == md5_of(expected));
+    CHECK(vcat_test::logged().find("frames=2 grained=0") != std::string::npos);
+}
+
+void test_hash_sink_fused_grain() {
+    TestPicture pic(64, 48);
+    Dav1dFrameHeader frame_hdr;
+    std::memset(&frame_hdr, 0, sizeof(frame_hdr));
+    Dav1dFilmGrainData& d = frame_hdr.film_grain.data;
+    frame_hdr.film_grain.present = 1;
+    d.seed = 1234;
+    d.num_y_points = 2;
+    d.y_points[0][0] = 0;   d.y_points[0][1] = 40;
+    d.y_points[1][0] = 255; d.y_points[1][1] = 40;
+    d.scaling_shift = 8;
+    d.ar_coeff_shift = 6;
+    pic.pic.frame_hdr = &frame_hdr;
+    CHECK(vcat::picture_has_film_grain(pic.pic));
+
+    vcat::BlitConfig cfg;
+    cfg.fused_grain = true;
+    auto sink = vcat::make_hash_sink(&cfg);
+    CHECK(sink->consume(pic.pic) == 0);
+    vcat_test::clear_log();
+    sink->log_stats();
+
+    const int cw = (pic.w + 1) / 2, ch = (pic.h + 1) / 2;
+    std::vector<uint8_t> grained(static_cast<size_t>(pic.w * pic.h + 2 * cw * ch));
+    uint8_t* y = grained.data();
+    uint8_t* u = y + pic.w * pic.h;
+    vcat::blit_i420_with_film_grain(pic.pic, y, pic.w, u, u + cw * ch, cw);
+    CHECK(grained != pic.packed());
+    CHECK(logged_md5() == md5_of(grained));
+    CHECK(vcat_test::logged().find("frames=1 grained=1") != std::string::npos);
+}
+
+// The header line of a one-frame Y4M written with the given frame rate.
+std::string y4m_header(float fps) {
+    char path[] = "/tmp/vcat_y4m_XXXXXX";
+    const int fd = mkstemp(path);
+    if (fd < 0) return std::string();
+    close(fd);
+    vcat::BlitConfig cfg;
+    auto sink = vcat::make_y4m_sink(path, &cfg);
+    if (!sink) return std::string();
+    sink->set_frame_rate(fps);
+    TestPicture pic(16, 8);
+    sink->consume(pic.pic);
+    sink->close();
+
+    char line[128] = {};
+    FILE* f = fopen(path, "rb");
+    if (f) {
+        if (!fgets(line, sizeof(line), f)) line[0] = '\0';
+        fclose(f);
+    }
+    unlink(path);
+    return line;
+}
+
+void test_y4m_frame_rate() {
+    CHECK(y4m_header(25.0f) == "YUV4MPEG2 W16 H8 F25:1 Ip A1:1 C420jpeg\n");
+    CHECK(y4m_header(23.976f).find(" F24000:1001 ") != std::string::npos);
+    CHECK(y4m_header(29.97f).find(" F30000:1001 ") != std::string::npos);
+    CHECK(y4m_header(12.5f).find(" F12500:1000 ") != std::string::npos);
+    CHECK(y4m_header(-1.0f).find(" F30:1 ") != std::string::npos);
+}
+
+} // namespace
+
+int main() {
+    test_md5_vectors();
+    test_hash_sink_plain();
+    test_hash_sink_fused_grain();
+    test_y4m_frame_rate();
+    if (failures) {
+        fprintf(stderr, "frame_sink_test: %d failures\n", failures);
+        return 1;
+    }
+    printf("frame_sink_test: ok\n");
+    return 0;
+}
@@ -0,0 +1,53 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+// Host stand-in for the NDK's <android/native_window.h>. There is no display
+// on the host: locking always fails, which the tests use through the mock
+// window sink instead.
+
+#pragma once
+
+#include <cstdint>
+
+typedef struct ANativeWindow ANativeWindow;
+
+typedef struct ARect {
+    int32_t left, top, right, bottom;
+} ARect;
+
+typedef struct ANativeWindow_Buffer {
+    int32_t width, height, stride, format;
+    void* bits;
+    uint32_t reserved[6];
+} ANativeWindow_Buffer;
+
+extern "C" {
+void ANativeWindow_release(ANativeWindow* window);
+int32_t ANativeWindow_setBuffersGeometry(ANativeWindow* window, int32_t w, int32_t h, int32_t format);
+int32_t ANativeWindow_lock(ANativeWindow* window, ANativeWindow_Buffer* buffer, ARect* dirty);
+int32_t ANativeWindow_unlockAndPost(ANativeWindow* window);
+}
@@ -0,0 +1,85 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+#include "host_stubs.h"
+
+#include <android/log.h>
+#include <android/native_window.h>
+
+#include <cerrno>
+#include <cstdarg>
+#include <cstdio>
+#include <mutex>
+
+namespace {
+
+std::mutex log_mutex;
+std::string log_lines;
+
+} // namespace
+
+extern "C" int __android_log_print(int /*prio*/, const char* tag, const char* fmt, ...) {
+    char line[1024];
+    va_list args;
+    va_start(args, fmt);
+    vsnprintf(line, sizeof(line), fmt, args);
+    va_end(args);
+    fprintf(stderr, "%s: %s\n", tag, line);
+    std::lock_guard<std::mutex> lk(log_mutex);
+    log_lines.append(line).append("\n");
+    return 0;
+}
+
+extern "C" void ANativeWindow_release(ANativeWindow* /*window*/) {}
+
+extern "C" int32_t ANativeWindow_setBuffersGeometry(
+        ANativeWindow* /*window*/, int32_t /*w*/, int32_t /*h*/, int32_t /*format*/) {
+    return 0;
+}
+
+extern "C" int32_t ANativeWindow_lock(
+        ANativeWindow* /*window*/, ANativeWindow_Buffer* /*buffer*/, ARect* /*dirty*/) {
+    return -ENODEV;
+}
+
+extern "C" int32_t ANativeWindow_unlockAndPost(ANativeWindow* /*window*/) {
+    return 0;
+}
+
+namespace vcat_test {
+
+std::string logged() {
+    std::lock_guard<std::mutex> lk(log_mutex);
+    return log_lines;
+}
+
+void clear_log() {
+    std::lock_guard<std::mutex> lk(log_mutex);
+    log_lines.clear();
+}
+
+} // namespace vcat_test
@@ -0,0 +1,155 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+// Measures how long the thread that hands pictures to the sink (the playback
+// thread in the app) is held per frame: rendering synchronously versus
+// through the render thread, against the mock window sink's simulated
+// blocking ANativeWindow_lock. Also checks the render thread's bookkeeping:
+// every queued picture is rendered or counted as dropped, so the displayed
+// count the decoder reports only includes rendered pictures.
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <memory>
+#include <thread>
+
+#include "dav1d_frame_sink.h"
+#include "dav1d_render_thread.h"
+#include "test_picture.h"
+
+using vcat_test::TestPicture;
+
+namespace {
+
+int failures = 0;
+
+#define CHECK(cond)                                                         \
+    do {                                                                    \
+        if (!(cond)) {                                                      \
+            fprintf(stderr, "%s:%d: CHECK failed: %s\n", __FILE__, __LINE__, #cond); \
+            failures++;                                                     \
+        }                                                                   \
+    } while (0)
+
+struct CallTimes {
+    double avg_us = 0;
+    double max_us = 0;
+};
+
+// Calls deliver() once per interval_us and times each call.
+template <typename Deliver>
+CallTimes feed(int frames, int interval_us, Deliver deliver) {
+    CallTimes t;
+    for (int i = 0; i < frames; ++i) {
+        const auto t0 = std::chrono::steady_clock::now();
+        deliver();
+        const double us = std::chrono::duration<double, std::micro>(
+                std::chrono::steady_clock::now() - t0).count();
+        t.avg_us += us / frames;
+        t.max_us = std::max(t.max_us, us);
+        std::this_thread::sleep_for(std::chrono::microseconds(interval_us));
+    }
+    return t;
+}
+
+// Sink faster than the frame interval: nothing may be dropped, and the
+// playback thread should no longer wait for the lock.
+void test_stall(int lock_delay_us, int interval_us) {
+    const int frames = 30;
+    TestPicture pic(1280, 720);
+    vcat::BlitConfig cfg;
+
+    auto sync_sink = vcat::make_mock_window_sink(&cfg, lock_delay_us);
+    const CallTimes sync = feed(frames, interval_us, [&] { sync_sink->consume(pic.pic); });
+
+    auto async_sink = vcat::make_mock_window_sink(&cfg, lock_delay_us);
+    vcat::RenderThread thread(async_sink.get(), 2);
+    const CallTimes async = feed(frames, interval_us, [&] {
+        Dav1dPicture ref = pic.pic;  // push() takes the reference and zeroes it
+        thread.push(&ref);
+    });
+    thread.stop();
+    const vcat::RenderThread::Stats s = thread.stats();
+
+    printf("lock_delay_us=%d interval_us=%d: sync avg_us=%.0f max_us=%.0f, "
+           "render thread avg_us=%.0f max_us=%.0f\n",
+           lock_delay_us, interval_us, sync.avg_us, sync.max_us, async.avg_us, async.max_us);
+    CHECK(sync.avg_us >= lock_delay_us);
+    CHECK(async.avg_us < sync.avg_us / 4);
+    CHECK(s.queued == static_cast<uint32_t>(frames));
+    CHECK(s.rendered == s.queued);
+    CHECK(s.dropped_full == 0 && s.dropped_flush == 0 && s.errors == 0);
+}
+
+// Sink slower than the frames arrive: push() drops the oldest, and those
+// must not count as rendered.
+void test_drops_not_rendered() {
+    TestPicture pic(320, 240);
+    vcat::BlitConfig cfg;
+    auto sink = vcat::make_mock_window_sink(&cfg, 20000);
+    vcat::RenderThread thread(sink.get(), 2);
+    feed(20, 1000, [&] {
+        Dav1dPicture ref = pic.pic;
+        thread.push(&ref);
+    });
+    thread.stop();
+    const vcat::RenderThread::Stats s = thread.stats();
+    printf("slow sink: queued=%u rendered=%u dropped_full=%u\n", s.queued, s.rendered, s.dropped_full);
+    CHECK(s.dropped_full > 0);
+    CHECK(s.rendered + s.dropped_full == s.queued);
+}
+
+void test_flush() {
+    TestPicture pic(320, 240);
+    vcat::BlitConfig cfg;
+    auto sink = vcat::make_mock_window_sink(&cfg, 20000);
+    vcat::RenderThread thread(sink.get(), 4);
+    for (int i = 0; i < 4; ++i) {
+        Dav1dPicture ref = pic.pic;
+        thread.push(&ref);
+    }
+    thread.flush();
+    thread.stop();
+    const vcat::RenderThread::Stats s = thread.stats();
+    CHECK(s.dropped_flush > 0);
+    CHECK(s.rendered + s.dropped_full + s.dropped_flush == s.queued);
+}
+
+} // namespace
+
+int main() {
+    test_stall(/* lock_delay_us= */ 8000, /* interval_us= */ 16000);
+    test_drops_not_rendered();
+    test_flush();
+    if (failures) {
+        fprintf(stderr, "render_thread_test: %d failures\n", failures);
+        return 1;
+    }
+    printf("render_thread_test: ok\n");
+    return 0;
+}
@@ -0,0 +1,154 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+// IVF demuxing and a dav1d wrapper shared by the host tests.
+
+#pragma once
+
+#include <cerrno>
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <deque>
+#include <vector>
+
+extern "C" {
+#include "dav1d/dav1d.h"
+}
+
+namespace vcat_test {
+
+inline uint32_t rl32(const uint8_t* p) {
+    return p[0] | (p[1] << 8) | (p[2] << 16) | (static_cast<uint32_t>(p[3]) << 24);
+}
+
+// Reads the temporal units of an IVF file: a 32-byte file header, then a
+// 12-byte header (size, 64-bit pts) in front of every frame.
+class IvfReader {
+public:
+    explicit IvfReader(const char* path) : f_(fopen(path, "rb")) {
+        uint8_t hdr[32];
+        if (f_ && (fread(hdr, 1, sizeof(hdr), f_) != sizeof(hdr) || std::memcmp(hdr, "DKIF", 4) != 0)) {
+            fclose(f_);
+            f_ = nullptr;
+        }
+    }
+
+    ~IvfReader() {
+        if (f_) fclose(f_);
+    }
+
+    IvfReader(const IvfReader&) = delete;
+    IvfReader& operator=(const IvfReader&) = delete;
+
+    bool ok() const { return f_ != nullptr; }
+
+    // Returns false at the end of the file or on a truncated frame.
+    bool next(std::vector<uint8_t>* frame, int64_t* pts) {
+        uint8_t hdr[12];
+        if (!f_ || fread(hdr, 1, sizeof(hdr), f_) != sizeof(hdr)) return false;
+        const uint32_t size = rl32(hdr);
+        *pts = static_cast<int64_t>(rl32(hdr + 4) | static_cast<uint64_t>(rl32(hdr + 8)) << 32);
+        frame->resize(size);
+        return fread(frame->data(), 1, size, f_) == size;
+    }
+
+private:
+    FILE* f_;
+};
+
+// A dav1d context whose output pictures are collected in pictures(), in
+// output order, until the caller takes them.
+class Decoder {
+public:
+    explicit Decoder(bool apply_grain) {
+        Dav1dSettings s;
+        dav1d_default_settings(&s);
+        s.n_threads = 1;
+        s.apply_grain = apply_grain ? 1 : 0;
+        if (dav1d_open(&c_, &s) != 0) c_ = nullptr;
+    }
+
+    ~Decoder() {
+        for (Dav1dPicture& pic : pictures_) dav1d_picture_unref(&pic);
+        if (c_) dav1d_close(&c_);
+    }
+
+    Decoder(const Decoder&) = delete;
+    Decoder& operator=(const Decoder&) = delete;
+
+    bool ok() const { return c_ != nullptr; }
+
+    // Decodes one temporal unit. Returns 0 or a negative errno.
+    int send(const uint8_t* buf, size_t size, int64_t pts) {
+        Dav1dData data;
+        uint8_t* p = dav1d_data_create(&data, size);
+        if (!p) return -ENOMEM;
+        std::memcpy(p, buf, size);
+        data.m.timestamp = pts;
+        while (data.sz > 0) {
+            int rc = dav1d_send_data(c_, &data);
+            if (rc < 0 && rc != -EAGAIN) {
+                dav1d_data_unref(&data);
+                return rc;
+            }
+            rc = drain();
+            if (rc < 0) {
+                dav1d_data_unref(&data);
+                return rc;
+            }
+        }
+        return 0;
+    }
+
+    // Collects every picture dav1d can return without more input; after the
+    // last send() this flushes the decoder.
+    int drain() {
+        for (;;) {
+            Dav1dPicture pic;
+            std::memset(&pic, 0, sizeof(pic));
+            const int rc = dav1d_get_picture(c_, &pic);
+            if (rc == -EAGAIN) return 0;
+            if (rc < 0) return rc;
+            pictures_.push_back(pic);
+        }
+    }
+
+    // Pictures still owned here; pop_front() unrefs.
+    std::deque<Dav1dPicture>& pictures() { return pictures_; }
+
+    void pop_front() {
+        dav1d_picture_unref(&pictures_.front());
+        pictures_.pop_front();
+    }
+
+private:
+    Dav1dContext* c_ = nullptr;
+    std::deque<Dav1dPicture> pictures_;
+};
+
+} // namespace vcat_test
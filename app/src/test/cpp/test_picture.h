@@ -0,0 +1,88 @@
+/*
+* VCAT (Video Codec Acid Test)
+*
+* SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+* SPDX-License-Identifier: GPL-3.0-or-later
+*
+* This file is part of VCAT.
+*
+* VCAT is free software: you can redistribute it and/or modify it
+* under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* VCAT is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+*
+* For proprietary/commercial use cases, a written GPL-3.0 waiver or
+* a separate commercial license is required from RoncaTech LLC.
+* All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos and artwork is permitted for the purpose of discussing, documenting, or promoting VCAT itself. Any other use requires prior written permission from RoncaTech LLC.
+* Contact: legal@roncatech.com • https://roncatech.com/legal
+*/
+
+// Synthetic 8-bit 4:2:0 pictures for the host tests, laid out like dav1d's:
+// rows padded to 64-byte strides, samples from a fixed pseudo-random seed.
+
+#pragma once
+
+#include <cstdint>
+#include <cstring>
+#include <vector>
+
+extern "C" {
+#include "dav1d/picture.h"
+}
+
+namespace vcat_test {
+
+struct TestPicture {
+    int w, h;
+    ptrdiff_t stride, uv_stride;
+    std::vector<uint8_t> y, u, v;
+    Dav1dPicture pic;
+
+    TestPicture(int width, int height, unsigned seed = 1) : w(width), h(height) {
+        stride = (w + 63) & ~63;
+        uv_stride = (((w + 1) / 2) + 63) & ~63;
+        const int ch = (h + 1) / 2;
+        y.resize(static_cast<size_t>(stride * h));
+        u.resize(static_cast<size_t>(uv_stride * ch));
+        v.resize(u.size());
+        for (auto* plane : {&y, &u, &v}) {
+            for (uint8_t& b : *plane) b = static_cast<uint8_t>((seed = seed * 1103515245 + 12345) >> 16);
+        }
+        std::memset(&pic, 0, sizeof(pic));
+        pic.p.w = w;
+        pic.p.h = h;
+        pic.p.bpc = 8;
+        pic.p.layout = DAV1D_PIXEL_LAYOUT_I420;
+        pic.data[0] = y.data();
+        pic.data[1] = u.data();
+        pic.data[2] = v.data();
+        pic.stride[0] = stride;
+        pic.stride[1] = uv_stride;
+    }
+
+    TestPicture(const TestPicture&) = delete;
+    TestPicture& operator=(const TestPicture&) = delete;
+
+    // The visible samples, plane after plane, without stride padding.
+    std::vector<uint8_t> packed() const {
+        std::vector<uint8_t> out;
+        const int cw = (w + 1) / 2, ch = (h + 1) / 2;
+        for (int r = 0; r < h; ++r) out.insert(out.end(), &y[r * stride], &y[r * stride] + w);
+        for (const auto* plane : {&u, &v}) {
+            for (int r = 0; r < ch; ++r) {
+                out.insert(out.end(), &(*plane)[r * uv_stride], &(*plane)[r * uv_stride] + cw);
+            }
+        }
+        return out;
+    }
+};
+
+} // namespace vcat_test
@@ -0,0 +1,276 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static java.lang.Math.max;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/** Tests for {@link AccumulatedSampleSizes}. */
+public final class AccumulatedSampleSizesTest {
+
+  // Each checkpoint holds a sample index per track and the accumulated size.
+  private static final long CHECKPOINT_BYTES_16_TRACKS = 16 * 4 + 8;
+
+  @Test
+  public void get_matchesFullMerge() {
+    TrackSampleTable[] sampleTables =
+        newSampleTables(/* trackCount= */ 6, /* videoSampleCount= */ 9_000);
+    long[][] expected = calculateAccumulatedSampleSizes(sampleTables);
+    AccumulatedSampleSizes accumulatedSampleSizes = new AccumulatedSampleSizes(sampleTables);
+
+    // Ask in an order unlike the merge order, so later lookups find their values merged already.
+    for (int trackIndex = sampleTables.length - 1; trackIndex >= 0; trackIndex--) {
+      for (int sampleIndex = 0; sampleIndex < sampleTables[trackIndex].sampleCount; sampleIndex++) {
+        assertEquals(
+            "track " + trackIndex + " sample " + sampleIndex,
+            expected[trackIndex][sampleIndex],
+            accumulatedSampleSizes.get(trackIndex, sampleIndex));
+      }
+    }
+  }
+
+  @Test
+  public void get_equalTimestamps_mergesHigherTrackFirst() {
+    TrackSampleTable first =
+        SampleLayout.constant(/* sampleCount= */ 10, /* size= */ 100, /* samplesPerChunk= */ 5)
+            .toExpandedTable();
+    TrackSampleTable second =
+        SampleLayout.constant(/* sampleCount= */ 10, /* size= */ 7, /* samplesPerChunk= */ 5)
+            .toExpandedTable();
+    AccumulatedSampleSizes accumulatedSampleSizes =
+        new AccumulatedSampleSizes(new TrackSampleTable[] {first, second});
+
+    assertEquals(7, accumulatedSampleSizes.get(/* trackIndex= */ 0, /* sampleIndex= */ 0));
+    assertEquals(0, accumulatedSampleSizes.get(/* trackIndex= */ 1, /* sampleIndex= */ 0));
+    assertEquals(107, accumulatedSampleSizes.get(/* trackIndex= */ 1, /* sampleIndex= */ 1));
+  }
+
+  @Test
+  public void get_holdsOnlyMergedBlocks() {
+    TrackSampleTable[] sampleTables =
+        newSampleTables(/* trackCount= */ 16, /* videoSampleCount= */ 108_000);
+    long totalSampleCount = 0;
+    for (TrackSampleTable sampleTable : sampleTables) {
+      totalSampleCount += sampleTable.sampleCount;
+    }
+    AccumulatedSampleSizes accumulatedSampleSizes = new AccumulatedSampleSizes(sampleTables);
+
+    assertEquals(CHECKPOINT_BYTES_16_TRACKS, accumulatedSampleSizes.sizeInBytes());
+    accumulatedSampleSizes.get(/* trackIndex= */ 0, /* sampleIndex= */ 0);
+    // One block per track at most, however long the tracks are.
+    assertTrue(accumulatedSampleSizes.sizeInBytes() <= 16 * 4096 * 8 + CHECKPOINT_BYTES_16_TRACKS);
+    accumulatedSampleSizes.get(/* trackIndex= */ 0, sampleTables[0].sampleCount - 1);
+    assertEquals(
+        8 * totalSampleCount + CHECKPOINT_BYTES_16_TRACKS * (totalSampleCount / 4096 + 1),
+        accumulatedSampleSizes.sizeInBytes());
+  }
+
+  @Test
+  public void discardBefore_readerKeepingTracksTogether_holdsAFewBlocksPerTrack() {
+    TrackSampleTable[] sampleTables =
+        newSampleTables(/* trackCount= */ 16, /* videoSampleCount= */ 108_000);
+    long[][] expected = calculateAccumulatedSampleSizes(sampleTables);
+    AccumulatedSampleSizes accumulatedSampleSizes = new AccumulatedSampleSizes(sampleTables);
+
+    long totalSampleCount = 0;
+    for (TrackSampleTable sampleTable : sampleTables) {
+      totalSampleCount += sampleTable.sampleCount;
+    }
+    long maxBytes = 0;
+    int steps = 1000;
+    for (int step = 0; step <= steps; step++) {
+      for (int trackIndex = 0; trackIndex < sampleTables.length; trackIndex++) {
+        int sampleIndex = (int) ((long) (sampleTables[trackIndex].sampleCount - 1) * step / steps);
+        assertEquals(
+            expected[trackIndex][sampleIndex], accumulatedSampleSizes.get(trackIndex, sampleIndex));
+        accumulatedSampleSizes.discardBefore(trackIndex, sampleIndex);
+      }
+      maxBytes = max(maxBytes, accumulatedSampleSizes.sizeInBytes());
+    }
+
+    // Two blocks per track cover the samples between the slowest track and the merged ones.
+    assertTrue(
+        "held " + maxBytes,
+        maxBytes
+            <= 2 * 16 * 4096 * 8
+                + CHECKPOINT_BYTES_16_TRACKS * (totalSampleCount / 4096 + 1));
+  }
+
+  @Test
+  public void get_afterDiscard_mergesAgainFromNearestCheckpoint() {
+    TrackSampleTable[] sampleTables =
+        newSampleTables(/* trackCount= */ 6, /* videoSampleCount= */ 9_000);
+    long[][] expected = calculateAccumulatedSampleSizes(sampleTables);
+    AccumulatedSampleSizes accumulatedSampleSizes = new AccumulatedSampleSizes(sampleTables);
+    for (int trackIndex = 0; trackIndex < sampleTables.length; trackIndex++) {
+      int lastSampleIndex = sampleTables[trackIndex].sampleCount - 1;
+      accumulatedSampleSizes.get(trackIndex, lastSampleIndex);
+      accumulatedSampleSizes.discardBefore(trackIndex, lastSampleIndex + 1);
+    }
+    long checkpointBytes = accumulatedSampleSizes.sizeInBytes();
+
+    // A seek back to the middle merges again from a checkpoint near it, not from the start.
+    int middle = sampleTables[0].sampleCount / 2;
+    assertEquals(expected[0][middle], accumulatedSampleSizes.get(/* trackIndex= */ 0, middle));
+    assertTrue(accumulatedSampleSizes.sizeInBytes() - checkpointBytes <= 2 * 6 * 4096 * 8);
+
+    Random random = new Random(/* seed= */ 0);
+    for (int i = 0; i < 2_000; i++) {
+      int trackIndex = random.nextInt(sampleTables.length);
+      int sampleIndex = random.nextInt(sampleTables[trackIndex].sampleCount);
+      assertEquals(
+          "track " + trackIndex + " sample " + sampleIndex,
+          expected[trackIndex][sampleIndex],
+          accumulatedSampleSizes.get(trackIndex, sampleIndex));
+      if (random.nextBoolean()) {
+        accumulatedSampleSizes.discardBefore(trackIndex, sampleIndex);
+      }
+    }
+  }
+
+  @Test
+  public void moovProcessingBenchmark_manyTracks() throws Exception {
+    for (int trackCount : new int[] {4, 16, 64}) {
+      TrackSampleTable[] sampleTables =
+          newSampleTables(trackCount, /* videoSampleCount= */ 108_000);
+      long[] firstValue = new long[1];
+      long[] bytes = new long[1];
+
+      // What moov processing used to do: merge every sample of every track with a linear scan.
+      long fullMergeNs =
+          Benchmarks.bestTimeNs(
+              () -> firstValue[0] = calculateAccumulatedSampleSizes(sampleTables)[0][0]);
+      long lazyMergeNs =
+          Benchmarks.bestTimeNs(
+              () -> {
+                AccumulatedSampleSizes accumulatedSampleSizes =
+                    new AccumulatedSampleSizes(sampleTables);
+                assertEquals(firstValue[0], accumulatedSampleSizes.get(0, 0));
+                bytes[0] = accumulatedSampleSizes.sizeInBytes();
+              });
+      long heapMergeNs =
+          Benchmarks.bestTimeNs(
+              () -> {
+                AccumulatedSampleSizes accumulatedSampleSizes =
+                    new AccumulatedSampleSizes(sampleTables);
+                for (int i = 0; i < sampleTables.length; i++) {
+                  accumulatedSampleSizes.get(i, sampleTables[i].sampleCount - 1);
+                }
+              });
+      long fullMergeBytes = 0;
+      for (TrackSampleTable sampleTable : sampleTables) {
+        fullMergeBytes += 8L * sampleTable.sampleCount;
+      }
+
+      Benchmarks.report(
+          "accumulated sample sizes, " + trackCount + " tracks",
+          "linear scan "
+              + fullMergeNs / 1000
+              + " us and "
+              + fullMergeBytes
+              + " bytes, first sample "
+              + lazyMergeNs / 1000
+              + " us and "
+              + bytes[0]
+              + " bytes, heap merge of every sample "
+              + heapMergeNs / 1000
+              + " us");
+    }
+  }
+
+  /**
+   * Returns one hour of video on track 0 and every fourth track after it, with audio on the other
+   * tracks.
+   */
+  private static TrackSampleTable[] newSampleTables(int trackCount, int videoSampleCount) {
+    TrackSampleTable[] sampleTables = new TrackSampleTable[trackCount];
+    for (int i = 0; i < trackCount; i++) {
+      sampleTables[i] =
+          i % 4 == 0
+              ? SampleLayout.video(
+                      videoSampleCount,
+                      /* gopLength= */ 60,
+                      /* firstSyncSample= */ 0,
+                      /* variableFrameRate= */ false,
+                      /* seed= */ i)
+                  .toCompactTable()
+              : SampleLayout.constant(
+                      // 48 kHz AAC frames for the same duration as the video.
+                      (int) (videoSampleCount * 1001L * 48_000 / 30_000 / 1024),
+                      /* size= */ 300 + i,
+                      /* samplesPerChunk= */ 23)
+                  .toCompactTable();
+    }
+    return sampleTables;
+  }
+
+  /** ExoPlayer's Mp4Extractor.calculateAccumulatedSampleSizes. */
+  private static long[][] calculateAccumulatedSampleSizes(TrackSampleTable[] sampleTables) {
+    long[][] accumulatedSampleSizes = new long[sampleTables.length][];
+    int[] nextSampleIndex = new int[sampleTables.length];
+    long[] nextSampleTimesUs = new long[sampleTables.length];
+    boolean[] tracksFinished = new boolean[sampleTables.length];
+    for (int i = 0; i < sampleTables.length; i++) {
+      accumulatedSampleSizes[i] = new long[sampleTables[i].sampleCount];
+      nextSampleTimesUs[i] = sampleTables[i].getTimestampUs(0);
+    }
+    long accumulatedSampleSize = 0;
+    int finishedTracks = 0;
+    while (finishedTracks < sampleTables.length) {
+      long minTimeUs = Long.MAX_VALUE;
+      int minTimeTrackIndex = -1;
+      for (int i = 0; i < sampleTables.length; i++) {
+        if (!tracksFinished[i] && nextSampleTimesUs[i] <= minTimeUs) {
+          minTimeTrackIndex = i;
+          minTimeUs = nextSampleTimesUs[i];
+        }
+      }
+      int trackSampleIndex = nextSampleIndex[minTimeTrackIndex];
+      accumulatedSampleSizes[minTimeTrackIndex][trackSampleIndex] = accumulatedSampleSize;
+      accumulatedSampleSize += sampleTables[minTimeTrackIndex].getSize(trackSampleIndex);
+      nextSampleIndex[minTimeTrackIndex] = ++trackSampleIndex;
+      if (trackSampleIndex < accumulatedSampleSizes[minTimeTrackIndex].length) {
+        nextSampleTimesUs[minTimeTrackIndex] =
+            sampleTables[minTimeTrackIndex].getTimestampUs(trackSampleIndex);
+      } else {
+        tracksFinished[minTimeTrackIndex] = true;
+        finishedTracks++;
+      }
+    }
+    return accumulatedSampleSizes;
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.GaplessInfoHolder;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests for {@link AtomParsers}. */
+@RunWith(RobolectricTestRunner.class)
+public final class AtomParsersTest {
+
+  @Test
+  public void parseTraks_keepsTrakOrder() throws Exception {
+    Mp4Fixture fixture = newMultiTrackFixture(/* trackCount= */ 16, /* videoSampleCount= */ 600);
+
+    List<TrackSampleTable> tables = parseTraks(fixture.parseMoov());
+
+    assertEquals(16, tables.size());
+    for (int i = 0; i < tables.size(); i++) {
+      assertEquals(i + 1, tables.get(i).track.id);
+      assertEquals(fixture.tracks.get(i).type, tables.get(i).track.type);
+    }
+  }
+
+  @Test
+  public void parseTraks_describesEverySample() throws Exception {
+    Mp4Fixture fixture = newMultiTrackFixture(/* trackCount= */ 4, /* videoSampleCount= */ 5_000);
+
+    List<TrackSampleTable> tables = parseTraks(fixture.parseMoov());
+
+    for (int i = 0; i < tables.size(); i++) {
+      fixture.assertTableMatches(i, tables.get(i));
+    }
+  }
+
+  @Test
+  public void parseTraks_withTablesLeftInFile_describesEverySample() throws Exception {
+    Mp4Fixture fixture = newMultiTrackFixture(/* trackCount= */ 4, /* videoSampleCount= */ 5_000);
+
+    List<TrackSampleTable> tables = parseTraks(leaveTablesInFile(fixture.parseMoov()));
+
+    for (int i = 0; i < tables.size(); i++) {
+      fixture.assertTableMatches(i, tables.get(i));
+    }
+  }
+
+  @Test
+  public void parseTraks_startupBenchmark() throws Exception {
+    // 20 minutes at 29.97 fps.
+    for (int trackCount : new int[] {1, 4, 16}) {
+      Atom.ContainerAtom moov =
+          newMultiTrackFixture(trackCount, /* videoSampleCount= */ 36_000).parseMoov();
+      List<Atom.ContainerAtom> singleTrakMoovs = new ArrayList<>();
+      for (Atom.ContainerAtom trak : moov.containerChildren) {
+        Atom.ContainerAtom singleTrakMoov =
+            new Atom.ContainerAtom(Atom.TYPE_moov, moov.endPosition);
+        singleTrakMoov.add(moov.getLeafAtomOfType(Atom.TYPE_mvhd));
+        singleTrakMoov.add(trak);
+        singleTrakMoovs.add(singleTrakMoov);
+      }
+
+      long parallelNs = Benchmarks.bestTimeNs(() -> readFirstSamples(parseTraks(moov)));
+      // One trak after another on this thread, as before the sample tables were parsed in parallel.
+      long sequentialNs =
+          Benchmarks.bestTimeNs(
+              () -> {
+                for (Atom.ContainerAtom singleTrakMoov : singleTrakMoovs) {
+                  readFirstSamples(parseTraks(singleTrakMoov));
+                }
+              });
+      Benchmarks.report(
+          "parseTraks, " + trackCount + " tracks",
+          "parallel " + parallelNs / 1000 + " us, sequential " + sequentialNs / 1000 + " us");
+    }
+  }
+
+  private static Mp4Fixture newMultiTrackFixture(int trackCount, int videoSampleCount) {
+    return Mp4Fixture.multiTrack(
+            trackCount, videoSampleCount, /* maxVideoSampleSize= */ 64, /* audioSampleSize= */ 8)
+        .build();
+  }
+
+  /**
+   * Returns a copy of {@code atom} whose per-sample tables are in direct buffers, with only the
+   * fields before their entries on the heap, as the extractor leaves them in a mapped file.
+   */
+  private static Atom.ContainerAtom leaveTablesInFile(Atom.ContainerAtom atom) {
+    Atom.ContainerAtom copy = new Atom.ContainerAtom(atom.type, atom.endPosition);
+    for (Atom.LeafAtom leaf : atom.leafChildren) {
+      int entriesPosition = AtomParsers.getTableEntriesPosition(leaf.type);
+      if (entriesPosition == C.INDEX_UNSET) {
+        copy.add(leaf);
+        continue;
+      }
+      ByteBuffer region = ByteBuffer.allocateDirect(leaf.data.limit());
+      region.put(leaf.data.getData(), 0, leaf.data.limit());
+      region.clear();
+      ParsableByteArray fields =
+          new ParsableByteArray(Arrays.copyOf(leaf.data.getData(), entriesPosition));
+      copy.add(new Atom.LeafAtom(leaf.type, fields, region));
+    }
+    for (Atom.ContainerAtom child : atom.containerChildren) {
+      copy.add(leaveTablesInFile(child));
+    }
+    return copy;
+  }
+
+  private static List<TrackSampleTable> parseTraks(Atom.ContainerAtom moov) throws Exception {
+    return AtomParsers.parseTraks(
+        moov,
+        new GaplessInfoHolder(),
+        /* duration= */ C.TIME_UNSET,
+        /* drmInitData= */ null,
+        /* ignoreEditLists= */ false,
+        /* isQuickTime= */ false,
+        /* modifyTrackFunction= */ track -> track);
+  }
+
+  private static void readFirstSamples(List<TrackSampleTable> tables) {
+    for (TrackSampleTable table : tables) {
+      table.getOffset(0);
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Times code under test. Benchmarks run once as part of the unit tests, to keep them working, and
+ * with warm-up and repeated runs when the {@code vcat.benchmark} system property is true:
+ *
+ * <pre>./gradlew :app:testDebugUnitTest -Pvcat.benchmark=true</pre>
+ */
+/* package */ final class Benchmarks {
+
+  /** Whether benchmarks run at full length. */
+  public static final boolean ENABLED = Boolean.getBoolean("vcat.benchmark");
+
+  private static final int WARM_UP_RUNS = 5;
+  private static final int MEASURED_RUNS = 10;
+  private static final long HEAP_SAMPLE_INTERVAL_NS = 100_000;
+
+  /** Code to time. */
+  public interface Task {
+    void run() throws Exception;
+  }
+
+  private Benchmarks() {}
+
+  /** Returns the fastest time taken by {@code task} over the measured runs, in nanoseconds. */
+  public static long bestTimeNs(Task task) throws Exception {
+    if (ENABLED) {
+      for (int i = 0; i < WARM_UP_RUNS; i++) {
+        task.run();
+      }
+    }
+    long bestTimeNs = Long.MAX_VALUE;
+    for (int i = 0; i < (ENABLED ? MEASURED_RUNS : 1); i++) {
+      long startTimeNs = System.nanoTime();
+      task.run();
+      bestTimeNs = Math.min(bestTimeNs, System.nanoTime() - startTimeNs);
+    }
+    return bestTimeNs;
+  }
+
+  /**
+   * Returns the smallest peak heap use by {@code task} over the measured runs, in bytes above the
+   * heap in use before it started. The heap is sampled from another thread for as long as the task
+   * runs, so the peak includes garbage that wasn't collected yet, as the process would see it.
+   */
+  public static long peakHeapBytes(Task task) throws Exception {
+    long bestPeakBytes = Long.MAX_VALUE;
+    for (int i = 0; i < (ENABLED ? MEASURED_RUNS : 1); i++) {
+      System.gc();
+      long baselineBytes = getUsedHeapBytes();
+      long[] peakBytes = {baselineBytes};
+      AtomicBoolean running = new AtomicBoolean(true);
+      Thread sampler =
+          new Thread(
+              () -> {
+                while (running.get()) {
+                  peakBytes[0] = Math.max(peakBytes[0], getUsedHeapBytes());
+                  LockSupport.parkNanos(HEAP_SAMPLE_INTERVAL_NS);
+                }
+              });
+      sampler.start();
+      try {
+        task.run();
+      } finally {
+        running.set(false);
+        sampler.join();
+      }
+      peakBytes[0] = Math.max(peakBytes[0], getUsedHeapBytes());
+      bestPeakBytes = Math.min(bestPeakBytes, peakBytes[0] - baselineBytes);
+    }
+    return bestPeakBytes;
+  }
+
+  /** Prints the result of a benchmark. */
+  public static void report(String name, String result) {
+    System.out.println("benchmark " + name + ": " + result);
+  }
+
+  private static long getUsedHeapBytes() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
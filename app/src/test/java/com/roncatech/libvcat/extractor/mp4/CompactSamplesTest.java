@@ -0,0 +1,361 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+/** Tests for {@link CompactSamples}. */
+public final class CompactSamplesTest {
+
+  @Test
+  public void lookups_matchExpandedSamples() {
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 20_000,
+            /* gopLength= */ 48,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ true,
+            /* seed= */ 0);
+    CompactSamples samples = layout.toCompactSamples();
+
+    for (int i = 0; i < layout.sampleCount; i++) {
+      assertEquals("size " + i, layout.sizes[i], samples.getSize(i));
+      assertEquals("offset " + i, layout.offsets[i], samples.getOffset(i));
+      assertEquals("timestamp " + i, layout.getTimestamp(i), samples.getTimestamp(i));
+      assertEquals("sync " + i, layout.isSyncSample(i), samples.isSyncSample(i));
+    }
+  }
+
+  @Test
+  public void lookups_inRandomOrder_matchExpandedSamples() {
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 5_000,
+            /* gopLength= */ 250,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ true,
+            /* seed= */ 1);
+    CompactSamples samples = layout.toCompactSamples();
+    Random random = new Random(/* seed= */ 2);
+
+    for (int n = 0; n < 20_000; n++) {
+      int i = random.nextInt(layout.sampleCount);
+      assertEquals(layout.offsets[i], samples.getOffset(i));
+      assertEquals(layout.getTimestamp(i), samples.getTimestamp(i));
+    }
+  }
+
+  @Test
+  public void lookup_fillsOnlyItsWindow() {
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 20_000,
+            /* gopLength= */ 48,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ true,
+            /* seed= */ 5);
+    SampleLayout.CountingSource source = layout.new CountingSource();
+    CompactSamples samples = layout.toCompactSamples(source);
+    assertEquals(0, source.fillCount);
+
+    int index = CompactSamples.WINDOW_SIZE + 17;
+    assertEquals(layout.offsets[index], samples.getOffset(index));
+    assertEquals(layout.getTimestamp(index + 1), samples.getTimestamp(index + 1));
+    int lastInWindow = 2 * CompactSamples.WINDOW_SIZE - 1;
+    assertEquals(layout.sizes[lastInWindow], samples.getSize(lastInWindow));
+
+    assertEquals(1, source.fillCount);
+    assertEquals(CompactSamples.WINDOW_SIZE, source.filledSampleCount);
+    assertFalse(samples.isFilled());
+  }
+
+  @Test
+  public void syncLookups_fillNoWindows() {
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 20_000,
+            /* gopLength= */ 48,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ true,
+            /* seed= */ 6);
+    SampleLayout.CountingSource source = layout.new CountingSource();
+    CompactSamples samples = layout.toCompactSamples(source);
+
+    for (int i = 0; i < layout.sampleCount; i += 13) {
+      assertEquals(layout.isSyncSample(i), samples.isSyncSample(i));
+      samples.getSyncSampleAtOrBefore(i);
+      samples.getSyncSampleAtOrAfter(i);
+    }
+    assertEquals(0, source.fillCount);
+  }
+
+  @Test
+  public void binarySearch_fillsOnlyProbedWindows() {
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 100_000,
+            /* gopLength= */ 48,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ false,
+            /* seed= */ 7);
+    SampleLayout.CountingSource source = layout.new CountingSource();
+    CompactSamples samples = layout.toCompactSamples(source);
+    int windowCount = windowCount(layout.sampleCount);
+
+    long timestamp = layout.getTimestamp(61_234);
+    int index =
+        samples.binarySearchFloor(timestamp, /* inclusive= */ true, /* stayInBounds= */ true);
+
+    assertEquals(timestamp, samples.getTimestamp(index));
+    // One window per halving until the search is within a window, plus the one it ends in.
+    int maxProbedWindows = 32 - Integer.numberOfLeadingZeros(windowCount) + 1;
+    assertTrue(source.fillCount + " windows filled", source.fillCount <= maxProbedWindows);
+    assertTrue(source.fillCount < windowCount);
+  }
+
+  @Test
+  public void everyWindowLookedUp_isFilledOnce() {
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 10_000,
+            /* gopLength= */ 30,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ true,
+            /* seed= */ 8);
+    SampleLayout.CountingSource source = layout.new CountingSource();
+    CompactSamples samples = layout.toCompactSamples(source);
+
+    for (int i = layout.sampleCount - 1; i >= 0; i--) {
+      assertEquals(layout.offsets[i], samples.getOffset(i));
+    }
+
+    assertTrue(samples.isFilled());
+    assertEquals(3, source.fillCount);
+    assertEquals(layout.sampleCount, source.filledSampleCount);
+  }
+
+  @Test
+  public void writeTo_fillsRemainingWindows() throws IOException {
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 10_000,
+            /* gopLength= */ 30,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ true,
+            /* seed= */ 9);
+    SampleLayout.CountingSource source = layout.new CountingSource();
+    CompactSamples samples = layout.toCompactSamples(source);
+    samples.getSize(0);
+
+    samples.writeTo(new DataOutputStream(new ByteArrayOutputStream()));
+
+    assertTrue(samples.isFilled());
+    assertEquals(3, source.fillCount);
+    assertEquals(layout.sampleCount, source.filledSampleCount);
+  }
+
+  @Test
+  public void concurrentLookups_fillEachWindowOnce() throws InterruptedException {
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 50_000,
+            /* gopLength= */ 48,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ true,
+            /* seed= */ 10);
+    SampleLayout.CountingSource source = layout.new CountingSource();
+    CompactSamples samples = layout.toCompactSamples(source);
+    CountDownLatch start = new CountDownLatch(1);
+    Throwable[] failure = new Throwable[1];
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      int seed = t;
+      threads[t] =
+          new Thread(
+              () -> {
+                Random random = new Random(seed);
+                try {
+                  start.await();
+                  for (int n = 0; n < 20_000; n++) {
+                    int i = random.nextInt(layout.sampleCount);
+                    assertEquals(layout.offsets[i], samples.getOffset(i));
+                    assertEquals(layout.getTimestamp(i), samples.getTimestamp(i));
+                  }
+                } catch (Throwable e) {
+                  synchronized (failure) {
+                    failure[0] = e;
+                  }
+                }
+              });
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (failure[0] != null) {
+      throw new AssertionError(failure[0]);
+    }
+    assertEquals(windowCount(layout.sampleCount), source.fillCount);
+    assertEquals(layout.sampleCount, source.filledSampleCount);
+  }
+
+  @Test
+  public void firstSample_isAvailableBeforeTheTableIsExpanded() throws Exception {
+    // 2 hours at 60 fps: the first lookup fills one window where the expanded table, as built
+    // before lazy filling, holds every sample.
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 2 * 3600 * 60,
+            /* gopLength= */ 120,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ false,
+            /* seed= */ 11);
+    SampleLayout.CountingSource source = layout.new CountingSource();
+    layout.toCompactSamples(source).getOffset(0);
+    assertEquals(CompactSamples.WINDOW_SIZE, source.filledSampleCount);
+
+    long lazyNs =
+        Benchmarks.bestTimeNs(
+            () -> layout.toCompactSamples(layout.new CountingSource()).getOffset(0));
+    long expandedNs = Benchmarks.bestTimeNs(() -> layout.toExpandedTable().getOffset(0));
+    Benchmarks.report(
+        "time to first sample, " + layout.sampleCount + " samples",
+        "lazy " + lazyNs / 1000 + " us, expanded " + expandedNs / 1000 + " us");
+  }
+
+  @Test
+  public void sizeInBytes_untilEveryWindowIsFilled_includesTheSource() {
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 3 * CompactSamples.WINDOW_SIZE,
+            /* gopLength= */ 30,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ true,
+            /* seed= */ 12);
+    SampleLayout.CountingSource source = layout.new CountingSource();
+    CompactSamples samples = layout.toCompactSamples(source);
+    long filledBytes = layout.toCompactSamples().sizeInBytes();
+
+    assertEquals(filledBytes + source.sizeInBytes(), samples.sizeInBytes());
+    samples.getOffset(0);
+    samples.getOffset(CompactSamples.WINDOW_SIZE);
+    assertEquals(filledBytes + source.sizeInBytes(), samples.sizeInBytes());
+    samples.getOffset(2 * CompactSamples.WINDOW_SIZE);
+    assertEquals(filledBytes, samples.sizeInBytes());
+  }
+
+  @Test
+  public void constantStreams_takeNoPerSampleStorage() {
+    SampleLayout layout =
+        SampleLayout.constant(
+            /* sampleCount= */ 100_000, /* size= */ 371, /* samplesPerChunk= */ 20);
+    CompactSamples samples = layout.toCompactSamples();
+
+    // Chunk offsets and anchors only: a few bytes per chunk instead of 24 bytes per sample.
+    assertTrue(samples.sizeInBytes() < layout.sampleCount);
+    for (int i = 0; i < layout.sampleCount; i += 7) {
+      assertEquals(371, samples.getSize(i));
+      assertEquals(layout.offsets[i], samples.getOffset(i));
+      assertEquals(i * 1024L, samples.getTimestamp(i));
+      assertTrue(samples.isSyncSample(i));
+    }
+  }
+
+  @Test
+  public void tenHourRecording_isSeveralTimesSmallerThanExpanded() {
+    // 10 hours at 60 fps with one sync sample every 2 seconds.
+    int sampleCount = 10 * 3600 * 60;
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ sampleCount,
+            /* gopLength= */ 120,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ false,
+            /* seed= */ 3);
+    TrackSampleTable compact = layout.toCompactTable();
+
+    long compactBytes = compact.getSampleDataSizeInBytes();
+    long expandedBytes = (long) TrackSampleTable.EXPANDED_BYTES_PER_SAMPLE * sampleCount;
+    Benchmarks.report(
+        "sample table heap, 10 h at 60 fps",
+        "compact "
+            + compactBytes
+            + " bytes, expanded "
+            + expandedBytes
+            + " bytes ("
+            + compactBytes * 100 / expandedBytes
+            + "%)");
+    assertTrue(compactBytes * 3 < expandedBytes);
+  }
+
+  @Test
+  public void writeToAndReadFrom_roundTrip() throws IOException {
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 3_000,
+            /* gopLength= */ 30,
+            /* firstSyncSample= */ 5,
+            /* variableFrameRate= */ true,
+            /* seed= */ 4);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    layout.toCompactSamples().writeTo(new DataOutputStream(bytes));
+
+    ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+    CompactSamples samples = CompactSamples.readFrom(buffer);
+
+    assertEquals(0, buffer.remaining());
+    assertEquals(layout.sampleCount, samples.sampleCount);
+    for (int i = 0; i < layout.sampleCount; i++) {
+      assertEquals(layout.sizes[i], samples.getSize(i));
+      assertEquals(layout.offsets[i], samples.getOffset(i));
+      assertEquals(layout.getTimestamp(i), samples.getTimestamp(i));
+      assertEquals(layout.isSyncSample(i), samples.isSyncSample(i));
+    }
+  }
+
+  private static int windowCount(int sampleCount) {
+    return (sampleCount + CompactSamples.WINDOW_SIZE - 1) / CompactSamples.WINDOW_SIZE;
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH benchmarks of {@link Atom.ContainerAtom} on a moof atom with many traf atoms, as fragmented
+ * files with many tracks have. Run by {@link MicrobenchmarksTest}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContainerAtomBenchmark {
+
+  @Param({"1", "16", "256"})
+  public int trafCount;
+
+  private Atom.LeafAtom tfhd;
+  private Atom.LeafAtom tfdt;
+  private Atom.LeafAtom trun;
+  private Atom.ContainerAtom moof;
+
+  @Setup
+  public void setUp() {
+    tfhd = newLeafAtom(Atom.TYPE_tfhd, /* size= */ 16);
+    tfdt = newLeafAtom(Atom.TYPE_tfdt, /* size= */ 20);
+    trun = newLeafAtom(Atom.TYPE_trun, /* size= */ 260);
+    moof = newMoof();
+  }
+
+  /** Builds the atom tree of a moof, as the extractor does while reading it. */
+  @Benchmark
+  public Object buildMoof() {
+    return newMoof();
+  }
+
+  private Atom.ContainerAtom newMoof() {
+    Atom.ContainerAtom moof = new Atom.ContainerAtom(Atom.TYPE_moof, /* endPosition= */ 0);
+    for (int i = 0; i < trafCount; i++) {
+      Atom.ContainerAtom traf = new Atom.ContainerAtom(Atom.TYPE_traf, /* endPosition= */ 0);
+      traf.add(tfhd);
+      traf.add(tfdt);
+      traf.add(trun);
+      moof.add(traf);
+    }
+    return moof;
+  }
+
+  /** Looks up the children of each traf through the index. */
+  @Benchmark
+  public int lookUpTrafChildren() {
+    int found = 0;
+    List<Atom.ContainerAtom> trafs = moof.containerChildren;
+    for (int i = 0; i < trafs.size(); i++) {
+      Atom.ContainerAtom traf = trafs.get(i);
+      found += count(traf.getLeafAtomOfType(Atom.TYPE_tfhd));
+      found += count(traf.getLeafAtomOfType(Atom.TYPE_tfdt));
+      found += count(traf.getLeafAtomOfType(Atom.TYPE_trun));
+      found += count(traf.getLeafAtomOfType(Atom.TYPE_saiz));
+      found += count(traf.getContainerAtomOfType(Atom.TYPE_meta));
+    }
+    return found;
+  }
+
+  /** Looks up the same children by scanning the child lists, as before the index. */
+  @Benchmark
+  public int lookUpTrafChildrenByScan() {
+    int found = 0;
+    List<Atom.ContainerAtom> trafs = moof.containerChildren;
+    for (int i = 0; i < trafs.size(); i++) {
+      Atom.ContainerAtom traf = trafs.get(i);
+      found += count(scanLeafChildren(traf, Atom.TYPE_tfhd));
+      found += count(scanLeafChildren(traf, Atom.TYPE_tfdt));
+      found += count(scanLeafChildren(traf, Atom.TYPE_trun));
+      found += count(scanLeafChildren(traf, Atom.TYPE_saiz));
+      found += count(scanContainerChildren(traf, Atom.TYPE_meta));
+    }
+    return found;
+  }
+
+  private static Atom.LeafAtom newLeafAtom(int type, int size) {
+    ParsableByteArray data = new ParsableByteArray(size);
+    data.getData()[3] = (byte) size;
+    data.getData()[4] = (byte) (type >> 24);
+    data.getData()[5] = (byte) (type >> 16);
+    data.getData()[6] = (byte) (type >> 8);
+    data.getData()[7] = (byte) type;
+    return new Atom.LeafAtom(type, data);
+  }
+
+  @Nullable
+  private static Atom.LeafAtom scanLeafChildren(Atom.ContainerAtom container, int type) {
+    for (int i = 0; i < container.leafChildren.size(); i++) {
+      Atom.LeafAtom atom = container.leafChildren.get(i);
+      if (atom.type == type) {
+        return atom;
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  private static Atom.ContainerAtom scanContainerChildren(Atom.ContainerAtom container, int type) {
+    for (int i = 0; i < container.containerChildren.size(); i++) {
+      Atom.ContainerAtom atom = container.containerChildren.get(i);
+      if (atom.type == type) {
+        return atom;
+      }
+    }
+    return null;
+  }
+
+  private static int count(@Nullable Atom atom) {
+    return atom == null ? 0 : 1;
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.DefaultExtractorInput;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.upstream.DataReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Drives an {@link Extractor} the way a progressive media period does: reads until the extractor
+ * asks for a seek, then reopens the source at the requested position. Counts what the source sees.
+ */
+/* package */ final class ExtractorRunner {
+
+  public final RecordingExtractorOutput output;
+  /** Times the source was opened at a position the extractor asked for. */
+  public int reloads;
+  /** Calls that read from the source. */
+  public long sourceReads;
+  public long sourceBytesRead;
+
+  private final Extractor extractor;
+  private final PositionHolder positionHolder;
+  @Nullable private final byte[] data;
+  @Nullable private final FileChannel channel;
+  private ExtractorInput input;
+
+  /** Creates a runner that reads {@code data} through a {@link DefaultExtractorInput}. */
+  public ExtractorRunner(Extractor extractor, byte[] data) throws IOException {
+    this(extractor, data, /* channel= */ null);
+  }
+
+  /** Creates a runner that reads {@code file} through a {@link MappedExtractorInput}. */
+  public ExtractorRunner(Extractor extractor, RandomAccessFile file) throws IOException {
+    this(extractor, /* data= */ null, file.getChannel());
+  }
+
+  private ExtractorRunner(
+      Extractor extractor, @Nullable byte[] data, @Nullable FileChannel channel)
+      throws IOException {
+    this.extractor = extractor;
+    this.data = data;
+    this.channel = channel;
+    output = new RecordingExtractorOutput();
+    positionHolder = new PositionHolder();
+    extractor.init(output);
+    input = open(/* position= */ 0);
+  }
+
+  /** Reads until the extractor has output its tracks. */
+  public void readUntilTracksEnded() throws IOException {
+    while (!output.tracksEnded) {
+      if (!readOnce()) {
+        throw new IllegalStateException("Input ended before the tracks");
+      }
+    }
+  }
+
+  /** Reads until {@code count} more samples have been output, across all tracks. */
+  public void readSamples(int count) throws IOException {
+    int targetSampleCount = getSampleCount() + count;
+    while (getSampleCount() < targetSampleCount) {
+      if (!readOnce()) {
+        throw new IllegalStateException("Input ended before " + count + " samples");
+      }
+    }
+  }
+
+  /** Reads until the extractor reports the end of the input. */
+  public void readToEnd() throws IOException {
+    while (readOnce()) {}
+  }
+
+  /** Seeks to the first seek point for {@code timeUs}, as a player would. */
+  public void seekTo(long timeUs) throws IOException {
+    SeekMap.SeekPoints seekPoints = checkNotNull(output.seekMap).getSeekPoints(timeUs);
+    long position = seekPoints.first.position;
+    extractor.seek(position, timeUs);
+    input = open(position);
+  }
+
+  /** Returns the position of the input the extractor reads from. */
+  public long getInputPosition() {
+    return input.getPosition();
+  }
+
+  private int getSampleCount() {
+    int sampleCount = 0;
+    for (RecordingExtractorOutput.RecordingTrackOutput trackOutput :
+        output.trackOutputs.values()) {
+      sampleCount += trackOutput.getSampleCount();
+    }
+    return sampleCount;
+  }
+
+  /**
+   * Reads once, reopening the source if the extractor asks for a seek. Returns false at the end of
+   * the input.
+   */
+  public boolean readOnce() throws IOException {
+    int result = extractor.read(input, positionHolder);
+    if (result == Extractor.RESULT_SEEK) {
+      reloads++;
+      input = open(positionHolder.position);
+    }
+    return result != Extractor.RESULT_END_OF_INPUT;
+  }
+
+  private ExtractorInput open(long position) throws IOException {
+    if (channel != null) {
+      return new MappedExtractorInput(channel, position);
+    }
+    return new DefaultExtractorInput(
+        new SourceReader(position), position, checkNotNull(data).length);
+  }
+
+  private final class SourceReader implements DataReader {
+
+    private int position;
+
+    public SourceReader(long position) {
+      this.position = (int) position;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+      byte[] data = checkNotNull(ExtractorRunner.this.data);
+      if (length == 0) {
+        return 0;
+      }
+      if (position == data.length) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      int bytesRead = Math.min(length, data.length - position);
+      System.arraycopy(data, position, buffer, offset, bytesRead);
+      position += bytesRead;
+      sourceReads++;
+      sourceBytesRead += bytesRead;
+      return bytesRead;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static org.junit.Assert.assertEquals;
+
+import com.roncatech.libvcat.decoder.SampleFormatDeclaration;
+import com.roncatech.libvcat.decoder.VcatDecoderManager;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests for {@link FragmentedMp4Extractor}. */
+@RunWith(RobolectricTestRunner.class)
+public final class FragmentedMp4ExtractorTest {
+
+  @Test
+  public void read_outputsEverySampleOfEveryFragment() throws Exception {
+    Mp4Fixture fixture = newFragmentedFixture();
+    ExtractorRunner runner = new ExtractorRunner(new FragmentedMp4Extractor(), fixture.data);
+
+    runner.readToEnd();
+
+    assertEquals(2, runner.output.trackOutputs.size());
+    fixture.assertOutputMatches(0, runner.output.get(0));
+    fixture.assertOutputMatches(1, runner.output.get(1));
+  }
+
+  @Test
+  public void read_reusesAtomBuffersAcrossFragments() throws Exception {
+    Mp4Fixture fixture = newFragmentedFixture();
+    FragmentedMp4Extractor extractor = new FragmentedMp4Extractor();
+    ExtractorRunner runner = new ExtractorRunner(extractor, fixture.data);
+
+    runner.readToEnd();
+
+    // Each moof is read whole into one buffer, and all moofs share a size class. So only the first
+    // moof allocates.
+    AtomBufferPool atomBuffers = extractor.getAtomBuffers();
+    // 60 video and 59 audio fragments.
+    assertEquals(119, fixture.fragmentCount);
+    assertEquals(1, atomBuffers.getAllocationCount());
+    assertEquals(fixture.fragmentCount - 1, atomBuffers.getReuseCount());
+  }
+
+  @Test
+  public void read_avcWith4ByteNalUnitLengths_outputsEachSampleInOneCall() throws Exception {
+    Mp4Fixture fixture =
+        new Mp4Fixture.Builder()
+            .addTrack(
+                Mp4Fixture.TrackSpec.avc(
+                    /* sampleCount= */ 300,
+                    /* gopLength= */ 30,
+                    /* nalUnitCount= */ 8,
+                    /* nalUnitSize= */ 64,
+                    /* nalUnitLengthFieldLength= */ 4))
+            .setFragmented(true)
+            .build();
+    ExtractorRunner runner = new ExtractorRunner(new FragmentedMp4Extractor(), fixture.data);
+
+    runner.readToEnd();
+
+    RecordingExtractorOutput.RecordingTrackOutput output = runner.output.get(0);
+    fixture.assertOutputMatches(0, output);
+    assertEquals(300, output.sampleDataCalls);
+  }
+
+  @Test
+  public void read_avcWith2ByteNalUnitLengths_outputsEachNalUnitInThreeCalls() throws Exception {
+    Mp4Fixture fixture =
+        new Mp4Fixture.Builder()
+            .addTrack(
+                Mp4Fixture.TrackSpec.avc(
+                    /* sampleCount= */ 300,
+                    /* gopLength= */ 30,
+                    /* nalUnitCount= */ 8,
+                    /* nalUnitSize= */ 64,
+                    /* nalUnitLengthFieldLength= */ 2))
+            .setFragmented(true)
+            .build();
+    ExtractorRunner runner = new ExtractorRunner(new FragmentedMp4Extractor(), fixture.data);
+
+    runner.readToEnd();
+
+    RecordingExtractorOutput.RecordingTrackOutput output = runner.output.get(0);
+    fixture.assertOutputMatches(0, output);
+    // A start code, the NAL unit header, then the rest of the NAL unit.
+    assertEquals(300 * 8 * 3, output.sampleDataCalls);
+  }
+
+  @Test
+  public void read_withDecoderTakingSamplesAsStored_outputsEachSampleInOneCall()
+      throws Exception {
+    for (boolean hevc : new boolean[] {false, true}) {
+      Mp4Fixture.TrackSpec track =
+          Mp4Fixture.TrackSpec.avc(
+              /* sampleCount= */ 300,
+              /* gopLength= */ 30,
+              /* nalUnitCount= */ 8,
+              /* nalUnitSize= */ 64,
+              /* nalUnitLengthFieldLength= */ 2);
+      Mp4Fixture fixture =
+          new Mp4Fixture.Builder()
+              .addTrack(hevc ? track.asHevc() : track)
+              .setFragmented(true)
+              .build();
+      SampleFormatPlugin plugin =
+          new SampleFormatPlugin(hevc, SampleFormatDeclaration.SAMPLE_FORMAT_AS_STORED);
+      VcatDecoderManager.getInstance().registerDecoder(plugin);
+      try {
+        ExtractorRunner runner = new ExtractorRunner(new FragmentedMp4Extractor(), fixture.data);
+
+        runner.readToEnd();
+
+        RecordingExtractorOutput.RecordingTrackOutput output = runner.output.get(0);
+        fixture.assertStoredOutputMatches(0, output);
+        assertEquals(300, output.sampleDataCalls);
+      } finally {
+        VcatDecoderManager.getInstance().unregisterDecoder(plugin.getId());
+      }
+    }
+  }
+
+  /**
+   * Returns 30 seconds of video in fragments of 15 frames, and audio in fragments of 24 frames,
+   * interleaved.
+   */
+  private static Mp4Fixture newFragmentedFixture() {
+    return Mp4Fixture.multiTrack(
+            /* trackCount= */ 2,
+            /* videoSampleCount= */ 900,
+            /* maxVideoSampleSize= */ 256,
+            /* audioSampleSize= */ 16)
+        .setFragmented(true)
+        .build();
+  }
+}
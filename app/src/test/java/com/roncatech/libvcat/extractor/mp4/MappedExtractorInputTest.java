@@ -0,0 +1,121 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link MappedExtractorInput}. */
+public final class MappedExtractorInputTest {
+
+  // 4 KiB segments.
+  private static final int SEGMENT_SHIFT = 12;
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+  private static final int SEGMENT_COUNT = 8;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void readFully_acrossSegments_readsFileData() throws Exception {
+    byte[] data = newData();
+    try (RandomAccessFile file = newFile(data)) {
+      MappedExtractorInput input =
+          new MappedExtractorInput(file.getChannel(), /* position= */ 0, SEGMENT_SHIFT);
+      byte[] target = new byte[2 * SEGMENT_SIZE];
+
+      input.seekTo(SEGMENT_SIZE / 2);
+      input.readFully(target, /* offset= */ 0, target.length);
+
+      assertArrayEquals(
+          Arrays.copyOfRange(data, SEGMENT_SIZE / 2, SEGMENT_SIZE / 2 + target.length), target);
+    }
+  }
+
+  @Test
+  public void readFully_roundRobinOverMoreSegmentsThanMapped_mapsSegmentsAgain()
+      throws Exception {
+    try (RandomAccessFile file = newFile(newData())) {
+      MappedExtractorInput input =
+          new MappedExtractorInput(file.getChannel(), /* position= */ 0, SEGMENT_SHIFT);
+
+      readRoundRobin(input, /* rounds= */ 3);
+
+      assertEquals(3 * SEGMENT_COUNT, input.getSegmentMapCount());
+    }
+  }
+
+  @Test
+  public void setMinimumMappedSegmentCount_keepsThatManySegmentsMapped() throws Exception {
+    try (RandomAccessFile file = newFile(newData())) {
+      MappedExtractorInput input =
+          new MappedExtractorInput(file.getChannel(), /* position= */ 0, SEGMENT_SHIFT);
+      input.setMinimumMappedSegmentCount(SEGMENT_COUNT);
+
+      readRoundRobin(input, /* rounds= */ 3);
+
+      assertEquals(SEGMENT_COUNT, input.getSegmentMapCount());
+    }
+  }
+
+  /** Reads a byte from each segment in turn, {@code rounds} times over. */
+  private static void readRoundRobin(MappedExtractorInput input, int rounds) throws Exception {
+    byte[] target = new byte[1];
+    for (int round = 0; round < rounds; round++) {
+      for (int segment = 0; segment < SEGMENT_COUNT; segment++) {
+        input.seekTo((long) segment * SEGMENT_SIZE + round);
+        input.readFully(target, /* offset= */ 0, /* length= */ 1);
+      }
+    }
+  }
+
+  private static byte[] newData() {
+    byte[] data = new byte[SEGMENT_COUNT * SEGMENT_SIZE];
+    new Random(/* seed= */ 0).nextBytes(data);
+    return data;
+  }
+
+  private RandomAccessFile newFile(byte[] data) throws Exception {
+    File file = temporaryFolder.newFile();
+    Files.write(file.toPath(), data);
+    return new RandomAccessFile(file, "r");
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.upstream.DataReader;
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests for {@link MappedFileMediaExtractor}. */
+@RunWith(RobolectricTestRunner.class)
+public final class MappedFileMediaExtractorTest {
+
+  private static final DataReader UNUSED_DATA_READER =
+      (buffer, offset, length) -> {
+        throw new UnsupportedOperationException();
+      };
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void getCurrentInputPosition_nonInterleaved_onlyGrows() throws Exception {
+    Mp4Fixture fixture = newNonInterleavedFixture();
+    File file = fixture.writeTo(temporaryFolder.newFolder());
+    MappedFileMediaExtractor extractor = newExtractor();
+    RecordingExtractorOutput output = new RecordingExtractorOutput();
+    PositionHolder positionHolder = new PositionHolder();
+    init(extractor, file, /* position= */ 0, output);
+
+    long lastPosition = 0;
+    while (extractor.read(positionHolder) != Extractor.RESULT_END_OF_INPUT) {
+      long position = extractor.getCurrentInputPosition();
+      assertTrue(position >= lastPosition);
+      lastPosition = position;
+    }
+
+    // Every byte is read once, so the position ends where the file does.
+    assertEquals(fixture.data.length, lastPosition);
+    fixture.assertOutputMatches(0, output.get(0));
+    fixture.assertOutputMatches(1, output.get(1));
+    extractor.release();
+  }
+
+  @Test
+  public void init_atReportedPosition_resumesWhereLoadStopped() throws Exception {
+    Mp4Fixture fixture = newNonInterleavedFixture();
+    File file = fixture.writeTo(temporaryFolder.newFolder());
+    MappedFileMediaExtractor extractor = newExtractor();
+    RecordingExtractorOutput output = new RecordingExtractorOutput();
+    PositionHolder positionHolder = new PositionHolder();
+    init(extractor, file, /* position= */ 0, output);
+
+    // Each read is followed by a canceled load, which the period resumes at the position it last
+    // got. That includes the reads of the header atoms, which continue at the input position.
+    while (extractor.read(positionHolder) != Extractor.RESULT_END_OF_INPUT) {
+      init(extractor, file, extractor.getCurrentInputPosition(), output);
+    }
+
+    fixture.assertOutputMatches(0, output.get(0));
+    fixture.assertOutputMatches(1, output.get(1));
+    extractor.release();
+  }
+
+  private static Mp4Fixture newNonInterleavedFixture() {
+    return Mp4Fixture.multiTrack(
+            /* trackCount= */ 2,
+            /* videoSampleCount= */ 900,
+            /* maxVideoSampleSize= */ 4096,
+            /* audioSampleSize= */ 64)
+        .setInterleaved(false)
+        .build();
+  }
+
+  private static MappedFileMediaExtractor newExtractor() {
+    return new MappedFileMediaExtractor(() -> new Extractor[] {new VcatMp4Extractor()});
+  }
+
+  private static void init(
+      MappedFileMediaExtractor extractor,
+      File file,
+      long position,
+      RecordingExtractorOutput output)
+      throws IOException {
+    extractor.init(
+        UNUSED_DATA_READER,
+        Uri.fromFile(file),
+        ImmutableMap.of(),
+        position,
+        C.LENGTH_UNSET,
+        output);
+  }
+}
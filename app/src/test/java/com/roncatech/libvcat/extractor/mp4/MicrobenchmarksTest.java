@@ -0,0 +1,77 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static org.junit.Assert.assertFalse;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs the JMH benchmarks of this package, whose class names end in {@code Benchmark}. Like the
+ * other {@link Benchmarks}, they run briefly as part of the unit tests and at full length when the
+ * {@code vcat.benchmark} system property is true. They run in the test JVM, without forking.
+ */
+public final class MicrobenchmarksTest {
+
+  @Test
+  public void runMicrobenchmarks() throws Exception {
+    ChainedOptionsBuilder options =
+        new OptionsBuilder()
+            .include(MicrobenchmarksTest.class.getPackage().getName() + "\\.\\w+Benchmark\\.")
+            .forks(0)
+            .shouldFailOnError(true);
+    if (Benchmarks.ENABLED) {
+      options
+          .warmupIterations(5)
+          .warmupTime(TimeValue.seconds(1))
+          .measurementIterations(10)
+          .measurementTime(TimeValue.seconds(1));
+    } else {
+      options
+          .warmupIterations(0)
+          .measurementIterations(1)
+          .measurementTime(new TimeValue(10, TimeUnit.MILLISECONDS));
+    }
+
+    Collection<RunResult> results = new Runner(options.build()).run();
+
+    assertFalse(results.isEmpty());
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH benchmarks of the two ways to find the boxes of a moof atom with many traf atoms: as a tree
+ * of {@link Atom.ContainerAtom}s with a copy of each leaf, as {@link FragmentedMp4Extractor} used
+ * to, or in place with a {@link BoxCursor}, as it does now. Run by {@link MicrobenchmarksTest}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MoofParsingBenchmark {
+
+  private static final int TFHD_SIZE = 16;
+  private static final int TFDT_SIZE = 20;
+  private static final int TRUN_SIZE = 260;
+  private static final int TRAF_SIZE = Atom.HEADER_SIZE + TFHD_SIZE + TFDT_SIZE + TRUN_SIZE;
+
+  @Param({"1", "16", "256"})
+  public int trafCount;
+
+  private ParsableByteArray moof;
+  private BoxCursor children;
+  private BoxCursor trafChildren;
+
+  @Setup
+  public void setUp() {
+    int moofSize = Atom.HEADER_SIZE + trafCount * TRAF_SIZE;
+    moof = new ParsableByteArray(moofSize);
+    int position = writeHeader(moof.getData(), 0, moofSize, Atom.TYPE_moof);
+    for (int i = 0; i < trafCount; i++) {
+      position = writeHeader(moof.getData(), position, TRAF_SIZE, Atom.TYPE_traf);
+      position = writeHeader(moof.getData(), position, TFHD_SIZE, Atom.TYPE_tfhd) + TFHD_SIZE - 8;
+      position = writeHeader(moof.getData(), position, TFDT_SIZE, Atom.TYPE_tfdt) + TFDT_SIZE - 8;
+      position = writeHeader(moof.getData(), position, TRUN_SIZE, Atom.TYPE_trun) + TRUN_SIZE - 8;
+    }
+    children = new BoxCursor(moof, /* start= */ 0, /* limit= */ 0);
+    trafChildren = new BoxCursor(moof, /* start= */ 0, /* limit= */ 0);
+  }
+
+  /**
+   * Splits the moof into a tree of atoms, copying each leaf, and looks up the children of each
+   * traf in it.
+   */
+  @Benchmark
+  public int parseAsAtomTree() {
+    Atom.ContainerAtom moofAtom = new Atom.ContainerAtom(Atom.TYPE_moof, /* endPosition= */ 0);
+    byte[] data = moof.getData();
+    int position = Atom.HEADER_SIZE;
+    while (position < moof.limit()) {
+      int trafEnd = position + readInt(data, position);
+      Atom.ContainerAtom traf = new Atom.ContainerAtom(Atom.TYPE_traf, trafEnd);
+      position += Atom.HEADER_SIZE;
+      while (position < trafEnd) {
+        int size = readInt(data, position);
+        ParsableByteArray leaf = new ParsableByteArray(size);
+        System.arraycopy(data, position, leaf.getData(), 0, size);
+        traf.add(new Atom.LeafAtom(readInt(data, position + 4), leaf));
+        position += size;
+      }
+      moofAtom.add(traf);
+    }
+
+    int found = 0;
+    List<Atom.ContainerAtom> trafs = moofAtom.containerChildren;
+    for (int i = 0; i < trafs.size(); i++) {
+      Atom.ContainerAtom traf = trafs.get(i);
+      found += traf.getLeafAtomOfType(Atom.TYPE_tfhd) != null ? 1 : 0;
+      found += traf.getLeafAtomOfType(Atom.TYPE_tfdt) != null ? 1 : 0;
+      found += traf.getLeafAtomOfType(Atom.TYPE_saiz) != null ? 1 : 0;
+      List<Atom.LeafAtom> leaves = traf.leafChildren;
+      for (int j = 0; j < leaves.size(); j++) {
+        found += leaves.get(j).type == Atom.TYPE_trun ? 1 : 0;
+      }
+    }
+    return found;
+  }
+
+  /** Finds the same boxes in place, walking each traf once for its boxes and once for its truns. */
+  @Benchmark
+  public int parseWithBoxCursor() {
+    int found = 0;
+    children.reset(moof, Atom.HEADER_SIZE, moof.limit());
+    while (children.nextOfType(Atom.TYPE_traf)) {
+      int trafStart = children.getPosition() + Atom.HEADER_SIZE;
+      trafChildren.reset(moof, trafStart, children.getEndPosition());
+      while (trafChildren.next()) {
+        int type = trafChildren.getType();
+        found += type == Atom.TYPE_tfhd || type == Atom.TYPE_tfdt || type == Atom.TYPE_saiz ? 1 : 0;
+      }
+      trafChildren.reset(moof, trafStart, children.getEndPosition());
+      while (trafChildren.nextOfType(Atom.TYPE_trun)) {
+        found++;
+      }
+    }
+    return found;
+  }
+
+  private static int writeHeader(byte[] data, int position, int size, int type) {
+    writeInt(data, position, size);
+    writeInt(data, position + 4, type);
+    return position + Atom.HEADER_SIZE;
+  }
+
+  private static void writeInt(byte[] data, int position, int value) {
+    data[position] = (byte) (value >> 24);
+    data[position + 1] = (byte) (value >> 16);
+    data[position + 2] = (byte) (value >> 8);
+    data[position + 3] = (byte) value;
+  }
+
+  private static int readInt(byte[] data, int position) {
+    return (data[position] & 0xFF) << 24
+        | (data[position + 1] & 0xFF) << 16
+        | (data[position + 2] & 0xFF) << 8
+        | (data[position + 3] & 0xFF);
+  }
+}
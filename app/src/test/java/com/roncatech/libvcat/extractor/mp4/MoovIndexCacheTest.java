@@ -0,0 +1,268 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ParserException;
+import com.google.android.exoplayer2.extractor.GaplessInfoHolder;
+import com.google.android.exoplayer2.extractor.mp4.Track;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests for {@link MoovIndexCache}. */
+@RunWith(RobolectricTestRunner.class)
+public final class MoovIndexCacheTest {
+
+  private static final long ENTRY_WRITE_TIMEOUT_MS = 10_000;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void warmOpen_readsStoredTablesAndOutputsSameSamples() throws Exception {
+    Mp4Fixture fixture = newFixture(/* trackCount= */ 4);
+    File file = fixture.writeTo(temporaryFolder.newFolder());
+    File directory = temporaryFolder.newFolder();
+    MoovIndexCache cache = new MoovIndexCache(directory, /* maxSizeBytes= */ Long.MAX_VALUE);
+
+    readToEnd(fixture, file, cache);
+    File entryFile = awaitEntries(directory, /* count= */ 1)[0];
+    // A hit touches the entry, a miss would store it again.
+    assertTrue(entryFile.setLastModified(0));
+    readToEnd(fixture, file, cache);
+
+    assertTrue(entryFile.lastModified() > 0);
+    assertEquals(1, listEntries(directory).length);
+  }
+
+  @Test
+  public void warmOpen_withOtherReadFlags_readsStoredTables() throws Exception {
+    Mp4Fixture fixture = newFixture(/* trackCount= */ 2);
+    File file = fixture.writeTo(temporaryFolder.newFolder());
+    File directory = temporaryFolder.newFolder();
+    MoovIndexCache cache = new MoovIndexCache(directory, /* maxSizeBytes= */ Long.MAX_VALUE);
+
+    readToEnd(fixture, file, cache, VcatMp4Extractor.FLAG_COALESCE_SAMPLE_READS);
+    File entryFile = awaitEntries(directory, /* count= */ 1)[0];
+    assertTrue(entryFile.setLastModified(0));
+    readToEnd(
+        fixture,
+        file,
+        cache,
+        VcatMp4Extractor.FLAG_POSITIONAL_SAMPLE_READS | VcatMp4Extractor.FLAG_READ_SEF_DATA);
+
+    // Flags that only change how samples are read share the entry.
+    assertTrue(entryFile.lastModified() > 0);
+    Atom.ContainerAtom moov = fixture.parseMoov();
+    assertNotNull(load(cache, file, MoovIndexCache.hash(moov), /* extractorFlags= */ 0, moov));
+  }
+
+  @Test
+  public void load_returnsTablesEqualToParsedTables() throws Exception {
+    Mp4Fixture fixture = newFixture(/* trackCount= */ 2);
+    File file = fixture.writeTo(temporaryFolder.newFolder());
+    File directory = temporaryFolder.newFolder();
+    MoovIndexCache cache = new MoovIndexCache(directory, /* maxSizeBytes= */ Long.MAX_VALUE);
+    Atom.ContainerAtom moov = fixture.parseMoov();
+    List<TrackSampleTable> parsedTables = parseTraks(moov);
+
+    checkNotNull(cache.forFile(file.getPath()))
+        .store(
+            MoovIndexCache.hash(moov),
+            /* extractorFlags= */ 0,
+            parsedTables,
+            new GaplessInfoHolder());
+    awaitEntries(directory, /* count= */ 1);
+    @Nullable
+    List<TrackSampleTable> loadedTables =
+        checkNotNull(cache.forFile(file.getPath()))
+            .load(
+                MoovIndexCache.hash(moov),
+                /* extractorFlags= */ 0,
+                parseTrackHeaders(moov),
+                new GaplessInfoHolder());
+
+    assertNotNull(loadedTables);
+    assertEquals(parsedTables.size(), loadedTables.size());
+    for (int i = 0; i < parsedTables.size(); i++) {
+      fixture.assertTableMatches(i, loadedTables.get(i));
+    }
+  }
+
+  @Test
+  public void load_afterFileChanged_misses() throws Exception {
+    Mp4Fixture fixture = newFixture(/* trackCount= */ 2);
+    File file = fixture.writeTo(temporaryFolder.newFolder());
+    File directory = temporaryFolder.newFolder();
+    MoovIndexCache cache = new MoovIndexCache(directory, /* maxSizeBytes= */ Long.MAX_VALUE);
+    Atom.ContainerAtom moov = fixture.parseMoov();
+    long moovHash = MoovIndexCache.hash(moov);
+    checkNotNull(cache.forFile(file.getPath()))
+        .store(moovHash, /* extractorFlags= */ 0, parseTraks(moov), new GaplessInfoHolder());
+    awaitEntries(directory, /* count= */ 1);
+
+    assertNull(load(cache, file, moovHash + 1, /* extractorFlags= */ 0, moov));
+    assertNull(
+        load(cache, file, moovHash, VcatMp4Extractor.FLAG_WORKAROUND_IGNORE_EDIT_LISTS, moov));
+    assertTrue(file.setLastModified(file.lastModified() - 60_000));
+    assertNull(load(cache, file, moovHash, /* extractorFlags= */ 0, moov));
+  }
+
+  @Test
+  public void store_evictsLeastRecentlyUsedEntries() throws Exception {
+    Mp4Fixture fixture = newFixture(/* trackCount= */ 1);
+    File fileDirectory = temporaryFolder.newFolder();
+    File firstFile = fixture.writeTo(fileDirectory);
+    File secondFile = fixture.writeTo(fileDirectory);
+    File directory = temporaryFolder.newFolder();
+    Atom.ContainerAtom moov = fixture.parseMoov();
+    long moovHash = MoovIndexCache.hash(moov);
+    MoovIndexCache cache = new MoovIndexCache(directory, /* maxSizeBytes= */ Long.MAX_VALUE);
+    checkNotNull(cache.forFile(firstFile.getPath()))
+        .store(moovHash, /* extractorFlags= */ 0, parseTraks(moov), new GaplessInfoHolder());
+    File firstEntry = awaitEntries(directory, /* count= */ 1)[0];
+    assertTrue(firstEntry.setLastModified(0));
+
+    // Room for one entry only.
+    cache = new MoovIndexCache(directory, /* maxSizeBytes= */ firstEntry.length() * 3 / 2);
+    checkNotNull(cache.forFile(secondFile.getPath()))
+        .store(moovHash, /* extractorFlags= */ 0, parseTraks(moov), new GaplessInfoHolder());
+    awaitDeleted(firstEntry);
+
+    assertNotNull(load(cache, secondFile, moovHash, /* extractorFlags= */ 0, moov));
+  }
+
+  private static Mp4Fixture newFixture(int trackCount) {
+    return Mp4Fixture.multiTrack(
+            trackCount,
+            /* videoSampleCount= */ 600,
+            /* maxVideoSampleSize= */ 256,
+            /* audioSampleSize= */ 16)
+        .build();
+  }
+
+  private static void readToEnd(Mp4Fixture fixture, File file, MoovIndexCache cache)
+      throws IOException {
+    readToEnd(fixture, file, cache, /* flags= */ 0);
+  }
+
+  private static void readToEnd(Mp4Fixture fixture, File file, MoovIndexCache cache, int flags)
+      throws IOException {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      VcatMp4Extractor extractor = new VcatMp4Extractor(flags);
+      extractor.setMoovIndex(cache.forFile(file.getPath()));
+      ExtractorRunner runner = new ExtractorRunner(extractor, randomAccessFile);
+      runner.readToEnd();
+      for (int i = 0; i < fixture.tracks.size(); i++) {
+        fixture.assertOutputMatches(i, runner.output.get(i));
+      }
+    }
+  }
+
+  @Nullable
+  private static List<TrackSampleTable> load(
+      MoovIndexCache cache,
+      File file,
+      long moovHash,
+      int extractorFlags,
+      Atom.ContainerAtom moov)
+      throws ParserException {
+    return checkNotNull(cache.forFile(file.getPath()))
+        .load(moovHash, extractorFlags, parseTrackHeaders(moov), new GaplessInfoHolder());
+  }
+
+  private static List<TrackSampleTable> parseTraks(Atom.ContainerAtom moov) throws IOException {
+    return AtomParsers.parseTraks(
+        moov,
+        new GaplessInfoHolder(),
+        /* duration= */ C.TIME_UNSET,
+        /* drmInitData= */ null,
+        /* ignoreEditLists= */ false,
+        /* isQuickTime= */ false,
+        /* modifyTrackFunction= */ track -> track);
+  }
+
+  private static List<Track> parseTrackHeaders(Atom.ContainerAtom moov)
+      throws ParserException {
+    return AtomParsers.parseTrackHeaders(
+        moov,
+        /* duration= */ C.TIME_UNSET,
+        /* drmInitData= */ null,
+        /* ignoreEditLists= */ false,
+        /* isQuickTime= */ false,
+        /* modifyTrackFunction= */ track -> track,
+        /* stblAtoms= */ null);
+  }
+
+  /** Waits for the background writer to have written {@code count} entries. */
+  private static File[] awaitEntries(File directory, int count) throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + ENTRY_WRITE_TIMEOUT_MS;
+    File[] entries = listEntries(directory);
+    while (entries.length < count) {
+      assertTrue("Entry not written", System.currentTimeMillis() < deadlineMs);
+      Thread.sleep(10);
+      entries = listEntries(directory);
+    }
+    return entries;
+  }
+
+  /**
+   * Waits for the background writer to have evicted {@code entry}. Polls the file rather than
+   * loading the entry, which would touch it and make it the most recently used.
+   */
+  private static void awaitDeleted(File entry) throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + ENTRY_WRITE_TIMEOUT_MS;
+    while (entry.exists()) {
+      assertTrue("Entry not evicted", System.currentTimeMillis() < deadlineMs);
+      Thread.sleep(10);
+    }
+  }
+
+  private static File[] listEntries(File directory) {
+    @Nullable File[] files = directory.listFiles((dir, name) -> name.endsWith(".vmic"));
+    return files != null ? files : new File[0];
+  }
+}
@@ -0,0 +1,1092 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+import static org.junit.Assert.assertEquals;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A synthetic MP4 file, written in memory from the samples of each track. Sample data is random,
+ * so that tests can check extracted samples byte for byte against the file.
+ *
+ * <p>Files are unfragmented unless {@link Builder#setFragmented(boolean)} is set, in which case
+ * every chunk is stored as a fragment of its own.
+ */
+/* package */ final class Mp4Fixture {
+
+  /** The timescale of the mvhd atom. */
+  public static final long MOVIE_TIMESCALE = 1000;
+
+  private static final int TYPE_free = Util.getIntegerCodeForString("free");
+  private static final int TYPE_vide = Util.getIntegerCodeForString("vide");
+  private static final int TYPE_soun = Util.getIntegerCodeForString("soun");
+  private static final int TYPE_mfhd = Util.getIntegerCodeForString("mfhd");
+
+  private static final byte[] NAL_START_CODE = {0, 0, 0, 1};
+  /**
+   * A Baseline profile, level 3.0 SPS of a 1280x720 stream: seq_parameter_set_id 0,
+   * log2_max_frame_num_minus4 0, pic_order_cnt_type 2, max_num_ref_frames 1,
+   * pic_width_in_mbs_minus1 79, pic_height_in_map_units_minus1 44, frame_mbs_only_flag and
+   * direct_8x8_inference_flag set, no cropping and no VUI.
+   */
+  private static final byte[] AVC_SPS = {
+    0x67, 0x42, (byte) 0xC0, 0x1E, (byte) 0xDA, 0x01, 0x40, 0x16, (byte) 0xE4
+  };
+  /** A PPS referring to {@link #AVC_SPS}. */
+  private static final byte[] AVC_PPS = {0x68, (byte) 0xCE, 0x38, (byte) 0x80};
+
+  /** The samples of one track. Track ids are assigned in the order tracks are added, from 1. */
+  public static final class TrackSpec {
+
+    public final @C.TrackType int type;
+    public final long timescale;
+    public final int sampleCount;
+    public final int[] sizes;
+    public final long[] decodeTimes;
+    @Nullable public final long[] compositionOffsets;
+    @Nullable public final int[] syncSamples;
+    /** The decode time at which the last sample ends. */
+    public final long endTime;
+    /** Edit list segment durations in the movie timescale of {@link #MOVIE_TIMESCALE}, or null. */
+    @Nullable public final long[] editDurations;
+    /** Edit list media times in the track timescale, or -1 for empty edits. */
+    @Nullable public final long[] editMediaTimes;
+    /**
+     * For H.264 and H.265 tracks, the length of the field before each NAL unit. Each sample is a
+     * run of NAL units of {@link #nalUnitSize} bytes. 0 for other tracks.
+     */
+    public final int nalUnitLengthFieldLength;
+    /** The size of each NAL unit of an H.264 or H.265 track, without its length field. */
+    public final int nalUnitSize;
+    /** Whether an H.264 track is stored as H.265 instead, with an hvcC without parameter sets. */
+    public final boolean hevc;
+
+    private TrackSpec(
+        @C.TrackType int type,
+        long timescale,
+        int[] sizes,
+        long[] decodeTimes,
+        @Nullable long[] compositionOffsets,
+        @Nullable int[] syncSamples,
+        long endTime) {
+      this(
+          type,
+          timescale,
+          sizes,
+          decodeTimes,
+          compositionOffsets,
+          syncSamples,
+          endTime,
+          /* editDurations= */ null,
+          /* editMediaTimes= */ null,
+          /* nalUnitLengthFieldLength= */ 0,
+          /* nalUnitSize= */ 0,
+          /* hevc= */ false);
+    }
+
+    private TrackSpec(
+        @C.TrackType int type,
+        long timescale,
+        int[] sizes,
+        long[] decodeTimes,
+        @Nullable long[] compositionOffsets,
+        @Nullable int[] syncSamples,
+        long endTime,
+        @Nullable long[] editDurations,
+        @Nullable long[] editMediaTimes,
+        int nalUnitLengthFieldLength,
+        int nalUnitSize,
+        boolean hevc) {
+      this.type = type;
+      this.timescale = timescale;
+      this.sizes = sizes;
+      this.decodeTimes = decodeTimes;
+      this.compositionOffsets = compositionOffsets;
+      this.syncSamples = syncSamples;
+      this.endTime = endTime;
+      this.editDurations = editDurations;
+      this.editMediaTimes = editMediaTimes;
+      this.nalUnitLengthFieldLength = nalUnitLengthFieldLength;
+      this.nalUnitSize = nalUnitSize;
+      this.hevc = hevc;
+      sampleCount = sizes.length;
+    }
+
+    /**
+     * Returns an AV1 track at 29.97 fps with a sync sample every {@code gopLength} samples and
+     * B-frame composition offsets. Sync samples are up to {@code maxSampleSize} bytes, the others
+     * up to a quarter of that.
+     */
+    public static TrackSpec video(int sampleCount, int gopLength, int maxSampleSize, long seed) {
+      Random random = new Random(seed);
+      int[] sizes = new int[sampleCount];
+      long[] decodeTimes = new long[sampleCount];
+      long[] compositionOffsets = new long[sampleCount];
+      int[] syncSamples = new int[(sampleCount + gopLength - 1) / gopLength];
+      for (int i = 0; i < sampleCount; i++) {
+        boolean sync = i % gopLength == 0;
+        if (sync) {
+          syncSamples[i / gopLength] = i;
+        }
+        sizes[i] =
+            sync
+                ? maxSampleSize / 2 + random.nextInt(maxSampleSize / 2)
+                : 1 + random.nextInt(Math.max(1, maxSampleSize / 4));
+        decodeTimes[i] = i * 1001L;
+        // I P B B P B B ...: P frames are presented after the two B frames that follow them.
+        compositionOffsets[i] = i % 3 == 1 ? 3 * 1001 : 1001;
+      }
+      return new TrackSpec(
+          C.TRACK_TYPE_VIDEO,
+          /* timescale= */ 30_000,
+          sizes,
+          decodeTimes,
+          compositionOffsets,
+          syncSamples,
+          /* endTime= */ sampleCount * 1001L);
+    }
+
+    /**
+     * Returns an H.264 track at 29.97 fps with a sync sample every {@code gopLength} samples, each
+     * sample holding {@code nalUnitCount} NAL units of {@code nalUnitSize} bytes, prefixed by
+     * length fields of {@code nalUnitLengthFieldLength} bytes.
+     */
+    public static TrackSpec avc(
+        int sampleCount,
+        int gopLength,
+        int nalUnitCount,
+        int nalUnitSize,
+        int nalUnitLengthFieldLength) {
+      int[] sizes = new int[sampleCount];
+      long[] decodeTimes = new long[sampleCount];
+      int[] syncSamples = new int[(sampleCount + gopLength - 1) / gopLength];
+      Arrays.fill(sizes, nalUnitCount * (nalUnitLengthFieldLength + nalUnitSize));
+      for (int i = 0; i < sampleCount; i++) {
+        if (i % gopLength == 0) {
+          syncSamples[i / gopLength] = i;
+        }
+        decodeTimes[i] = i * 1001L;
+      }
+      return new TrackSpec(
+          C.TRACK_TYPE_VIDEO,
+          /* timescale= */ 30_000,
+          sizes,
+          decodeTimes,
+          /* compositionOffsets= */ null,
+          syncSamples,
+          /* endTime= */ sampleCount * 1001L,
+          /* editDurations= */ null,
+          /* editMediaTimes= */ null,
+          nalUnitLengthFieldLength,
+          nalUnitSize,
+          /* hevc= */ false);
+    }
+
+    /** Returns an AAC track of 1024-sample frames at 48 kHz, all {@code sampleSize} bytes. */
+    public static TrackSpec audio(int sampleCount, int sampleSize) {
+      int[] sizes = new int[sampleCount];
+      long[] decodeTimes = new long[sampleCount];
+      Arrays.fill(sizes, sampleSize);
+      for (int i = 0; i < sampleCount; i++) {
+        decodeTimes[i] = i * 1024L;
+      }
+      return new TrackSpec(
+          C.TRACK_TYPE_AUDIO,
+          /* timescale= */ 48_000,
+          sizes,
+          decodeTimes,
+          /* compositionOffsets= */ null,
+          /* syncSamples= */ null,
+          /* endTime= */ sampleCount * 1024L);
+    }
+
+    /** Returns a copy of this track with an edit list. */
+    public TrackSpec withEditList(long[] editDurations, long[] editMediaTimes) {
+      return new TrackSpec(
+          type,
+          timescale,
+          sizes,
+          decodeTimes,
+          compositionOffsets,
+          syncSamples,
+          endTime,
+          editDurations,
+          editMediaTimes,
+          nalUnitLengthFieldLength,
+          nalUnitSize,
+          hevc);
+    }
+
+    /** Returns a copy of this H.264 track stored as H.265. */
+    public TrackSpec asHevc() {
+      return new TrackSpec(
+          type,
+          timescale,
+          sizes,
+          decodeTimes,
+          compositionOffsets,
+          syncSamples,
+          endTime,
+          editDurations,
+          editMediaTimes,
+          nalUnitLengthFieldLength,
+          nalUnitSize,
+          /* hevc= */ true);
+    }
+
+    /** Returns the number of audio samples that last as long as {@code videoSampleCount} frames. */
+    public static int audioSampleCountFor(int videoSampleCount) {
+      return (int) (videoSampleCount * 1001L * 48_000 / 30_000 / 1024);
+    }
+
+    public long getTimestampUs(int index) {
+      long timestamp =
+          decodeTimes[index] + (compositionOffsets == null ? 0 : compositionOffsets[index]);
+      return Util.scaleLargeTimestamp(timestamp, C.MICROS_PER_SECOND, timescale);
+    }
+
+    public long getDecodeTimeUs(int index) {
+      return Util.scaleLargeTimestamp(decodeTimes[index], C.MICROS_PER_SECOND, timescale);
+    }
+
+    public boolean isSyncSample(int index) {
+      return syncSamples == null || Arrays.binarySearch(syncSamples, index) >= 0;
+    }
+
+    /** Returns the duration of the track, after edits. */
+    public long getDurationUs() {
+      if (editDurations != null) {
+        long duration = 0;
+        for (long editDuration : editDurations) {
+          duration += editDuration;
+        }
+        return Util.scaleLargeTimestamp(duration, C.MICROS_PER_SECOND, MOVIE_TIMESCALE);
+      }
+      return Util.scaleLargeTimestamp(endTime, C.MICROS_PER_SECOND, timescale);
+    }
+  }
+
+  /** Builds an {@link Mp4Fixture}. */
+  public static final class Builder {
+
+    private final List<TrackSpec> tracks;
+    private boolean moovAtEnd;
+    private boolean fragmented;
+    private boolean interleaved;
+    private long chunkDurationUs;
+    private long seed;
+    private int traksBeforeMvhd;
+
+    public Builder() {
+      tracks = new ArrayList<>();
+      interleaved = true;
+      chunkDurationUs = 500_000;
+    }
+
+    public Builder addTrack(TrackSpec track) {
+      tracks.add(track);
+      return this;
+    }
+
+    /** Sets whether the moov atom follows the mdat atom instead of preceding it. */
+    public Builder setMoovAtEnd(boolean moovAtEnd) {
+      this.moovAtEnd = moovAtEnd;
+      return this;
+    }
+
+    /**
+     * Sets whether the moov atom only declares the tracks, and each chunk is stored as a moof atom
+     * with one traf followed by an mdat atom. Edit lists are not supported in fragmented files.
+     */
+    public Builder setFragmented(boolean fragmented) {
+      this.fragmented = fragmented;
+      return this;
+    }
+
+    /**
+     * Sets whether chunks of all tracks are stored in time order, as muxers do. Otherwise all
+     * chunks of each track are stored before those of the next track.
+     */
+    public Builder setInterleaved(boolean interleaved) {
+      this.interleaved = interleaved;
+      return this;
+    }
+
+    /** Sets how much media each chunk holds. The default is 500 ms. */
+    public Builder setChunkDurationUs(long chunkDurationUs) {
+      this.chunkDurationUs = chunkDurationUs;
+      return this;
+    }
+
+    /** Sets how many trak atoms precede the mvhd atom in the moov. The default is 0. */
+    public Builder setTraksBeforeMvhd(int traksBeforeMvhd) {
+      this.traksBeforeMvhd = traksBeforeMvhd;
+      return this;
+    }
+
+    /** Sets the seed of the random sample data. */
+    public Builder setSeed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    public Mp4Fixture build() {
+      return new Mp4Fixture(this);
+    }
+  }
+
+  /** A run of samples of one track stored back to back. */
+  private static final class Chunk {
+
+    public final int track;
+    public final int firstSample;
+    public final int sampleCount;
+    public final long startTimeUs;
+    public long offset;
+
+    public Chunk(int track, int firstSample, int sampleCount, long startTimeUs) {
+      this.track = track;
+      this.firstSample = firstSample;
+      this.sampleCount = sampleCount;
+      this.startTimeUs = startTimeUs;
+    }
+  }
+
+  /**
+   * Returns a builder with one video track per four tracks, starting with the first, and audio
+   * tracks for the others. All tracks last as long as {@code videoSampleCount} frames.
+   */
+  public static Builder multiTrack(
+      int trackCount, int videoSampleCount, int maxVideoSampleSize, int audioSampleSize) {
+    Builder builder = new Builder();
+    for (int i = 0; i < trackCount; i++) {
+      builder.addTrack(
+          i % 4 == 0
+              ? TrackSpec.video(videoSampleCount, /* gopLength= */ 30, maxVideoSampleSize, i)
+              : TrackSpec.audio(TrackSpec.audioSampleCountFor(videoSampleCount), audioSampleSize));
+    }
+    return builder;
+  }
+
+  public final List<TrackSpec> tracks;
+  public final byte[] data;
+  public final long moovPosition;
+  /** The position of the payload of the first mdat atom. */
+  public final long mdatPosition;
+  /** The number of moof atoms, or 0 if the file is not fragmented. */
+  public final int fragmentCount;
+
+  private final boolean fragmented;
+  private final int traksBeforeMvhd;
+  private final long[][] sampleOffsets;
+  private final List<List<Chunk>> trackChunks;
+
+  private Mp4Fixture(Builder builder) {
+    tracks = Collections.unmodifiableList(new ArrayList<>(builder.tracks));
+    fragmented = builder.fragmented;
+    traksBeforeMvhd = builder.traksBeforeMvhd;
+    trackChunks = new ArrayList<>();
+    List<Chunk> chunks = new ArrayList<>();
+    long mdatPayloadSize = 0;
+    for (int t = 0; t < tracks.size(); t++) {
+      List<Chunk> chunksOfTrack = newChunks(t, tracks.get(t), builder.chunkDurationUs);
+      trackChunks.add(chunksOfTrack);
+      chunks.addAll(chunksOfTrack);
+      for (int size : tracks.get(t).sizes) {
+        mdatPayloadSize += size;
+      }
+    }
+    if (builder.interleaved) {
+      // Stable, so chunks starting at the same time stay in track order.
+      Collections.sort(chunks, (a, b) -> Long.compare(a.startTimeUs, b.startTimeUs));
+    }
+
+    sampleOffsets = new long[tracks.size()][];
+    for (int t = 0; t < tracks.size(); t++) {
+      sampleOffsets[t] = new long[tracks.get(t).sampleCount];
+    }
+    byte[] ftyp = writeFtyp();
+    Random random = new Random(builder.seed);
+    if (fragmented) {
+      BoxWriter writer = new BoxWriter();
+      writer.writeBytes(ftyp);
+      moovPosition = writer.size();
+      writer.writeBytes(writeMoov());
+      mdatPosition = writeFragments(writer, chunks, random);
+      fragmentCount = chunks.size();
+      data = writer.toByteArray();
+      writeNalUnitLengthFields();
+      return;
+    }
+    fragmentCount = 0;
+
+    // Chunk offsets don't change the size of the moov, so lay out the file with a first pass.
+    int moovSize = writeMoov().length;
+    long mdatHeaderPosition = ftyp.length + (builder.moovAtEnd ? 0 : moovSize);
+    mdatPosition = mdatHeaderPosition + Atom.HEADER_SIZE;
+    moovPosition = builder.moovAtEnd ? mdatPosition + mdatPayloadSize : ftyp.length;
+    long offset = mdatPosition;
+    for (Chunk chunk : chunks) {
+      chunk.offset = offset;
+      for (int i = 0; i < chunk.sampleCount; i++) {
+        sampleOffsets[chunk.track][chunk.firstSample + i] = offset;
+        offset += tracks.get(chunk.track).sizes[chunk.firstSample + i];
+      }
+    }
+    byte[] moov = writeMoov();
+
+    data = new byte[Math.toIntExact(ftyp.length + moovSize + Atom.HEADER_SIZE + mdatPayloadSize)];
+    System.arraycopy(ftyp, 0, data, 0, ftyp.length);
+    System.arraycopy(moov, 0, data, (int) moovPosition, moov.length);
+    int mdatHeader = (int) mdatHeaderPosition;
+    writeInt(data, mdatHeader, (int) (Atom.HEADER_SIZE + mdatPayloadSize));
+    writeInt(data, mdatHeader + 4, Atom.TYPE_mdat);
+    byte[] payload = new byte[(int) mdatPayloadSize];
+    random.nextBytes(payload);
+    System.arraycopy(payload, 0, data, (int) mdatPosition, payload.length);
+    writeNalUnitLengthFields();
+  }
+
+  public long getSampleOffset(int track, int sample) {
+    return sampleOffsets[track][sample];
+  }
+
+  public byte[] getSampleData(int track, int sample) {
+    int offset = (int) sampleOffsets[track][sample];
+    return Arrays.copyOfRange(data, offset, offset + tracks.get(track).sizes[sample]);
+  }
+
+  /**
+   * Returns the data an extractor outputs for a sample: the stored data, with each NAL unit length
+   * field of H.264 and H.265 tracks replaced by a start code.
+   */
+  public byte[] getOutputSampleData(int track, int sample) {
+    TrackSpec spec = tracks.get(track);
+    byte[] sampleData = getSampleData(track, sample);
+    if (spec.nalUnitLengthFieldLength == 0) {
+      return sampleData;
+    }
+    int unitSize = spec.nalUnitLengthFieldLength + spec.nalUnitSize;
+    int nalUnitCount = sampleData.length / unitSize;
+    byte[] outputData = new byte[nalUnitCount * (NAL_START_CODE.length + spec.nalUnitSize)];
+    for (int i = 0; i < nalUnitCount; i++) {
+      int outputPosition = i * (NAL_START_CODE.length + spec.nalUnitSize);
+      System.arraycopy(NAL_START_CODE, 0, outputData, outputPosition, NAL_START_CODE.length);
+      System.arraycopy(
+          sampleData,
+          i * unitSize + spec.nalUnitLengthFieldLength,
+          outputData,
+          outputPosition + NAL_START_CODE.length,
+          spec.nalUnitSize);
+    }
+    return outputData;
+  }
+
+  /** Asserts that {@code output} holds every sample of a track without edits, in order. */
+  public void assertOutputMatches(int track, RecordingExtractorOutput.RecordingTrackOutput output) {
+    assertOutputMatches(track, output, /* asStored= */ false);
+  }
+
+  /**
+   * Asserts that {@code output} holds every sample of a track without edits, in order, with the
+   * data as stored, including any NAL unit length fields.
+   */
+  public void assertStoredOutputMatches(
+      int track, RecordingExtractorOutput.RecordingTrackOutput output) {
+    assertOutputMatches(track, output, /* asStored= */ true);
+  }
+
+  private void assertOutputMatches(
+      int track, RecordingExtractorOutput.RecordingTrackOutput output, boolean asStored) {
+    TrackSpec spec = tracks.get(track);
+    assertEquals("samples of track " + track, spec.sampleCount, output.getSampleCount());
+    for (int i = 0; i < spec.sampleCount; i++) {
+      String sample = "track " + track + " sample " + i;
+      byte[] outputSampleData = asStored ? getSampleData(track, i) : getOutputSampleData(track, i);
+      assertEquals(sample, spec.getTimestampUs(i), (long) output.timesUs.get(i));
+      assertEquals(sample, getFlags(track, i), (int) output.flags.get(i));
+      assertEquals(sample, outputSampleData.length, (int) output.sizes.get(i));
+      assertEquals(
+          sample,
+          RecordingExtractorOutput.checksum(outputSampleData),
+          (long) output.checksums.get(i));
+    }
+  }
+
+  /** Asserts that {@code table} describes every sample of a track without edits. */
+  public void assertTableMatches(int track, TrackSampleTable table) {
+    TrackSpec spec = tracks.get(track);
+    assertEquals(track + 1, table.track.id);
+    assertEquals(spec.type, table.track.type);
+    assertEquals("samples of track " + track, spec.sampleCount, table.sampleCount);
+    for (int i = 0; i < spec.sampleCount; i++) {
+      String sample = "track " + track + " sample " + i;
+      assertEquals(sample, sampleOffsets[track][i], table.getOffset(i));
+      assertEquals(sample, spec.sizes[i], table.getSize(i));
+      assertEquals(sample, spec.getTimestampUs(i), table.getTimestampUs(i));
+      assertEquals(sample, getFlags(track, i), table.getFlags(i));
+    }
+  }
+
+  private int getFlags(int track, int sample) {
+    TrackSpec spec = tracks.get(track);
+    // Only the sample tables of unfragmented files say which sample is the last.
+    return (spec.isSyncSample(sample) ? C.BUFFER_FLAG_KEY_FRAME : 0)
+        | (!fragmented && sample == spec.sampleCount - 1 ? C.BUFFER_FLAG_LAST_SAMPLE : 0);
+  }
+
+  /** Returns the moov atom as the extractor passes it to {@link AtomParsers}. */
+  public Atom.ContainerAtom parseMoov() {
+    ParsableByteArray file = new ParsableByteArray(data);
+    file.setPosition((int) moovPosition);
+    return (Atom.ContainerAtom) parseAtom(file);
+  }
+
+  /** Writes the file to a new temporary file in {@code directory}. */
+  public File writeTo(File directory) throws IOException {
+    File file = File.createTempFile("fixture", ".mp4", directory);
+    try (OutputStream output = new FileOutputStream(file)) {
+      output.write(data);
+    }
+    return file;
+  }
+
+  private static List<Chunk> newChunks(int track, TrackSpec spec, long chunkDurationUs) {
+    long chunkDuration =
+        Util.scaleLargeTimestamp(chunkDurationUs, spec.timescale, C.MICROS_PER_SECOND);
+    List<Chunk> chunks = new ArrayList<>();
+    int firstSample = 0;
+    for (int i = 1; i <= spec.sampleCount; i++) {
+      if (i == spec.sampleCount
+          || spec.decodeTimes[i] - spec.decodeTimes[firstSample] >= chunkDuration) {
+        chunks.add(
+            new Chunk(track, firstSample, i - firstSample, spec.getDecodeTimeUs(firstSample)));
+        firstSample = i;
+      }
+    }
+    return chunks;
+  }
+
+  /** Writes the NAL unit length fields into the samples of H.264 and H.265 tracks. */
+  private void writeNalUnitLengthFields() {
+    for (int t = 0; t < tracks.size(); t++) {
+      TrackSpec track = tracks.get(t);
+      if (track.nalUnitLengthFieldLength == 0) {
+        continue;
+      }
+      int unitSize = track.nalUnitLengthFieldLength + track.nalUnitSize;
+      for (int i = 0; i < track.sampleCount; i++) {
+        int sampleOffset = (int) sampleOffsets[t][i];
+        for (int position = 0; position < track.sizes[i]; position += unitSize) {
+          for (int j = 0; j < track.nalUnitLengthFieldLength; j++) {
+            int shift = 8 * (track.nalUnitLengthFieldLength - 1 - j);
+            data[sampleOffset + position + j] = (byte) (track.nalUnitSize >> shift);
+          }
+        }
+      }
+    }
+  }
+
+  private static byte[] writeFtyp() {
+    BoxWriter writer = new BoxWriter();
+    writer.startBox(Atom.TYPE_ftyp);
+    writer.writeInt(Util.getIntegerCodeForString("isom"));
+    writer.writeInt(0x200);
+    writer.writeInt(Util.getIntegerCodeForString("isom"));
+    writer.writeInt(Util.getIntegerCodeForString("iso2"));
+    writer.writeInt(Util.getIntegerCodeForString("mp41"));
+    writer.endBox();
+    return writer.toByteArray();
+  }
+
+  private byte[] writeMoov() {
+    long durationMs = 0;
+    for (TrackSpec track : tracks) {
+      durationMs = Math.max(durationMs, track.getDurationUs() / 1000);
+    }
+    BoxWriter writer = new BoxWriter();
+    writer.startBox(Atom.TYPE_moov);
+    for (int t = 0; t < traksBeforeMvhd; t++) {
+      writeTrak(writer, t);
+    }
+    writer.startFullBox(Atom.TYPE_mvhd, /* version= */ 0, /* flags= */ 0);
+    writer.writeZeros(8); // creation_time, modification_time
+    writer.writeInt((int) MOVIE_TIMESCALE);
+    writer.writeInt((int) durationMs);
+    writer.writeInt(0x10000); // rate
+    writer.writeShort(0x100); // volume
+    writer.writeZeros(10);
+    writeIdentityMatrix(writer);
+    writer.writeZeros(24);
+    writer.writeInt(tracks.size() + 1); // next_track_ID
+    writer.endBox();
+    for (int t = traksBeforeMvhd; t < tracks.size(); t++) {
+      writeTrak(writer, t);
+    }
+    if (fragmented) {
+      writer.startBox(Atom.TYPE_mvex);
+      for (int t = 0; t < tracks.size(); t++) {
+        writer.startFullBox(Atom.TYPE_trex, /* version= */ 0, /* flags= */ 0);
+        writer.writeInt(t + 1); // track_ID
+        writer.writeInt(1); // default_sample_description_index
+        writer.writeZeros(12); // default_sample_duration, _size and _flags
+        writer.endBox();
+      }
+      writer.endBox();
+    }
+    writer.endBox();
+    return writer.toByteArray();
+  }
+
+  /**
+   * Writes each chunk as a moof and an mdat atom, and returns the position of the first mdat
+   * payload.
+   */
+  private long writeFragments(BoxWriter writer, List<Chunk> chunks, Random random) {
+    long firstMdatPosition = C.POSITION_UNSET;
+    for (int i = 0; i < chunks.size(); i++) {
+      Chunk chunk = chunks.get(i);
+      TrackSpec track = tracks.get(chunk.track);
+      int endSample = chunk.firstSample + chunk.sampleCount;
+      int moofPosition = writer.size();
+      writer.startBox(Atom.TYPE_moof);
+      writer.startFullBox(TYPE_mfhd, /* version= */ 0, /* flags= */ 0);
+      writer.writeInt(i + 1); // sequence_number
+      writer.endBox();
+      writer.startBox(Atom.TYPE_traf);
+      // default-base-is-moof.
+      writer.startFullBox(Atom.TYPE_tfhd, /* version= */ 0, /* flags= */ 0x020000);
+      writer.writeInt(chunk.track + 1);
+      writer.endBox();
+      writer.startFullBox(Atom.TYPE_tfdt, /* version= */ 1, /* flags= */ 0);
+      long baseMediaDecodeTime = track.decodeTimes[chunk.firstSample];
+      writer.writeInt((int) (baseMediaDecodeTime >>> 32));
+      writer.writeInt((int) baseMediaDecodeTime);
+      writer.endBox();
+      // Data offset, and the duration, size and flags of each sample, then composition offsets.
+      boolean hasCompositionOffsets = track.compositionOffsets != null;
+      writer.startFullBox(
+          Atom.TYPE_trun,
+          /* version= */ 0,
+          /* flags= */ 0x701 | (hasCompositionOffsets ? 0x800 : 0));
+      writer.writeInt(chunk.sampleCount);
+      int dataOffsetPosition = writer.size();
+      writer.writeInt(0);
+      int payloadSize = 0;
+      for (int sample = chunk.firstSample; sample < endSample; sample++) {
+        long next = sample + 1 < track.sampleCount ? track.decodeTimes[sample + 1] : track.endTime;
+        writer.writeInt((int) (next - track.decodeTimes[sample]));
+        writer.writeInt(track.sizes[sample]);
+        // sample_depends_on and sample_is_non_sync_sample.
+        writer.writeInt(track.isSyncSample(sample) ? 0x02000000 : 0x01010000);
+        if (hasCompositionOffsets) {
+          writer.writeInt((int) checkNotNull(track.compositionOffsets)[sample]);
+        }
+        payloadSize += track.sizes[sample];
+      }
+      writer.endBox();
+      writer.endBox();
+      writer.endBox();
+
+      writer.writeInt(Atom.HEADER_SIZE + payloadSize);
+      writer.writeInt(Atom.TYPE_mdat);
+      int payloadPosition = writer.size();
+      writer.patchInt(dataOffsetPosition, payloadPosition - moofPosition);
+      if (firstMdatPosition == C.POSITION_UNSET) {
+        firstMdatPosition = payloadPosition;
+      }
+      long offset = payloadPosition;
+      for (int sample = chunk.firstSample; sample < endSample; sample++) {
+        sampleOffsets[chunk.track][sample] = offset;
+        offset += track.sizes[sample];
+      }
+      byte[] payload = new byte[payloadSize];
+      random.nextBytes(payload);
+      writer.writeBytes(payload);
+    }
+    return firstMdatPosition;
+  }
+
+  private void writeTrak(BoxWriter writer, int trackIndex) {
+    TrackSpec track = tracks.get(trackIndex);
+    boolean video = track.type == C.TRACK_TYPE_VIDEO;
+    writer.startBox(Atom.TYPE_trak);
+    writer.startFullBox(Atom.TYPE_tkhd, /* version= */ 0, /* flags= */ 3);
+    writer.writeZeros(8); // creation_time, modification_time
+    writer.writeInt(trackIndex + 1); // track_ID
+    writer.writeZeros(4);
+    writer.writeInt((int) (track.getDurationUs() / 1000));
+    writer.writeZeros(8);
+    writer.writeZeros(4); // layer, alternate_group
+    writer.writeShort(video ? 0 : 0x100); // volume
+    writer.writeZeros(2);
+    writeIdentityMatrix(writer);
+    writer.writeInt(video ? 1280 << 16 : 0);
+    writer.writeInt(video ? 720 << 16 : 0);
+    writer.endBox();
+
+    if (track.editDurations != null) {
+      long[] editMediaTimes = checkNotNull(track.editMediaTimes);
+      writer.startBox(Atom.TYPE_edts);
+      writer.startFullBox(Atom.TYPE_elst, /* version= */ 0, /* flags= */ 0);
+      writer.writeInt(track.editDurations.length);
+      for (int i = 0; i < track.editDurations.length; i++) {
+        writer.writeInt((int) track.editDurations[i]);
+        writer.writeInt((int) editMediaTimes[i]);
+        writer.writeInt(0x10000); // media_rate
+      }
+      writer.endBox();
+      writer.endBox();
+    }
+
+    writer.startBox(Atom.TYPE_mdia);
+    writer.startFullBox(Atom.TYPE_mdhd, /* version= */ 0, /* flags= */ 0);
+    writer.writeZeros(8); // creation_time, modification_time
+    writer.writeInt((int) track.timescale);
+    writer.writeInt((int) track.endTime);
+    writer.writeShort(0x55c4); // "und"
+    writer.writeZeros(2);
+    writer.endBox();
+    writer.startFullBox(Atom.TYPE_hdlr, /* version= */ 0, /* flags= */ 0);
+    writer.writeZeros(4);
+    writer.writeInt(video ? TYPE_vide : TYPE_soun);
+    writer.writeZeros(12);
+    writer.writeZeros(1); // name
+    writer.endBox();
+    writer.startBox(Atom.TYPE_minf);
+    writer.startBox(Atom.TYPE_stbl);
+    writeStsd(writer, track);
+    writeStbl(writer, trackIndex);
+    writer.endBox();
+    writer.endBox();
+    writer.endBox();
+    writer.endBox();
+  }
+
+  private static void writeStsd(BoxWriter writer, TrackSpec track) {
+    writer.startFullBox(Atom.TYPE_stsd, /* version= */ 0, /* flags= */ 0);
+    writer.writeInt(1);
+    if (track.hevc) {
+      writeVisualSampleEntryFields(writer, Atom.TYPE_hvc1);
+      writer.startBox(Atom.TYPE_hvcC);
+      writer.writeBytes(new byte[] {1});
+      writer.writeZeros(20);
+      writer.writeBytes(new byte[] {(byte) (0xFC | (track.nalUnitLengthFieldLength - 1))});
+      writer.writeBytes(new byte[] {0}); // numOfArrays
+      writer.endBox();
+      writer.endBox();
+    } else if (track.nalUnitLengthFieldLength != 0) {
+      writeVisualSampleEntryFields(writer, Atom.TYPE_avc1);
+      writer.startBox(Atom.TYPE_avcC);
+      writer.writeBytes(new byte[] {1, AVC_SPS[1], AVC_SPS[2], AVC_SPS[3]});
+      writer.writeBytes(
+          new byte[] {(byte) (0xFC | (track.nalUnitLengthFieldLength - 1)), (byte) 0xE1});
+      writer.writeShort(AVC_SPS.length);
+      writer.writeBytes(AVC_SPS);
+      writer.writeBytes(new byte[] {1});
+      writer.writeShort(AVC_PPS.length);
+      writer.writeBytes(AVC_PPS);
+      writer.endBox();
+      writer.endBox();
+    } else if (track.type == C.TRACK_TYPE_VIDEO) {
+      writeVisualSampleEntryFields(writer, Atom.TYPE_av01);
+      writer.startBox(Atom.TYPE_av1C);
+      writer.writeBytes(new byte[] {(byte) 0x81, 0x08, 0x0C, 0x00});
+      writer.endBox();
+      writer.endBox();
+    } else {
+      writer.startBox(Atom.TYPE_mp4a);
+      writer.writeZeros(6);
+      writer.writeShort(1); // data_reference_index
+      writer.writeZeros(8);
+      writer.writeShort(2); // channelcount
+      writer.writeShort(16); // samplesize
+      writer.writeZeros(4);
+      writer.writeInt(48_000 << 16);
+      writer.startFullBox(Atom.TYPE_esds, /* version= */ 0, /* flags= */ 0);
+      // ES_Descriptor, DecoderConfigDescriptor for AAC and the AAC-LC 48 kHz stereo
+      // AudioSpecificConfig.
+      writer.writeBytes(
+          new byte[] {
+            0x03, 25, 0x00, 0x01, 0x00,
+            0x04, 17, 0x40, 0x15, 0x00, 0x00, 0x00, 0x00, 0x02, 0x00, 0x00, 0x00, 0x02, 0x00, 0x00,
+            0x05, 2, 0x11, (byte) 0x90,
+            0x06, 1, 0x02
+          });
+      writer.endBox();
+      writer.endBox();
+    }
+    writer.endBox();
+  }
+
+  /** Starts a 1280x720 visual sample entry box of type {@code type}. */
+  private static void writeVisualSampleEntryFields(BoxWriter writer, int type) {
+    writer.startBox(type);
+    writer.writeZeros(6);
+    writer.writeShort(1); // data_reference_index
+    writer.writeZeros(16);
+    writer.writeShort(1280);
+    writer.writeShort(720);
+    writer.writeInt(0x480000); // horizresolution
+    writer.writeInt(0x480000); // vertresolution
+    writer.writeZeros(4);
+    writer.writeShort(1); // frame_count
+    writer.writeZeros(32); // compressorname
+    writer.writeShort(0x18); // depth
+    writer.writeShort(-1);
+  }
+
+  private void writeStbl(BoxWriter writer, int trackIndex) {
+    if (fragmented) {
+      // The samples are described by the fragments.
+      writeRuns(writer, Atom.TYPE_stts, Collections.emptyList());
+      writeRuns(writer, Atom.TYPE_stsc, Collections.emptyList());
+      writer.startFullBox(Atom.TYPE_stsz, /* version= */ 0, /* flags= */ 0);
+      writer.writeZeros(8); // sample_size, sample_count
+      writer.endBox();
+      writeRuns(writer, Atom.TYPE_stco, Collections.emptyList());
+      return;
+    }
+    TrackSpec track = tracks.get(trackIndex);
+    List<Chunk> chunks = trackChunks.get(trackIndex);
+
+    // Decode time deltas, run-length encoded. The last sample lasts until endTime.
+    List<long[]> stts = new ArrayList<>();
+    for (int i = 0; i < track.sampleCount; i++) {
+      long next = i + 1 < track.sampleCount ? track.decodeTimes[i + 1] : track.endTime;
+      addRun(stts, next - track.decodeTimes[i]);
+    }
+    writeRuns(writer, Atom.TYPE_stts, stts);
+
+    if (track.compositionOffsets != null) {
+      List<long[]> ctts = new ArrayList<>();
+      for (long compositionOffset : track.compositionOffsets) {
+        addRun(ctts, compositionOffset);
+      }
+      writeRuns(writer, Atom.TYPE_ctts, ctts);
+    }
+
+    if (track.syncSamples != null) {
+      writer.startFullBox(Atom.TYPE_stss, /* version= */ 0, /* flags= */ 0);
+      writer.writeInt(track.syncSamples.length);
+      for (int syncSample : track.syncSamples) {
+        writer.writeInt(syncSample + 1);
+      }
+      writer.endBox();
+    }
+
+    writer.startFullBox(Atom.TYPE_stsc, /* version= */ 0, /* flags= */ 0);
+    int entryCountPosition = writer.size();
+    writer.writeInt(0);
+    int entryCount = 0;
+    for (int i = 0; i < chunks.size(); i++) {
+      if (i == 0 || chunks.get(i).sampleCount != chunks.get(i - 1).sampleCount) {
+        writer.writeInt(i + 1); // first_chunk
+        writer.writeInt(chunks.get(i).sampleCount);
+        writer.writeInt(1); // sample_description_index
+        entryCount++;
+      }
+    }
+    writer.patchInt(entryCountPosition, entryCount);
+    writer.endBox();
+
+    boolean fixedSize = true;
+    for (int size : track.sizes) {
+      fixedSize &= size == track.sizes[0];
+    }
+    writer.startFullBox(Atom.TYPE_stsz, /* version= */ 0, /* flags= */ 0);
+    writer.writeInt(fixedSize ? track.sizes[0] : 0);
+    writer.writeInt(track.sampleCount);
+    if (!fixedSize) {
+      for (int size : track.sizes) {
+        writer.writeInt(size);
+      }
+    }
+    writer.endBox();
+
+    writer.startFullBox(Atom.TYPE_stco, /* version= */ 0, /* flags= */ 0);
+    writer.writeInt(chunks.size());
+    for (Chunk chunk : chunks) {
+      writer.writeInt((int) chunk.offset);
+    }
+    writer.endBox();
+  }
+
+  private static void addRun(List<long[]> runs, long value) {
+    long[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+    if (last != null && last[1] == value) {
+      last[0]++;
+    } else {
+      runs.add(new long[] {1, value});
+    }
+  }
+
+  private static void writeRuns(BoxWriter writer, int type, List<long[]> runs) {
+    writer.startFullBox(type, /* version= */ 0, /* flags= */ 0);
+    writer.writeInt(runs.size());
+    for (long[] run : runs) {
+      writer.writeInt((int) run[0]);
+      writer.writeInt((int) run[1]);
+    }
+    writer.endBox();
+  }
+
+  private static void writeIdentityMatrix(BoxWriter writer) {
+    int[] matrix = {0x10000, 0, 0, 0, 0x10000, 0, 0, 0, 0x40000000};
+    for (int value : matrix) {
+      writer.writeInt(value);
+    }
+  }
+
+  private static Atom parseAtom(ParsableByteArray file) {
+    int start = file.getPosition();
+    int size = file.readInt();
+    int type = file.readInt();
+    if (isContainer(type)) {
+      Atom.ContainerAtom container = new Atom.ContainerAtom(type, start + size);
+      while (file.getPosition() < start + size) {
+        Atom child = parseAtom(file);
+        if (child instanceof Atom.ContainerAtom) {
+          container.add((Atom.ContainerAtom) child);
+        } else {
+          container.add((Atom.LeafAtom) child);
+        }
+      }
+      return container;
+    }
+    byte[] atomData = Arrays.copyOfRange(file.getData(), start, start + size);
+    file.setPosition(start + size);
+    return new Atom.LeafAtom(type, new ParsableByteArray(atomData));
+  }
+
+  private static boolean isContainer(int type) {
+    return type == Atom.TYPE_moov
+        || type == Atom.TYPE_trak
+        || type == Atom.TYPE_mdia
+        || type == Atom.TYPE_minf
+        || type == Atom.TYPE_stbl
+        || type == Atom.TYPE_edts;
+  }
+
+  private static void writeInt(byte[] data, int position, int value) {
+    data[position] = (byte) (value >> 24);
+    data[position + 1] = (byte) (value >> 16);
+    data[position + 2] = (byte) (value >> 8);
+    data[position + 3] = (byte) value;
+  }
+
+  /** Writes nested boxes, filling in their sizes when they end. */
+  private static final class BoxWriter {
+
+    private final ArrayDeque<Integer> boxStarts;
+    private byte[] data;
+    private int size;
+
+    public BoxWriter() {
+      boxStarts = new ArrayDeque<>();
+      data = new byte[4096];
+    }
+
+    public void startBox(int type) {
+      boxStarts.push(size);
+      writeInt(0);
+      writeInt(type);
+    }
+
+    public void startFullBox(int type, int version, int flags) {
+      startBox(type);
+      writeInt((version << 24) | flags);
+    }
+
+    public void endBox() {
+      int start = boxStarts.pop();
+      patchInt(start, size - start);
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public void writeInt(int value) {
+      ensureCapacity(4);
+      Mp4Fixture.writeInt(data, size, value);
+      size += 4;
+    }
+
+    public void writeShort(int value) {
+      ensureCapacity(2);
+      data[size++] = (byte) (value >> 8);
+      data[size++] = (byte) value;
+    }
+
+    public void writeBytes(byte[] bytes) {
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, data, size, bytes.length);
+      size += bytes.length;
+    }
+
+    public void writeZeros(int count) {
+      ensureCapacity(count);
+      size += count;
+    }
+
+    public void patchInt(int position, int value) {
+      Mp4Fixture.writeInt(data, position, value);
+    }
+
+    public byte[] toByteArray() {
+      return Arrays.copyOf(data, size);
+    }
+
+    private void ensureCapacity(int bytes) {
+      if (size + bytes > data.length) {
+        data = Arrays.copyOf(data, Math.max(size + bytes, 2 * data.length));
+      }
+    }
+  }
+}
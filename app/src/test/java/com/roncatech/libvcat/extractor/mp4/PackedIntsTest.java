@@ -0,0 +1,133 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+/** Tests for {@link PackedInts}. */
+public final class PackedIntsTest {
+
+  @Test
+  public void constantValues_takeNoStorage() {
+    PackedInts values = new PackedInts(/* count= */ 1000, /* min= */ 1001, /* max= */ 1001);
+    values.set(500, 1001);
+
+    assertEquals(0, values.sizeInBytes());
+    assertEquals(1001, values.get(999));
+    assertEquals(10 * 1001, values.sum(10, 20));
+  }
+
+  @Test
+  public void usesFewestWholeBytesForRange() {
+    assertEquals(100, new PackedInts(100, 0, 0xFF).sizeInBytes());
+    assertEquals(200, new PackedInts(100, 0, 0x100).sizeInBytes());
+    assertEquals(300, new PackedInts(100, -5, 0xFFFFFF - 5).sizeInBytes());
+    assertEquals(800, new PackedInts(100, 0, Long.MAX_VALUE).sizeInBytes());
+  }
+
+  @Test
+  public void setAndGet_roundTripEveryWidth() {
+    Random random = new Random(/* seed= */ 0);
+    for (int width = 1; width <= 7; width++) {
+      long min = -random.nextInt(1 << 20);
+      long max = min + (1L << (8 * width)) - 1;
+      long[] expected = new long[257];
+      PackedInts values = new PackedInts(expected.length, min, max);
+      for (int i = 0; i < expected.length; i++) {
+        expected[i] = i == 0 ? min : i == 1 ? max : min + (random.nextLong() >>> (64 - 8 * width));
+        values.set(i, expected[i]);
+      }
+      for (int i = 0; i < expected.length; i++) {
+        assertEquals("width " + width + ", index " + i, expected[i], values.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void sum_matchesSumOfValues() {
+    Random random = new Random(/* seed= */ 1);
+    int[] expected = new int[1000];
+    PackedInts values = new PackedInts(expected.length, 0, 70_000);
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = random.nextInt(70_001);
+      values.set(i, expected[i]);
+    }
+    long sum = 0;
+    for (int i = 100; i < 900; i++) {
+      sum += expected[i];
+    }
+
+    assertEquals(sum, values.sum(100, 900));
+    assertEquals(0, values.sum(5, 5));
+  }
+
+  @Test
+  public void writeToAndReadFrom_roundTrip() throws IOException {
+    PackedInts values = new PackedInts(64, -1000, 1_000_000);
+    for (int i = 0; i < 64; i++) {
+      values.set(i, i * 15_000L - 1000);
+    }
+    PackedInts constant = new PackedInts(64, 42, 42);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    values.writeTo(output);
+    constant.writeTo(output);
+
+    ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+    PackedInts readValues = PackedInts.readFrom(buffer);
+    PackedInts readConstant = PackedInts.readFrom(buffer);
+
+    assertEquals(0, buffer.remaining());
+    for (int i = 0; i < 64; i++) {
+      assertEquals(values.get(i), readValues.get(i));
+      assertEquals(42, readConstant.get(i));
+    }
+    assertEquals(values.sizeInBytes(), readValues.sizeInBytes());
+  }
+
+  @Test
+  public void readFrom_rejectsTruncatedData() {
+    ByteBuffer buffer = ByteBuffer.allocate(8 + 1 + 4 + 3);
+    buffer.putLong(0).put((byte) 2).putInt(/* length= */ 10).flip();
+
+    assertThrows(IllegalArgumentException.class, () -> PackedInts.readFrom(buffer));
+  }
+}
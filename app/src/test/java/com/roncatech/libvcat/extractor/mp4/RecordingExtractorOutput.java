@@ -0,0 +1,187 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.upstream.DataReader;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/** An {@link ExtractorOutput} that records the tracks and samples an extractor outputs. */
+/* package */ final class RecordingExtractorOutput implements ExtractorOutput {
+
+  /** A {@link TrackOutput} that records each sample with a checksum of its data. */
+  public static final class RecordingTrackOutput implements TrackOutput {
+
+    public final int id;
+    public final @C.TrackType int type;
+    @Nullable public Format format;
+    public final List<Long> timesUs;
+    public final List<Integer> flags;
+    public final List<Integer> sizes;
+    public final List<Long> checksums;
+    /** Calls to either {@code sampleData} method. */
+    public int sampleDataCalls;
+    /** Bytes of the samples output so far. */
+    public long sampleBytes;
+
+    private byte[] pendingData;
+    private int pendingLength;
+
+    private RecordingTrackOutput(int id, @C.TrackType int type) {
+      this.id = id;
+      this.type = type;
+      timesUs = new ArrayList<>();
+      flags = new ArrayList<>();
+      sizes = new ArrayList<>();
+      checksums = new ArrayList<>();
+      pendingData = new byte[1024];
+    }
+
+    public int getSampleCount() {
+      return timesUs.size();
+    }
+
+    @Override
+    public void format(Format format) {
+      this.format = format;
+    }
+
+    @Override
+    public int sampleData(
+        DataReader input, int length, boolean allowEndOfInput, int sampleDataPart)
+        throws IOException {
+      sampleDataCalls++;
+      ensureCapacity(length);
+      int bytesRead = input.read(pendingData, pendingLength, length);
+      if (bytesRead == C.RESULT_END_OF_INPUT) {
+        if (allowEndOfInput) {
+          return C.RESULT_END_OF_INPUT;
+        }
+        throw new EOFException();
+      }
+      pendingLength += bytesRead;
+      return bytesRead;
+    }
+
+    @Override
+    public void sampleData(ParsableByteArray data, int length, int sampleDataPart) {
+      sampleDataCalls++;
+      ensureCapacity(length);
+      data.readBytes(pendingData, pendingLength, length);
+      pendingLength += length;
+    }
+
+    @Override
+    public void sampleMetadata(
+        long timeUs,
+        @C.BufferFlags int flags,
+        int size,
+        int offset,
+        @Nullable CryptoData cryptoData) {
+      int sampleStart = pendingLength - offset - size;
+      CRC32 checksum = new CRC32();
+      checksum.update(pendingData, sampleStart, size);
+      timesUs.add(timeUs);
+      this.flags.add(flags);
+      sizes.add(size);
+      sampleBytes += size;
+      checksums.add(checksum.getValue());
+      System.arraycopy(pendingData, sampleStart + size, pendingData, 0, offset);
+      pendingLength = offset;
+    }
+
+    private void ensureCapacity(int length) {
+      if (pendingLength + length > pendingData.length) {
+        pendingData =
+            Arrays.copyOf(pendingData, Math.max(pendingLength + length, 2 * pendingData.length));
+      }
+    }
+  }
+
+  public final Map<Integer, RecordingTrackOutput> trackOutputs;
+  public boolean tracksEnded;
+  @Nullable public SeekMap seekMap;
+
+  public RecordingExtractorOutput() {
+    trackOutputs = new LinkedHashMap<>();
+  }
+
+  /** Returns the output of the track with {@code id}, which must exist. */
+  public RecordingTrackOutput get(int id) {
+    RecordingTrackOutput trackOutput = trackOutputs.get(id);
+    if (trackOutput == null) {
+      throw new IllegalArgumentException("No track with id " + id);
+    }
+    return trackOutput;
+  }
+
+  @Override
+  public TrackOutput track(int id, @C.TrackType int type) {
+    if (trackOutputs.containsKey(id)) {
+      throw new IllegalStateException("Duplicate track id " + id);
+    }
+    RecordingTrackOutput trackOutput = new RecordingTrackOutput(id, type);
+    trackOutputs.put(id, trackOutput);
+    return trackOutput;
+  }
+
+  @Override
+  public void endTracks() {
+    tracksEnded = true;
+  }
+
+  @Override
+  public void seekMap(SeekMap seekMap) {
+    this.seekMap = seekMap;
+  }
+
+  /** Returns the CRC-32 of {@code data}, as recorded for samples. */
+  public static long checksum(byte[] data) {
+    CRC32 checksum = new CRC32();
+    checksum.update(data, 0, data.length);
+    return checksum.getValue();
+  }
+}
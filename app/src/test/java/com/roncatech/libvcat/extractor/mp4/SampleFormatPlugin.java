@@ -0,0 +1,131 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import android.content.Context;
+import android.os.Handler;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.decoder.DecoderException;
+import com.google.android.exoplayer2.util.MimeTypes;
+import com.google.android.exoplayer2.video.VideoRendererEventListener;
+import com.roncatech.libvcat.decoder.SampleFormatDeclaration;
+import com.roncatech.vcat.decoder_plugin_api.NonStdDecoderStsdParser;
+import com.roncatech.vcat.decoder_plugin_api.VcatDecoderPlugin;
+import com.roncatech.vcat.decoder_plugin_api.VideoConfiguration;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A decoder plugin that registers for the avc1 or hvc1 sample entry and declares the sample format
+ * it takes, without decoding anything.
+ */
+/* package */ final class SampleFormatPlugin
+    implements VcatDecoderPlugin, NonStdDecoderStsdParser, SampleFormatDeclaration {
+
+  private final boolean hevc;
+  private final int sampleFormat;
+
+  /**
+   * @param hevc Whether to register for hvc1 instead of avc1.
+   * @param sampleFormat The {@link SampleFormatDeclaration} sample format to declare.
+   */
+  public SampleFormatPlugin(boolean hevc, int sampleFormat) {
+    this.hevc = hevc;
+    this.sampleFormat = sampleFormat;
+  }
+
+  @Override
+  public int getSampleFormat() {
+    return sampleFormat;
+  }
+
+  @Override
+  public int sampleEntry4ccCode() {
+    return hevc ? Atom.TYPE_hvc1 : Atom.TYPE_avc1;
+  }
+
+  /** Claims no configuration box, so that the extractors parse the avcC or hvcC themselves. */
+  @Override
+  public int codecConfiguration4ccCode() {
+    return 0;
+  }
+
+  @Override
+  public String mimeType() {
+    return getMimeType();
+  }
+
+  /** Not called, as the plugin claims no configuration box. */
+  @Override
+  @Nullable
+  public VideoConfiguration parseStsd(byte[] atom) {
+    return null;
+  }
+
+  @Override
+  public String getId() {
+    return "test." + Atom.getAtomTypeString(sampleEntry4ccCode());
+  }
+
+  @Override
+  public String getDisplayName() {
+    return getId();
+  }
+
+  @Override
+  public String getVersion() {
+    return "1";
+  }
+
+  @Override
+  public String getMimeType() {
+    return hevc ? MimeTypes.VIDEO_H265 : MimeTypes.VIDEO_H264;
+  }
+
+  @Override
+  public List<String> getSupportedProfiles() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public Renderer createVideoRenderer(
+      Context context,
+      long allowedJoiningTimeMs,
+      Handler eventHandler,
+      VideoRendererEventListener eventListener,
+      int threads)
+      throws DecoderException {
+    throw new DecoderException("Test plugin " + getId() + " has no renderer");
+  }
+}
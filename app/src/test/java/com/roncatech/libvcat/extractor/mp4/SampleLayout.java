@@ -0,0 +1,380 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.extractor.mp4.Track;
+import com.google.android.exoplayer2.util.MimeTypes;
+import com.google.android.exoplayer2.util.Util;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The samples of one synthetic track, expanded into one entry per sample as the reference that
+ * {@link CompactSamples} and {@link TrackSampleTable} lookups are checked against.
+ */
+/* package */ final class SampleLayout {
+
+  public final int sampleCount;
+  public final int[] sizes;
+  public final long[] offsets;
+  public final long[] decodeTimes;
+  @Nullable public final long[] compositionOffsets;
+  @Nullable public final int[] syncSamples;
+  public final long timescale;
+
+  // One entry per chunk.
+  private final long[] chunkOffsets;
+  private final int[] chunkSampleCounts;
+
+  private SampleLayout(
+      int[] sizes,
+      long[] decodeTimes,
+      @Nullable long[] compositionOffsets,
+      @Nullable int[] syncSamples,
+      long timescale,
+      long[] chunkOffsets,
+      int[] chunkSampleCounts) {
+    this.sizes = sizes;
+    this.decodeTimes = decodeTimes;
+    this.compositionOffsets = compositionOffsets;
+    this.syncSamples = syncSamples;
+    this.timescale = timescale;
+    this.chunkOffsets = chunkOffsets;
+    this.chunkSampleCounts = chunkSampleCounts;
+    sampleCount = sizes.length;
+    offsets = new long[sampleCount];
+    int sample = 0;
+    for (int chunk = 0; chunk < chunkOffsets.length; chunk++) {
+      long offset = chunkOffsets[chunk];
+      for (int i = 0; i < chunkSampleCounts[chunk]; i++) {
+        offsets[sample] = offset;
+        offset += sizes[sample++];
+      }
+    }
+  }
+
+  /**
+   * Returns a video-like layout: sizes that vary by orders of magnitude, runs of chunks with the
+   * same sample count separated by gaps, B-frame composition offsets and a sync sample every {@code
+   * gopLength} samples, starting at {@code firstSyncSample}. With {@code variableFrameRate}, the
+   * frame duration changes every thousand samples or so.
+   */
+  public static SampleLayout video(
+      int sampleCount, int gopLength, int firstSyncSample, boolean variableFrameRate, long seed) {
+    Random random = new Random(seed);
+    int[] sizes = new int[sampleCount];
+    long[] decodeTimes = new long[sampleCount];
+    long[] compositionOffsets = new long[sampleCount];
+    int[] syncSamples = new int[(sampleCount - firstSyncSample + gopLength - 1) / gopLength];
+    long frameDuration = 1001;
+    long decodeTime = 0;
+    for (int i = 0; i < sampleCount; i++) {
+      boolean sync = i >= firstSyncSample && (i - firstSyncSample) % gopLength == 0;
+      if (sync) {
+        syncSamples[(i - firstSyncSample) / gopLength] = i;
+      }
+      sizes[i] = sync ? 40_000 + random.nextInt(160_000) : 1 + random.nextInt(20_000);
+      decodeTimes[i] = decodeTime;
+      // I P B B P B B ...: P frames are presented after the two B frames that follow them.
+      compositionOffsets[i] = i % 3 == 1 ? 3 * frameDuration : frameDuration;
+      if (variableFrameRate && random.nextInt(1000) == 0) {
+        frameDuration = random.nextBoolean() ? 1001 : 2002;
+      }
+      decodeTime += frameDuration;
+    }
+    return withChunks(
+        sizes, decodeTimes, compositionOffsets, syncSamples, /* timescale= */ 30_000, random);
+  }
+
+  /** Returns a layout of {@code sampleCount} equal sync samples in chunks of equal sample count. */
+  public static SampleLayout constant(int sampleCount, int size, int samplesPerChunk) {
+    int[] sizes = new int[sampleCount];
+    long[] decodeTimes = new long[sampleCount];
+    Arrays.fill(sizes, size);
+    for (int i = 0; i < sampleCount; i++) {
+      decodeTimes[i] = i * 1024L;
+    }
+    int chunkCount = (sampleCount + samplesPerChunk - 1) / samplesPerChunk;
+    long[] chunkOffsets = new long[chunkCount];
+    int[] chunkSampleCounts = new int[chunkCount];
+    for (int chunk = 0; chunk < chunkCount; chunk++) {
+      chunkSampleCounts[chunk] = Math.min(samplesPerChunk, sampleCount - chunk * samplesPerChunk);
+      chunkOffsets[chunk] = 4096 + 2L * chunk * samplesPerChunk * size;
+    }
+    return new SampleLayout(
+        sizes,
+        decodeTimes,
+        /* compositionOffsets= */ null,
+        /* syncSamples= */ null,
+        /* timescale= */ 48_000,
+        chunkOffsets,
+        chunkSampleCounts);
+  }
+
+  private static SampleLayout withChunks(
+      int[] sizes,
+      long[] decodeTimes,
+      @Nullable long[] compositionOffsets,
+      @Nullable int[] syncSamples,
+      long timescale,
+      Random random) {
+    int sampleCount = sizes.length;
+    int[] chunkSampleCounts = new int[sampleCount];
+    long[] chunkOffsets = new long[sampleCount];
+    int chunkCount = 0;
+    int sample = 0;
+    long offset = 1 << 20;
+    while (sample < sampleCount) {
+      // A run of chunks with the same sample count, like one stsc entry.
+      int samplesPerChunk = 1 + random.nextInt(40);
+      int runChunks = 1 + random.nextInt(8);
+      for (int i = 0; i < runChunks && sample < sampleCount; i++) {
+        int count = Math.min(samplesPerChunk, sampleCount - sample);
+        chunkOffsets[chunkCount] = offset;
+        chunkSampleCounts[chunkCount++] = count;
+        for (int j = 0; j < count; j++) {
+          offset += sizes[sample++];
+        }
+        // Other tracks' chunks sit in between.
+        offset += random.nextInt(3) == 0 ? 0 : random.nextInt(1 << 16);
+      }
+    }
+    return new SampleLayout(
+        sizes,
+        decodeTimes,
+        compositionOffsets,
+        syncSamples,
+        timescale,
+        Arrays.copyOf(chunkOffsets, chunkCount),
+        Arrays.copyOf(chunkSampleCounts, chunkCount));
+  }
+
+  /** Returns the composition time of a sample in timescale units. */
+  public long getTimestamp(int index) {
+    return decodeTimes[index] + (compositionOffsets == null ? 0 : compositionOffsets[index]);
+  }
+
+  /** Returns whether a sample is a sync sample. */
+  public boolean isSyncSample(int index) {
+    return syncSamples == null || Arrays.binarySearch(syncSamples, index) >= 0;
+  }
+
+  /** Returns the samples with every window filled up front. */
+  public CompactSamples toCompactSamples() {
+    CompactSamples samples = newCompactSamples(/* source= */ null);
+    for (int i = 0; i < sampleCount; i++) {
+      setSample(samples, i);
+    }
+    return samples;
+  }
+
+  /** Returns the samples, filled on demand by {@code source}. */
+  public CompactSamples toCompactSamples(CompactSamples.Source source) {
+    return newCompactSamples(source);
+  }
+
+  /** A {@link CompactSamples.Source} that fills from this layout and counts its calls. */
+  public final class CountingSource implements CompactSamples.Source {
+
+    public int fillCount;
+    public int filledSampleCount;
+
+    /** Returns the sizes, offsets and decode times it fills from, as a stand-in for the boxes. */
+    @Override
+    public long sizeInBytes() {
+      return 20L * sampleCount;
+    }
+
+    @Override
+    public void fill(
+        CompactSamples samples,
+        int from,
+        int to,
+        int[] runFirstSample,
+        int[] runFirstChunk,
+        int[] runSamplesPerChunk,
+        PackedInts chunkOffsets) {
+      fillCount++;
+      filledSampleCount += to - from;
+      for (int i = from; i < to; i++) {
+        setSample(samples, i);
+      }
+    }
+  }
+
+  /** Returns the expanded table ExoPlayer builds for these samples, without edits. */
+  public TrackSampleTable toExpandedTable() {
+    long[] timestampsUs = new long[sampleCount];
+    int[] flags = new int[sampleCount];
+    int maximumSize = 0;
+    for (int i = 0; i < sampleCount; i++) {
+      timestampsUs[i] = Util.scaleLargeTimestamp(getTimestamp(i), C.MICROS_PER_SECOND, timescale);
+      flags[i] = isSyncSample(i) ? C.BUFFER_FLAG_KEY_FRAME : 0;
+      maximumSize = Math.max(maximumSize, sizes[i]);
+    }
+    return new TrackSampleTable(
+        newTrack(timescale),
+        offsets.clone(),
+        sizes.clone(),
+        maximumSize,
+        timestampsUs,
+        flags,
+        durationUs());
+  }
+
+  /** Returns a compact table over these samples, without edits. */
+  public TrackSampleTable toCompactTable() {
+    return new TrackSampleTable(
+        newTrack(timescale),
+        toCompactSamples(),
+        sampleCount,
+        maxSize(),
+        /* segmentFirstIndex= */ new int[] {0},
+        /* segmentSourceIndex= */ new int[] {0},
+        /* segmentStartUs= */ new long[] {0},
+        /* segmentMediaTime= */ new long[] {0},
+        /* clampToSegmentStart= */ false,
+        durationUs());
+  }
+
+  public int maxSize() {
+    int maximumSize = 0;
+    for (int size : sizes) {
+      maximumSize = Math.max(maximumSize, size);
+    }
+    return maximumSize;
+  }
+
+  public long durationUs() {
+    return Util.scaleLargeTimestamp(
+        decodeTimes[sampleCount - 1] + timeDelta(sampleCount - 1),
+        C.MICROS_PER_SECOND,
+        timescale);
+  }
+
+  /** Returns a video track with the given media timescale. */
+  public static Track newTrack(long timescale) {
+    return new Track(
+        /* id= */ 1,
+        C.TRACK_TYPE_VIDEO,
+        timescale,
+        /* movieTimescale= */ 1000,
+        /* durationUs= */ C.TIME_UNSET,
+        new Format.Builder().setSampleMimeType(MimeTypes.VIDEO_AV1).build(),
+        Track.TRANSFORMATION_NONE,
+        /* sampleDescriptionEncryptionBoxes= */ null,
+        /* nalUnitLengthFieldLength= */ 0,
+        /* editListDurations= */ null,
+        /* editListMediaTimes= */ null);
+  }
+
+  private CompactSamples newCompactSamples(@Nullable CompactSamples.Source source) {
+    int chunkCount = chunkOffsets.length;
+    int runCount = 0;
+    int[] runFirstSample = new int[chunkCount];
+    int[] runFirstChunk = new int[chunkCount];
+    int[] runSamplesPerChunk = new int[chunkCount];
+    int sample = 0;
+    for (int chunk = 0; chunk < chunkCount; chunk++) {
+      if (runCount == 0 || runSamplesPerChunk[runCount - 1] != chunkSampleCounts[chunk]) {
+        runFirstSample[runCount] = sample;
+        runFirstChunk[runCount] = chunk;
+        runSamplesPerChunk[runCount++] = chunkSampleCounts[chunk];
+      }
+      sample += chunkSampleCounts[chunk];
+    }
+    PackedInts packedChunkOffsets = packed(chunkOffsets);
+    long[] deltas = new long[sampleCount];
+    for (int i = 0; i < sampleCount; i++) {
+      deltas[i] = timeDelta(i);
+    }
+    long[] sizesAsLongs = new long[sampleCount];
+    for (int i = 0; i < sampleCount; i++) {
+      sizesAsLongs[i] = sizes[i];
+    }
+    int anchorCount = CompactSamples.anchorCount(sampleCount);
+    return new CompactSamples(
+        sampleCount,
+        packedRange(sizesAsLongs),
+        packedChunkOffsets,
+        Arrays.copyOf(runFirstSample, runCount),
+        Arrays.copyOf(runFirstChunk, runCount),
+        Arrays.copyOf(runSamplesPerChunk, runCount),
+        new long[anchorCount],
+        packedRange(deltas),
+        new long[anchorCount],
+        compositionOffsets == null ? null : packedRange(compositionOffsets),
+        syncSamples == null ? null : syncSamples.clone(),
+        source);
+  }
+
+  private void setSample(CompactSamples samples, int index) {
+    samples.setSample(
+        index,
+        offsets[index],
+        decodeTimes[index],
+        sizes[index],
+        timeDelta(index),
+        compositionOffsets == null ? 0 : compositionOffsets[index]);
+  }
+
+  // The last sample lasts as long as the one before it.
+  private long timeDelta(int index) {
+    if (sampleCount == 1) {
+      return 0;
+    }
+    int next = Math.min(index + 1, sampleCount - 1);
+    return decodeTimes[next] - decodeTimes[next - 1];
+  }
+
+  private static PackedInts packed(long[] values) {
+    PackedInts packed = packedRange(values);
+    for (int i = 0; i < values.length; i++) {
+      packed.set(i, values[i]);
+    }
+    return packed;
+  }
+
+  private static PackedInts packedRange(long[] values) {
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    for (long value : values) {
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+    }
+    return new PackedInts(values.length, min, max);
+  }
+}
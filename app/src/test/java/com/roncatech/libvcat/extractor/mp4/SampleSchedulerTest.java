@@ -0,0 +1,335 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.android.exoplayer2.C;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/** Tests for {@link SampleScheduler}. */
+public final class SampleSchedulerTest {
+
+  private static final long RELOAD = VcatMp4Extractor.RELOAD_MINIMUM_SEEK_DISTANCE;
+  private static final long READ_AHEAD = VcatMp4Extractor.MAXIMUM_READ_AHEAD_BYTES_STREAM;
+
+  @Test
+  public void getTrackIndexOfNextReadSample_readingWithSeeks_matchesLinearScan() {
+    Random random = new Random(/* seed= */ 0);
+    TrackSampleTable[] sampleTables = newInterleavedTables(random, /* trackCount= */ 12);
+    Reader reader = new Reader(sampleTables);
+
+    int steps = 0;
+    while (reader.readNext(random.nextInt(8) == 0)) {
+      if (++steps % 500 == 0 && steps <= 20 * 500) {
+        reader.seekTo(random);
+      }
+    }
+    assertEquals(C.INDEX_UNSET, reader.scheduler.getTrackIndexOfNextReadSample(0, false));
+  }
+
+  @Test
+  public void getTrackIndexOfNextReadSample_equalOffsets_picksLowerTrackIndex() {
+    TrackSampleTable track =
+        newTable(/* offsets= */ new long[] {0, 100}, /* sizes= */ new int[] {100, 100});
+    Reader reader = new Reader(new TrackSampleTable[] {track, track, track});
+
+    assertEquals(0, reader.assertNextMatchesLinearScan(/* inputPosition= */ 0, false));
+    reader.update(/* trackIndex= */ 0, /* sampleIndex= */ 1);
+    assertEquals(1, reader.assertNextMatchesLinearScan(/* inputPosition= */ 0, false));
+    // Offsets 100, 0 and 0 with the input past all of them: all need a reload.
+    assertEquals(1, reader.assertNextMatchesLinearScan(/* inputPosition= */ 500, false));
+  }
+
+  @Test
+  public void getTrackIndexOfNextReadSample_equalAccumulatedBytes_picksLowerTrackIndex() {
+    // Empty samples leave the accumulated bytes of all tracks equal.
+    TrackSampleTable track = newTable(new long[] {0, 10 * RELOAD}, /* sizes= */ new int[] {0, 0});
+    Reader reader = new Reader(new TrackSampleTable[] {track, track, track});
+
+    assertEquals(0, reader.assertNextMatchesLinearScan(/* inputPosition= */ 0, true));
+    reader.update(/* trackIndex= */ 0, /* sampleIndex= */ 2);
+    assertEquals(1, reader.assertNextMatchesLinearScan(/* inputPosition= */ 0, true));
+    // Both remaining samples are behind the input and need a reload.
+    assertEquals(1, reader.assertNextMatchesLinearScan(/* inputPosition= */ 10 * RELOAD, false));
+  }
+
+  @Test
+  public void getTrackIndexOfNextReadSample_atReloadDistance_prefersSmallestOffset() {
+    long inputPosition = 10 * RELOAD;
+    // Track 0 is behind the input. Track 1 is either just within reach or just out of it.
+    TrackSampleTable behind = newTable(new long[] {inputPosition - 1}, new int[] {1});
+    TrackSampleTable ahead =
+        newTable(
+            new long[] {inputPosition + RELOAD - 1, inputPosition + RELOAD}, new int[] {1, 1});
+    Reader reader = new Reader(new TrackSampleTable[] {behind, ahead});
+
+    assertEquals(1, reader.assertNextMatchesLinearScan(inputPosition, false));
+    reader.update(/* trackIndex= */ 1, /* sampleIndex= */ 1);
+    assertEquals(0, reader.assertNextMatchesLinearScan(inputPosition, false));
+  }
+
+  @Test
+  public void getTrackIndexOfNextReadSample_atReadAheadLimit_switchesToTrackBehind() {
+    long inputPosition = 10 * RELOAD;
+    for (long readAheadBytes : new long[] {READ_AHEAD - 1, READ_AHEAD}) {
+      // Track 0 is read up to the input, readAheadBytes past the next sample of track 1, which is
+      // out of reach.
+      TrackSampleTable ahead =
+          newTable(
+              /* offsets= */ new long[] {0, 1, inputPosition},
+              /* sizes= */ new int[] {1, (int) readAheadBytes - 1, 1},
+              /* timesUs= */ new long[] {0, 20, 30});
+      TrackSampleTable behind =
+          newTable(
+              /* offsets= */ new long[] {inputPosition + 2 * RELOAD},
+              /* sizes= */ new int[] {1},
+              /* timesUs= */ new long[] {5});
+      Reader reader = new Reader(new TrackSampleTable[] {ahead, behind});
+      reader.update(/* trackIndex= */ 0, /* sampleIndex= */ 2);
+
+      assertEquals(
+          readAheadBytes < READ_AHEAD ? 0 : 1,
+          reader.assertNextMatchesLinearScan(inputPosition, false));
+    }
+  }
+
+  @Test
+  public void update_afterSeekToStart_matchesNewScheduler() {
+    Random random = new Random(/* seed= */ 1);
+    TrackSampleTable[] sampleTables = newInterleavedTables(random, /* trackCount= */ 6);
+    Reader reader = new Reader(sampleTables);
+    for (int i = 0; i < 2000; i++) {
+      reader.readNext(/* positionalReads= */ false);
+    }
+
+    for (int i = 0; i < sampleTables.length; i++) {
+      reader.update(i, /* sampleIndex= */ 0);
+    }
+
+    SampleScheduler newScheduler =
+        new SampleScheduler(sampleTables, new AccumulatedSampleSizes(sampleTables));
+    for (long inputPosition : new long[] {0, RELOAD, reader.inputPosition}) {
+      for (boolean positionalReads : new boolean[] {false, true}) {
+        assertEquals(
+            newScheduler.getTrackIndexOfNextReadSample(inputPosition, positionalReads),
+            reader.assertNextMatchesLinearScan(inputPosition, positionalReads));
+      }
+    }
+  }
+
+  /**
+   * Reads samples with a {@link SampleScheduler}, checking each choice against the linear scan
+   * the scheduler replaced.
+   */
+  private static final class Reader {
+
+    public final SampleScheduler scheduler;
+    public long inputPosition;
+
+    private final TrackSampleTable[] sampleTables;
+    private final AccumulatedSampleSizes accumulatedSampleSizes;
+    private final int[] sampleIndices;
+
+    public Reader(TrackSampleTable[] sampleTables) {
+      this.sampleTables = sampleTables;
+      accumulatedSampleSizes = new AccumulatedSampleSizes(sampleTables);
+      scheduler = new SampleScheduler(sampleTables, accumulatedSampleSizes);
+      sampleIndices = new int[sampleTables.length];
+    }
+
+    /** Reads the next sample. Returns false if no samples remain. */
+    public boolean readNext(boolean positionalReads) {
+      int trackIndex = assertNextMatchesLinearScan(inputPosition, positionalReads);
+      if (trackIndex == C.INDEX_UNSET) {
+        return false;
+      }
+      int sampleIndex = sampleIndices[trackIndex];
+      TrackSampleTable sampleTable = sampleTables[trackIndex];
+      inputPosition = sampleTable.getOffset(sampleIndex) + sampleTable.getSize(sampleIndex);
+      update(trackIndex, sampleIndex + 1);
+      return true;
+    }
+
+    /** Moves every track to a random sample, or past its end, and the input anywhere. */
+    public void seekTo(Random random) {
+      for (int i = 0; i < sampleTables.length; i++) {
+        update(i, random.nextInt(sampleTables[i].sampleCount + 1));
+      }
+      inputPosition = random.nextInt(Integer.MAX_VALUE);
+    }
+
+    public void update(int trackIndex, int sampleIndex) {
+      sampleIndices[trackIndex] = sampleIndex;
+      scheduler.update(trackIndex, sampleIndex);
+    }
+
+    /** Returns the scheduled track, after asserting it is the one the linear scan picks. */
+    public int assertNextMatchesLinearScan(long inputPosition, boolean positionalReads) {
+      int expected =
+          positionalReads
+              ? getTrackIndexWithMinAccumulatedBytes()
+              : getTrackIndexOfNextReadSampleLinearScan(inputPosition);
+      int trackIndex = scheduler.getTrackIndexOfNextReadSample(inputPosition, positionalReads);
+      assertEquals(
+          "input at " + inputPosition + ", samples " + Arrays.toString(sampleIndices),
+          expected,
+          trackIndex);
+      return trackIndex;
+    }
+
+    /** The loop over all tracks that getTrackIndexOfNextReadSample used to run. */
+    private int getTrackIndexOfNextReadSampleLinearScan(long inputPosition) {
+      long preferredSkipAmount = Long.MAX_VALUE;
+      boolean preferredRequiresReload = true;
+      int preferredTrackIndex = C.INDEX_UNSET;
+      long preferredAccumulatedBytes = Long.MAX_VALUE;
+      long minAccumulatedBytes = Long.MAX_VALUE;
+      boolean minAccumulatedBytesRequiresReload = true;
+      int minAccumulatedBytesTrackIndex = C.INDEX_UNSET;
+      for (int trackIndex = 0; trackIndex < sampleTables.length; trackIndex++) {
+        int sampleIndex = sampleIndices[trackIndex];
+        if (sampleIndex == sampleTables[trackIndex].sampleCount) {
+          continue;
+        }
+        long sampleOffset = sampleTables[trackIndex].getOffset(sampleIndex);
+        long sampleAccumulatedBytes = accumulatedSampleSizes.get(trackIndex, sampleIndex);
+        long skipAmount = sampleOffset - inputPosition;
+        boolean requiresReload = skipAmount < 0 || skipAmount >= RELOAD;
+        if ((!requiresReload && preferredRequiresReload)
+            || (requiresReload == preferredRequiresReload && skipAmount < preferredSkipAmount)) {
+          preferredRequiresReload = requiresReload;
+          preferredSkipAmount = skipAmount;
+          preferredTrackIndex = trackIndex;
+          preferredAccumulatedBytes = sampleAccumulatedBytes;
+        }
+        if (sampleAccumulatedBytes < minAccumulatedBytes) {
+          minAccumulatedBytes = sampleAccumulatedBytes;
+          minAccumulatedBytesRequiresReload = requiresReload;
+          minAccumulatedBytesTrackIndex = trackIndex;
+        }
+      }
+      return minAccumulatedBytes == Long.MAX_VALUE
+              || !minAccumulatedBytesRequiresReload
+              || preferredAccumulatedBytes < minAccumulatedBytes + READ_AHEAD
+          ? preferredTrackIndex
+          : minAccumulatedBytesTrackIndex;
+    }
+
+    private int getTrackIndexWithMinAccumulatedBytes() {
+      int minTrackIndex = C.INDEX_UNSET;
+      long minAccumulatedBytes = Long.MAX_VALUE;
+      for (int trackIndex = 0; trackIndex < sampleTables.length; trackIndex++) {
+        int sampleIndex = sampleIndices[trackIndex];
+        if (sampleIndex == sampleTables[trackIndex].sampleCount) {
+          continue;
+        }
+        long accumulatedBytes = accumulatedSampleSizes.get(trackIndex, sampleIndex);
+        if (accumulatedBytes < minAccumulatedBytes) {
+          minAccumulatedBytes = accumulatedBytes;
+          minTrackIndex = trackIndex;
+        }
+      }
+      return minTrackIndex;
+    }
+  }
+
+  /**
+   * Returns tracks of up to 1000 samples of up to 1 MiB, at 30 samples per second, stored in
+   * chunks of random tracks one after another. Chunks of some tracks are grouped far apart, so that
+   * both reload and read-ahead limits are reached.
+   */
+  private static TrackSampleTable[] newInterleavedTables(Random random, int trackCount) {
+    long[][] offsets = new long[trackCount][];
+    int[][] sizes = new int[trackCount][];
+    long[][] timesUs = new long[trackCount][];
+    int[] written = new int[trackCount];
+    int remaining = 0;
+    for (int i = 0; i < trackCount; i++) {
+      int sampleCount = 1 + random.nextInt(1000);
+      offsets[i] = new long[sampleCount];
+      sizes[i] = new int[sampleCount];
+      timesUs[i] = new long[sampleCount];
+      int maxSize = i % 3 == 0 ? 1 << 20 : 4096;
+      for (int j = 0; j < sampleCount; j++) {
+        sizes[i][j] = 1 + random.nextInt(maxSize);
+        timesUs[i][j] = j * 33_333L;
+      }
+      remaining += sampleCount;
+    }
+    long position = 0;
+    while (remaining > 0) {
+      int track = random.nextInt(trackCount);
+      int chunkSize = Math.min(1 + random.nextInt(20), offsets[track].length - written[track]);
+      for (int j = 0; j < chunkSize; j++) {
+        offsets[track][written[track]] = position;
+        position += sizes[track][written[track]];
+        written[track]++;
+        remaining--;
+      }
+    }
+    TrackSampleTable[] sampleTables = new TrackSampleTable[trackCount];
+    for (int i = 0; i < trackCount; i++) {
+      sampleTables[i] = newTable(offsets[i], sizes[i], timesUs[i]);
+    }
+    return sampleTables;
+  }
+
+  /** Returns a table of samples 1 ms apart. */
+  private static TrackSampleTable newTable(long[] offsets, int[] sizes) {
+    long[] timesUs = new long[offsets.length];
+    for (int i = 0; i < timesUs.length; i++) {
+      timesUs[i] = i * 1000L;
+    }
+    return newTable(offsets, sizes, timesUs);
+  }
+
+  private static TrackSampleTable newTable(long[] offsets, int[] sizes, long[] timesUs) {
+    int[] flags = new int[offsets.length];
+    Arrays.fill(flags, C.BUFFER_FLAG_KEY_FRAME);
+    int maximumSize = 0;
+    for (int size : sizes) {
+      maximumSize = Math.max(maximumSize, size);
+    }
+    return new TrackSampleTable(
+        SampleLayout.newTrack(C.MICROS_PER_SECOND),
+        offsets,
+        sizes,
+        maximumSize,
+        timesUs,
+        flags,
+        /* durationUs= */ timesUs[timesUs.length - 1] + 1000);
+  }
+}
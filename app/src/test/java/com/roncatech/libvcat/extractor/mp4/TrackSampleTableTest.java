@@ -0,0 +1,291 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.GaplessInfoHolder;
+import com.google.android.exoplayer2.util.Util;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Tests for {@link TrackSampleTable}. Compact tables are checked against the expanded table
+ * ExoPlayer builds for the same samples, whose sync sample lookups scan sample flags.
+ */
+@RunWith(RobolectricTestRunner.class)
+public final class TrackSampleTableTest {
+
+  @Test
+  public void syncLookups_matchExpandedTable() {
+    assertSyncLookupsMatch(
+        SampleLayout.video(
+            /* sampleCount= */ 5_000,
+            /* gopLength= */ 48,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ true,
+            /* seed= */ 0));
+  }
+
+  @Test
+  public void syncLookups_firstSampleNotSync_matchExpandedTable() {
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 5_000,
+            /* gopLength= */ 250,
+            /* firstSyncSample= */ 7,
+            /* variableFrameRate= */ false,
+            /* seed= */ 1);
+    TrackSampleTable table = layout.toCompactTable();
+    long beforeFirstSyncUs = layout.toExpandedTable().getTimestampUs(3);
+
+    assertEquals(
+        C.INDEX_UNSET, table.getIndexOfEarlierOrEqualSynchronizationSample(beforeFirstSyncUs));
+    assertEquals(7, table.getIndexOfLaterOrEqualSynchronizationSample(/* timeUs= */ 0));
+    assertSyncLookupsMatch(layout);
+  }
+
+  @Test
+  public void syncLookups_afterLastSyncSample() {
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 1_000,
+            /* gopLength= */ 300,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ false,
+            /* seed= */ 2);
+    TrackSampleTable table = layout.toCompactTable();
+    long afterLastSyncUs = table.getTimestampUs(901);
+
+    assertEquals(900, table.getIndexOfEarlierOrEqualSynchronizationSample(afterLastSyncUs));
+    assertEquals(900, table.getIndexOfEarlierOrEqualSynchronizationSample(Long.MAX_VALUE));
+    assertEquals(C.INDEX_UNSET, table.getIndexOfLaterOrEqualSynchronizationSample(afterLastSyncUs));
+    assertSyncLookupsMatch(layout);
+  }
+
+  @Test
+  public void syncLookups_withoutStss_everySampleIsSync() {
+    SampleLayout layout =
+        SampleLayout.constant(/* sampleCount= */ 3_000, /* size= */ 300, /* samplesPerChunk= */ 9);
+    TrackSampleTable table = layout.toCompactTable();
+
+    assertEquals(0, table.getIndexOfEarlierOrEqualSynchronizationSample(/* timeUs= */ 0));
+    assertEquals(
+        C.INDEX_UNSET, table.getIndexOfEarlierOrEqualSynchronizationSample(/* timeUs= */ -1));
+    assertEquals(2_999, table.getIndexOfEarlierOrEqualSynchronizationSample(Long.MAX_VALUE));
+    assertEquals(
+        C.INDEX_UNSET,
+        table.getIndexOfLaterOrEqualSynchronizationSample(table.getTimestampUs(2_999) + 1));
+    assertSyncLookupsMatch(layout);
+  }
+
+  @Test
+  public void editSegments_matchExpandedTable() throws Exception {
+    Mp4Fixture.TrackSpec video =
+        Mp4Fixture.TrackSpec.video(
+                /* sampleCount= */ 3_000,
+                /* gopLength= */ 60,
+                /* maxSampleSize= */ 64,
+                /* seed= */ 3)
+            .withEditList(
+                // 10 s from the first composition time, 1 s empty, then 5 s from 40 s in.
+                /* editDurations= */ new long[] {10_000, 1_000, 5_000},
+                /* editMediaTimes= */ new long[] {1001, -1, 40 * 30_000});
+    Mp4Fixture fixture = new Mp4Fixture.Builder().addTrack(video).build();
+
+    TrackSampleTable table =
+        AtomParsers.parseTraks(
+                fixture.parseMoov(),
+                new GaplessInfoHolder(),
+                /* duration= */ C.TIME_UNSET,
+                /* drmInitData= */ null,
+                /* ignoreEditLists= */ false,
+                /* isQuickTime= */ false,
+                /* modifyTrackFunction= */ track -> track)
+            .get(0);
+    TrackSampleTable expanded = expandWithEdits(fixture, table);
+
+    assertEquals(expanded.sampleCount, table.sampleCount);
+    assertEquals(expanded.durationUs, table.durationUs);
+    for (int i = 0; i < expanded.sampleCount; i++) {
+      assertEquals("offset " + i, expanded.getOffset(i), table.getOffset(i));
+      assertEquals("size " + i, expanded.getSize(i), table.getSize(i));
+      assertEquals("timestamp " + i, expanded.getTimestampUs(i), table.getTimestampUs(i));
+      assertEquals("flags " + i, expanded.getFlags(i), table.getFlags(i));
+    }
+    assertSyncLookupsMatch(expanded, table);
+  }
+
+  @Test
+  public void seekBenchmark_longGops() throws Exception {
+    // Two hours at 29.97 fps with a sync sample every 20 seconds, as screen captures have.
+    SampleLayout layout =
+        SampleLayout.video(
+            /* sampleCount= */ 2 * 3600 * 30,
+            /* gopLength= */ 600,
+            /* firstSyncSample= */ 0,
+            /* variableFrameRate= */ false,
+            /* seed= */ 4);
+    TrackSampleTable expanded = layout.toExpandedTable();
+    TrackSampleTable compact = layout.toCompactTable();
+    long[] seekTimesUs = new long[10_000];
+    Random random = new Random(/* seed= */ 5);
+    for (int i = 0; i < seekTimesUs.length; i++) {
+      seekTimesUs[i] = (long) (random.nextDouble() * expanded.durationUs);
+    }
+    int[] expandedResults = new int[seekTimesUs.length];
+    int[] compactResults = new int[seekTimesUs.length];
+
+    // Each seek, as VcatMp4Extractor.getSeekPoints makes it.
+    long expandedNs =
+        Benchmarks.bestTimeNs(
+            () -> {
+              for (int i = 0; i < seekTimesUs.length; i++) {
+                expandedResults[i] =
+                    expanded.getIndexOfEarlierOrEqualSynchronizationSample(seekTimesUs[i]);
+                expanded.getIndexOfLaterOrEqualSynchronizationSample(seekTimesUs[i]);
+              }
+            });
+    long compactNs =
+        Benchmarks.bestTimeNs(
+            () -> {
+              for (int i = 0; i < seekTimesUs.length; i++) {
+                compactResults[i] =
+                    compact.getIndexOfEarlierOrEqualSynchronizationSample(seekTimesUs[i]);
+                compact.getIndexOfLaterOrEqualSynchronizationSample(seekTimesUs[i]);
+              }
+            });
+
+    for (int i = 0; i < seekTimesUs.length; i++) {
+      assertEquals(expandedResults[i], compactResults[i]);
+    }
+    Benchmarks.report(
+        "seek, 20 s GOPs",
+        "flag scan "
+            + expandedNs / seekTimesUs.length
+            + " ns, sync index "
+            + compactNs / seekTimesUs.length
+            + " ns per seek");
+  }
+
+  private static void assertSyncLookupsMatch(SampleLayout layout) {
+    assertSyncLookupsMatch(layout.toExpandedTable(), layout.toCompactTable());
+  }
+
+  /** Asserts that sync sample lookups agree around every sample timestamp and past both ends. */
+  private static void assertSyncLookupsMatch(TrackSampleTable expected, TrackSampleTable actual) {
+    long[] extraTimesUs = {Long.MIN_VALUE, -1, 0, expected.durationUs, Long.MAX_VALUE};
+    for (long timeUs : extraTimesUs) {
+      assertSyncLookupsMatch(expected, actual, timeUs);
+    }
+    for (int i = 0; i < expected.sampleCount; i++) {
+      long timeUs = expected.getTimestampUs(i);
+      assertSyncLookupsMatch(expected, actual, timeUs - 1);
+      assertSyncLookupsMatch(expected, actual, timeUs);
+      assertSyncLookupsMatch(expected, actual, timeUs + 1);
+    }
+  }
+
+  private static void assertSyncLookupsMatch(
+      TrackSampleTable expected, TrackSampleTable actual, long timeUs) {
+    assertEquals(
+        "earlier sync sample at " + timeUs,
+        expected.getIndexOfEarlierOrEqualSynchronizationSample(timeUs),
+        actual.getIndexOfEarlierOrEqualSynchronizationSample(timeUs));
+    assertEquals(
+        "later sync sample at " + timeUs,
+        expected.getIndexOfLaterOrEqualSynchronizationSample(timeUs),
+        actual.getIndexOfLaterOrEqualSynchronizationSample(timeUs));
+  }
+
+  /**
+   * Returns the expanded table that ExoPlayer's parseStbl builds for the edited video track of
+   * {@code fixture}, by copying the samples of each edit.
+   */
+  private static TrackSampleTable expandWithEdits(Mp4Fixture fixture, TrackSampleTable table) {
+    Mp4Fixture.TrackSpec spec = fixture.tracks.get(0);
+    long[] editDurations = spec.editDurations;
+    long[] editMediaTimes = spec.editMediaTimes;
+    int sampleCount = spec.sampleCount;
+    long[] timestamps = new long[sampleCount];
+    for (int i = 0; i < sampleCount; i++) {
+      timestamps[i] = spec.decodeTimes[i] + spec.compositionOffsets[i];
+    }
+
+    int[] startIndices = new int[editDurations.length];
+    int[] endIndices = new int[editDurations.length];
+    int editedSampleCount = 0;
+    for (int i = 0; i < editDurations.length; i++) {
+      long editMediaTime = editMediaTimes[i];
+      if (editMediaTime != -1) {
+        long editDuration =
+            Util.scaleLargeTimestamp(editDurations[i], spec.timescale, Mp4Fixture.MOVIE_TIMESCALE);
+        startIndices[i] = Util.binarySearchFloor(timestamps, editMediaTime, true, true);
+        endIndices[i] =
+            Util.binarySearchCeil(timestamps, editMediaTime + editDuration, false, false);
+        while (startIndices[i] < endIndices[i] && !spec.isSyncSample(startIndices[i])) {
+          startIndices[i]++;
+        }
+        editedSampleCount += endIndices[i] - startIndices[i];
+      }
+    }
+
+    long[] offsets = new long[editedSampleCount];
+    int[] sizes = new int[editedSampleCount];
+    long[] timestampsUs = new long[editedSampleCount];
+    int[] flags = new int[editedSampleCount];
+    int maximumSize = 0;
+    long pts = 0;
+    int sampleIndex = 0;
+    for (int i = 0; i < editDurations.length; i++) {
+      for (int j = startIndices[i]; j < endIndices[i]; j++) {
+        long ptsUs = Util.scaleLargeTimestamp(pts, C.MICROS_PER_SECOND, Mp4Fixture.MOVIE_TIMESCALE);
+        long timeInSegmentUs =
+            Util.scaleLargeTimestamp(
+                timestamps[j] - editMediaTimes[i], C.MICROS_PER_SECOND, spec.timescale);
+        offsets[sampleIndex] = fixture.getSampleOffset(/* track= */ 0, j);
+        sizes[sampleIndex] = spec.sizes[j];
+        timestampsUs[sampleIndex] = ptsUs + Math.max(0, timeInSegmentUs);
+        flags[sampleIndex] = spec.isSyncSample(j) ? C.BUFFER_FLAG_KEY_FRAME : 0;
+        maximumSize = Math.max(maximumSize, spec.sizes[j]);
+        sampleIndex++;
+      }
+      pts += editDurations[i];
+    }
+    return new TrackSampleTable(
+        table.track, offsets, sizes, maximumSize, timestampsUs, flags, table.durationUs);
+  }
+}
@@ -0,0 +1,581 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static java.lang.Math.max;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.upstream.DataReader;
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Benchmarks of {@link VcatMp4Extractor} on synthetic files. Each also asserts what it can count
+ * exactly, so that the change it measures can't silently regress. See {@link Benchmarks}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public final class VcatMp4ExtractorBenchmarkTest {
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void startup_1_4_16Tracks() throws Exception {
+    // One hour at 29.97 fps.
+    for (int trackCount : new int[] {1, 4, 16}) {
+      Mp4Fixture fixture =
+          Mp4Fixture.multiTrack(
+                  trackCount,
+                  /* videoSampleCount= */ 108_000,
+                  /* maxVideoSampleSize= */ 32,
+                  /* audioSampleSize= */ 4)
+              .build();
+      ExtractorRunner[] runner = new ExtractorRunner[1];
+
+      long startupNs =
+          Benchmarks.bestTimeNs(
+              () -> {
+                runner[0] = new ExtractorRunner(new VcatMp4Extractor(), fixture.data);
+                runner[0].readUntilTracksEnded();
+                // Up to the first sample of each track.
+                runner[0].readSamples(trackCount);
+              });
+
+      assertEquals(trackCount, runner[0].output.trackOutputs.size());
+      Benchmarks.report(
+          "startup, " + trackCount + " tracks",
+          "first samples after " + startupNs / 1000 + " us");
+    }
+  }
+
+  @Test
+  public void open_coldAndWarmMoovIndexCache() throws Exception {
+    Mp4Fixture fixture =
+        Mp4Fixture.multiTrack(
+                /* trackCount= */ 4,
+                /* videoSampleCount= */ 108_000,
+                /* maxVideoSampleSize= */ 32,
+                /* audioSampleSize= */ 4)
+            .build();
+    File file = fixture.writeTo(temporaryFolder.newFolder());
+    int[] coldOpens = new int[1];
+
+    long uncachedOpenNs =
+        Benchmarks.bestTimeNs(() -> openToFirstSamples(fixture, file, /* cache= */ null));
+
+    // Every cold open gets an empty cache, and stores its tables in the background.
+    long coldOpenNs =
+        Benchmarks.bestTimeNs(
+            () -> {
+              File directory = temporaryFolder.newFolder("cold" + coldOpens[0]++);
+              openToFirstSamples(fixture, file, new MoovIndexCache(directory, Long.MAX_VALUE));
+            });
+    File warmDirectory = temporaryFolder.newFolder();
+    MoovIndexCache warmCache = new MoovIndexCache(warmDirectory, Long.MAX_VALUE);
+    openToFirstSamples(fixture, file, warmCache);
+    awaitEntry(warmDirectory);
+    long warmOpenNs = Benchmarks.bestTimeNs(() -> openToFirstSamples(fixture, file, warmCache));
+
+    Benchmarks.report(
+        "open, 4 tracks",
+        "first samples after "
+            + uncachedOpenNs / 1000
+            + " us without a cache, "
+            + coldOpenNs / 1000
+            + " us cold, "
+            + warmOpenNs / 1000
+            + " us warm");
+  }
+
+  @Test
+  public void prepare_16Tracks_peakHeapPerTrakAndWholeMoov() throws Exception {
+    // One hour at 29.97 fps, read as a stream so that every table is copied to the heap.
+    Mp4Fixture fixture =
+        Mp4Fixture.multiTrack(
+                /* trackCount= */ 16,
+                /* videoSampleCount= */ 108_000,
+                /* maxVideoSampleSize= */ 32,
+                /* audioSampleSize= */ 4)
+            .build();
+    File file = fixture.writeTo(temporaryFolder.newFolder());
+    int[] caches = new int[1];
+
+    long perTrakPeakBytes =
+        Benchmarks.peakHeapBytes(() -> prepare(fixture, /* moovIndex= */ null));
+    // A moov hashed for the cache is kept whole and parsed at its end.
+    long wholeMoovPeakBytes =
+        Benchmarks.peakHeapBytes(
+            () -> {
+              File directory = temporaryFolder.newFolder("cache" + caches[0]++);
+              prepare(
+                  fixture,
+                  new MoovIndexCache(directory, Long.MAX_VALUE).forFile(file.getPath()));
+            });
+
+    Benchmarks.report(
+        "prepare, 16 tracks",
+        "moov of "
+            + (fixture.mdatPosition - Atom.HEADER_SIZE - fixture.moovPosition)
+            + " bytes, peak heap "
+            + perTrakPeakBytes
+            + " bytes parsing each trak as it's read, "
+            + wholeMoovPeakBytes
+            + " bytes parsing the whole moov");
+  }
+
+  @Test
+  public void read_withAndWithoutCoalescedSampleReads() throws Exception {
+    Mp4Fixture fixture =
+        Mp4Fixture.multiTrack(
+                /* trackCount= */ 4,
+                /* videoSampleCount= */ 9000,
+                /* maxVideoSampleSize= */ 2048,
+                /* audioSampleSize= */ 64)
+            .build();
+    int sampleCount = 0;
+    int runCount = 0;
+    for (int i = 0; i < fixture.tracks.size(); i++) {
+      sampleCount += fixture.tracks.get(i).sampleCount;
+      runCount += getSampleRunCount(fixture, i);
+    }
+    ExtractorRunner[] runner = new ExtractorRunner[2];
+
+    long plainReadNs =
+        Benchmarks.bestTimeNs(
+            () -> {
+              runner[0] = new ExtractorRunner(new VcatMp4Extractor(), fixture.data);
+              runner[0].readToEnd();
+            });
+    long coalescedReadNs =
+        Benchmarks.bestTimeNs(
+            () -> {
+              runner[1] =
+                  new ExtractorRunner(
+                      new VcatMp4Extractor(VcatMp4Extractor.FLAG_COALESCE_SAMPLE_READS),
+                      fixture.data);
+              runner[1].readToEnd();
+            });
+
+    for (int i = 0; i < fixture.tracks.size(); i++) {
+      fixture.assertOutputMatches(i, runner[1].output.get(i));
+    }
+    // One source read per sample without the flag, and one per run of samples with it.
+    assertEquals(sampleCount - runCount, runner[0].sourceReads - runner[1].sourceReads);
+    assertEquals(runner[0].sourceBytesRead, runner[1].sourceBytesRead);
+    Benchmarks.report(
+        "read, 4 tracks",
+        runner[0].sourceReads
+            + " source reads in "
+            + plainReadNs / 1000
+            + " us without coalescing, "
+            + runner[1].sourceReads
+            + " in "
+            + coalescedReadNs / 1000
+            + " us with it");
+  }
+
+  @Test
+  public void read_nonInterleaved_reloadsPerMinute() throws Exception {
+    // All samples of each track are stored before those of the next. Ten minutes at about 300
+    // kbit/s, and one minute at about 7 Mbit/s, where the read-ahead bound is reached within
+    // seconds.
+    int[][] cases = {{2, 18_000, 8192}, {4, 18_000, 8192}, {2, 1800, 200_000}};
+    for (int[] testCase : cases) {
+      int trackCount = testCase[0];
+      Mp4Fixture fixture =
+          Mp4Fixture.multiTrack(
+                  trackCount,
+                  /* videoSampleCount= */ testCase[1],
+                  /* maxVideoSampleSize= */ testCase[2],
+                  /* audioSampleSize= */ 256)
+              .setInterleaved(false)
+              .build();
+      long durationMinutes = fixture.tracks.get(0).getDurationUs() / 60_000_000;
+      ExtractorRunner[] runner = new ExtractorRunner[1];
+
+      long readNs =
+          Benchmarks.bestTimeNs(
+              () -> {
+                runner[0] = new ExtractorRunner(new VcatMp4Extractor(), fixture.data);
+                runner[0].readToEnd();
+              });
+
+      for (int i = 0; i < trackCount; i++) {
+        fixture.assertOutputMatches(i, runner[0].output.get(i));
+      }
+      assertEquals(fixture.data.length, runner[0].sourceBytesRead);
+      Benchmarks.report(
+          "read, " + trackCount + " tracks of " + durationMinutes + " min not interleaved",
+          runner[0].reloads / (double) durationMinutes
+              + " reloads per minute and "
+              + runner[0].sourceBytesRead
+              + " bytes read in "
+              + readNs / 1000
+              + " us");
+    }
+  }
+
+  @Test
+  public void read_mappedNonInterleaved_sampleBytesBetweenContinueLoadingChecks()
+      throws Exception {
+    // Two tracks of one minute at about 7 Mbit/s, stored one after the other. Reading the first
+    // audio sample moves the mapped input past all of the video.
+    Mp4Fixture fixture =
+        Mp4Fixture.multiTrack(
+                /* trackCount= */ 2,
+                /* videoSampleCount= */ 1800,
+                /* maxVideoSampleSize= */ 200_000,
+                /* audioSampleSize= */ 256)
+            .setInterleaved(false)
+            .build();
+    File file = fixture.writeTo(temporaryFolder.newFolder());
+    ContinueLoadingCheck[] checks = new ContinueLoadingCheck[2];
+
+    long inputPositionReadNs =
+        Benchmarks.bestTimeNs(
+            () -> {
+              try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                ExtractorRunner runner =
+                    new ExtractorRunner(new VcatMp4Extractor(), randomAccessFile);
+                checks[0] = new ContinueLoadingCheck(runner.output);
+                while (runner.readOnce()) {
+                  checks[0].onRead(runner.getInputPosition());
+                }
+              }
+            });
+    long consumedBytesReadNs =
+        Benchmarks.bestTimeNs(
+            () -> {
+              RecordingExtractorOutput output = new RecordingExtractorOutput();
+              checks[1] = new ContinueLoadingCheck(output);
+              readWithMappedFileMediaExtractor(file, output, checks[1]);
+            });
+
+    long maximumSampleSize = 0;
+    for (int size : fixture.tracks.get(0).sizes) {
+      maximumSampleSize = max(maximumSampleSize, size);
+    }
+    assertTrue(
+        checks[1].maximumSampleBytesBetweenChecks
+            <= ContinueLoadingCheck.INTERVAL_BYTES + maximumSampleSize);
+    assertTrue(
+        checks[1].checkCount >= fixture.data.length / ContinueLoadingCheck.INTERVAL_BYTES - 1);
+    Benchmarks.report(
+        "read, 2 tracks not interleaved from a mapped file",
+        "at most "
+            + checks[0].maximumSampleBytesBetweenChecks
+            + " sample bytes between "
+            + checks[0].checkCount
+            + " continue-loading checks in "
+            + inputPositionReadNs / 1000
+            + " us by input position, "
+            + checks[1].maximumSampleBytesBetweenChecks
+            + " between "
+            + checks[1].checkCount
+            + " in "
+            + consumedBytesReadNs / 1000
+            + " us by bytes consumed");
+  }
+
+  @Test
+  public void read_nonInterleaved_positionalMappedReadsVersusReloads() throws Exception {
+    // Eight tracks of five minutes, stored one after the other.
+    Mp4Fixture fixture =
+        Mp4Fixture.multiTrack(
+                /* trackCount= */ 8,
+                /* videoSampleCount= */ 9000,
+                /* maxVideoSampleSize= */ 8192,
+                /* audioSampleSize= */ 256)
+            .setInterleaved(false)
+            .build();
+    File file = fixture.writeTo(temporaryFolder.newFolder());
+    ExtractorRunner[] runner = new ExtractorRunner[3];
+
+    long reloadingReadNs =
+        Benchmarks.bestTimeNs(
+            () -> {
+              runner[0] = new ExtractorRunner(new VcatMp4Extractor(), fixture.data);
+              runner[0].readToEnd();
+            });
+    long mappedReadNs =
+        Benchmarks.bestTimeNs(
+            () -> {
+              try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                runner[1] = new ExtractorRunner(new VcatMp4Extractor(), randomAccessFile);
+                runner[1].readToEnd();
+              }
+            });
+    long positionalReadNs =
+        Benchmarks.bestTimeNs(
+            () -> {
+              try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                runner[2] =
+                    new ExtractorRunner(
+                        new VcatMp4Extractor(VcatMp4Extractor.FLAG_POSITIONAL_SAMPLE_READS),
+                        randomAccessFile);
+                runner[2].readToEnd();
+              }
+            });
+    long reloadingLeadUs = readToEndGetMaximumLeadUs(fixture.data, /* file= */ null, 0);
+    long mappedLeadUs = readToEndGetMaximumLeadUs(fixture.data, file, 0);
+    long positionalLeadUs =
+        readToEndGetMaximumLeadUs(
+            fixture.data, file, VcatMp4Extractor.FLAG_POSITIONAL_SAMPLE_READS);
+
+    for (ExtractorRunner finishedRunner : runner) {
+      for (int i = 0; i < fixture.tracks.size(); i++) {
+        fixture.assertOutputMatches(i, finishedRunner.output.get(i));
+      }
+    }
+    assertEquals(0, runner[1].reloads);
+    assertEquals(0, runner[2].reloads);
+    assertTrue(positionalLeadUs < mappedLeadUs);
+    Benchmarks.report(
+        "read, 8 tracks not interleaved",
+        reloadingReadNs / 1000
+            + " us with "
+            + runner[0].reloads
+            + " reloads and tracks up to "
+            + reloadingLeadUs / 1000
+            + " ms apart streamed, "
+            + mappedReadNs / 1000
+            + " us and "
+            + mappedLeadUs / 1000
+            + " ms mapped, "
+            + positionalReadNs / 1000
+            + " us and "
+            + positionalLeadUs / 1000
+            + " ms mapped with positional reads");
+  }
+
+  @Test
+  public void read_avcSamples_bulkVersusPerNalUnit() throws Exception {
+    int nalUnitCount = 32;
+    int sampleCount = 900;
+    // 4-byte length fields are rewritten in place, 2-byte ones take the per NAL unit loop.
+    for (int nalUnitLengthFieldLength : new int[] {4, 2}) {
+      Mp4Fixture fixture =
+          new Mp4Fixture.Builder()
+              .addTrack(
+                  Mp4Fixture.TrackSpec.avc(
+                      sampleCount,
+                      /* gopLength= */ 30,
+                      nalUnitCount,
+                      /* nalUnitSize= */ 512,
+                      nalUnitLengthFieldLength))
+              .build();
+      ExtractorRunner[] runner = new ExtractorRunner[1];
+
+      long readNs =
+          Benchmarks.bestTimeNs(
+              () -> {
+                runner[0] = new ExtractorRunner(new VcatMp4Extractor(), fixture.data);
+                runner[0].readToEnd();
+              });
+
+      RecordingExtractorOutput.RecordingTrackOutput output = runner[0].output.get(0);
+      fixture.assertOutputMatches(0, output);
+      // One call per sample, against a start code and a payload call per NAL unit.
+      int expectedCallsPerSample = nalUnitLengthFieldLength == 4 ? 1 : 2 * nalUnitCount;
+      assertEquals(expectedCallsPerSample * sampleCount, output.sampleDataCalls);
+      Benchmarks.report(
+          "read, " + nalUnitLengthFieldLength + "-byte NAL unit lengths",
+          output.sampleDataCalls / sampleCount
+              + " sampleData and "
+              + runner[0].sourceReads / sampleCount
+              + " source reads per sample, "
+              + fixture.data.length * 1000L / Math.max(1, readNs)
+              + " MB/s");
+    }
+  }
+
+  /** Returns the number of runs of samples of {@code track} that are stored back to back. */
+  private static int getSampleRunCount(Mp4Fixture fixture, int track) {
+    Mp4Fixture.TrackSpec spec = fixture.tracks.get(track);
+    int runCount = 0;
+    long runEnd = C.POSITION_UNSET;
+    for (int i = 0; i < spec.sampleCount; i++) {
+      if (fixture.getSampleOffset(track, i) != runEnd) {
+        runCount++;
+      }
+      runEnd = fixture.getSampleOffset(track, i) + spec.sizes[i];
+    }
+    return runCount;
+  }
+
+  /**
+   * Reads {@code file} to the end through a {@link MappedFileMediaExtractor}, reopening it where
+   * the extractor asks the way a progressive media period does.
+   */
+  private static void readWithMappedFileMediaExtractor(
+      File file, RecordingExtractorOutput output, ContinueLoadingCheck check) throws IOException {
+    MappedFileMediaExtractor extractor =
+        new MappedFileMediaExtractor(() -> new Extractor[] {new VcatMp4Extractor()});
+    DataReader dataReader =
+        (buffer, offset, length) -> {
+          throw new UnsupportedOperationException();
+        };
+    Uri uri = Uri.fromFile(file);
+    PositionHolder positionHolder = new PositionHolder();
+    extractor.init(
+        dataReader, uri, ImmutableMap.of(), /* position= */ 0, C.LENGTH_UNSET, output);
+    int result;
+    while ((result = extractor.read(positionHolder)) != Extractor.RESULT_END_OF_INPUT) {
+      if (result == Extractor.RESULT_SEEK) {
+        extractor.init(
+            dataReader, uri, ImmutableMap.of(), positionHolder.position, C.LENGTH_UNSET, output);
+        check.onLoadStarted(positionHolder.position);
+      } else {
+        check.onRead(extractor.getCurrentInputPosition());
+      }
+    }
+    extractor.release();
+  }
+
+  private static void openToFirstSamples(
+      Mp4Fixture fixture, File file, @Nullable MoovIndexCache cache) throws IOException {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      VcatMp4Extractor extractor = new VcatMp4Extractor();
+      if (cache != null) {
+        extractor.setMoovIndex(cache.forFile(file.getPath()));
+      }
+      ExtractorRunner runner = new ExtractorRunner(extractor, randomAccessFile);
+      runner.readUntilTracksEnded();
+      runner.readSamples(fixture.tracks.size());
+      assertEquals(fixture.tracks.size(), runner.output.trackOutputs.size());
+    }
+  }
+
+  /**
+   * Reads {@code data}, or {@code file} if not null, to the end and returns the largest difference
+   * between the timestamps of the last samples output by any two tracks.
+   */
+  private static long readToEndGetMaximumLeadUs(
+      byte[] data, @Nullable File file, @VcatMp4Extractor.Flags int flags) throws IOException {
+    try (RandomAccessFile randomAccessFile =
+        file != null ? new RandomAccessFile(file, "r") : null) {
+      VcatMp4Extractor extractor = new VcatMp4Extractor(flags);
+      ExtractorRunner runner =
+          randomAccessFile != null
+              ? new ExtractorRunner(extractor, randomAccessFile)
+              : new ExtractorRunner(extractor, data);
+      runner.readUntilTracksEnded();
+      long maximumLeadUs = 0;
+      while (runner.readOnce()) {
+        long minimumTimeUs = Long.MAX_VALUE;
+        long maximumTimeUs = Long.MIN_VALUE;
+        for (RecordingExtractorOutput.RecordingTrackOutput trackOutput :
+            runner.output.trackOutputs.values()) {
+          int sampleCount = trackOutput.getSampleCount();
+          long timeUs = sampleCount == 0 ? 0 : trackOutput.timesUs.get(sampleCount - 1);
+          minimumTimeUs = Math.min(minimumTimeUs, timeUs);
+          maximumTimeUs = max(maximumTimeUs, timeUs);
+        }
+        maximumLeadUs = max(maximumLeadUs, maximumTimeUs - minimumTimeUs);
+      }
+      return maximumLeadUs;
+    }
+  }
+
+  /** Reads {@code fixture} as a stream until its tracks have been output. */
+  private static void prepare(Mp4Fixture fixture, @Nullable MoovIndexCache.FileIndex moovIndex)
+      throws IOException {
+    VcatMp4Extractor extractor = new VcatMp4Extractor();
+    extractor.setMoovIndex(moovIndex);
+    ExtractorRunner runner = new ExtractorRunner(extractor, fixture.data);
+    runner.readUntilTracksEnded();
+    assertEquals(fixture.tracks.size(), runner.output.trackOutputs.size());
+  }
+
+  /** Waits for the background writer of the cache in {@code directory} to store an entry. */
+  private static void awaitEntry(File directory) throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + 10_000;
+    while (directory.list((dir, name) -> name.endsWith(".vmic")).length == 0) {
+      assertTrue("Entry not written", System.currentTimeMillis() < deadlineMs);
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * The continue-loading check of a progressive media period: loading pauses whenever the input
+   * position passes the position of the last pause by the check interval. Records the most sample
+   * bytes output between two pauses, which is what the period buffers unchecked.
+   */
+  private static final class ContinueLoadingCheck {
+
+    /** The default continue-loading check interval of a progressive media source. */
+    public static final int INTERVAL_BYTES = 1024 * 1024;
+
+    public int checkCount;
+    public long maximumSampleBytesBetweenChecks;
+
+    private final RecordingExtractorOutput output;
+    private long position;
+    private long sampleBytesAtLastCheck;
+
+    public ContinueLoadingCheck(RecordingExtractorOutput output) {
+      this.output = output;
+    }
+
+    public void onLoadStarted(long position) {
+      this.position = position;
+    }
+
+    public void onRead(long inputPosition) {
+      long sampleBytes = 0;
+      for (RecordingExtractorOutput.RecordingTrackOutput trackOutput :
+          output.trackOutputs.values()) {
+        sampleBytes += trackOutput.sampleBytes;
+      }
+      maximumSampleBytesBetweenChecks =
+          max(maximumSampleBytesBetweenChecks, sampleBytes - sampleBytesAtLastCheck);
+      if (inputPosition > position + INTERVAL_BYTES) {
+        position = inputPosition;
+        checkCount++;
+        sampleBytesAtLastCheck = sampleBytes;
+      }
+    }
+  }
+}
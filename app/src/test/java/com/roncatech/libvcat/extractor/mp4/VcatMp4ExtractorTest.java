@@ -0,0 +1,532 @@
+/*
+ * VCAT (Video Codec Acid Test)
+ *
+ * SPDX-FileCopyrightText: Copyright (C) 2020-2025 VCAT authors and RoncaTech
+ * SPDX-License-Identifier: GPL-3.0-or-later
+ *
+ * This file is part of VCAT.
+ *
+ * VCAT is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * VCAT is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with VCAT. If not, see <https://www.gnu.org/licenses/gpl-3.0.html>.
+ *
+ * For proprietary/commercial use cases, a written GPL-3.0 waiver or
+ * a separate commercial license is required from RoncaTech LLC.
+ *
+ * All VCAT artwork is owned exclusively by RoncaTech LLC. Use of VCAT logos
+ * and artwork is permitted for the purpose of discussing, documenting,
+ * or promoting VCAT itself. Any other use requires prior written permission
+ * from RoncaTech LLC.
+ *
+ * Contact: legal@roncatech.com
+ */
+
+package com.roncatech.libvcat.extractor.mp4;
+
+import static com.google.android.exoplayer2.util.Assertions.checkNotNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ParserException;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.util.MimeTypes;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Ints;
+import com.roncatech.libvcat.decoder.SampleFormatDeclaration;
+import com.roncatech.libvcat.decoder.VcatDecoderManager;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests for {@link VcatMp4Extractor}. */
+@RunWith(RobolectricTestRunner.class)
+public final class VcatMp4ExtractorTest {
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void read_outputsEverySampleOfEveryTrack() throws Exception {
+    for (int trackCount : new int[] {1, 4, 16}) {
+      Mp4Fixture fixture = newMultiTrackFixture(trackCount, /* videoSampleCount= */ 900);
+      ExtractorRunner runner = new ExtractorRunner(new VcatMp4Extractor(), fixture.data);
+
+      runner.readToEnd();
+
+      assertEquals(trackCount, runner.output.trackOutputs.size());
+      for (int i = 0; i < trackCount; i++) {
+        fixture.assertOutputMatches(i, runner.output.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void read_setsFormatsAndDuration() throws Exception {
+    Mp4Fixture fixture = newMultiTrackFixture(/* trackCount= */ 2, /* videoSampleCount= */ 300);
+    ExtractorRunner runner = new ExtractorRunner(new VcatMp4Extractor(), fixture.data);
+
+    runner.readUntilTracksEnded();
+
+    assertEquals(MimeTypes.VIDEO_AV1, runner.output.get(0).format.sampleMimeType);
+    assertEquals(1280, runner.output.get(0).format.width);
+    assertEquals(MimeTypes.AUDIO_AAC, runner.output.get(1).format.sampleMimeType);
+    assertEquals(48_000, runner.output.get(1).format.sampleRate);
+    assertEquals(fixture.tracks.get(0).getDurationUs(), runner.output.seekMap.getDurationUs());
+  }
+
+  @Test
+  public void read_withMoovAtEnd_outputsEverySample() throws Exception {
+    Mp4Fixture fixture =
+        newMultiTrackFixture(
+            /* trackCount= */ 2, /* videoSampleCount= */ 900, /* moovAtEnd= */ true);
+    ExtractorRunner runner = new ExtractorRunner(new VcatMp4Extractor(), fixture.data);
+
+    runner.readToEnd();
+
+    // One seek past the mdat to the moov, one back to the samples.
+    assertTrue(runner.reloads >= 2);
+    fixture.assertOutputMatches(0, runner.output.get(0));
+    fixture.assertOutputMatches(1, runner.output.get(1));
+  }
+
+  @Test
+  public void read_withPositionalSampleReads_mappedNonInterleaved_readsInTimeOrder()
+      throws Exception {
+    Mp4Fixture fixture =
+        Mp4Fixture.multiTrack(
+                /* trackCount= */ 2,
+                /* videoSampleCount= */ 900,
+                /* maxVideoSampleSize= */ 2048,
+                /* audioSampleSize= */ 300)
+            .setInterleaved(false)
+            .build();
+    File file = fixture.writeTo(temporaryFolder.newFolder());
+
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      ExtractorRunner runner = new ExtractorRunner(new VcatMp4Extractor(), randomAccessFile);
+      ExtractorRunner positionalRunner =
+          new ExtractorRunner(
+              new VcatMp4Extractor(VcatMp4Extractor.FLAG_POSITIONAL_SAMPLE_READS),
+              randomAccessFile);
+      runner.readUntilTracksEnded();
+      positionalRunner.readUntilTracksEnded();
+      runner.readSamples(100);
+      positionalRunner.readSamples(100);
+
+      // All video fits in the read-ahead, so only positional reads have reached the audio.
+      assertEquals(0, runner.output.get(1).getSampleCount());
+      assertTrue(positionalRunner.output.get(1).getSampleCount() > 0);
+      runner.readToEnd();
+      positionalRunner.readToEnd();
+      fixture.assertOutputMatches(0, positionalRunner.output.get(0));
+      fixture.assertOutputMatches(1, positionalRunner.output.get(1));
+      fixture.assertOutputMatches(1, runner.output.get(1));
+    }
+  }
+
+  @Test
+  public void read_withSelectedTrackIds_outputsSelectedTracksAtTheirIndices() throws Exception {
+    // Video, three audio tracks and video, with tkhd ids 1 to 5.
+    Mp4Fixture fixture = newMultiTrackFixture(/* trackCount= */ 5, /* videoSampleCount= */ 300);
+    VcatMp4Extractor extractor = new VcatMp4Extractor();
+    extractor.setSelectedTrackIds(ImmutableSet.of(3, 5));
+    ExtractorRunner runner = new ExtractorRunner(extractor, fixture.data);
+
+    runner.readToEnd();
+
+    assertEquals(2, runner.output.trackOutputs.size());
+    fixture.assertOutputMatches(2, runner.output.get(0));
+    fixture.assertOutputMatches(4, runner.output.get(1));
+    // Seek points for output track 1 come from the second selected track, the video track.
+    Mp4Fixture.TrackSpec video = fixture.tracks.get(4);
+    long timeUs = video.getTimestampUs(45);
+    int syncSampleIndex = 45;
+    while (!video.isSyncSample(syncSampleIndex)) {
+      syncSampleIndex--;
+    }
+    SeekMap.SeekPoints seekPoints = extractor.getSeekPoints(timeUs, /* trackId= */ 1);
+    assertEquals(video.getTimestampUs(syncSampleIndex), seekPoints.first.timeUs);
+    assertEquals(fixture.getSampleOffset(4, syncSampleIndex), seekPoints.first.position);
+  }
+
+  @Test
+  public void read_withSelectedAudioTrack_nonInterleaved_readsNoVideoSampleData()
+      throws Exception {
+    Mp4Fixture fixture =
+        Mp4Fixture.multiTrack(
+                /* trackCount= */ 2,
+                /* videoSampleCount= */ 9000,
+                /* maxVideoSampleSize= */ 4096,
+                /* audioSampleSize= */ 64)
+            .setInterleaved(false)
+            .build();
+    long videoBytes = 0;
+    for (int size : fixture.tracks.get(0).sizes) {
+      videoBytes += size;
+    }
+    ExtractorRunner allTracksRunner = new ExtractorRunner(new VcatMp4Extractor(), fixture.data);
+    VcatMp4Extractor extractor = new VcatMp4Extractor();
+    extractor.setSelectedTrackIds(ImmutableSet.of(2));
+    ExtractorRunner audioRunner = new ExtractorRunner(extractor, fixture.data);
+
+    allTracksRunner.readToEnd();
+    audioRunner.readToEnd();
+
+    fixture.assertOutputMatches(1, audioRunner.output.get(0));
+    assertEquals(fixture.data.length, allTracksRunner.sourceBytesRead);
+    // The extractor seeks from the end of the moov past the mdat header and the video samples.
+    assertEquals(
+        fixture.data.length - Atom.HEADER_SIZE - videoBytes, audioRunner.sourceBytesRead);
+    assertEquals(1, audioRunner.reloads);
+  }
+
+  @Test
+  public void read_mappedInput_leavesLargeSampleTablesInFile() throws Exception {
+    // A sync sample per chunk of one: stsz, stco, ctts and stss each take over 4 MiB.
+    Mp4Fixture fixture =
+        new Mp4Fixture.Builder()
+            .addTrack(
+                Mp4Fixture.TrackSpec.video(
+                    /* sampleCount= */ 1_200_000,
+                    /* gopLength= */ 1,
+                    /* maxSampleSize= */ 8,
+                    /* seed= */ 0))
+            .setChunkDurationUs(10_000)
+            .build();
+    File file = fixture.writeTo(temporaryFolder.newFolder());
+    long bytesLeftInFile = 0;
+    int tablesLeftInFile = 0;
+    Atom.ContainerAtom stbl =
+        checkNotNull(
+            checkNotNull(
+                    checkNotNull(
+                            checkNotNull(fixture.parseMoov().getContainerAtomOfType(Atom.TYPE_trak))
+                                .getContainerAtomOfType(Atom.TYPE_mdia))
+                        .getContainerAtomOfType(Atom.TYPE_minf))
+                .getContainerAtomOfType(Atom.TYPE_stbl));
+    for (Atom.LeafAtom leaf : stbl.leafChildren) {
+      int entriesPosition = AtomParsers.getTableEntriesPosition(leaf.type);
+      if (entriesPosition != C.INDEX_UNSET
+          && leaf.data.limit() >= VcatMp4Extractor.MINIMUM_FILE_BACKED_ATOM_SIZE) {
+        bytesLeftInFile += leaf.data.limit() - entriesPosition;
+        tablesLeftInFile++;
+      }
+    }
+    VcatMp4Extractor streamedExtractor = new VcatMp4Extractor();
+    ExtractorRunner streamedRunner = new ExtractorRunner(streamedExtractor, fixture.data);
+    streamedRunner.readUntilTracksEnded();
+
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      VcatMp4Extractor mappedExtractor = new VcatMp4Extractor();
+      ExtractorRunner mappedRunner = new ExtractorRunner(mappedExtractor, randomAccessFile);
+      mappedRunner.readToEnd();
+
+      assertEquals(4, tablesLeftInFile);
+      assertEquals(
+          streamedExtractor.getPreparationBytesRead() - bytesLeftInFile,
+          mappedExtractor.getPreparationBytesRead());
+      fixture.assertOutputMatches(0, mappedRunner.output.get(0));
+    }
+  }
+
+  @Test
+  public void read_withTraksBeforeMvhd_startsThemWhenMvhdIsRead() throws Exception {
+    Mp4Fixture fixture =
+        Mp4Fixture.multiTrack(
+                /* trackCount= */ 4,
+                /* videoSampleCount= */ 300,
+                /* maxVideoSampleSize= */ 2048,
+                /* audioSampleSize= */ 300)
+            .setTraksBeforeMvhd(2)
+            .build();
+    StblExecutor executor = new StblExecutor(/* runAfterTaskCount= */ 1);
+    AtomParsers.setStblExecutor(executor);
+    VcatMp4Extractor extractor = new VcatMp4Extractor();
+    // The input ends just after the mvhd.
+    byte[] truncatedData = truncateBeforeTrak(fixture.data, /* trakIndex= */ 2);
+    ExtractorRunner truncatedRunner = new ExtractorRunner(extractor, truncatedData);
+
+    truncatedRunner.readToEnd();
+
+    // Both traks start as soon as the mvhd has been read.
+    assertFalse(truncatedRunner.output.tracksEnded);
+    assertEquals(2, executor.tasks.size());
+    extractor.seek(/* position= */ 0, /* timeUs= */ 0);
+    ExtractorRunner runner = new ExtractorRunner(extractor, fixture.data);
+    runner.readToEnd();
+    for (int i = 0; i < 4; i++) {
+      fixture.assertOutputMatches(i, runner.output.get(i));
+    }
+  }
+
+  @Test
+  public void read_withTraksFinishingOutOfOrder_outputsTracksInFileOrder() throws Exception {
+    Mp4Fixture fixture = newMultiTrackFixture(/* trackCount= */ 4, /* videoSampleCount= */ 300);
+    // Parses the last trak first.
+    AtomParsers.setStblExecutor(new StblExecutor(/* runAfterTaskCount= */ 4));
+    ExtractorRunner runner = new ExtractorRunner(new VcatMp4Extractor(), fixture.data);
+
+    runner.readToEnd();
+
+    assertEquals(4, runner.output.trackOutputs.size());
+    for (int i = 0; i < 4; i++) {
+      fixture.assertOutputMatches(i, runner.output.get(i));
+    }
+  }
+
+  @Test
+  public void seek_whileTraksArePending_cancelsThem() throws Exception {
+    Mp4Fixture fixture = newMultiTrackFixture(/* trackCount= */ 4, /* videoSampleCount= */ 300);
+    StblExecutor executor = new StblExecutor(/* runAfterTaskCount= */ Integer.MAX_VALUE);
+    AtomParsers.setStblExecutor(executor);
+    VcatMp4Extractor extractor = new VcatMp4Extractor();
+    ExtractorRunner runner =
+        new ExtractorRunner(extractor, truncateBeforeTrak(fixture.data, /* trakIndex= */ 2));
+    runner.readToEnd();
+    assertFalse(runner.output.tracksEnded);
+    assertEquals(2, executor.tasks.size());
+
+    extractor.seek(/* position= */ 0, /* timeUs= */ 0);
+
+    assertAllCancelled(executor.tasks);
+    // Reading again doesn't output the cancelled traks.
+    executor.setRunAfterTaskCount(1);
+    ExtractorRunner rereadRunner = new ExtractorRunner(extractor, fixture.data);
+    rereadRunner.readToEnd();
+    assertEquals(4, rereadRunner.output.trackOutputs.size());
+    for (int i = 0; i < 4; i++) {
+      fixture.assertOutputMatches(i, rereadRunner.output.get(i));
+    }
+  }
+
+  @Test
+  public void release_whileTraksArePending_cancelsThem() throws Exception {
+    Mp4Fixture fixture = newMultiTrackFixture(/* trackCount= */ 4, /* videoSampleCount= */ 300);
+    StblExecutor executor = new StblExecutor(/* runAfterTaskCount= */ Integer.MAX_VALUE);
+    AtomParsers.setStblExecutor(executor);
+    VcatMp4Extractor extractor = new VcatMp4Extractor();
+    ExtractorRunner runner =
+        new ExtractorRunner(extractor, truncateBeforeTrak(fixture.data, /* trakIndex= */ 2));
+    runner.readToEnd();
+    assertFalse(runner.output.tracksEnded);
+    assertEquals(2, executor.tasks.size());
+
+    extractor.release();
+
+    assertAllCancelled(executor.tasks);
+  }
+
+  @Test
+  public void read_withMalformedPendingTrak_throwsParserException() throws Exception {
+    Mp4Fixture fixture = newMultiTrackFixture(/* trackCount= */ 4, /* videoSampleCount= */ 300);
+    byte[] data = fixture.data.clone();
+    // The first stsc entry of the second trak must start at chunk 1.
+    int stscPosition = indexOf(data, Atom.TYPE_stsc, indexOf(data, Atom.TYPE_stsc, 0) + 1);
+    data[stscPosition + 4 + Atom.FULL_HEADER_SIZE + 3] = 2;
+    ExtractorRunner runner = new ExtractorRunner(new VcatMp4Extractor(), data);
+
+    assertThrows(ParserException.class, runner::readToEnd);
+  }
+
+  @Test
+  public void read_streamedLeafAtomWithExtendedSize_throwsParserException() throws Exception {
+    ByteBuffer data = ByteBuffer.allocate(16 + Atom.HEADER_SIZE + Atom.LONG_HEADER_SIZE);
+    data.putInt(16).putInt(Atom.TYPE_ftyp).putInt(0x69736f6d).putInt(0);
+    data.putInt(Atom.HEADER_SIZE + Atom.LONG_HEADER_SIZE).putInt(Atom.TYPE_moov);
+    data.putInt(Atom.DEFINES_LARGE_SIZE).putInt(Atom.TYPE_mvhd).putLong(Atom.LONG_HEADER_SIZE);
+    ExtractorRunner runner = new ExtractorRunner(new VcatMp4Extractor(), data.array());
+
+    assertThrows(ParserException.class, runner::readToEnd);
+  }
+
+  @Test
+  public void read_withDecoderTakingSamplesAsStored_outputsAvcAndHevcSamplesUnchanged()
+      throws Exception {
+    for (boolean hevc : new boolean[] {false, true}) {
+      Mp4Fixture fixture = newNalUnitFixture(hevc);
+      SampleFormatPlugin plugin =
+          new SampleFormatPlugin(hevc, SampleFormatDeclaration.SAMPLE_FORMAT_AS_STORED);
+      VcatDecoderManager.getInstance().registerDecoder(plugin);
+      try {
+        ExtractorRunner runner = new ExtractorRunner(new VcatMp4Extractor(), fixture.data);
+
+        runner.readToEnd();
+
+        RecordingExtractorOutput.RecordingTrackOutput output = runner.output.get(0);
+        assertEquals(plugin.getMimeType(), checkNotNull(output.format).sampleMimeType);
+        fixture.assertStoredOutputMatches(0, output);
+      } finally {
+        VcatDecoderManager.getInstance().unregisterDecoder(plugin.getId());
+      }
+    }
+  }
+
+  @Test
+  public void read_withDecoderTakingAnnexB_rewritesAvcAndHevcStartCodes() throws Exception {
+    for (boolean hevc : new boolean[] {false, true}) {
+      for (boolean declared : new boolean[] {false, true}) {
+        Mp4Fixture fixture = newNalUnitFixture(hevc);
+        SampleFormatPlugin plugin =
+            new SampleFormatPlugin(hevc, SampleFormatDeclaration.SAMPLE_FORMAT_ANNEX_B);
+        if (declared) {
+          VcatDecoderManager.getInstance().registerDecoder(plugin);
+        }
+        try {
+          ExtractorRunner runner = new ExtractorRunner(new VcatMp4Extractor(), fixture.data);
+
+          runner.readToEnd();
+
+          fixture.assertOutputMatches(0, runner.output.get(0));
+        } finally {
+          VcatDecoderManager.getInstance().unregisterDecoder(plugin.getId());
+        }
+      }
+    }
+  }
+
+  @After
+  public void tearDown() {
+    AtomParsers.setStblExecutor(null);
+  }
+
+  private static void assertAllCancelled(List<Future<?>> tasks) {
+    for (Future<?> task : tasks) {
+      assertTrue(task.isCancelled());
+    }
+  }
+
+  /** Returns the start of {@code data}, up to the trak atom at {@code trakIndex}. */
+  private static byte[] truncateBeforeTrak(byte[] data, int trakIndex) {
+    int position = -1;
+    for (int i = 0; i <= trakIndex; i++) {
+      position = indexOf(data, Atom.TYPE_trak, position + 1);
+    }
+    return Arrays.copyOf(data, position);
+  }
+
+  /** Returns the position of the size field of the first atom of {@code type} from {@code from}. */
+  private static int indexOf(byte[] data, int type, int from) {
+    for (int i = from + 4; i + 4 <= data.length; i++) {
+      if (Ints.fromBytes(data[i], data[i + 1], data[i + 2], data[i + 3]) == type) {
+        return i - 4;
+      }
+    }
+    throw new IllegalArgumentException("No atom of type " + Atom.getAtomTypeString(type));
+  }
+
+  /** Returns an H.264 or H.265 track with 4-byte NAL unit lengths. */
+  private static Mp4Fixture newNalUnitFixture(boolean hevc) {
+    Mp4Fixture.TrackSpec track =
+        Mp4Fixture.TrackSpec.avc(
+            /* sampleCount= */ 90,
+            /* gopLength= */ 30,
+            /* nalUnitCount= */ 4,
+            /* nalUnitSize= */ 64,
+            /* nalUnitLengthFieldLength= */ 4);
+    return new Mp4Fixture.Builder().addTrack(hevc ? track.asHevc() : track).build();
+  }
+
+  private static Mp4Fixture newMultiTrackFixture(int trackCount, int videoSampleCount) {
+    return newMultiTrackFixture(trackCount, videoSampleCount, /* moovAtEnd= */ false);
+  }
+
+  private static Mp4Fixture newMultiTrackFixture(
+      int trackCount, int videoSampleCount, boolean moovAtEnd) {
+    return Mp4Fixture.multiTrack(
+            trackCount,
+            videoSampleCount,
+            /* maxVideoSampleSize= */ 2048,
+            /* audioSampleSize= */ 300)
+        .setMoovAtEnd(moovAtEnd)
+        .build();
+  }
+
+  /**
+   * Runs sample table tasks on the calling thread, in reverse order, once a number of them have
+   * been submitted. Until then, pending tasks can only be cancelled.
+   */
+  private static final class StblExecutor extends AbstractExecutorService {
+
+    public final List<Future<?>> tasks;
+
+    private final List<Runnable> queuedTasks;
+    private int runAfterTaskCount;
+
+    public StblExecutor(int runAfterTaskCount) {
+      this.runAfterTaskCount = runAfterTaskCount;
+      tasks = new CopyOnWriteArrayList<>();
+      queuedTasks = new ArrayList<>();
+    }
+
+    public synchronized void setRunAfterTaskCount(int runAfterTaskCount) {
+      this.runAfterTaskCount = runAfterTaskCount;
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+      RunnableFuture<T> task = super.newTaskFor(callable);
+      tasks.add(task);
+      return task;
+    }
+
+    @Override
+    public synchronized void execute(Runnable command) {
+      queuedTasks.add(command);
+      if (queuedTasks.size() >= runAfterTaskCount) {
+        for (int i = queuedTasks.size() - 1; i >= 0; i--) {
+          queuedTasks.get(i).run();
+        }
+        queuedTasks.clear();
+      }
+    }
+
+    @Override
+    public void shutdown() {}
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return new ArrayList<>();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return false;
+    }
+  }
+}